@@ -97,6 +97,14 @@ public interface Constants {
    * Refspec to fetch, used in communication with Fetcher
    */
   public static final String REFSPEC = "REFSPEC";
+  /**
+   * Names of refs advertised by the remote repository before fetch, used in communication with Fetcher
+   */
+  public static final String ADVERTISED_REFS = "ADVERTISED_REFS";
+  /**
+   * Object filter of a fetch into a blobless clone, used in communication with Fetcher
+   */
+  public static final String FETCH_FILTER = "FETCH_FILTER";
   public static final String VCS_DEBUG_ENABLED = "VCS_DEBUG_ENABLED";
   public static final String THREAD_DUMP_FILE = "THREAD_DUMP_FILE";
 
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.diagnostics;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.web.openapi.PagePlaces;
+import jetbrains.buildServer.web.openapi.PlaceId;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.SimpleCustomTab;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Server diagnostics tab showing per-repository histograms of fetch phase durations
+ * and the time fetches of every priority waited for a free fetch slot, as well as
+ * the efficiency of the shared remote refs cache and the commit changes cache
+ */
+public class GitFetchMetricsTab extends SimpleCustomTab {
+
+  private final FetchMetrics myFetchMetrics;
+  private final MirrorManager myMirrorManager;
+  private final FetchScheduler myFetchScheduler;
+  private final RemoteRefsCache myRemoteRefsCache;
+  private final CommitChangesCache myCommitChangesCache;
+
+  public GitFetchMetricsTab(@NotNull PluginDescriptor pluginDescriptor,
+                            @NotNull PagePlaces pagePlaces,
+                            @NotNull FetchMetrics fetchMetrics,
+                            @NotNull MirrorManager mirrorManager,
+                            @NotNull CommitLoaderImpl commitLoader,
+                            @NotNull GitVcsSupport vcs) {
+    super(pagePlaces, PlaceId.ADMIN_SERVER_DIAGNOSTIC_TAB, "gitFetchMetrics",
+          pluginDescriptor.getPluginResourcesPath("diagnostics/gitFetchMetrics.jsp"), "Git Fetch Metrics");
+    myFetchMetrics = fetchMetrics;
+    myMirrorManager = mirrorManager;
+    myFetchScheduler = commitLoader.getFetchScheduler();
+    myRemoteRefsCache = vcs.getRemoteRefsCache();
+    myCommitChangesCache = vcs.getCommitChangesCache();
+    register();
+  }
+
+  @Override
+  public boolean isAvailable(@NotNull HttpServletRequest request) {
+    return super.isAvailable(request) && SessionUser.getUser(request).isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS);
+  }
+
+  @Override
+  public void fillModel(@NotNull Map<String, Object> model, @NotNull HttpServletRequest request) {
+    Map<String, FetchMetrics.RepositoryMetrics> repositories = new TreeMap<>();
+    for (Map.Entry<File, FetchMetrics.RepositoryMetrics> e : myFetchMetrics.getRepositoryMetrics().entrySet()) {
+      String url = myMirrorManager.getUrl(e.getKey().getName());
+      if (url != null)
+        repositories.put(url, e.getValue());
+    }
+    model.put("repositories", repositories);
+    model.put("phases", FetchPhase.values());
+    model.put("runningFetches", myFetchScheduler.getRunningCount());
+    model.put("queuedFetches", myFetchScheduler.getQueueLength());
+    model.put("priorities", myFetchScheduler.getStatistics());
+    model.put("remoteRefsMisses", myRemoteRefsCache.getMisses());
+    model.put("remoteRefsHits", myRemoteRefsCache.getHits());
+    model.put("remoteRefsCoalesced", myRemoteRefsCache.getCoalesced());
+    model.put("commitChangesHits", myCommitChangesCache.getHits());
+    model.put("commitChangesMisses", myCommitChangesCache.getMisses());
+  }
+}
@@ -18,6 +18,8 @@ package jetbrains.buildServer.buildTriggers.vcs.git.health;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
+import jetbrains.buildServer.buildTriggers.vcs.git.Cleanup;
+import jetbrains.buildServer.buildTriggers.vcs.git.GcScheduler;
 import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.auth.Permission;
@@ -32,23 +34,24 @@ import org.jetbrains.annotations.NotNull;
 import javax.servlet.http.HttpServletRequest;
 import java.io.File;
 import java.io.IOException;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
+import java.util.*;
 
 public class GitGcErrorsHealthPage extends HealthStatusItemPageExtension {
 
   private static final Logger LOG = Logger.getInstance(GitGcErrorsHealthPage.class.getName());
   private final ServerPaths myServerPaths;
   private final MirrorManager myMirrorManager;
+  private final GcScheduler myGcScheduler;
 
   public GitGcErrorsHealthPage(@NotNull PluginDescriptor pluginDescriptor,
                                @NotNull PagePlaces pagePlaces,
                                @NotNull ServerPaths serverPaths,
-                               @NotNull MirrorManager mirrorManager) {
+                               @NotNull MirrorManager mirrorManager,
+                               @NotNull Cleanup cleanup) {
     super(GitGcErrorsHealthReport.REPORT_TYPE, pagePlaces);
     myServerPaths = serverPaths;
     myMirrorManager = mirrorManager;
+    myGcScheduler = cleanup.getGcScheduler();
     setIncludeUrl(pluginDescriptor.getPluginResourcesPath("health/gitGcErrorsReport.jsp"));
     setVisibleOutsideAdminArea(false);
     register();
@@ -61,7 +64,8 @@ public class GitGcErrorsHealthPage extends HealthStatusItemPageExtension {
     if (!SessionUser.getUser(request).isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS)) return false;
     HealthStatusItem item = getStatusItem(request);
     Object path = item.getAdditionalData().get(GitGcErrorsHealthReport.ERRORS_KEY);
-    return path instanceof Map && !((Map) path).isEmpty();
+    Object starved = item.getAdditionalData().get(GitGcErrorsHealthReport.STARVED_KEY);
+    return path instanceof Map && !((Map) path).isEmpty() || starved instanceof Collection && !((Collection) starved).isEmpty();
   }
 
   @Override
@@ -96,5 +100,25 @@ public class GitGcErrorsHealthPage extends HealthStatusItemPageExtension {
       }
     }
     model.put("errors", sortedErrors);
+    Object done = item.getAdditionalData().get(GitGcErrorsHealthReport.DONE_KEY);
+    Object skipped = item.getAdditionalData().get(GitGcErrorsHealthReport.SKIPPED_KEY);
+    model.put("doneCount", done instanceof Integer ? done : 0);
+    model.put("skippedCount", skipped instanceof Integer ? skipped : 0);
+    //url -> time of the last garbage collection, null if it never ran
+    Map<String, Date> starvedClones = new TreeMap<>();
+    Object starved = item.getAdditionalData().get(GitGcErrorsHealthReport.STARVED_KEY);
+    if (starved instanceof Collection) {
+      for (Object dir : (Collection) starved) {
+        if (dir instanceof File) {
+          String url = myMirrorManager.getUrl(((File)dir).getName());
+          if (url != null) {
+            Long lastGcTime = myGcScheduler.getLastGcTime((File)dir);
+            starvedClones.put(url, lastGcTime != null ? new Date(lastGcTime) : null);
+          }
+        }
+      }
+    }
+    model.put("starvedClones", starvedClones);
+    model.put("starvedSkippedRuns", GcScheduler.STARVED_SKIPPED_RUNS);
   }
 }
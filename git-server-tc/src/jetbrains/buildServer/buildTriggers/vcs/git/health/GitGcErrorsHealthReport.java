@@ -21,10 +21,7 @@ import jetbrains.buildServer.serverSide.healthStatus.*;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 public class GitGcErrorsHealthReport extends HealthStatusReport {
 
@@ -32,6 +29,9 @@ public class GitGcErrorsHealthReport extends HealthStatusReport {
   static final String REPORT_TYPE = PREFIX + "HealthReport";
   private static final ItemCategory CATEGORY = new ItemCategory(PREFIX + "HealthCategory", "Git garbage collection error", ItemSeverity.WARN);
   static final String ERRORS_KEY = "errors";
+  static final String DONE_KEY = "done";
+  static final String SKIPPED_KEY = "skipped";
+  static final String STARVED_KEY = "starved";
 
   private final GcErrors myGcErrors;
 
@@ -65,9 +65,14 @@ public class GitGcErrorsHealthReport extends HealthStatusReport {
   @Override
   public void report(@NotNull HealthStatusScope scope, @NotNull HealthStatusItemConsumer resultConsumer) {
     Map<File, String> errors = myGcErrors.getErrors();
-    if (!errors.isEmpty()) {
+    //a single run exceeding the time quota is expected, warn only when some clones are skipped again and again
+    List<File> starved = myGcErrors.getStarvedClones();
+    if (!errors.isEmpty() || !starved.isEmpty()) {
       Map<String, Object> data = new HashMap<>();
       data.put(ERRORS_KEY, errors);
+      data.put(DONE_KEY, myGcErrors.getLastRunDone());
+      data.put(SKIPPED_KEY, myGcErrors.getLastRunSkipped());
+      data.put(STARVED_KEY, starved);
       resultConsumer.consumeGlobal(new HealthStatusItem(PREFIX + "HealthItemId", CATEGORY, ItemSeverity.WARN, data));
     }
   }
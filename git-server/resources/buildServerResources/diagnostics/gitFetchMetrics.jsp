@@ -0,0 +1,81 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<jsp:useBean id="repositories" type="java.util.Map<java.lang.String, jetbrains.buildServer.buildTriggers.vcs.git.FetchMetrics.RepositoryMetrics>" scope="request"/>
+<jsp:useBean id="phases" type="jetbrains.buildServer.buildTriggers.vcs.git.FetchPhase[]" scope="request"/>
+<jsp:useBean id="runningFetches" type="java.lang.Integer" scope="request"/>
+<jsp:useBean id="queuedFetches" type="java.lang.Integer" scope="request"/>
+<jsp:useBean id="remoteRefsMisses" type="java.lang.Long" scope="request"/>
+<jsp:useBean id="remoteRefsHits" type="java.lang.Long" scope="request"/>
+<jsp:useBean id="remoteRefsCoalesced" type="java.lang.Long" scope="request"/>
+<jsp:useBean id="commitChangesHits" type="java.lang.Long" scope="request"/>
+<jsp:useBean id="commitChangesMisses" type="java.lang.Long" scope="request"/>
+<jsp:useBean id="priorities" type="java.util.Map<jetbrains.buildServer.buildTriggers.vcs.git.FetchPriority, jetbrains.buildServer.buildTriggers.vcs.git.FetchScheduler.PriorityStatistics>" scope="request"/>
+
+<div>
+  Fetch slots: <c:out value="${runningFetches}"/> running, <c:out value="${queuedFetches}"/> waiting for a free slot.
+</div>
+<table class="settings" style="width: auto">
+  <tr>
+    <th>Priority</th>
+    <th>Fetches</th>
+    <th>Average wait</th>
+    <th>Max wait</th>
+    <th>Average run</th>
+  </tr>
+  <c:forEach var="priority" items="${priorities}">
+    <tr>
+      <td><c:out value="${priority.key}"/></td>
+      <td><c:out value="${priority.value.fetchCount}"/></td>
+      <td><c:out value="${priority.value.averageWaitMillis}"/></td>
+      <td><c:out value="${priority.value.maxWaitMillis}"/></td>
+      <td><c:out value="${priority.value.averageRunMillis}"/></td>
+    </tr>
+  </c:forEach>
+</table>
+
+<div style="margin-top: 1.5em">
+  Remote refs requests: <c:out value="${remoteRefsMisses}"/> listed refs in remote repositories,
+  <c:out value="${remoteRefsHits}"/> reused a cached result,
+  <c:out value="${remoteRefsCoalesced}"/> waited for the same request made by another VCS root.
+</div>
+<div>
+  Commit changes: <c:out value="${commitChangesHits}"/> commits found in the cache,
+  <c:out value="${commitChangesMisses}"/> commits diffed.
+</div>
+<div style="margin-top: 1.5em">
+  Durations of git fetch phases since the server start, in milliseconds. Percentiles are upper bounds of histogram buckets.
+</div>
+<c:if test="${empty repositories}">
+  <p>No fetches were performed yet.</p>
+</c:if>
+<c:forEach var="repository" items="${repositories}">
+  <c:set var="metrics" value="${repository.value}"/>
+  <h3 style="margin-top: 1.5em"><c:out value="${repository.key}"/></h3>
+  <div>
+    Fetches: <c:out value="${metrics.fetchCount}"/>,
+    downloaded: <c:out value="${metrics.downloadedBytes}"/> bytes,
+    download throughput: <c:out value="${metrics.downloadThroughput}"/> bytes/s
+  </div>
+  <table class="settings" style="width: auto">
+    <tr>
+      <th>Phase</th>
+      <th>Count</th>
+      <th>Average</th>
+      <th>50%</th>
+      <th>95%</th>
+      <th>Max</th>
+    </tr>
+    <c:forEach var="phase" items="${phases}">
+      <c:set var="histogram" value="${metrics.histograms[phase]}"/>
+      <c:if test="${histogram.count > 0}">
+        <tr>
+          <td><c:out value="${phase.description}"/></td>
+          <td><c:out value="${histogram.count}"/></td>
+          <td><c:out value="${histogram.average}"/></td>
+          <td><c:out value="${histogram.getPercentile(50)}"/></td>
+          <td><c:out value="${histogram.getPercentile(95)}"/></td>
+          <td><c:out value="${histogram.max}"/></td>
+        </tr>
+      </c:if>
+    </c:forEach>
+  </table>
+</c:forEach>
@@ -1,10 +1,34 @@
 <%@ page import="jetbrains.buildServer.web.openapi.healthStatus.HealthStatusItemDisplayMode" %>
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
 <c:set var="inplaceMode" value="<%=HealthStatusItemDisplayMode.IN_PLACE%>"/>
 <jsp:useBean id="showMode" type="jetbrains.buildServer.web.openapi.healthStatus.HealthStatusItemDisplayMode" scope="request"/>
 <c:set var="errorsBlockId" value="gitGcErrors_${showMode}"/>
 <jsp:useBean id="errors" type="java.util.Map<java.lang.String, java.lang.String>" scope="request"/>
+<jsp:useBean id="doneCount" type="java.lang.Integer" scope="request"/>
+<jsp:useBean id="skippedCount" type="java.lang.Integer" scope="request"/>
+<jsp:useBean id="starvedClones" type="java.util.Map<java.lang.String, java.util.Date>" scope="request"/>
+<jsp:useBean id="starvedSkippedRuns" type="java.lang.Integer" scope="request"/>
 
+<c:if test="${not empty starvedClones}">
+<div>
+  Git garbage collection didn't run in some repositories during the last <c:out value="${starvedSkippedRuns}"/> cleanups because of the time quota
+  (the last cleanup processed <c:out value="${doneCount}"/> repositories and skipped <c:out value="${skippedCount}"/>).
+  Consider increasing the quota or the number of garbage collection threads.
+</div>
+<div style="margin-left: 1em">
+  <c:forEach var="clone" items="${starvedClones}">
+    <div>
+      <b><c:out value="${clone.key}"/></b>, last garbage collection:
+      <c:choose>
+        <c:when test="${clone.value != null}"><fmt:formatDate value="${clone.value}" pattern="yyyy-MM-dd HH:mm"/></c:when>
+        <c:otherwise>unknown</c:otherwise>
+      </c:choose>
+    </div>
+  </c:forEach>
+</div>
+</c:if>
+<c:if test="${not empty errors}">
 <div>
   Errors while running git garbage collection
   <c:if test="${showMode == inplaceMode}"><a href="javascript:;" onclick="$j('#${errorsBlockId}').toggle();">Show details &raquo;</a></c:if>
@@ -16,3 +40,4 @@
     </div>
   </c:forEach>
 </div>
+</c:if>
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Blobless clones: fetches with the 'blob:none' filter get commits and trees
+ * without file contents, missing blobs are fetched when their content is needed.
+ *
+ * A repository becomes blobless when the option is enabled and it is fetched for the first time,
+ * existing full clones are not converted. Once blobless, a repository is always fetched
+ * with the filter. Filtered fetches are supported only over http(s) by servers speaking
+ * the git protocol version 2, other repositories are cloned fully.
+ *
+ * Filtered fetches run in the fetch process like other fetches, missing blobs
+ * are fetched by the server process since they are needed right away.
+ *
+ * Refs are updated by this class since objects are fetched without JGit transport.
+ */
+final class BloblessClones {
+
+  private static final Logger LOG = Logger.getInstance(BloblessClones.class.getName());
+  private static final String BLOBLESS_CONFIG_SECTION = "teamcity";
+  private static final String BLOBLESS_CONFIG_NAME = "blobless";
+  private static final String PROMISOR_REMOTE = "origin";
+  static final String FILTER = "blob:none";
+
+  private final ServerPluginConfig myConfig;
+  private final TransportFactory myTransportFactory;
+
+  BloblessClones(@NotNull ServerPluginConfig config, @NotNull TransportFactory transportFactory) {
+    myConfig = config;
+    myTransportFactory = transportFactory;
+  }
+
+
+  static boolean isBlobless(@NotNull Repository db) {
+    return isBlobless(db.getConfig());
+  }
+
+
+  static boolean isBlobless(@NotNull Config config) {
+    return config.getBoolean(BLOBLESS_CONFIG_SECTION, BLOBLESS_CONFIG_NAME, false);
+  }
+
+
+  static boolean isBlobless(@NotNull File gitDir) {
+    FileBasedConfig config = new FileBasedConfig(new File(gitDir, "config"), FS.DETECTED);
+    try {
+      config.load();
+    } catch (Exception e) {
+      return false;
+    }
+    return isBlobless(config);
+  }
+
+
+  /**
+   * Configures the blobless clone as a partial clone of its remote and marks all its packs as promisor
+   * packs, so native 'git gc' keeps objects from them and doesn't fail on missing blobs.
+   * All packs of a blobless clone come from its remote: filtered fetches and fetches of missing blobs.
+   */
+  static void prepareNativeGc(@NotNull File gitDir) throws IOException {
+    Repository db = new RepositoryBuilder().setBare().setGitDir(gitDir).build();
+    try {
+      StoredConfig config = db.getConfig();
+      String remote = config.getString(BLOBLESS_CONFIG_SECTION, null, "remote");
+      if (remote != null)
+        config.setString("remote", PROMISOR_REMOTE, "url", remote);
+      config.setBoolean("remote", PROMISOR_REMOTE, "promisor", true);
+      config.setString("remote", PROMISOR_REMOTE, "partialclonefilter", FILTER);
+      //git honors this extension in repositories of the format version 0 which jgit requires
+      config.setString("extensions", null, "partialClone", PROMISOR_REMOTE);
+      config.save();
+    } finally {
+      db.close();
+    }
+    File[] packs = new File(gitDir, "objects/pack").listFiles();
+    if (packs == null)
+      return;
+    for (File pack : packs) {
+      String name = pack.getName();
+      if (!name.endsWith(".pack"))
+        continue;
+      File promisor = new File(pack.getParentFile(), name.substring(0, name.length() - ".pack".length()) + ".promisor");
+      if (!promisor.exists() && !promisor.createNewFile() && !promisor.exists())
+        throw new IOException("Cannot create " + promisor.getAbsolutePath());
+    }
+  }
+
+
+  /**
+   * @return true if the repository is blobless or should become blobless, i.e. it should be fetched with the filter
+   */
+  boolean shouldFetchFiltered(@NotNull Repository db, @NotNull URIish uri) {
+    if (isBlobless(db))
+      return true;
+    String scheme = uri.getScheme();
+    return myConfig.useBloblessClones() && ("http".equals(scheme) || "https".equals(scheme)) && db.getAllRefs().isEmpty();
+  }
+
+
+  /**
+   * Fetches refs without blobs, the repository becomes blobless if it is not yet
+   *
+   * @return true if the fetch is done, false if the remote repository doesn't support filtered fetches
+   * and the repository is not blobless yet, i.e. it should be fetched as usual
+   * @throws VcsException if the repository is blobless and the remote repository doesn't support filtered fetches
+   */
+  boolean fetchFiltered(@NotNull Repository db,
+                        @NotNull URIish uri,
+                        @NotNull Collection<RefSpec> refSpecs,
+                        @NotNull FetchSettings settings) throws IOException, VcsException {
+    boolean blobless = isBlobless(db);
+    long start = System.currentTimeMillis();
+    settings.getProgress().reportProgress("git fetch --filter=" + FILTER + " " + uri);
+    Map<String, Ref> remoteRefs = listRemoteRefs(db, uri, refSpecs, settings.getAuthSettings());
+    Map<String, ObjectId> updates = getRefUpdates(remoteRefs, refSpecs);
+
+    Set<ObjectId> wants = new HashSet<ObjectId>();
+    for (ObjectId id : updates.values()) {
+      if (!db.hasObject(id))
+        wants.add(id);
+    }
+    Set<ObjectId> haves = new HashSet<ObjectId>();
+    for (Ref ref : db.getAllRefs().values()) {
+      ObjectId id = ref.getObjectId();
+      if (id != null && db.hasObject(id))
+        haves.add(id);
+    }
+
+    if (!myTransportFactory.fetchObjects(db, uri, settings.getAuthSettings(), wants, haves, FILTER, myConfig.getFetchTimeout())) {
+      if (blobless)
+        throw new VcsException("Cannot fetch into the blobless clone " + db.getDirectory() + " from " + uri +
+                               ": the remote repository doesn't support filtered fetches using the git protocol version 2 over http(s)");
+      LOG.debug("Filtered fetch from " + uri + " is not supported, clone " + db.getDirectory() + " fully");
+      return false;
+    }
+    if (!blobless)
+      markBlobless(db);
+
+    updateRefs(db, updates);
+    pruneRemovedRefs(db, remoteRefs, refSpecs);
+    if (LOG.isDebugEnabled())
+      LOG.debug("Blobless fetch into " + db.getDirectory() + " from " + uri + ", objects: " + wants.size() + ", took " + (System.currentTimeMillis() - start) + "ms");
+    return true;
+  }
+
+
+  /**
+   * Fetches the specified blobs into a blobless clone
+   */
+  void fetchBlobs(@NotNull Repository db,
+                  @NotNull URIish uri,
+                  @NotNull Collection<ObjectId> blobs,
+                  @NotNull FetchSettings settings) throws IOException, VcsException {
+    long start = System.currentTimeMillis();
+    settings.getProgress().reportProgress("git fetch of " + blobs.size() + " missing blob(s) from " + uri);
+    if (!myTransportFactory.fetchObjects(db, uri, settings.getAuthSettings(), blobs, Collections.<ObjectId>emptySet(), null, myConfig.getFetchTimeout()))
+      throw new VcsException("Cannot fetch missing blobs into " + db.getDirectory() + " from " + uri +
+                             ": the remote repository doesn't support the git protocol version 2 over http(s)");
+    if (LOG.isDebugEnabled())
+      LOG.debug("Fetched " + blobs.size() + " missing blob(s) into " + db.getDirectory() + " from " + uri + ", took " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+
+  private void markBlobless(@NotNull Repository db) throws IOException {
+    StoredConfig config = db.getConfig();
+    config.setBoolean(BLOBLESS_CONFIG_SECTION, null, BLOBLESS_CONFIG_NAME, true);
+    config.save();
+  }
+
+
+  @NotNull
+  private Map<String, Ref> listRemoteRefs(@NotNull Repository db,
+                                          @NotNull URIish uri,
+                                          @NotNull Collection<RefSpec> refSpecs,
+                                          @NotNull AuthSettings authSettings) throws IOException, VcsException {
+    Set<String> prefixes = new LinkedHashSet<String>();
+    for (RefSpec spec : refSpecs) {
+      String source = spec.getSource();
+      if (source != null)
+        prefixes.add(spec.isWildcard() ? source.substring(0, source.indexOf('*')) : source);
+    }
+    int timeout = myConfig.getRepositoryStateTimeoutSeconds();
+    Map<String, Ref> refs = myTransportFactory.listRefs(uri, authSettings, prefixes, timeout);
+    if (refs != null)
+      return refs;
+    Transport transport = myTransportFactory.createTransport(db, uri, authSettings, timeout);
+    try {
+      FetchConnection connection = transport.openFetch();
+      try {
+        return connection.getRefsMap();
+      } finally {
+        connection.close();
+      }
+    } finally {
+      transport.close();
+    }
+  }
+
+
+  /**
+   * @return local ref name -> its new value
+   */
+  @NotNull
+  private Map<String, ObjectId> getRefUpdates(@NotNull Map<String, Ref> remoteRefs, @NotNull Collection<RefSpec> refSpecs) throws TransportException {
+    Map<String, ObjectId> result = new HashMap<String, ObjectId>();
+    for (RefSpec spec : refSpecs) {
+      String source = spec.getSource();
+      String destination = spec.getDestination();
+      if (source == null || destination == null)
+        continue;
+      if (spec.isWildcard()) {
+        for (Ref ref : remoteRefs.values()) {
+          if (ref.getObjectId() != null && spec.matchSource(ref))
+            result.put(spec.expandFromSource(ref).getDestination(), ref.getObjectId());
+        }
+      } else {
+        Ref ref = remoteRefs.get(source);
+        if (ref == null || ref.getObjectId() == null) {
+          if (myConfig.ignoreMissingRemoteRef())
+            continue;
+          //the same message as in JGit, callers recognize missing refs by it
+          throw new TransportException("Remote does not have " + source + " available for fetch.");
+        }
+        result.put(destination, ref.getObjectId());
+      }
+    }
+    return result;
+  }
+
+
+  private void updateRefs(@NotNull Repository db, @NotNull Map<String, ObjectId> updates) throws IOException {
+    for (Map.Entry<String, ObjectId> e : updates.entrySet()) {
+      Ref ref = db.getRef(e.getKey());
+      if (ref != null && e.getValue().equals(ref.getObjectId()))
+        continue;
+      RefUpdate update = db.updateRef(e.getKey());
+      update.setNewObjectId(e.getValue());
+      update.setForceUpdate(true);
+      RefUpdate.Result result = update.update();
+      if (result == RefUpdate.Result.LOCK_FAILURE || result == RefUpdate.Result.IO_FAILURE || result == RefUpdate.Result.REJECTED)
+        throw new IOException("Failed to update ref " + e.getKey() + " in " + db.getDirectory() + ": " + result);
+    }
+  }
+
+
+  /**
+   * Removes local refs fetched by wildcard refspecs which are not present in the remote repository
+   */
+  private void pruneRemovedRefs(@NotNull Repository db, @NotNull Map<String, Ref> remoteRefs, @NotNull Collection<RefSpec> refSpecs) {
+    for (Ref ref : db.getAllRefs().values()) {
+      String source = getSource(ref.getName(), refSpecs);
+      if (source == null || remoteRefs.containsKey(source))
+        continue;
+      try {
+        RefUpdate update = db.updateRef(ref.getName());
+        update.setForceUpdate(true);
+        update.delete();
+      } catch (Exception e) {
+        LOG.info("Failed to prune removed ref " + ref.getName(), e);
+        break;
+      }
+    }
+  }
+
+
+  @Nullable
+  private static String getSource(@NotNull String localRef, @NotNull Collection<RefSpec> refSpecs) {
+    for (RefSpec spec : refSpecs) {
+      if (spec.isWildcard() && spec.getDestination() != null && spec.matchDestination(localRef))
+        return spec.expandFromDestination(localRef).getSource();
+    }
+    return null;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.FileRule;
+import jetbrains.buildServer.vcs.IncludeRule;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tree filter accepting only paths included by checkout rules.
+ *
+ * A subtree is entered only if it is included by the rules or contains
+ * the source of some include rule, so excluded subtrees are not read at all.
+ * Submodules are entered by the walk as subtrees, so rules pointing
+ * inside a submodule work the same way.
+ *
+ * Stateless, can be shared between tree walks.
+ */
+final class CheckoutRulesTreeFilter extends TreeFilter {
+
+  private final CheckoutRules myRules;
+  private final List<String> myIncludeRoots = new ArrayList<String>();
+
+  CheckoutRulesTreeFilter(@NotNull CheckoutRules rules) {
+    myRules = rules;
+    for (IncludeRule rule : rules.getIncludeRules()) {
+      myIncludeRoots.add(normalize(rule.getFrom()));
+    }
+  }
+
+
+  /**
+   * @return true if the rules include every path of a repository, i.e. filtering by them is a no-op
+   */
+  static boolean includesAll(@NotNull CheckoutRules rules) {
+    if (!rules.getExcludeRules().isEmpty())
+      return false;
+    for (FileRule rule : rules.getIncludeRules()) {
+      if (normalize(rule.getFrom()).isEmpty())
+        return true;
+    }
+    return false;
+  }
+
+
+  @Override
+  public boolean include(TreeWalk walker) {
+    String path = walker.getPathString();
+    if (myRules.map(path) != null)
+      return true;
+    return walker.isSubtree() && containsIncludeRoot(path);
+  }
+
+
+  private boolean containsIncludeRoot(@NotNull String dir) {
+    String prefix = dir + "/";
+    for (String root : myIncludeRoots) {
+      if (root.startsWith(prefix))
+        return true;
+    }
+    return false;
+  }
+
+
+  @NotNull
+  private static String normalize(@NotNull String path) {
+    return ".".equals(path) ? "" : path;
+  }
+
+
+  @Override
+  public boolean shouldBeRecursive() {
+    return true;
+  }
+
+  @Override
+  public TreeFilter clone() {
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "CHECKOUT_RULES(" + myRules.getAsString() + ")";
+  }
+}
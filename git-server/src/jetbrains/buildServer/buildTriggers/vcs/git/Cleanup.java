@@ -40,30 +40,58 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.function.Consumer;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Cleanup {
 
   private static final Logger LOG = Loggers.CLEANUP;
   private static final Pattern PATTERN_LOOSE_OBJECT = Pattern.compile("[0-9a-fA-F]{38}");
+  //packs without bitmaps smaller than this don't make reachability checks noticeably slower
+  private static final long MIN_SIZE_OF_PACKS_WITHOUT_BITMAPS = 10 * 1024 * 1024;
   private static final Semaphore ourSemaphore = new Semaphore(1);
+  private static final Pattern GIT_VERSION = Pattern.compile("git version (\\d+)\\.(\\d+).*");
+  //'git repack --geometric --write-midx' is supported since git 2.34
+  private static final int[] MIN_INCREMENTAL_REPACK_GIT_VERSION = {2, 34};
 
   private final RepositoryManager myRepositoryManager;
   private final ServerPluginConfig myConfig;
   private final GcErrors myGcErrors;
+  private final FetchMetrics myFetchMetrics;
   private final AtomicReference<RunGitError> myNativeGitError = new AtomicReference<>();
+  private final CommitGraphs myCommitGraphs = new CommitGraphs();
+  private volatile boolean myIncrementalRepackSupported;
+  private final GcScheduler myGcScheduler;
+  //size of packs of repositories collected in copies right now
+  private final AtomicLong myReservedDiskSpace = new AtomicLong();
   @NotNull
   private volatile Consumer<Runnable> myCleanupCallWrapper = Runnable::run;
 
   public Cleanup(@NotNull final ServerPluginConfig config,
                  @NotNull final RepositoryManager repositoryManager,
                  @NotNull final GcErrors gcErrors) {
+    this(config, repositoryManager, gcErrors, new FetchMetrics());
+  }
+
+  public Cleanup(@NotNull final ServerPluginConfig config,
+                 @NotNull final RepositoryManager repositoryManager,
+                 @NotNull final GcErrors gcErrors,
+                 @NotNull final FetchMetrics fetchMetrics) {
     myConfig = config;
     myRepositoryManager = repositoryManager;
     myGcErrors = gcErrors;
+    myFetchMetrics = fetchMetrics;
+    myGcScheduler = new GcScheduler(config, repositoryManager);
+  }
+
+  @NotNull
+  public GcScheduler getGcScheduler() {
+    return myGcScheduler;
   }
 
   public void run() {
@@ -82,6 +110,9 @@ public class Cleanup {
         } else if (myConfig.isRunJGitGC()) {
           runJGitGC();
         }
+        if (myConfig.useCommitGraph()) {
+          rebuildCommitGraphs();
+        }
       });
       LOG.info("Git cleanup finished");
     } finally {
@@ -114,6 +145,8 @@ public class Cleanup {
         myRepositoryManager.invalidate(dir);
       }
     }
+    if (!unusedDirs.isEmpty())
+      myFetchMetrics.retainRepositories(getAllRepositoryDirs());
     LOG.debug("Remove unused git repository clones finished");
   }
 
@@ -143,6 +176,31 @@ public class Cleanup {
     LOG.debug("Finish cleaning git monitoring data");
   }
 
+  private void rebuildCommitGraphs() {
+    LOG.debug("Start rebuilding commit graphs");
+    for (File gitDir : getAllRepositoryDirs()) {
+      Lock rmLock = myRepositoryManager.getRmLock(gitDir).readLock();
+      rmLock.lock();
+      try {
+        if (!gitDir.isDirectory())
+          continue;
+        long start = System.currentTimeMillis();
+        Repository db = new RepositoryBuilder().setBare().setGitDir(gitDir).build();
+        try {
+          myCommitGraphs.rebuild(db, myRepositoryManager.getWriteLock(gitDir));
+        } finally {
+          db.close();
+        }
+        LOG.debug("[" + gitDir.getName() + "] commit graph rebuilt in " + (System.currentTimeMillis() - start) + "ms");
+      } catch (Exception e) {
+        LOG.warnAndDebugDetails("Error while rebuilding commit graph in " + gitDir.getAbsolutePath(), e);
+      } finally {
+        rmLock.unlock();
+      }
+    }
+    LOG.debug("Finish rebuilding commit graphs");
+  }
+
   private boolean isExpired(@NotNull File f) {
     long age = System.currentTimeMillis() - f.lastModified();
     long ageHours = age / Dates.ONE_HOUR;
@@ -151,7 +209,6 @@ public class Cleanup {
 
   private void runNativeGC() {
     final long startNanos = System.nanoTime();
-    final long gcTimeQuotaNanos = TimeUnit.MINUTES.toNanos(myConfig.getNativeGCQuotaMinutes());
     List<File> allDirs = getAllRepositoryDirs();
     myGcErrors.retainErrors(allDirs);
     if (allDirs.isEmpty()) {
@@ -164,53 +221,88 @@ public class Cleanup {
       LOG.info("Cannot find native git, skip running git gc");
       return;
     }
-    Long freeDiskSpace = FileUtil.getFreeSpace(myRepositoryManager.getBaseMirrorsDir());
     LOG.info("Use git at path '" + myConfig.getPathToGit() + "'");
-    Collections.shuffle(allDirs);
-    int runGCCounter = 0;
     LOG.info("Git garbage collection started");
-    boolean runInPlace = myConfig.runInPlaceGc();
-    for (File gitDir : allDirs) {
-      String url = myRepositoryManager.getUrl(gitDir.getName());
-      if (url != null) {
-        LOG.info("[" + gitDir.getName() + "] repository url: '" + url + "'");
-      }
+    boolean runInPlaceGc = myConfig.runInPlaceGc();
+    //gc runs in scheduler threads, git processes started there should go through the wrapper too
+    Consumer<Runnable> cleanupCallWrapper = myCleanupCallWrapper;
+    GcScheduler.Result result = myGcScheduler.run(allDirs, gitDir -> {
+      AtomicBoolean collected = new AtomicBoolean();
+      cleanupCallWrapper.accept(() -> collected.set(runGc(gitDir, runInPlaceGc)));
+      return collected.get();
+    });
+    myGcErrors.setLastRunStatistics(result.getDone(), result.getSkipped(), result.getStarved());
+    final long finishNanos = System.nanoTime();
+    LOG.info("Git garbage collection finished, it took " + TimeUnit.NANOSECONDS.toMillis(finishNanos - startNanos) + "ms");
+  }
+
+
+  /**
+   * @return true if garbage collection ran in the repository and succeeded
+   */
+  private boolean runGc(@NotNull File gitDir, boolean runInPlaceGc) {
+    //git keeps promisor packs of a blobless clone only when they are the clone's own packs,
+    //not packs of alternates used by gc in a copy, so blobless clones are collected in place
+    boolean runInPlace = runInPlaceGc || BloblessClones.isBlobless(gitDir);
+    String url = myRepositoryManager.getUrl(gitDir.getName());
+    if (url != null) {
+      LOG.info("[" + gitDir.getName() + "] repository url: '" + url + "'");
+    }
+    long packsSize = runInPlace ? 0 : FileUtil.getTotalDirectorySize(new File(gitDir, "objects/pack"));
+    //space taken by copies of repositories collected in parallel is not yet allocated on the disk
+    long reservedByOthers = myReservedDiskSpace.getAndAdd(packsSize);
+    try {
+      Long freeDiskSpace = FileUtil.getFreeSpace(myRepositoryManager.getBaseMirrorsDir());
+      if (freeDiskSpace != null)
+        freeDiskSpace -= reservedByOthers;
       if (enoughDiskSpaceForGC(gitDir, freeDiskSpace)) {
         if (runInPlace) {
           synchronized (myRepositoryManager.getWriteLock(gitDir)) {
-            runNativeGC(gitDir);
+            return runNativeGC(gitDir);
           }
         } else {
-          runGcInCopy(gitDir);
+          return runGcInCopy(gitDir);
         }
       } else {
         myGcErrors.registerError(gitDir, "Not enough disk space to run git gc");
         LOG.warn("[" + gitDir.getName() + "] not enough disk space to run git gc (" + String.valueOf(freeDiskSpace) + " " + pluralize("byte", freeDiskSpace) + ")");
+        return false;
       }
-      runGCCounter++;
-      final long repositoryFinishNanos = System.nanoTime();
-      if ((repositoryFinishNanos - startNanos) > gcTimeQuotaNanos) {
-        final int restRepositories = allDirs.size() - runGCCounter;
-        if (restRepositories > 0) {
-          LOG.info("Git garbage collection quota exceeded, skip " + restRepositories + " repositories");
-          break;
-        }
-      }
+    } finally {
+      myReservedDiskSpace.addAndGet(-packsSize);
     }
-    final long finishNanos = System.nanoTime();
-    LOG.info("Git garbage collection finished, it took " + TimeUnit.NANOSECONDS.toMillis(finishNanos - startNanos) + "ms");
   }
 
 
-  private void runGcInCopy(@NotNull File originalRepo) {
+  /**
+   * @return true if garbage collection ran in the repository and succeeded
+   */
+  private boolean runGcInCopy(@NotNull File originalRepo) {
     Lock rmLock = myRepositoryManager.getRmLock(originalRepo).readLock();
     rmLock.lock();
     File gcRepo;
     try {
-      if (!isGcNeeded(originalRepo)) {
+      GcStrategy strategy = chooseGcStrategy(originalRepo);
+      if (strategy == GcStrategy.NONE) {
         LOG.info("[" + originalRepo.getName() + "] no git gc is needed");
         myGcErrors.clearError(originalRepo);
-        return;
+        return false;
+      }
+
+      if (strategy == GcStrategy.INCREMENTAL) {
+        //merging small packs is fast, no need to copy the repository and block fetches for the swap only
+        try {
+          synchronized (myRepositoryManager.getWriteLock(originalRepo)) {
+            repackIncrementally(originalRepo);
+            packRefs(originalRepo);
+          }
+          myGcErrors.clearError(originalRepo);
+          return true;
+        } catch (Exception e) {
+          myGcErrors.registerError(originalRepo, "Error while running incremental repack", e);
+          LOG.warnAndDebugDetails("Error while running incremental repack in " + originalRepo.getAbsolutePath(), e);
+          return false;
+        }
       }
 
       try {
@@ -218,7 +310,7 @@ public class Cleanup {
       } catch (Exception e) {
         myGcErrors.registerError(originalRepo, "Failed to create temporary repository for garbage collection", e);
         LOG.warnAndDebugDetails("Failed to create temporary repository for garbage collection, original repository: " + originalRepo.getAbsolutePath(), e);
-        return;
+        return false;
       }
 
       LOG.info("[" + originalRepo.getName() + "] run git gc in dedicated dir [" + gcRepo.getName() + "]");
@@ -230,7 +322,7 @@ public class Cleanup {
         myGcErrors.registerError(originalRepo, "Error while running garbage collection", e);
         LOG.warnAndDebugDetails("Error while running garbage collection in " + originalRepo.getAbsolutePath(), e);
         FileUtil.delete(gcRepo);
-        return;
+        return false;
       }
     } finally {
       rmLock.unlock();
@@ -248,7 +340,7 @@ public class Cleanup {
       myGcErrors.registerError(originalRepo, "Error while creating temporary directory", e);
       LOG.warnAndDebugDetails("Error while creating temporary directory for " + originalRepo.getAbsolutePath(), e);
       FileUtil.delete(gcRepo);
-      return;
+      return false;
     }
 
     //swap repositories with write rm lock which guarantees no one uses the original repository
@@ -260,7 +352,7 @@ public class Cleanup {
       if (!originalRepo.renameTo(oldDir)) {
         myGcErrors.registerError(originalRepo, "Failed to rename " + originalRepo.getName() + " to " + oldDir.getName());
         LOG.warn("Failed to rename " + originalRepo.getName() + " to " + oldDir.getName());
-        return;
+        return false;
       }
       if (!gcRepo.renameTo(originalRepo)) {
         myGcErrors.registerError(originalRepo, "Failed to rename " + gcRepo.getName() + " to " + originalRepo.getName());
@@ -268,7 +360,7 @@ public class Cleanup {
         if (!oldDir.renameTo(originalRepo)) {
           LOG.warn("Failed to rename " + oldDir.getName() + " to " + originalRepo.getName());
         }
-        return;
+        return false;
       }
     } finally {
       rmWriteLock.unlock();
@@ -284,6 +376,7 @@ public class Cleanup {
       LOG.info(msg);
     }
     myGcErrors.clearError(originalRepo);
+    return true;
   }
 
   private void repack(final File gcRepo) throws VcsException {
@@ -291,8 +384,11 @@ public class Cleanup {
     GeneralCommandLine cmd = new GeneralCommandLine();
     cmd.setWorkingDirectory(gcRepo);
     cmd.setExePath(myConfig.getPathToGit());
+    cmd.addParameters("-c", "pack.threads=" + myGcScheduler.getPackThreads());
     cmd.addParameter("repack");
     cmd.addParameters("-a", "-d");
+    if (myConfig.usePackBitmaps())
+      cmd.addParameter("--write-bitmap-index");
     ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null, new SimpleCommandLineProcessRunner.RunCommandEventsAdapter() {
       @Override
       public Integer getOutputIdleSecondsTimeout() {
@@ -310,6 +406,39 @@ public class Cleanup {
     }
   }
 
+  /**
+   * Merges packs which don't form a geometric progression by their sizes together with
+   * loose objects into a new pack, big packs are left intact. A multi-pack index written over
+   * the remaining packs lets native git look objects up without checking every pack index.
+   */
+  private void repackIncrementally(@NotNull File gitDir) throws VcsException {
+    long start = System.currentTimeMillis();
+    GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setWorkingDirectory(gitDir);
+    cmd.setExePath(myConfig.getPathToGit());
+    //bitmaps are written only by the full repack: in a bare repository git writes them by default
+    //and removes the bitmap of the biggest pack when it cannot write a new one
+    cmd.addParameters("-c", "repack.writeBitmaps=false");
+    cmd.addParameters("-c", "pack.threads=" + myGcScheduler.getPackThreads());
+    cmd.addParameter("repack");
+    cmd.addParameters("--geometric=2", "-d", "--write-midx");
+    ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null, new SimpleCommandLineProcessRunner.RunCommandEventsAdapter() {
+      @Override
+      public Integer getOutputIdleSecondsTimeout() {
+        return myConfig.getRepackIdleTimeoutSeconds();
+      }
+      @Override
+      public void onProcessFinished(@NotNull final Process ps) {
+        LOG.info("[" + gitDir.getName() + "] 'git repack --geometric=2 -d --write-midx' finished in " + (System.currentTimeMillis() - start) + "ms");
+      }
+    });
+    VcsException commandError = CommandLineUtil.getCommandLineError("git repack", result);
+    if (commandError != null) {
+      LOG.warnAndDebugDetails("Error while running 'git repack --geometric' in " + gitDir.getAbsolutePath(), commandError);
+      throw commandError;
+    }
+  }
+
   private void packRefs(@NotNull File gcRepo) throws VcsException {
     long start = System.currentTimeMillis();
     GeneralCommandLine cmd = new GeneralCommandLine();
@@ -334,22 +463,50 @@ public class Cleanup {
     }
   }
 
-  private boolean isGcNeeded(@NotNull File gitDir) {
+  @NotNull
+  private GcStrategy chooseGcStrategy(@NotNull File gitDir) {
     FileRepository db = null;
     try {
       //implement logic from git gc --auto, jgit version we use doesn't have it yet
       //and native git doesn't provide a dedicated command for that
       db = (FileRepository) new RepositoryBuilder().setBare().setGitDir(gitDir).build();
-      return tooManyPacks(db) || tooManyLooseObjects(db);
+      int fragmentation = getFragmentationPercent(db);
+      boolean staleBitmaps = myConfig.usePackBitmaps() && bitmapsAreStale(db);
+      boolean fragmented = fragmentation > myConfig.getFullRepackFragmentationPercent();
+      GcStrategy strategy;
+      if (!tooManyPacks(db) && !tooManyLooseObjects(db) && !staleBitmaps && !fragmented) {
+        strategy = GcStrategy.NONE;
+      } else if (staleBitmaps || fragmented || !myConfig.incrementalRepack() || !myIncrementalRepackSupported) {
+        strategy = GcStrategy.FULL;
+      } else {
+        strategy = GcStrategy.INCREMENTAL;
+      }
+      LOG.info("[" + gitDir.getName() + "] fragmentation: " + fragmentation + "%" + (staleBitmaps ? ", stale bitmaps" : "") + ", gc strategy: " + strategy);
+      return strategy;
     } catch (IOException e) {
       LOG.warnAndDebugDetails("Error while checking if garbage collection is needed in " + gitDir.getAbsolutePath(), e);
-      return false;
+      return GcStrategy.NONE;
     } finally {
       if (db != null)
         db.close();
     }
   }
 
+
+  /**
+   * @return percent of packed data outside the biggest pack
+   */
+  private int getFragmentationPercent(@NotNull FileRepository repo) {
+    long total = 0;
+    long biggest = 0;
+    for (PackFile packFile : repo.getObjectDatabase().getPacks()) {
+      long size = packFile.getPackFile().length();
+      total += size;
+      biggest = Math.max(biggest, size);
+    }
+    return total > 0 ? (int) ((total - biggest) * 100 / total) : 0;
+  }
+
   private boolean enoughDiskSpaceForGC(@NotNull File gitDir, @Nullable Long freeDiskSpace) {
     if (freeDiskSpace == null)
       return true;
@@ -373,6 +530,41 @@ public class Cleanup {
   }
 
 
+  /**
+   * Bitmaps are stale when packs without them, e.g. packs created by fetches after
+   * the last garbage collection, are big enough to slow down reachability checks
+   */
+  private boolean bitmapsAreStale(@NotNull FileRepository repo) {
+    long withBitmaps = 0;
+    long withoutBitmaps = 0;
+    for (PackFile packFile : repo.getObjectDatabase().getPacks()) {
+      File pack = packFile.getPackFile();
+      File bitmap = new File(pack.getParentFile(), pack.getName().replaceFirst("\\.pack$", ".bitmap"));
+      if (bitmap.isFile()) {
+        withBitmaps += pack.length();
+      } else {
+        withoutBitmaps += pack.length();
+      }
+    }
+    return withoutBitmaps > Math.max(MIN_SIZE_OF_PACKS_WITHOUT_BITMAPS, withBitmaps / 4);
+  }
+
+
+  private boolean bitmapsAreStale(@NotNull File gitDir) {
+    FileRepository db = null;
+    try {
+      db = (FileRepository) new RepositoryBuilder().setBare().setGitDir(gitDir).build();
+      return bitmapsAreStale(db);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while checking pack bitmaps in " + gitDir.getAbsolutePath(), e);
+      return false;
+    } finally {
+      if (db != null)
+        db.close();
+    }
+  }
+
+
   private boolean tooManyLooseObjects(@NotNull FileRepository repo) {
     int limit = repo.getConfig().getInt("gc", "auto", 6700);
     if (limit <= 0)
@@ -417,6 +609,7 @@ public class Cleanup {
     copyIfExist(new File(gitDir, "timestamp"), result);
     copyDirIfExist(new File(gitDir, "refs"), result);
     copyDirIfExist(new File(gitDir, "monitoring"), result);
+    copyDirIfExist(new File(gitDir, "caches"), result);
     return result;
   }
 
@@ -456,6 +649,20 @@ public class Cleanup {
     Boolean nativeGitInstalled = null;
     boolean enableNativeGitLogged = false;
     for (File gitDir : allDirs) {
+      if (BloblessClones.isBlobless(gitDir)) {
+        //jgit gc would fail on missing blobs, native git gc keeps the promisor packs of blobless clones
+        if (nativeGitInstalled == null)
+          nativeGitInstalled = isNativeGitInstalled();
+        if (!nativeGitInstalled) {
+          LOG.debug("[" + gitDir.getName() + "] blobless clone, native git is not found, skip git gc");
+          continue;
+        }
+        synchronized (myRepositoryManager.getWriteLock(gitDir)) {
+          runNativeGC(gitDir);
+        }
+        runGCCounter++;
+        continue;
+      }
       synchronized (myRepositoryManager.getWriteLock(gitDir)) {
         try {
           LOG.info("Start garbage collection in " + gitDir.getAbsolutePath());
@@ -506,13 +713,26 @@ public class Cleanup {
     if (commandError != null) {
       myNativeGitError.set(new RunGitError(pathToGit, commandError));
       LOG.warnAndDebugDetails("Failed to run git", commandError);
+      myIncrementalRepackSupported = false;
       return false;
     } else {
       myNativeGitError.set(null);
     }
+    myIncrementalRepackSupported = supportsIncrementalRepack(result.getStdout().trim());
     return true;
   }
 
+
+  private static boolean supportsIncrementalRepack(@NotNull String gitVersion) {
+    Matcher m = GIT_VERSION.matcher(gitVersion);
+    if (!m.matches())
+      return false;
+    int major = Integer.parseInt(m.group(1));
+    int minor = Integer.parseInt(m.group(2));
+    return major > MIN_INCREMENTAL_REPACK_GIT_VERSION[0] ||
+           major == MIN_INCREMENTAL_REPACK_GIT_VERSION[0] && minor >= MIN_INCREMENTAL_REPACK_GIT_VERSION[1];
+  }
+
   private void runJGitGC(final File bareGitDir) throws IOException, VcsException {
     GeneralCommandLine cmd = new GeneralCommandLine();
     cmd.setWorkingDirectory(bareGitDir);
@@ -533,16 +753,26 @@ public class Cleanup {
       throw commandError;
   }
 
-  private void runNativeGC(final File bareGitDir) {
+  /**
+   * @return true if git gc ran in the repository and succeeded
+   */
+  private boolean runNativeGC(final File bareGitDir) {
     String pathToGit = myConfig.getPathToGit();
     try {
+      if (BloblessClones.isBlobless(bareGitDir))
+        BloblessClones.prepareNativeGc(bareGitDir);
       final long start = System.currentTimeMillis();
       GeneralCommandLine cl = new GeneralCommandLine();
       cl.setWorkingDirectory(bareGitDir.getParentFile());
       cl.setExePath(pathToGit);
       cl.addParameter("--git-dir="+bareGitDir.getCanonicalPath());
+      if (myConfig.usePackBitmaps())
+        cl.addParameters("-c", "repack.writeBitmaps=true");
+      cl.addParameters("-c", "pack.threads=" + myGcScheduler.getPackThreads());
       cl.addParameter("gc");
-      cl.addParameter("--auto");
+      //gc --auto doesn't take bitmaps into account, run full gc to rebuild stale bitmaps
+      if (!myConfig.usePackBitmaps() || !bitmapsAreStale(bareGitDir))
+        cl.addParameter("--auto");
       cl.addParameter("--quiet");
 
       ExecResult result = SimpleCommandLineProcessRunner.runCommand(cl, null, new SimpleCommandLineProcessRunner.ProcessRunCallback() {
@@ -569,9 +799,11 @@ public class Cleanup {
         LOG.debug("Output produced by 'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc'");
         LOG.debug(result.getStderr());
       }
+      return commandError == null;
     } catch (Exception e) {
       myGcErrors.registerError(bareGitDir, e);
       LOG.warnAndDebugDetails("Error while running 'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc'", e);
+      return false;
     }
   }
 
@@ -581,6 +813,18 @@ public class Cleanup {
     return myNativeGitError.get();
   }
 
+  /**
+   * How garbage collection compacts a repository
+   */
+  enum GcStrategy {
+    /** Repository is compact enough */
+    NONE,
+    /** Small packs are merged, big packs are left intact */
+    INCREMENTAL,
+    /** All objects are repacked into a single pack */
+    FULL
+  }
+
   public static class RunGitError extends Pair<String, VcsException> {
     public RunGitError(@NotNull String gitPath, @NotNull VcsException error) {
       super(gitPath, error);
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+/**
+ * Limits amount of changes reported by a single streaming collect changes call.
+ * At least one commit is reported per call even if it alone exceeds the bytes limit.
+ */
+public final class CollectChangesBudget {
+
+  public static final CollectChangesBudget UNLIMITED = new CollectChangesBudget(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+  private final int myMaxCommits;
+  private final long myMaxBytes;
+
+  /**
+   * @param maxCommits max number of commits to report
+   * @param maxBytes max estimated size of reported changes in bytes
+   */
+  public CollectChangesBudget(int maxCommits, long maxBytes) {
+    if (maxCommits <= 0)
+      throw new IllegalArgumentException("maxCommits should be positive: " + maxCommits);
+    if (maxBytes <= 0)
+      throw new IllegalArgumentException("maxBytes should be positive: " + maxBytes);
+    myMaxCommits = maxCommits;
+    myMaxBytes = maxBytes;
+  }
+
+  public int getMaxCommits() {
+    return myMaxCommits;
+  }
+
+  public long getMaxBytes() {
+    return myMaxBytes;
+  }
+}
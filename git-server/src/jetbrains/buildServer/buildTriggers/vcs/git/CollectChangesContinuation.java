@@ -0,0 +1,51 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Point to continue streaming collect changes from once its budget is exhausted.
+ *
+ * Commits are visited in the same order for the same from and to states, so
+ * the continuation is the number of already reported commits. The last reported
+ * commit is used to check that the walk is still the same.
+ */
+public final class CollectChangesContinuation {
+
+  private final int myReportedCommits;
+  private final String myLastReportedCommit;
+
+  public CollectChangesContinuation(int reportedCommits, @NotNull String lastReportedCommit) {
+    myReportedCommits = reportedCommits;
+    myLastReportedCommit = lastReportedCommit;
+  }
+
+  public int getReportedCommits() {
+    return myReportedCommits;
+  }
+
+  @NotNull
+  public String getLastReportedCommit() {
+    return myLastReportedCommit;
+  }
+
+  @Override
+  public String toString() {
+    return "reported " + myReportedCommits + " commits, last " + myLastReportedCommit;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Bloom filter of commit ids. Object ids are already uniformly distributed,
+ * so bit indexes are derived from the raw id bits without hashing.
+ *
+ * ThreadSafe.
+ */
+final class CommitBloomFilter {
+
+  private static final int HASH_FUNCTIONS = 7;
+  private static final int BITS_PER_ENTRY = 10;//~1% false positives with 7 hash functions
+  private static final int MIN_CAPACITY = 1024;
+
+  private final long[] myBits;
+  private final long myBitsCount;
+  private final int myCapacity;
+  private final int[] myKey = new int[5];//scratch buffer for the key of the current operation
+  private int mySize;
+
+  /**
+   * @param expectedSize expected number of commits, the filter is sized
+   *                     to hold twice as many to leave room for new commits
+   */
+  CommitBloomFilter(long expectedSize) {
+    this((int) Math.min(Integer.MAX_VALUE / BITS_PER_ENTRY, Math.max(2L * expectedSize, MIN_CAPACITY)), 0);
+  }
+
+
+  private CommitBloomFilter(int capacity, int size) {
+    myCapacity = capacity;
+    myBits = new long[(int) ((capacity * (long) BITS_PER_ENTRY + 63) / 64)];
+    myBitsCount = myBits.length * 64L;
+    mySize = size;
+  }
+
+
+  @NotNull
+  static CommitBloomFilter read(@NotNull DataInput in) throws IOException {
+    int capacity = in.readInt();
+    int size = in.readInt();
+    if (capacity < MIN_CAPACITY || capacity > Integer.MAX_VALUE / BITS_PER_ENTRY || size < 0)
+      throw new IOException("Corrupted bloom filter, capacity " + capacity + ", size " + size);
+    CommitBloomFilter filter = new CommitBloomFilter(capacity, size);
+    for (int i = 0; i < filter.myBits.length; i++) {
+      filter.myBits[i] = in.readLong();
+    }
+    return filter;
+  }
+
+
+  synchronized void write(@NotNull DataOutput out) throws IOException {
+    out.writeInt(myCapacity);
+    out.writeInt(mySize);
+    for (long bits : myBits) {
+      out.writeLong(bits);
+    }
+  }
+
+
+  synchronized void add(@NotNull AnyObjectId id) {
+    id.copyRawTo(myKey, 0);
+    long h1 = h1();
+    long h2 = h2();
+    for (int i = 0; i < HASH_FUNCTIONS; i++) {
+      long bit = index(h1, h2, i);
+      myBits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+    mySize++;
+  }
+
+
+  /**
+   * @return false if the filter definitely doesn't contain the specified id
+   */
+  synchronized boolean mightContain(@NotNull AnyObjectId id) {
+    id.copyRawTo(myKey, 0);
+    long h1 = h1();
+    long h2 = h2();
+    for (int i = 0; i < HASH_FUNCTIONS; i++) {
+      long bit = index(h1, h2, i);
+      if ((myBits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+
+  /**
+   * @return true if the specified number of entries can be added without overfilling the filter
+   */
+  synchronized boolean canAdd(long count) {
+    return mySize + count <= myCapacity;
+  }
+
+
+  synchronized int size() {
+    return mySize;
+  }
+
+
+  private long h1() {
+    return ((long) myKey[0] << 32) | (myKey[1] & 0xFFFFFFFFL);
+  }
+
+
+  private long h2() {
+    return ((long) myKey[2] << 32) | (myKey[3] & 0xFFFFFFFFL) | 1;
+  }
+
+
+  private long index(long h1, long h2, int i) {
+    return ((h1 + i * h2) & Long.MAX_VALUE) % myBitsCount;
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-repository bloom filters of commits reachable from repository refs.
+ *
+ * A filter is built on first use and then updated with the new commits
+ * computed in {@link GitMapFullPath#invalidateRevisionsCache}. Along with
+ * the filter the names of pack indexes present when it was last updated
+ * are kept. If packs were added since then (e.g. a fetch is not finished
+ * yet), the filter cannot prove that a commit is missing and the object
+ * database is asked instead. If packs were removed (e.g. by gc which can
+ * also pack loose objects), the filter is rebuilt on the next use.
+ *
+ * Only a limited number of filters is kept in memory, the least recently
+ * used filters are evicted. Filters are stored in the caches/commit-filter
+ * file inside the repository dir, so an evicted filter or a filter
+ * after restart is read from disk if it matches the packs.
+ *
+ * ThreadSafe.
+ */
+final class CommitBloomFilters {
+
+  private static final Logger LOG = Logger.getInstance(CommitBloomFilters.class.getName());
+  private static final int VERSION = 2;
+
+  private final ServerPluginConfig myConfig;
+  private final Map<File, Holder> myHolders = new LinkedHashMap<File, Holder>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<File, Holder> eldest) {
+      return size() > Math.max(1, myConfig.getCommitBloomFiltersMaxCount());
+    }
+  };
+
+  CommitBloomFilters(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  /**
+   * @return true if repository definitely doesn't contain the specified commit;
+   * false if it might contain it or there is no up-to-date filter for the repository
+   */
+  boolean isDefinitelyMissing(@NotNull Repository db, @NotNull ObjectId commit) throws IOException {
+    File repositoryDir = db.getDirectory();
+    Holder holder = getHolder(repositoryDir);
+    State state = holder.getState();
+    if (state == null)
+      state = build(holder, db);
+    if (state == null || state.myFilter.mightContain(commit) || isLooseObject(repositoryDir, commit))
+      return false;
+    Set<String> packs = listPackIndexes(repositoryDir);
+    if (packs.equals(state.myPacks))
+      return true;
+    if (!packs.containsAll(state.myPacks))
+      holder.invalidate();
+    return !db.getObjectDatabase().has(commit);
+  }
+
+
+  /**
+   * Adds new commits fetched into the repository to its filter, must be called under the repository write lock
+   * @param commits all fetched commits which were not reachable from refs before the fetch
+   */
+  void addCommits(@NotNull Repository db, @NotNull Collection<String> commits) {
+    File repositoryDir = db.getDirectory();
+    Holder holder = getExistingHolder(repositoryDir);
+    if (holder == null)
+      return;
+    //a fetch adds at most one pack, more new packs mean that some packs were written bypassing the fetch
+    Set<String> packs = listPackIndexes(repositoryDir);
+    State state = holder.getState();
+    if (state == null)
+      return;
+    Set<String> newPacks = new HashSet<String>(packs);
+    newPacks.removeAll(state.myPacks);
+    if (!packs.containsAll(state.myPacks) || newPacks.size() > 1 || !state.myFilter.canAdd(commits.size())) {
+      holder.invalidate();
+      return;
+    }
+    if (holder.addCommits(state, commits, packs)) {
+      try {
+        save(repositoryDir, holder.getState());
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Error while saving commits bloom filter for repository " + repositoryDir, e);
+      }
+    }
+  }
+
+
+  void invalidate(@NotNull File repositoryDir) {
+    Holder holder = getExistingHolder(repositoryDir);
+    if (holder != null)
+      holder.invalidate();
+  }
+
+
+  @NotNull
+  private Holder getHolder(@NotNull File repositoryDir) {
+    synchronized (myHolders) {
+      Holder holder = myHolders.get(repositoryDir);
+      if (holder == null) {
+        holder = new Holder();
+        myHolders.put(repositoryDir, holder);
+      }
+      return holder;
+    }
+  }
+
+
+  @Nullable
+  private Holder getExistingHolder(@NotNull File repositoryDir) {
+    synchronized (myHolders) {
+      return myHolders.get(repositoryDir);
+    }
+  }
+
+
+  @Nullable
+  private State build(@NotNull Holder holder, @NotNull Repository db) {
+    if (!holder.myBuilding.compareAndSet(false, true))
+      return null;//other thread builds the filter, don't wait for it
+    File repositoryDir = db.getDirectory();
+    try {
+      long version = holder.getVersion();
+      long start = System.currentTimeMillis();
+      //list packs before reading refs: commits reachable from refs are either in the listed packs,
+      //or in loose objects, or in new packs which make the filter state outdated
+      Set<String> packs = listPackIndexes(repositoryDir);
+      State state = load(repositoryDir);
+      boolean loaded = state != null && state.myPacks.equals(packs);
+      if (!loaded) {
+        CommitBloomFilter filter = buildFilter(db);
+        if (filter == null)
+          return null;
+        state = new State(filter, packs);
+      }
+      if (!holder.setState(state, version))
+        return null;//the filter was updated or invalidated during the build
+      if (!loaded)
+        save(repositoryDir, state);
+      if (LOG.isDebugEnabled())
+        LOG.debug((loaded ? "Loaded" : "Built") + " commits bloom filter for repository " + repositoryDir + ", " +
+                  state.myFilter.size() + " commits, " + (System.currentTimeMillis() - start) + "ms");
+      return state;
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while building commits bloom filter for repository " + repositoryDir, e);
+      return null;
+    } finally {
+      holder.myBuilding.set(false);
+    }
+  }
+
+
+  @Nullable
+  private static CommitBloomFilter buildFilter(@NotNull Repository db) throws IOException {
+    Map<String, Ref> refs = db.getAllRefs();
+    if (refs.isEmpty())
+      return null;//repository is not fetched yet
+    RevWalk walk = new RevWalk(db);
+    try {
+      walk.setRetainBody(false);
+      for (Ref ref : refs.values()) {
+        ObjectId id = ref.getObjectId();
+        if (id == null)
+          continue;
+        RevObject obj;
+        try {
+          obj = walk.peel(walk.parseAny(id));
+        } catch (MissingObjectException e) {
+          continue;
+        }
+        if (obj instanceof RevCommit)
+          walk.markStart((RevCommit) obj);
+      }
+      List<RevCommit> commits = new ArrayList<RevCommit>();
+      RevCommit commit;
+      while ((commit = walk.next()) != null) {
+        commits.add(commit);
+      }
+      CommitBloomFilter filter = new CommitBloomFilter(commits.size());
+      for (RevCommit c : commits) {
+        filter.add(c);
+      }
+      return filter;
+    } finally {
+      walk.dispose();
+    }
+  }
+
+
+  @NotNull
+  private static Set<String> listPackIndexes(@NotNull File repositoryDir) {
+    //git and jgit write the index after the pack, index presence means the pack is complete
+    Set<String> result = new HashSet<String>();
+    String[] indexes = new File(new File(repositoryDir, "objects"), "pack").list((dir, name) -> name.startsWith("pack-") && name.endsWith(".idx"));
+    if (indexes != null)
+      Collections.addAll(result, indexes);
+    return result;
+  }
+
+
+  private static boolean isLooseObject(@NotNull File repositoryDir, @NotNull ObjectId id) {
+    String name = id.name();
+    return new File(new File(new File(repositoryDir, "objects"), name.substring(0, 2)), name.substring(2)).isFile();
+  }
+
+
+  @NotNull
+  private static File getFilterFile(@NotNull File repositoryDir) {
+    return new File(new File(repositoryDir, "caches"), "commit-filter");
+  }
+
+
+  @Nullable
+  private static State load(@NotNull File repositoryDir) {
+    File file = getFilterFile(repositoryDir);
+    if (!file.isFile())
+      return null;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION)
+          return null;
+        int packsCount = in.readInt();
+        Set<String> packs = new HashSet<String>();
+        for (int i = 0; i < packsCount; i++) {
+          packs.add(in.readUTF());
+        }
+        return new State(CommitBloomFilter.read(in), packs);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while reading commits bloom filter " + file + ", the filter will be rebuilt", e);
+      FileUtil.delete(file);
+      return null;
+    }
+  }
+
+
+  private static void save(@NotNull File repositoryDir, @NotNull State state) throws IOException {
+    File file = getFilterFile(repositoryDir);
+    File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Cannot create dir " + dir);
+    File tmp = new File(dir, file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(state.myPacks.size());
+      for (String pack : state.myPacks) {
+        out.writeUTF(pack);
+      }
+      //the filter can get new commits while it is written, it only makes it a superset of the packs
+      state.myFilter.write(out);
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+
+  private static final class Holder {
+    private final AtomicBoolean myBuilding = new AtomicBoolean();
+    private State myState;
+    private long myVersion;//incremented on every filter update, used to detect updates made during filter build
+    private long myUnsavedCommits;
+
+    @Nullable
+    synchronized State getState() {
+      return myState;
+    }
+
+    synchronized long getVersion() {
+      return myVersion;
+    }
+
+    synchronized boolean setState(@NotNull State state, long version) {
+      if (myVersion != version)
+        return false;
+      myState = state;
+      myUnsavedCommits = 0;
+      return true;
+    }
+
+    /**
+     * @return true if the filter should be saved
+     */
+    synchronized boolean addCommits(@NotNull State state, @NotNull Collection<String> commits, @NotNull Set<String> packs) {
+      myVersion++;
+      if (myState != state)
+        return false;
+      for (String commit : commits) {
+        state.myFilter.add(ObjectId.fromString(commit));
+      }
+      myState = new State(state.myFilter, packs);
+      myUnsavedCommits += commits.size();
+      if (myUnsavedCommits > state.myFilter.size() / 10) {
+        myUnsavedCommits = 0;
+        return true;
+      }
+      return false;
+    }
+
+    synchronized void invalidate() {
+      myVersion++;
+      myState = null;
+    }
+  }
+
+
+  private static final class State {
+    private final CommitBloomFilter myFilter;
+    private final Set<String> myPacks;//names of pack indexes present when the filter was last updated
+
+    private State(@NotNull CommitBloomFilter filter, @NotNull Set<String> packs) {
+      myFilter = filter;
+      myPacks = packs;
+    }
+  }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsChange;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Changes computed for commits, shared by all VCS roots using the same clone.
+ *
+ * Changes of every clone are stored in the append-only file caches/commit-changes
+ * inside the clone dir. An entry is identified by a commit and a fixed-size key of settings
+ * which affect the computed changes (e.g. submodules checkout policy and checkout rules).
+ * Once the file gets bigger than the configured limit the oldest entries are dropped.
+ * In-memory indexes of clones which were not used recently are unloaded.
+ *
+ * ThreadSafe.
+ */
+public final class CommitChangesCache {
+
+  private static final Logger LOG = Logger.getInstance(CommitChangesCache.class.getName());
+  private static final byte[] HEADER = {'T', 'C', 'C', 'H', 0, 0, 0, 2};//magic + format version
+  private static final byte CURRENT_VERSION = 0;
+  private static final byte PARENT_VERSION = 1;
+  private static final byte OTHER_VERSION = 2;
+  private static final long UNLOAD_UNUSED_INDEXES_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+  private static final long UNUSED_INDEX_TTL = TimeUnit.MINUTES.toMillis(30);
+
+  private final ServerPluginConfig myConfig;
+  //repository dir -> its cache
+  private final ConcurrentMap<File, RepositoryChanges> myCaches = new ConcurrentHashMap<>();
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myLastUnloadTime = new AtomicLong(System.currentTimeMillis());
+
+  public CommitChangesCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  public boolean isEnabled() {
+    return myConfig.getCommitChangesCacheSizeMb() > 0;
+  }
+
+
+  /**
+   * @param settings description of settings affecting changes computed for a commit
+   * @return fixed-size key of the settings to use in {@link #get} and {@link #put}
+   */
+  @NotNull
+  public static ObjectId getKey(@NotNull String settings) {
+    return ObjectId.fromRaw(Constants.newMessageDigest().digest(settings.getBytes(StandardCharsets.UTF_8)));
+  }
+
+
+  /**
+   * @param currentVersion version of the commit used in cached changes
+   * @param parentVersion version of the commit first parent used in cached changes
+   * @return cached changes or null if cache doesn't contain changes for the commit
+   */
+  @Nullable
+  public CommitChanges get(@NotNull File repositoryDir,
+                           @NotNull AnyObjectId commit,
+                           @NotNull AnyObjectId key,
+                           @NotNull String currentVersion,
+                           @NotNull String parentVersion) {
+    CommitChanges result = null;
+    try {
+      byte[] data = getRepositoryChanges(repositoryDir).read(commit, key);
+      if (data != null)
+        result = decode(data, currentVersion, parentVersion);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while reading cached changes of commit " + commit.name() + " in repository " + repositoryDir, e);
+    }
+    if (result != null) {
+      myHits.incrementAndGet();
+    } else {
+      myMisses.incrementAndGet();
+    }
+    return result;
+  }
+
+
+  public void put(@NotNull File repositoryDir,
+                  @NotNull AnyObjectId commit,
+                  @NotNull AnyObjectId key,
+                  @NotNull String currentVersion,
+                  @NotNull String parentVersion,
+                  @NotNull CommitChanges changes) {
+    try {
+      getRepositoryChanges(repositoryDir).write(commit, key, encode(changes, currentVersion, parentVersion),
+                                                myConfig.getCommitChangesCacheSizeMb() * 1024L * 1024L);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while caching changes of commit " + commit.name() + " in repository " + repositoryDir, e);
+    }
+  }
+
+
+  /**
+   * @return number of commits whose changes were found in the cache
+   */
+  public long getHits() {
+    return myHits.get();
+  }
+
+
+  /**
+   * @return number of commits whose changes had to be computed
+   */
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+
+  @NotNull
+  private RepositoryChanges getRepositoryChanges(@NotNull File repositoryDir) {
+    unloadUnusedIndexes();
+    return myCaches.computeIfAbsent(repositoryDir, dir -> new RepositoryChanges(new File(new File(dir, "caches"), "commit-changes")));
+  }
+
+
+  private void unloadUnusedIndexes() {
+    long now = System.currentTimeMillis();
+    long lastUnloadTime = myLastUnloadTime.get();
+    if (now - lastUnloadTime < UNLOAD_UNUSED_INDEXES_INTERVAL || !myLastUnloadTime.compareAndSet(lastUnloadTime, now))
+      return;
+    for (RepositoryChanges changes : myCaches.values()) {
+      changes.unloadIndexIfUnused(now - UNUSED_INDEX_TTL);
+    }
+  }
+
+
+  @NotNull
+  private static byte[] encode(@NotNull CommitChanges changes, @NotNull String currentVersion, @NotNull String parentVersion) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(changes.getChanges().size());
+    for (VcsChange change : changes.getChanges()) {
+      out.writeUTF(change.getType().name());
+      writeNullableString(out, change.getChangeTypeName());
+      out.writeUTF(change.getFileName());
+      writeNullableString(out, change.getFileName().equals(change.getRelativeFileName()) ? null : change.getRelativeFileName());
+      writeVersion(out, change.getBeforeChangeRevisionNumber(), currentVersion, parentVersion);
+      writeVersion(out, change.getAfterChangeRevisionNumber(), currentVersion, parentVersion);
+    }
+    out.writeInt(changes.getAttributes().size());
+    for (Map.Entry<String, String> e : changes.getAttributes().entrySet()) {
+      out.writeUTF(e.getKey());
+      byte[] value = e.getValue().getBytes(StandardCharsets.UTF_8);//can be longer than writeUTF allows
+      out.writeInt(value.length);
+      out.write(value);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+
+  @NotNull
+  private static CommitChanges decode(@NotNull byte[] data, @NotNull String currentVersion, @NotNull String parentVersion) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    int changesCount = in.readInt();
+    List<VcsChange> changes = new ArrayList<>(changesCount);
+    for (int i = 0; i < changesCount; i++) {
+      VcsChange.Type type = VcsChange.Type.valueOf(in.readUTF());
+      String description = readNullableString(in);
+      String fileName = in.readUTF();
+      String relativeFileName = readNullableString(in);
+      String before = readVersion(in, currentVersion, parentVersion);
+      String after = readVersion(in, currentVersion, parentVersion);
+      changes.add(new VcsChange(type, description, fileName, relativeFileName != null ? relativeFileName : fileName, before, after));
+    }
+    int attributesCount = in.readInt();
+    Map<String, String> attributes = new HashMap<>();
+    for (int i = 0; i < attributesCount; i++) {
+      String name = in.readUTF();
+      byte[] value = new byte[in.readInt()];
+      in.readFully(value);
+      attributes.put(name, new String(value, StandardCharsets.UTF_8));
+    }
+    return new CommitChanges(changes, attributes);
+  }
+
+
+  private static void writeNullableString(@NotNull DataOutputStream out, @Nullable String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null)
+      out.writeUTF(s);
+  }
+
+
+  @Nullable
+  private static String readNullableString(@NotNull DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+
+  private static void writeVersion(@NotNull DataOutputStream out,
+                                   @Nullable String version,
+                                   @NotNull String currentVersion,
+                                   @NotNull String parentVersion) throws IOException {
+    if (currentVersion.equals(version)) {
+      out.writeByte(CURRENT_VERSION);
+    } else if (parentVersion.equals(version)) {
+      out.writeByte(PARENT_VERSION);
+    } else {
+      out.writeByte(OTHER_VERSION);
+      writeNullableString(out, version);
+    }
+  }
+
+
+  @Nullable
+  private static String readVersion(@NotNull DataInputStream in, @NotNull String currentVersion, @NotNull String parentVersion) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case CURRENT_VERSION:
+        return currentVersion;
+      case PARENT_VERSION:
+        return parentVersion;
+      case OTHER_VERSION:
+        return readNullableString(in);
+      default:
+        throw new IOException("Bad version type " + type);
+    }
+  }
+
+
+  public static final class CommitChanges {
+    private final List<VcsChange> myChanges;
+    private final Map<String, String> myAttributes;
+
+    public CommitChanges(@NotNull List<VcsChange> changes, @NotNull Map<String, String> attributes) {
+      myChanges = changes;
+      myAttributes = attributes;
+    }
+
+    @NotNull
+    public List<VcsChange> getChanges() {
+      return myChanges;
+    }
+
+    @NotNull
+    public Map<String, String> getAttributes() {
+      return myAttributes;
+    }
+  }
+
+
+  /**
+   * Changes of a single repository.
+   *
+   * Record format: commit id (20 bytes) | key (20 bytes) | data length (int) | data
+   */
+  private static final class RepositoryChanges {
+    private static final int RECORD_KEY_LENGTH = 2 * Constants.OBJECT_ID_LENGTH;
+    private final File myFile;
+    private final MessageDigest myDigest = Constants.newMessageDigest();
+    //hash of commit id + key -> offset of the record data in the file, null if not loaded
+    private Map<ObjectId, Long> myIndex;
+    private long myLength;
+    private volatile long myLastAccessTime;
+
+    RepositoryChanges(@NotNull File file) {
+      myFile = file;
+    }
+
+    @Nullable
+    synchronized byte[] read(@NotNull AnyObjectId commit, @NotNull AnyObjectId key) throws IOException {
+      ensureIndexLoaded();
+      Long offset = myIndex.get(indexKey(commit, key));
+      if (offset == null)
+        return null;
+      try (RandomAccessFile file = new RandomAccessFile(myFile, "r")) {
+        file.seek(offset);
+        byte[] data = new byte[file.readInt()];
+        file.readFully(data);
+        return data;
+      } catch (IOException e) {
+        discard();
+        throw e;
+      }
+    }
+
+    synchronized void write(@NotNull AnyObjectId commit, @NotNull AnyObjectId key, @NotNull byte[] data, long maxSize) throws IOException {
+      ensureIndexLoaded();
+      ObjectId indexKey = indexKey(commit, key);
+      if (myIndex.containsKey(indexKey))
+        return;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_KEY_LENGTH + 4 + data.length);
+      DataOutputStream record = new DataOutputStream(bytes);
+      byte[] id = new byte[RECORD_KEY_LENGTH];
+      commit.copyRawTo(id, 0);
+      key.copyRawTo(id, Constants.OBJECT_ID_LENGTH);
+      record.write(id);
+      int dataOffset = record.size();
+      record.writeInt(data.length);
+      record.write(data);
+      record.flush();
+
+      try {
+        if (myLength == 0) {
+          myFile.getParentFile().mkdirs();
+          try (OutputStream out = new BufferedOutputStream(new FileOutputStream(myFile))) {
+            out.write(HEADER);
+          }
+          myLength = HEADER.length;
+        }
+        try (OutputStream out = new FileOutputStream(myFile, true)) {
+          out.write(bytes.toByteArray());
+        }
+      } catch (IOException e) {
+        discard();
+        throw e;
+      }
+      myIndex.put(indexKey, myLength + dataOffset);
+      myLength += bytes.size();
+      if (myLength > maxSize)
+        dropOldestRecords(maxSize / 2);
+    }
+
+    synchronized void unloadIndexIfUnused(long lastUsedThreshold) {
+      if (myIndex != null && myLastAccessTime < lastUsedThreshold) {
+        myIndex = null;
+        myLength = 0;
+      }
+    }
+
+    private void ensureIndexLoaded() throws IOException {
+      myLastAccessTime = System.currentTimeMillis();
+      if (myIndex != null && myFile.length() == myLength)
+        return;
+      //first access or the file was removed or modified outside, e.g. by the cleanup
+      myIndex = new HashMap<>();
+      myLength = 0;
+      if (!myFile.isFile())
+        return;
+      try {
+        myLength = readIndex();
+      } catch (IOException e) {
+        discard();
+        throw e;
+      }
+    }
+
+    /**
+     * @return length of the valid part of the file
+     */
+    private long readIndex() throws IOException {
+      long length = myFile.length();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)))) {
+        byte[] header = new byte[HEADER.length];
+        if (length < HEADER.length)
+          throw new IOException("Bad changes cache header");
+        in.readFully(header);
+        if (!Arrays.equals(Arrays.copyOf(header, 4), Arrays.copyOf(HEADER, 4)))
+          throw new IOException("Bad changes cache header");
+        if (!Arrays.equals(header, HEADER)) {
+          //cache written in a different format, start a new one
+          truncate(0);
+          return 0;
+        }
+        long offset = HEADER.length;
+        byte[] id = new byte[RECORD_KEY_LENGTH];
+        while (offset < length) {
+          long recordStart = offset;
+          try {
+            in.readFully(id);
+            long dataOffset = offset + RECORD_KEY_LENGTH;
+            int dataLength = in.readInt();
+            offset = dataOffset + 4 + dataLength;
+            if (dataLength < 0 || offset > length)
+              throw new EOFException();
+            skipFully(in, dataLength);
+            myIndex.put(indexKey(ObjectId.fromRaw(id), ObjectId.fromRaw(id, Constants.OBJECT_ID_LENGTH)), dataOffset);
+          } catch (EOFException e) {
+            //partially written record, drop it
+            truncate(recordStart);
+            return recordStart;
+          }
+        }
+        return offset;
+      }
+    }
+
+    private void dropOldestRecords(long sizeToKeep) throws IOException {
+      List<Map.Entry<ObjectId, Long>> entries = new ArrayList<>(myIndex.entrySet());
+      entries.sort(Map.Entry.comparingByValue());
+      long cutOffset = myLength;
+      int firstKept = entries.size();
+      //records are appended, so the newest records are at the end of the file
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        long recordStart = entries.get(i).getValue() - RECORD_KEY_LENGTH;
+        if (myLength - recordStart > sizeToKeep)
+          break;
+        cutOffset = recordStart;
+        firstKept = i;
+      }
+      File compacted = new File(myFile.getParentFile(), myFile.getName() + ".compact");
+      try (RandomAccessFile in = new RandomAccessFile(myFile, "r");
+           OutputStream out = new BufferedOutputStream(new FileOutputStream(compacted))) {
+        out.write(HEADER);
+        in.seek(cutOffset);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          out.write(buffer, 0, read);
+        }
+      } catch (IOException e) {
+        FileUtil.delete(compacted);
+        discard();
+        throw e;
+      }
+      Files.move(compacted.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      long shift = cutOffset - HEADER.length;
+      Map<ObjectId, Long> index = new HashMap<>();
+      for (int i = firstKept; i < entries.size(); i++) {
+        Map.Entry<ObjectId, Long> e = entries.get(i);
+        index.put(e.getKey(), e.getValue() - shift);
+      }
+      myIndex = index;
+      myLength -= shift;
+    }
+
+    private void truncate(long length) throws IOException {
+      try (RandomAccessFile file = new RandomAccessFile(myFile, "rw")) {
+        file.setLength(length);
+      }
+    }
+
+    private void discard() {
+      FileUtil.delete(myFile);
+      myIndex = new HashMap<>();
+      myLength = 0;
+    }
+
+    /**
+     * @return a single id for the commit and the key, takes less memory than a pair of ids
+     */
+    @NotNull
+    private ObjectId indexKey(@NotNull AnyObjectId commit, @NotNull AnyObjectId key) {
+      byte[] raw = new byte[RECORD_KEY_LENGTH];
+      commit.copyRawTo(raw, 0);
+      key.copyRawTo(raw, Constants.OBJECT_ID_LENGTH);
+      return ObjectId.fromRaw(myDigest.digest(raw));
+    }
+
+    private static void skipFully(@NotNull DataInputStream in, int length) throws IOException {
+      int remaining = length;
+      while (remaining > 0) {
+        int skipped = in.skipBytes(remaining);
+        if (skipped <= 0)
+          throw new EOFException();
+        remaining -= skipped;
+      }
+    }
+  }
+}
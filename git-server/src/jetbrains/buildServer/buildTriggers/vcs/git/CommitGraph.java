@@ -0,0 +1,532 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Commit graph of a repository: commit -> parents, tree, commit time and generation number.
+ * Generation of a commit without parents is 1, generation of other commits is 1 + max generation
+ * of their parents, so a commit can only be reachable from commits with a bigger generation.
+ *
+ * A graph consists of layers written by {@link CommitGraphs}, a layer contains commits
+ * whose parents are either in the same layer or in one of the previous layers.
+ *
+ * Commits are addressed by positions, a position is valid only for the graph it was obtained from.
+ *
+ * ThreadSafe.
+ */
+final class CommitGraph {
+
+  static final int NOT_FOUND = -1;
+
+  private static final int INTERESTING = 1;
+  private static final int UNINTERESTING = 2;
+
+  private final Layer[] myLayers;//base layer first
+  private final int[] myLayerStarts;
+
+  CommitGraph(@NotNull List<Layer> layers) {
+    myLayers = layers.toArray(new Layer[layers.size()]);
+    myLayerStarts = new int[myLayers.length];
+    int start = 0;
+    for (int i = 0; i < myLayers.length; i++) {
+      myLayerStarts[i] = start;
+      start += myLayers[i].size();
+    }
+  }
+
+
+  int size() {
+    int last = myLayers.length - 1;
+    return last < 0 ? 0 : myLayerStarts[last] + myLayers[last].size();
+  }
+
+
+  @NotNull
+  List<String> getLayerNames() {
+    List<String> result = new ArrayList<String>(myLayers.length);
+    for (Layer layer : myLayers) {
+      result.add(layer.getName());
+    }
+    return result;
+  }
+
+
+  boolean contains(@NotNull AnyObjectId commit) {
+    return find(commit) != NOT_FOUND;
+  }
+
+
+  /**
+   * Finds commits among the specified objects. Objects not in the graph are parsed
+   * to check their type, objects missing in the repository and non-commit objects are skipped.
+   * @return found commits or null if some commit is not in the graph
+   */
+  @Nullable
+  List<ObjectId> findCommits(@NotNull RevWalk walk, @NotNull Collection<? extends AnyObjectId> objects) throws IOException {
+    List<ObjectId> result = new ArrayList<ObjectId>(objects.size());
+    for (AnyObjectId id : objects) {
+      if (contains(id)) {
+        result.add(id.toObjectId());
+        continue;
+      }
+      RevObject obj;
+      try {
+        obj = walk.parseAny(id);
+      } catch (MissingObjectException e) {
+        continue;
+      }
+      if (obj.getType() == Constants.OBJ_COMMIT)
+        return null;
+    }
+    return result;
+  }
+
+
+  /**
+   * @return position of the commit or {@link #NOT_FOUND}
+   */
+  int find(@NotNull AnyObjectId commit) {
+    int[] key = new int[Layer.ID_INTS];
+    commit.copyRawTo(key, 0);
+    for (int i = myLayers.length - 1; i >= 0; i--) {
+      int idx = myLayers[i].find(key);
+      if (idx >= 0)
+        return myLayerStarts[i] + idx;
+    }
+    return NOT_FOUND;
+  }
+
+
+  @NotNull
+  ObjectId getId(int position) {
+    int layer = getLayer(position);
+    return myLayers[layer].getId(position - myLayerStarts[layer]);
+  }
+
+
+  @NotNull
+  ObjectId getTree(int position) {
+    int layer = getLayer(position);
+    return myLayers[layer].getTree(position - myLayerStarts[layer]);
+  }
+
+
+  int getCommitTime(int position) {
+    int layer = getLayer(position);
+    return myLayers[layer].getCommitTime(position - myLayerStarts[layer]);
+  }
+
+
+  int getGeneration(int position) {
+    int layer = getLayer(position);
+    return myLayers[layer].getGeneration(position - myLayerStarts[layer]);
+  }
+
+
+  @NotNull
+  ObjectId[] getParents(int position) {
+    int layer = getLayer(position);
+    return myLayers[layer].getParents(position - myLayerStarts[layer]);
+  }
+
+
+  /**
+   * @return true if the ancestor is reachable from the descendant, null if
+   * the graph doesn't contain some commits needed to answer
+   */
+  @Nullable
+  Boolean isAncestor(@NotNull AnyObjectId ancestor, @NotNull AnyObjectId descendant) {
+    int target = find(ancestor);
+    int start = find(descendant);
+    if (target == NOT_FOUND || start == NOT_FOUND)
+      return null;
+    if (target == start)
+      return true;
+    int targetGeneration = getGeneration(target);
+    Set<Integer> visited = new HashSet<Integer>();
+    Deque<Integer> stack = new ArrayDeque<Integer>();
+    stack.push(start);
+    visited.add(start);
+    while (!stack.isEmpty()) {
+      int position = stack.pop();
+      for (ObjectId parent : getParents(position)) {
+        if (parent.equals(ancestor))
+          return true;
+        int parentPosition = find(parent);
+        if (parentPosition == NOT_FOUND)
+          return null;
+        //commits with generation not greater than the ancestor generation cannot reach it
+        if (getGeneration(parentPosition) > targetGeneration && visited.add(parentPosition))
+          stack.push(parentPosition);
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Finds commits reachable from the starts and not reachable from the uninteresting commits.
+   * Commits are visited in order of decreasing generation and the search stops once all
+   * remaining commits are reachable from the uninteresting commits, so the uninteresting
+   * part of history is visited only down to the boundary.
+   *
+   * @return result or null if the graph doesn't contain some commits needed to answer
+   */
+  @Nullable
+  Boundary findBoundary(@NotNull Collection<? extends AnyObjectId> starts, @NotNull Collection<? extends AnyObjectId> uninteresting) {
+    Map<Integer, Integer> flags = new HashMap<Integer, Integer>();
+    PriorityQueue<Integer> queue = new PriorityQueue<Integer>(11, (p1, p2) -> Integer.compare(getGeneration(p2), getGeneration(p1)));
+    for (AnyObjectId commit : uninteresting) {
+      int position = find(commit);
+      if (position == NOT_FOUND)
+        return null;
+      if (flags.put(position, UNINTERESTING) == null)
+        queue.add(position);
+    }
+    List<Integer> startPositions = new ArrayList<Integer>();
+    int interestingInQueue = 0;
+    for (AnyObjectId commit : starts) {
+      int position = find(commit);
+      if (position == NOT_FOUND)
+        return null;
+      startPositions.add(position);
+      Integer f = flags.get(position);
+      if (f == null) {
+        flags.put(position, INTERESTING);
+        queue.add(position);
+        interestingInQueue++;
+      } else {
+        flags.put(position, f | INTERESTING);
+      }
+    }
+
+    List<Integer> interesting = new ArrayList<Integer>();
+    while (interestingInQueue > 0) {
+      //all children of a commit have bigger generations, so its flags are final once it is polled
+      int position = queue.poll();
+      int f = flags.get(position);
+      if (f == INTERESTING) {
+        interestingInQueue--;
+        interesting.add(position);
+      }
+      int parentFlag = (f & UNINTERESTING) != 0 ? UNINTERESTING : INTERESTING;
+      for (ObjectId parent : getParents(position)) {
+        int parentPosition = find(parent);
+        if (parentPosition == NOT_FOUND)
+          return null;
+        Integer pf = flags.get(parentPosition);
+        if (pf == null) {
+          flags.put(parentPosition, parentFlag);
+          queue.add(parentPosition);
+          if (parentFlag == INTERESTING)
+            interestingInQueue++;
+        } else if ((pf | parentFlag) != pf) {
+          flags.put(parentPosition, pf | parentFlag);
+          if (pf == INTERESTING)
+            interestingInQueue--;
+        }
+      }
+    }
+
+    Set<ObjectId> interestingStarts = new LinkedHashSet<ObjectId>();
+    for (int position : startPositions) {
+      if (flags.get(position) == INTERESTING)
+        interestingStarts.add(getId(position));
+    }
+    Set<ObjectId> boundary = new HashSet<ObjectId>();
+    for (int position : interesting) {
+      for (ObjectId parent : getParents(position)) {
+        if (flags.get(find(parent)) != INTERESTING)
+          boundary.add(parent);
+      }
+    }
+    List<ObjectId> interestingCommits = new ArrayList<ObjectId>(interesting.size());
+    for (int position : interesting) {
+      interestingCommits.add(getId(position));
+    }
+    return new Boundary(interestingStarts, boundary, interestingCommits);
+  }
+
+
+  private int getLayer(int position) {
+    for (int i = myLayers.length - 1; i >= 0; i--) {
+      if (position >= myLayerStarts[i])
+        return i;
+    }
+    throw new IllegalArgumentException("Bad position " + position);
+  }
+
+
+  /**
+   * Result of {@link #findBoundary}. Walking from the interesting starts while marking
+   * boundary commits uninteresting visits exactly the commits reachable from the starts
+   * and not reachable from the uninteresting commits.
+   */
+  static final class Boundary {
+    private final Set<ObjectId> myInterestingStarts;
+    private final Set<ObjectId> myBoundary;
+    private final List<ObjectId> myInterestingCommits;
+
+    private Boundary(@NotNull Set<ObjectId> interestingStarts, @NotNull Set<ObjectId> boundary, @NotNull List<ObjectId> interestingCommits) {
+      myInterestingStarts = interestingStarts;
+      myBoundary = boundary;
+      myInterestingCommits = interestingCommits;
+    }
+
+    /**
+     * @return starts not reachable from the uninteresting commits
+     */
+    @NotNull
+    Set<ObjectId> getInterestingStarts() {
+      return myInterestingStarts;
+    }
+
+    /**
+     * @return uninteresting parents of interesting commits
+     */
+    @NotNull
+    Set<ObjectId> getBoundary() {
+      return myBoundary;
+    }
+
+    /**
+     * @return commits reachable from the starts and not reachable from the uninteresting commits
+     */
+    @NotNull
+    List<ObjectId> getInterestingCommits() {
+      return myInterestingCommits;
+    }
+
+    /**
+     * @return true if the starts and the boundary commits exist in the repository, a graph
+     * not yet rebuilt after gc can contain removed commits
+     */
+    boolean exists(@NotNull ObjectReader reader) throws IOException {
+      for (ObjectId id : myInterestingStarts) {
+        if (!reader.has(id))
+          return false;
+      }
+      for (ObjectId id : myBoundary) {
+        if (!reader.has(id))
+          return false;
+      }
+      return true;
+    }
+  }
+
+
+  static final class Entry {
+    final ObjectId id;
+    final ObjectId tree;
+    final int commitTime;
+    final int generation;
+    final ObjectId[] parents;
+
+    Entry(@NotNull ObjectId id, @NotNull ObjectId tree, int commitTime, int generation, @NotNull ObjectId[] parents) {
+      this.id = id;
+      this.tree = tree;
+      this.commitTime = commitTime;
+      this.generation = generation;
+      this.parents = parents;
+    }
+  }
+
+
+  /**
+   * Memory-mapped layer file.
+   *
+   * Format: header | commits count (int) | parents count (int) | fanout (256 ints) |
+   * sorted commit ids | records | parent ids, where record is
+   * tree id | commit time (int) | generation (int) | first parent index (int) | parents count (int).
+   */
+  static final class Layer {
+    static final int ID_LENGTH = Constants.OBJECT_ID_LENGTH;
+    static final int ID_INTS = ID_LENGTH / 4;
+    private static final byte[] HEADER = {'T', 'C', 'G', 'L', 0, 0, 0, 1};//magic + format version
+    private static final int FANOUT_OFFSET = HEADER.length + 8;
+    private static final int IDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+    private static final int RECORD_SIZE = ID_LENGTH + 16;
+
+    private final String myName;
+    private final ByteBuffer myBuffer;
+    private final int mySize;
+    private final int myRecordsOffset;
+    private final int myParentsOffset;
+
+    private Layer(@NotNull String name, @NotNull ByteBuffer buffer) throws IOException {
+      myName = name;
+      myBuffer = buffer;
+      if (buffer.capacity() < IDS_OFFSET)
+        throw new IOException("Bad commit graph layer " + name);
+      for (int i = 0; i < HEADER.length; i++) {
+        if (buffer.get(i) != HEADER[i])
+          throw new IOException("Bad commit graph layer header " + name);
+      }
+      mySize = buffer.getInt(HEADER.length);
+      int parentsCount = buffer.getInt(HEADER.length + 4);
+      myRecordsOffset = IDS_OFFSET + mySize * ID_LENGTH;
+      myParentsOffset = myRecordsOffset + mySize * RECORD_SIZE;
+      if (mySize < 0 || parentsCount < 0 || (long) myParentsOffset + (long) parentsCount * ID_LENGTH != buffer.capacity())
+        throw new IOException("Bad commit graph layer size " + name);
+    }
+
+    @NotNull
+    static Layer read(@NotNull File file) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        return new Layer(file.getName(), buffer);
+      }
+    }
+
+    static void write(@NotNull File file, @NotNull List<Entry> sortedEntries) throws IOException {
+      int[] fanout = new int[256];
+      int parentsCount = 0;
+      for (Entry e : sortedEntries) {
+        fanout[e.id.getFirstByte()]++;
+        parentsCount += e.parents.length;
+      }
+      for (int i = 1; i < fanout.length; i++) {
+        fanout[i] += fanout[i - 1];
+      }
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+        out.write(HEADER);
+        out.writeInt(sortedEntries.size());
+        out.writeInt(parentsCount);
+        for (int count : fanout) {
+          out.writeInt(count);
+        }
+        for (Entry e : sortedEntries) {
+          e.id.copyRawTo(out);
+        }
+        int firstParent = 0;
+        for (Entry e : sortedEntries) {
+          e.tree.copyRawTo(out);
+          out.writeInt(e.commitTime);
+          out.writeInt(e.generation);
+          out.writeInt(firstParent);
+          out.writeInt(e.parents.length);
+          firstParent += e.parents.length;
+        }
+        for (Entry e : sortedEntries) {
+          for (ObjectId parent : e.parents) {
+            parent.copyRawTo(out);
+          }
+        }
+      }
+    }
+
+    @NotNull
+    String getName() {
+      return myName;
+    }
+
+    int size() {
+      return mySize;
+    }
+
+    /**
+     * @return index of the commit in the layer or -1
+     */
+    int find(@NotNull int[] key) {
+      int firstByte = key[0] >>> 24;
+      int low = firstByte == 0 ? 0 : myBuffer.getInt(FANOUT_OFFSET + (firstByte - 1) * 4);
+      int high = myBuffer.getInt(FANOUT_OFFSET + firstByte * 4);
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compare(key, IDS_OFFSET + mid * ID_LENGTH);
+        if (cmp == 0)
+          return mid;
+        if (cmp < 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return -1;
+    }
+
+    @NotNull
+    ObjectId getId(int idx) {
+      return readId(IDS_OFFSET + idx * ID_LENGTH);
+    }
+
+    @NotNull
+    ObjectId getTree(int idx) {
+      return readId(myRecordsOffset + idx * RECORD_SIZE);
+    }
+
+    int getCommitTime(int idx) {
+      return myBuffer.getInt(myRecordsOffset + idx * RECORD_SIZE + ID_LENGTH);
+    }
+
+    int getGeneration(int idx) {
+      return myBuffer.getInt(myRecordsOffset + idx * RECORD_SIZE + ID_LENGTH + 4);
+    }
+
+    @NotNull
+    ObjectId[] getParents(int idx) {
+      int record = myRecordsOffset + idx * RECORD_SIZE;
+      int first = myBuffer.getInt(record + ID_LENGTH + 8);
+      int count = myBuffer.getInt(record + ID_LENGTH + 12);
+      ObjectId[] result = new ObjectId[count];
+      for (int i = 0; i < count; i++) {
+        result[i] = readId(myParentsOffset + (first + i) * ID_LENGTH);
+      }
+      return result;
+    }
+
+    @NotNull
+    Entry getEntry(int idx) {
+      return new Entry(getId(idx), getTree(idx), getCommitTime(idx), getGeneration(idx), getParents(idx));
+    }
+
+    private int compare(@NotNull int[] key, int offset) {
+      for (int i = 0; i < ID_INTS; i++) {
+        int cmp = Integer.compareUnsigned(key[i], myBuffer.getInt(offset + i * 4));
+        if (cmp != 0)
+          return cmp;
+      }
+      return 0;
+    }
+
+    @NotNull
+    private ObjectId readId(int offset) {
+      int[] raw = new int[ID_INTS];
+      for (int i = 0; i < ID_INTS; i++) {
+        raw[i] = myBuffer.getInt(offset + i * 4);
+      }
+      return ObjectId.fromRaw(raw);
+    }
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maintains commit graphs of repositories.
+ *
+ * A graph is stored in the caches/commit-graph dir inside the repository dir, the chain
+ * file in this dir lists graph layers starting from the base one. Commits fetched by the
+ * server are appended as a new layer, once there are too many layers they are merged.
+ * The cleanup rebuilds graphs from scratch, that drops commits removed by gc and adds
+ * commits which were not added to the graph after fetch. Until then a graph can contain
+ * commits removed by gc, users of the graph check that commits they parse exist.
+ *
+ * Updates collect commits without the repository write lock and write the graph under it.
+ *
+ * ThreadSafe.
+ */
+final class CommitGraphs {
+
+  private static final Logger LOG = Logger.getInstance(CommitGraphs.class.getName());
+  private static final String CHAIN = "chain";
+  private static final int MAX_LAYERS = 8;
+
+  //repository dir -> loaded graph
+  private final ConcurrentMap<File, LoadedGraph> myGraphs = new ConcurrentHashMap<>();
+
+  /**
+   * @return commit graph of the repository or null if the repository has no graph
+   */
+  @Nullable
+  CommitGraph get(@NotNull File repositoryDir) {
+    List<String> chain;
+    try {
+      chain = readChain(repositoryDir);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while reading commit graph chain in repository " + repositoryDir, e);
+      chain = null;
+    }
+    if (chain == null) {
+      myGraphs.remove(repositoryDir);
+      return null;
+    }
+    LoadedGraph loaded = myGraphs.get(repositoryDir);
+    if (loaded != null && loaded.myChain.equals(chain))
+      return loaded.myGraph;
+    try {
+      CommitGraph graph = load(repositoryDir, chain);
+      myGraphs.put(repositoryDir, new LoadedGraph(chain, graph));
+      return graph;
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while loading commit graph in repository " + repositoryDir, e);
+      myGraphs.remove(repositoryDir);
+      return null;
+    }
+  }
+
+
+  /**
+   * Adds commits fetched into repository to its graph. If repository has no graph,
+   * creates a graph with all commits reachable from repository refs.
+   *
+   * Should be called without the repository write lock: commits are collected without it
+   * and the graph is written under it. If the graph is changed meanwhile, commits are
+   * collected again against the changed graph.
+   * @return commits added to the graph
+   */
+  @NotNull
+  Set<String> update(@NotNull Repository db,
+                     @NotNull Map<String, Ref> oldRefs,
+                     @NotNull Map<String, Ref> newRefs,
+                     @NotNull Object writeLock) throws IOException {
+    File dir = db.getDirectory();
+    CommitGraph graph = get(dir);
+    List<CommitGraph.Entry> entries = collectNewCommits(db, graph, getUpdatedHeads(graph, oldRefs, newRefs));
+    synchronized (writeLock) {
+      CommitGraph current = get(dir);
+      if (current != graph) {
+        //generations of the collected commits can depend on commits missing in the changed graph
+        graph = current;
+        entries = collectNewCommits(db, graph, getUpdatedHeads(graph, oldRefs, newRefs));
+      }
+      if (!entries.isEmpty()) {
+        if (graph == null) {
+          writeGraph(dir, Collections.emptyList(), entries);
+        } else {
+          appendLayer(dir, graph, entries);
+        }
+      }
+    }
+    Set<String> result = new HashSet<>();
+    for (CommitGraph.Entry e : entries) {
+      result.add(e.id.name());
+    }
+    return result;
+  }
+
+
+  /**
+   * Replaces the repository graph with a new graph containing commits reachable from repository refs.
+   *
+   * Should be called without the repository write lock: commits are collected without it and the
+   * graph is written under it. If the graph is updated meanwhile, commits are collected again under the lock.
+   */
+  void rebuild(@NotNull Repository db, @NotNull Object writeLock) throws IOException {
+    File dir = db.getDirectory();
+    List<String> chain = readChain(dir);
+    List<CommitGraph.Entry> entries = collectNewCommits(db, null, getHeads(db));
+    synchronized (writeLock) {
+      if (!Objects.equals(chain, readChain(dir)))
+        entries = collectNewCommits(db, null, getHeads(db));
+      if (entries.isEmpty()) {
+        FileUtil.delete(getGraphDir(dir));
+        myGraphs.remove(dir);
+        return;
+      }
+      writeGraph(dir, Collections.emptyList(), entries);
+    }
+  }
+
+
+  @NotNull
+  private static Set<ObjectId> getHeads(@NotNull Repository db) {
+    Set<ObjectId> heads = new HashSet<>();
+    for (Ref ref : db.getAllRefs().values()) {
+      if (ref.getObjectId() != null)
+        heads.add(ref.getObjectId());
+    }
+    return heads;
+  }
+
+
+  @NotNull
+  private static Set<ObjectId> getUpdatedHeads(@Nullable CommitGraph graph, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) {
+    Set<ObjectId> heads = new HashSet<>();
+    for (Map.Entry<String, Ref> e : newRefs.entrySet()) {
+      ObjectId id = e.getValue().getObjectId();
+      if (id == null)
+        continue;
+      Ref oldRef = oldRefs.get(e.getKey());
+      if (graph == null || oldRef == null || !id.equals(oldRef.getObjectId()))
+        heads.add(id);
+    }
+    return heads;
+  }
+
+
+  /**
+   * @return commits reachable from the heads which are not in the graph, with generations computed
+   */
+  @NotNull
+  private static List<CommitGraph.Entry> collectNewCommits(@NotNull Repository db,
+                                                           @Nullable CommitGraph graph,
+                                                           @NotNull Collection<ObjectId> heads) throws IOException {
+    Map<ObjectId, RevCommit> commits = new HashMap<>();
+    RevWalk walk = new RevWalk(db);
+    try {
+      walk.setRetainBody(false);
+      Deque<RevCommit> queue = new ArrayDeque<>();
+      for (ObjectId head : heads) {
+        if (graph != null && graph.contains(head))
+          continue;
+        RevObject obj;
+        try {
+          obj = walk.peel(walk.parseAny(head));
+        } catch (MissingObjectException e) {
+          continue;
+        }
+        if (obj instanceof RevCommit)
+          queue.add((RevCommit) obj);
+      }
+      while (!queue.isEmpty()) {
+        RevCommit commit = queue.poll();
+        if (commits.containsKey(commit) || graph != null && graph.contains(commit))
+          continue;
+        try {
+          walk.parseHeaders(commit);
+        } catch (MissingObjectException e) {
+          continue;
+        }
+        commits.put(commit, commit);
+        Collections.addAll(queue, commit.getParents());
+      }
+    } finally {
+      walk.dispose();
+    }
+
+    Map<ObjectId, Integer> generations = computeGenerations(graph, commits);
+    List<CommitGraph.Entry> result = new ArrayList<>(commits.size());
+    for (RevCommit commit : commits.values()) {
+      RevCommit[] parents = commit.getParents();
+      ObjectId[] parentIds = new ObjectId[parents.length];
+      for (int i = 0; i < parents.length; i++) {
+        parentIds[i] = parents[i].copy();
+      }
+      result.add(new CommitGraph.Entry(commit.copy(), commit.getTree().copy(), commit.getCommitTime(), generations.get(commit), parentIds));
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private static Map<ObjectId, Integer> computeGenerations(@Nullable CommitGraph graph, @NotNull Map<ObjectId, RevCommit> commits) {
+    Map<ObjectId, Integer> generations = new HashMap<>();
+    Deque<RevCommit> stack = new ArrayDeque<>();
+    for (RevCommit commit : commits.values()) {
+      stack.push(commit);
+      while (!stack.isEmpty()) {
+        RevCommit top = stack.peek();
+        if (generations.containsKey(top)) {
+          stack.pop();
+          continue;
+        }
+        boolean parentsComputed = true;
+        int maxParentGeneration = 0;
+        for (RevCommit parent : top.getParents()) {
+          if (commits.containsKey(parent)) {
+            Integer generation = generations.get(parent);
+            if (generation == null) {
+              parentsComputed = false;
+              stack.push(parent);
+            } else {
+              maxParentGeneration = Math.max(maxParentGeneration, generation);
+            }
+          } else if (graph != null) {
+            int position = graph.find(parent);
+            if (position != CommitGraph.NOT_FOUND)
+              maxParentGeneration = Math.max(maxParentGeneration, graph.getGeneration(position));
+          }
+        }
+        if (parentsComputed) {
+          generations.put(top, maxParentGeneration + 1);
+          stack.pop();
+        }
+      }
+    }
+    return generations;
+  }
+
+
+  private void appendLayer(@NotNull File repositoryDir, @NotNull CommitGraph graph, @NotNull List<CommitGraph.Entry> entries) throws IOException {
+    List<String> chain = graph.getLayerNames();
+    if (chain.size() + 1 > MAX_LAYERS) {
+      List<CommitGraph.Entry> all = new ArrayList<>(graph.size() + entries.size());
+      for (int i = 0; i < graph.size(); i++) {
+        all.add(getEntry(graph, i));
+      }
+      all.addAll(entries);
+      writeGraph(repositoryDir, Collections.emptyList(), all);
+    } else {
+      writeGraph(repositoryDir, chain, entries);
+    }
+  }
+
+
+  @NotNull
+  private static CommitGraph.Entry getEntry(@NotNull CommitGraph graph, int position) {
+    return new CommitGraph.Entry(graph.getId(position), graph.getTree(position), graph.getCommitTime(position),
+                                 graph.getGeneration(position), graph.getParents(position));
+  }
+
+
+  /**
+   * Writes a new layer with the entries on top of the specified layers
+   */
+  private void writeGraph(@NotNull File repositoryDir, @NotNull List<String> baseLayers, @NotNull List<CommitGraph.Entry> entries) throws IOException {
+    File graphDir = getGraphDir(repositoryDir);
+    graphDir.mkdirs();
+    List<CommitGraph.Entry> sorted = new ArrayList<>(entries);
+    sorted.sort((e1, e2) -> e1.id.compareTo(e2.id));
+    File layer = File.createTempFile("layer-", ".graph", graphDir);
+    try {
+      CommitGraph.Layer.write(layer, sorted);
+    } catch (IOException e) {
+      FileUtil.delete(layer);
+      throw e;
+    }
+    List<String> chain = new ArrayList<>(baseLayers);
+    chain.add(layer.getName());
+    File chainFile = new File(graphDir, CHAIN);
+    File tmp = new File(graphDir, CHAIN + ".tmp");
+    Files.write(tmp.toPath(), chain, StandardCharsets.UTF_8);
+    Files.move(tmp.toPath(), chainFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    deleteUnusedLayers(graphDir, chain);
+    if (LOG.isDebugEnabled())
+      LOG.debug("Wrote commit graph layer with " + entries.size() + " commits in repository " + repositoryDir + ", layers: " + chain.size());
+  }
+
+
+  private static void deleteUnusedLayers(@NotNull File graphDir, @NotNull List<String> chain) {
+    File[] files = graphDir.listFiles();
+    if (files == null)
+      return;
+    for (File f : files) {
+      String name = f.getName();
+      if (name.endsWith(".graph") && !chain.contains(name))
+        FileUtil.delete(f);//can fail if the layer is still mapped, will be deleted on the next update
+    }
+  }
+
+
+  @NotNull
+  private static CommitGraph load(@NotNull File repositoryDir, @NotNull List<String> chain) throws IOException {
+    File graphDir = getGraphDir(repositoryDir);
+    List<CommitGraph.Layer> layers = new ArrayList<>(chain.size());
+    for (String name : chain) {
+      layers.add(CommitGraph.Layer.read(new File(graphDir, name)));
+    }
+    return new CommitGraph(layers);
+  }
+
+
+  /**
+   * @return names of graph layers or null if repository has no graph
+   */
+  @Nullable
+  private static List<String> readChain(@NotNull File repositoryDir) throws IOException {
+    File chainFile = new File(getGraphDir(repositoryDir), CHAIN);
+    if (!chainFile.isFile())
+      return null;
+    List<String> result = new ArrayList<>();
+    for (String line : Files.readAllLines(chainFile.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.trim().isEmpty())
+        result.add(line.trim());
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private static File getGraphDir(@NotNull File repositoryDir) {
+    return new File(new File(repositoryDir, "caches"), "commit-graph");
+  }
+
+
+  private static final class LoadedGraph {
+    private final List<String> myChain;
+    private final CommitGraph myGraph;
+
+    private LoadedGraph(@NotNull List<String> chain, @NotNull CommitGraph graph) {
+      myChain = chain;
+      myGraph = graph;
+    }
+  }
+}
@@ -27,6 +27,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Set;
 
 /**
  * Encapsulates logic for loading, fetching and finding commits in repository
@@ -43,9 +44,24 @@ public interface CommitLoader {
                     @NotNull Collection<RefSpec> refspecs,
                     @NotNull FetchSettings settings) throws IOException, VcsException;
 
+  /**
+   * Fetches the specified blobs missing in a blobless clone
+   */
+  public void fetchBlobs(@NotNull Repository db,
+                         @NotNull URIish fetchURI,
+                         @NotNull Collection<ObjectId> blobs,
+                         @NotNull FetchSettings settings) throws IOException, VcsException;
+
   @NotNull
   RevCommit getCommit(@NotNull Repository repository, @NotNull ObjectId commitId) throws IOException;
 
   @Nullable
   public RevCommit findCommit(@NotNull Repository r, @NotNull String sha);
+
+  /**
+   * Checks commits existence using a single object reader
+   * @return ids which are missing in the repository or don't point to a commit
+   */
+  @NotNull
+  public Set<ObjectId> findCommits(@NotNull Repository r, @NotNull Collection<ObjectId> commitIds);
 }
@@ -30,9 +30,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 import static java.util.Arrays.asList;
 
@@ -40,20 +38,48 @@ public class CommitLoaderImpl implements CommitLoader {
 
   private static final Logger LOG = Logger.getInstance(CommitLoaderImpl.class.getName());
   private static final Logger PERFORMANCE_LOG = Logger.getInstance(CommitLoaderImpl.class.getName() + ".Performance");
+  private static final String NOT_OUR_REF = "not our ref";
 
   private final RepositoryManager myRepositoryManager;
   private final FetchCommand myFetchCommand;
   private final GitMapFullPath myMapFullPath;
+  private final ServerPluginConfig myConfig;
+  private final FetchCoordinator myFetchCoordinator = new FetchCoordinator();
+  private final FetchScheduler myFetchScheduler;
+  private final FetchMetrics myFetchMetrics;
+  private final FetchByIdCapabilities myFetchByIdCapabilities = new FetchByIdCapabilities();
 
   public CommitLoaderImpl(@NotNull RepositoryManager repositoryManager,
                           @NotNull FetchCommand fetchCommand,
-                          @NotNull GitMapFullPath mapFullPath) {
+                          @NotNull GitMapFullPath mapFullPath,
+                          @NotNull ServerPluginConfig config) {
+    this(repositoryManager, fetchCommand, mapFullPath, config, new FetchMetrics());
+  }
+
+  public CommitLoaderImpl(@NotNull RepositoryManager repositoryManager,
+                          @NotNull FetchCommand fetchCommand,
+                          @NotNull GitMapFullPath mapFullPath,
+                          @NotNull ServerPluginConfig config,
+                          @NotNull FetchMetrics fetchMetrics) {
     myRepositoryManager = repositoryManager;
     myFetchCommand = fetchCommand;
     myMapFullPath = mapFullPath;
+    myConfig = config;
+    myFetchScheduler = new FetchScheduler(config);
+    myFetchMetrics = fetchMetrics;
     myMapFullPath.setCommitLoader(this);
   }
 
+  @NotNull
+  public FetchScheduler getFetchScheduler() {
+    return myFetchScheduler;
+  }
+
+  @NotNull
+  public FetchMetrics getFetchMetrics() {
+    return myFetchMetrics;
+  }
+
   @NotNull
   public RevCommit loadCommit(@NotNull OperationContext context,
                               @NotNull GitVcsRoot root,
@@ -68,15 +94,22 @@ public class CommitLoaderImpl implements CommitLoader {
     }
 
     LOG.debug("Cannot find commit " + commitSHA + " in repository " + root.debugInfo() + ", fetch branch " + root.getRef());
-    fetchBranchData(root, db);
+    fetchBranchData(root, db, context.getFetchPriority());
 
     try {
       return getCommit(db, commitId);
     } catch (IOException e) {
+      if (fetchCommit(root, db, commitId, context.getFetchPriority())) {
+        try {
+          return getCommit(db, commitId);
+        } catch (IOException e1) {
+          //ignore error, will try to fetch all branches
+        }
+      }
       LOG.debug("Cannot find commit " + commitSHA + " in the branch " + root.getRef() +
                 " of repository " + root.debugInfo() + ", fetch all branches");
       RefSpec spec = new RefSpec().setSourceDestination("refs/*", "refs/*").setForceUpdate(true);
-      fetch(db, root.getRepositoryFetchURL(), asList(spec), new FetchSettings(root.getAuthSettings()));
+      fetch(db, root.getRepositoryFetchURL(), asList(spec), new FetchSettings(root.getAuthSettings(), GitProgress.NO_OP, context.getFetchPriority()));
       try {
         return getCommit(db, commitId);
       } catch (IOException e1) {
@@ -91,17 +124,123 @@ public class CommitLoaderImpl implements CommitLoader {
                     @NotNull FetchSettings settings) throws IOException, VcsException {
     File repositoryDir = db.getDirectory();
     assert repositoryDir != null : "Non-local repository";
+    //a thread holding the write lock cannot wait for a fetch running in another thread, the fetch needs the lock
+    if (myConfig.coalesceFetches() && !Thread.holdsLock(myRepositoryManager.getWriteLock(repositoryDir))) {
+      myFetchCoordinator.fetch(db, fetchURI, refspecs, settings, this::doFetch);
+    } else {
+      doFetch(db, fetchURI, refspecs, settings);
+    }
+  }
+
+  private void doFetch(@NotNull Repository db,
+                       @NotNull URIish fetchURI,
+                       @NotNull Collection<RefSpec> refspecs,
+                       @NotNull FetchSettings settings) throws IOException, VcsException {
+    File repositoryDir = db.getDirectory();
     final long start = System.currentTimeMillis();
+    Map<String, Ref> oldRefs;
+    Map<String, Ref> newRefs;
     synchronized (myRepositoryManager.getWriteLock(repositoryDir)) {
       final long finish = System.currentTimeMillis();
-      Map<String, Ref> oldRefs = new HashMap<String, Ref>(db.getAllRefs());
+      oldRefs = new HashMap<String, Ref>(db.getAllRefs());
       PERFORMANCE_LOG.debug("[waitForWriteLock] repository: " + repositoryDir.getAbsolutePath() + ", took " + (finish - start) + "ms");
-      myFetchCommand.fetch(db, fetchURI, refspecs, settings);
-      Map<String, Ref> newRefs = new HashMap<String, Ref>(db.getAllRefs());
+      myFetchMetrics.record(repositoryDir, FetchPhase.WAIT_FOR_WRITE_LOCK, finish - start);
+      //the slot is requested under the write lock, so fetches waiting for the lock don't occupy slots
+      FetchScheduler.Permit permit = myFetchScheduler.acquire(repositoryDir, fetchURI, settings);
+      myFetchMetrics.record(repositoryDir, FetchPhase.WAIT_FOR_SLOT, System.currentTimeMillis() - finish);
+      try {
+        myFetchCommand.fetch(db, fetchURI, refspecs, settings);
+      } finally {
+        permit.release();
+      }
+      final long invalidationStart = System.currentTimeMillis();
+      newRefs = new HashMap<String, Ref>(db.getAllRefs());
       myMapFullPath.invalidateRevisionsCache(db, oldRefs, newRefs);
+      final long invalidationFinish = System.currentTimeMillis();
+      myFetchMetrics.record(repositoryDir, FetchPhase.CACHE_INVALIDATION, invalidationFinish - invalidationStart);
+      myFetchMetrics.record(repositoryDir, FetchPhase.TOTAL, invalidationFinish - start);
+    }
+    //the graph walks all fetched commits, other fetches of the repository don't wait for it
+    myMapFullPath.updateCommitGraph(db, oldRefs, newRefs, myRepositoryManager.getWriteLock(repositoryDir));
+  }
+
+  public void fetchBlobs(@NotNull Repository db,
+                         @NotNull URIish fetchURI,
+                         @NotNull Collection<ObjectId> blobs,
+                         @NotNull FetchSettings settings) throws IOException, VcsException {
+    File repositoryDir = db.getDirectory();
+    synchronized (myRepositoryManager.getWriteLock(repositoryDir)) {
+      FetchScheduler.Permit permit = myFetchScheduler.acquire(repositoryDir, fetchURI, settings);
+      try {
+        myFetchCommand.fetchBlobs(db, fetchURI, blobs, settings);
+      } finally {
+        permit.release();
+      }
     }
   }
 
+  /**
+   * Asks the remote repository for the commit by id, it is much cheaper than the fetch of all refs
+   * in repositories with many refs.
+   *
+   * No local ref points to the fetched commit, so if no branch fetched later contains it, the next
+   * gc removes it. Callers don't keep the commit between operations: {@link #loadCommit} fetches
+   * it again when it is missing.
+   * @return true if the commit was fetched
+   */
+  private boolean fetchCommit(@NotNull GitVcsRoot root, @NotNull Repository db, @NotNull ObjectId commitId, @NotNull FetchPriority priority) {
+    if (!myConfig.fetchCommitsById())
+      return false;
+    URIish fetchURI = root.getRepositoryFetchURL();
+    if (!myFetchByIdCapabilities.isSupported(fetchURI))
+      return false;
+    File repositoryDir = db.getDirectory();
+    FetchSettings settings = new FetchSettings(root.getAuthSettings(), GitProgress.NO_OP, priority);
+    try {
+      FetchCommand.FetchCommitResult result;
+      final long start = System.currentTimeMillis();
+      synchronized (myRepositoryManager.getWriteLock(repositoryDir)) {
+        final long finish = System.currentTimeMillis();
+        myFetchMetrics.record(repositoryDir, FetchPhase.WAIT_FOR_WRITE_LOCK, finish - start);
+        FetchScheduler.Permit permit = myFetchScheduler.acquire(repositoryDir, fetchURI, settings);
+        myFetchMetrics.record(repositoryDir, FetchPhase.WAIT_FOR_SLOT, System.currentTimeMillis() - finish);
+        try {
+          result = myFetchCommand.fetchCommit(db, fetchURI, commitId, settings);
+        } finally {
+          permit.release();
+        }
+        if (result == FetchCommand.FetchCommitResult.FETCHED) {
+          final long invalidationStart = System.currentTimeMillis();
+          myMapFullPath.invalidateRevisionsCache(db, Collections.singleton(commitId.name()));
+          final long invalidationFinish = System.currentTimeMillis();
+          myFetchMetrics.record(repositoryDir, FetchPhase.CACHE_INVALIDATION, invalidationFinish - invalidationStart);
+          myFetchMetrics.record(repositoryDir, FetchPhase.TOTAL, invalidationFinish - start);
+          return true;
+        }
+      }
+      if (result == FetchCommand.FetchCommitResult.NOT_ALLOWED) {
+        LOG.debug("Remote repository " + root.debugInfo() + " cannot be asked for the commit " + commitId.name() + " by id");
+        myFetchByIdCapabilities.markUnsupported(fetchURI);
+      }
+    } catch (Exception e) {
+      LOG.debug("Failed to fetch the commit " + commitId.name() + " by id from repository " + root.debugInfo(), e);
+      if (isNotOurRef(e)) {
+        //the remote refuses to send objects which are not advertised, e.g. 'ERR upload-pack: not our ref'
+        myFetchByIdCapabilities.markUnsupported(fetchURI);
+      }
+    }
+    return false;
+  }
+
+  private static boolean isNotOurRef(@NotNull Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      String msg = t.getMessage();
+      if (msg != null && msg.contains(NOT_OUR_REF))
+        return true;
+    }
+    return false;
+  }
+
   @NotNull
   public RevCommit getCommit(@NotNull Repository repository, @NotNull ObjectId commitId) throws IOException {
     final long start = System.currentTimeMillis();
@@ -126,10 +265,35 @@ public class CommitLoaderImpl implements CommitLoader {
     }
   }
 
-  private void fetchBranchData(@NotNull GitVcsRoot root, @NotNull Repository repository)
+  @NotNull
+  public Set<ObjectId> findCommits(@NotNull Repository r, @NotNull Collection<ObjectId> commitIds) {
+    final long start = System.currentTimeMillis();
+    Set<ObjectId> missing = new HashSet<ObjectId>();
+    RevWalk walk = new RevWalk(r.newObjectReader());//the walk releases the reader
+    try {
+      walk.setRetainBody(false);
+      for (ObjectId id : commitIds) {
+        try {
+          walk.parseCommit(id);
+        } catch (Exception e) {
+          missing.add(id);
+        }
+      }
+    } finally {
+      walk.release();
+      final long finish = System.currentTimeMillis();
+      if (PERFORMANCE_LOG.isDebugEnabled()) {
+        PERFORMANCE_LOG.debug("[findCommits] repository=" + r.getDirectory().getAbsolutePath() + ", commits=" + commitIds.size() +
+                              ", missing=" + missing.size() + ", took: " + (finish - start) + "ms");
+      }
+    }
+    return missing;
+  }
+
+  private void fetchBranchData(@NotNull GitVcsRoot root, @NotNull Repository repository, @NotNull FetchPriority priority)
     throws VcsException, IOException {
     final String refName = GitUtils.expandRef(root.getRef());
     RefSpec spec = new RefSpec().setSource(refName).setDestination(refName).setForceUpdate(true);
-    fetch(repository, root.getRepositoryFetchURL(), asList(spec), new FetchSettings(root.getAuthSettings()));
+    fetch(repository, root.getRepositoryFetchURL(), asList(spec), new FetchSettings(root.getAuthSettings(), GitProgress.NO_OP, priority));
   }
 }
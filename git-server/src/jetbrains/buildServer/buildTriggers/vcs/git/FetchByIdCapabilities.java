@@ -0,0 +1,63 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers hosts which cannot be asked for a commit by its id,
+ * commits missing in repositories from these hosts are fetched with all refs right away.
+ *
+ * ThreadSafe.
+ */
+final class FetchByIdCapabilities {
+
+  private static final long UNSUPPORTED_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  //scheme and host -> time until which the host is treated as not supporting fetch by id
+  private final ConcurrentMap<String, Long> myUnsupportedHosts = new ConcurrentHashMap<String, Long>();
+
+  boolean isSupported(@NotNull URIish uri) {
+    String host = getHostKey(uri);
+    Long unsupportedUntil = myUnsupportedHosts.get(host);
+    if (unsupportedUntil == null)
+      return true;
+    if (unsupportedUntil > System.currentTimeMillis())
+      return false;
+    myUnsupportedHosts.remove(host, unsupportedUntil);
+    return true;
+  }
+
+
+  void markUnsupported(@NotNull URIish uri) {
+    myUnsupportedHosts.put(getHostKey(uri), System.currentTimeMillis() + UNSUPPORTED_TTL_MILLIS);
+  }
+
+
+  @NotNull
+  private static String getHostKey(@NotNull URIish uri) {
+    String host = uri.getHost();
+    if (host == null)
+      return "local";
+    return uri.getScheme() + "://" + host + (uri.getPort() > 0 ? ":" + uri.getPort() : "");
+  }
+}
@@ -19,6 +19,7 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.URIish;
@@ -40,4 +41,38 @@ public interface FetchCommand {
                     @NotNull Collection<RefSpec> refspecs,
                     @NotNull FetchSettings settings) throws IOException, VcsException;
 
+  /**
+   * Fetches the specified blobs missing in a blobless clone
+   */
+  default void fetchBlobs(@NotNull Repository db,
+                          @NotNull URIish fetchURI,
+                          @NotNull Collection<ObjectId> blobs,
+                          @NotNull FetchSettings settings) throws IOException, VcsException {
+    throw new VcsException("Fetch of missing blobs is not supported");
+  }
+
+  /**
+   * Fetches the commit by its id without updating refs
+   */
+  @NotNull
+  default FetchCommitResult fetchCommit(@NotNull Repository db,
+                                        @NotNull URIish fetchURI,
+                                        @NotNull ObjectId commitId,
+                                        @NotNull FetchSettings settings) throws IOException, VcsException {
+    return FetchCommitResult.UNAVAILABLE;
+  }
+
+
+  enum FetchCommitResult {
+    FETCHED,
+    /**
+     * The remote repository doesn't allow asking for the commit by id
+     */
+    NOT_ALLOWED,
+    /**
+     * No fetch able to ask for a commit by id can be used locally (e.g. native git is disabled),
+     * the remote repository wasn't asked
+     */
+    UNAVAILABLE
+  }
 }
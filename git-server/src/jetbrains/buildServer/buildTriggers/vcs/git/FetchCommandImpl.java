@@ -25,11 +25,14 @@ import jetbrains.buildServer.ssh.TeamCitySshKey;
 import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
 import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import jetbrains.buildServer.vcs.VcsUtil;
+import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
 import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.FetchResult;
@@ -38,6 +41,7 @@ import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.util.FS;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -52,12 +56,18 @@ public class FetchCommandImpl implements FetchCommand {
 
   private static Logger LOG = Logger.getInstance(FetchCommandImpl.class.getName());
   private static Logger PERFORMANCE_LOG = Logger.getInstance(FetchCommandImpl.class.getName() + ".Performance");
+  //the number of local commits sent to the remote when a commit is fetched by id
+  private static final int MAX_HAVES = 1000;
 
   private final ServerPluginConfig myConfig;
   private final TransportFactory myTransportFactory;
   private final FetcherProperties myFetcherProperties;
   private final VcsRootSshKeyManager mySshKeyManager;
   private final GitTrustStoreProvider myGitTrustStoreProvider;
+  private final FetcherWorkerPool myWorkerPool;
+  private final BloblessClones myBloblessClones;
+  private final NativeGitFetch myNativeGitFetch;
+  private final FetchMetrics myFetchMetrics;
 
   public FetchCommandImpl(@NotNull ServerPluginConfig config,
                           @NotNull TransportFactory transportFactory,
@@ -71,11 +81,38 @@ public class FetchCommandImpl implements FetchCommand {
                           @NotNull FetcherProperties fetcherProperties,
                           @NotNull VcsRootSshKeyManager sshKeyManager,
                           @NotNull GitTrustStoreProvider gitTrustStoreProvider) {
+    this(config, transportFactory, fetcherProperties, sshKeyManager, gitTrustStoreProvider, new FetchMetrics());
+  }
+
+  public FetchCommandImpl(@NotNull ServerPluginConfig config,
+                          @NotNull TransportFactory transportFactory,
+                          @NotNull FetcherProperties fetcherProperties,
+                          @NotNull VcsRootSshKeyManager sshKeyManager,
+                          @NotNull GitTrustStoreProvider gitTrustStoreProvider,
+                          @NotNull FetchMetrics fetchMetrics) {
     myConfig = config;
     myTransportFactory = transportFactory;
     myFetcherProperties = fetcherProperties;
     mySshKeyManager = sshKeyManager;
     myGitTrustStoreProvider = gitTrustStoreProvider;
+    myWorkerPool = new FetcherWorkerPool(config);
+    myBloblessClones = new BloblessClones(config, transportFactory);
+    myNativeGitFetch = new NativeGitFetch(config, sshKeyManager);
+    myFetchMetrics = fetchMetrics;
+  }
+
+
+  /**
+   * Stops fetch processes kept for reuse
+   */
+  public void dispose() {
+    myWorkerPool.dispose();
+  }
+
+
+  @NotNull
+  public FetcherWorkerPool getWorkerPool() {
+    return myWorkerPool;
   }
 
   public void fetch(@NotNull Repository db,
@@ -83,11 +120,80 @@ public class FetchCommandImpl implements FetchCommand {
                     @NotNull Collection<RefSpec> refspecs,
                     @NotNull FetchSettings settings) throws IOException, VcsException {
     unlockRefs(db);
-    if (myConfig.isSeparateProcessForFetch()) {
-      fetchInSeparateProcess(db, fetchURI, refspecs, settings);
-    } else {
-      fetchInSameProcess(db, fetchURI, refspecs, settings);
+    long packsSize = getPacksSize(db);
+    try {
+      boolean filtered = myBloblessClones.shouldFetchFiltered(db, fetchURI);
+      if (!filtered && myNativeGitFetch.fetch(db, fetchURI, refspecs, settings))
+        return;
+      if (myConfig.isSeparateProcessForFetch()) {
+        fetchInSeparateProcess(db, fetchURI, refspecs, settings, filtered ? BloblessClones.FILTER : null);
+      } else if (!filtered || !myBloblessClones.fetchFiltered(db, fetchURI, refspecs, settings)) {
+        fetchInSameProcess(db, fetchURI, refspecs, settings);
+      }
+    } finally {
+      //a fetch writes received objects in a new pack, its size is the size of the downloaded data
+      myFetchMetrics.recordDownload(db.getDirectory(), Math.max(0, getPacksSize(db) - packsSize));
+    }
+  }
+
+
+  private static long getPacksSize(@NotNull Repository db) {
+    File[] packs = new File(((FileRepository) db).getObjectsDirectory(), "pack").listFiles();
+    if (packs == null)
+      return 0;
+    long result = 0;
+    for (File pack : packs) {
+      if (pack.getName().endsWith(".pack"))
+        result += pack.length();
     }
+    return result;
+  }
+
+
+  @Override
+  public void fetchBlobs(@NotNull Repository db,
+                         @NotNull URIish fetchURI,
+                         @NotNull Collection<ObjectId> blobs,
+                         @NotNull FetchSettings settings) throws IOException, VcsException {
+    myBloblessClones.fetchBlobs(db, fetchURI, blobs, settings);
+  }
+
+
+  @Override
+  @NotNull
+  public FetchCommitResult fetchCommit(@NotNull Repository db,
+                                       @NotNull URIish fetchURI,
+                                       @NotNull ObjectId commitId,
+                                       @NotNull FetchSettings settings) throws IOException, VcsException {
+    unlockRefs(db);
+    boolean blobless = BloblessClones.isBlobless(db);
+    //JGit cannot ask for an object which is not advertised, the protocol version 2 over http allows it
+    if (myTransportFactory.fetchObjects(db, fetchURI, settings.getAuthSettings(), Collections.singleton(commitId), getHaves(db),
+                                        blobless ? BloblessClones.FILTER : null, myConfig.getFetchTimeout()))
+      return FetchCommitResult.FETCHED;
+    if (blobless)
+      return FetchCommitResult.NOT_ALLOWED;//native git would download blobs, the remote doesn't support filtered fetches
+    return myNativeGitFetch.fetchCommit(db, fetchURI, commitId, settings);
+  }
+
+
+  /**
+   * @return tips of local branches and tags, objects reachable from them are not fetched
+   */
+  @NotNull
+  private Set<ObjectId> getHaves(@NotNull Repository db) {
+    Set<ObjectId> result = new HashSet<ObjectId>();
+    for (Ref ref : db.getAllRefs().values()) {
+      if (result.size() >= MAX_HAVES)
+        break;
+      String name = ref.getName();
+      if (!name.startsWith(org.eclipse.jgit.lib.Constants.R_HEADS) && !name.startsWith(org.eclipse.jgit.lib.Constants.R_TAGS))
+        continue;
+      ObjectId id = ref.getObjectId();
+      if (id != null && db.hasObject(id))
+        result.add(id);
+    }
+    return result;
   }
 
 
@@ -144,23 +250,27 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
+  /**
+   * @param filter object filter for a fetch into a blobless clone, the fetch process
+   *               fetches fully if the remote repository doesn't support it and the clone is not blobless yet
+   */
   private void fetchInSeparateProcess(@NotNull Repository repository,
                                       @NotNull URIish uri,
                                       @NotNull Collection<RefSpec> specs,
-                                      @NotNull FetchSettings settings) throws VcsException {
+                                      @NotNull FetchSettings settings,
+                                      @Nullable String filter) throws VcsException {
     final long fetchStart = System.currentTimeMillis();
     final String debugInfo = getDebugInfo(repository, uri, specs);
 
     File gitPropertiesFile = null;
     File teamcityPrivateKey = null;
     try {
-      GeneralCommandLine cl = createFetcherCommandLine(repository, uri);
+      boolean useWorker = useFetchWorkers();
       if (LOG.isDebugEnabled())
-        LOG.debug("Start fetch process for " + debugInfo);
+        LOG.debug((useWorker ? "Run fetch in a reusable fetch process for " : "Start fetch process for ") + debugInfo);
 
       File threadDump = getThreadDumpFile(repository);
       gitPropertiesFile = myFetcherProperties.getPropertiesFile();
-      FetcherEventHandler processEventHandler = new FetcherEventHandler(debugInfo);
       teamcityPrivateKey = getTeamCityPrivateKey(settings.getAuthSettings());
       AuthSettings preparedSettings = settings.getAuthSettings();
       if (teamcityPrivateKey != null) {
@@ -169,33 +279,32 @@ public class FetchCommandImpl implements FetchCommand {
         properties.put(Constants.PRIVATE_KEY_PATH, teamcityPrivateKey.getAbsolutePath());
         preparedSettings = new AuthSettings(properties, settings.getAuthSettings().getRoot());
       }
-      byte[] fetchProcessInput = getFetchProcessInputBytes(preparedSettings, repository.getDirectory(), uri, specs, threadDump, gitPropertiesFile);
+      RemoteConnection connection = settings.getRemoteConnection();
+      if (connection != null) {
+        //a connection cannot be passed to another process, don't keep it open during the fetch
+        connection.close();
+      }
+      byte[] fetchProcessInput = getFetchProcessInputBytes(preparedSettings, repository.getDirectory(), uri, specs, threadDump, gitPropertiesFile, connection, filter);
       ByteArrayOutputStream stdoutBuffer = settings.createStdoutBuffer();
-      ByteArrayOutputStream stderrBuffer = new ByteArrayOutputStream();
       settings.getProgress().reportProgress("git fetch " + uri);
-      ExecResult result = SimpleCommandLineProcessRunner.runCommandSecure(cl, cl.getCommandLineString(), fetchProcessInput,
-                                                                          processEventHandler, stdoutBuffer, stderrBuffer);
-
-      if (PERFORMANCE_LOG.isDebugEnabled())
-        PERFORMANCE_LOG.debug("[fetch in separate process] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms");
-
-      VcsException commandError = CommandLineUtil.getCommandLineError("git fetch",
-                                                                      " (repository dir: <TeamCity data dir>/system/caches/git/" + repository.getDirectory().getName() + ")",
-                                                                      result, true, true);
-      if (commandError != null) {
-        commandError.setRecoverable(isRecoverable(commandError));
-        if (isOutOfMemoryError(result))
-          LOG.warn("There is not enough memory for git fetch, teamcity.git.fetch.process.max.memory=" + myConfig.getFetchProcessMaxMemory() + ", try to increase it.");
-        if (isTimeout(result))
-          logTimeout(debugInfo, threadDump);
-        clean(repository);
-        throw commandError;
-      }
-      if (result.getStderr().length() > 0) {
-        LOG.warn("Error output produced by git fetch:\n" + result.getStderr());
+      if (useWorker) {
+        FetcherWorkerPool.Result result;
+        try {
+          result = myWorkerPool.fetch(createWorkerCommandLine(), myConfig.passEnvToChildProcess(), fetchProcessInput, stdoutBuffer, myConfig.getFetchTimeout());
+        } catch (IOException e) {
+          throw new VcsException("Cannot start fetch process", e);
+        }
+        logFetchPerformance(debugInfo, fetchStart);
+        processFetchResult(repository, debugInfo, threadDump, result.getExitCode(), result.getException(), stdoutBuffer.toString(), result.getStderr());
+      } else {
+        GeneralCommandLine cl = createFetcherCommandLine(repository, uri);
+        FetcherEventHandler processEventHandler = new FetcherEventHandler(debugInfo);
+        ByteArrayOutputStream stderrBuffer = new ByteArrayOutputStream();
+        ExecResult result = SimpleCommandLineProcessRunner.runCommandSecure(cl, cl.getCommandLineString(), fetchProcessInput,
+                                                                            processEventHandler, stdoutBuffer, stderrBuffer);
+        logFetchPerformance(debugInfo, fetchStart);
+        processFetchResult(repository, debugInfo, threadDump, result.getExitCode(), result.getException(), result.getStdout(), result.getStderr());
       }
-
-      LOG.debug("Fetch process output:\n" + result.getStdout());
     } finally {
       settings.getProgress().reportProgress("git fetch " + uri + " finished");
       if (teamcityPrivateKey != null)
@@ -205,6 +314,51 @@ public class FetchCommandImpl implements FetchCommand {
     }
   }
 
+  private void logFetchPerformance(@NotNull String debugInfo, long fetchStart) {
+    if (PERFORMANCE_LOG.isDebugEnabled())
+      PERFORMANCE_LOG.debug("[fetch in separate process] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms");
+  }
+
+
+  private void processFetchResult(@NotNull Repository repository,
+                                  @NotNull String debugInfo,
+                                  @NotNull File threadDump,
+                                  int exitCode,
+                                  @Nullable Throwable exception,
+                                  @NotNull String stdout,
+                                  @NotNull String stderr) throws VcsException {
+    FetchPhaseTimes phaseTimes = FetchPhaseTimes.parse(stdout);
+    if (phaseTimes != null)
+      myFetchMetrics.record(repository.getDirectory(), phaseTimes);
+    VcsException commandError = CommandLineUtil.getCommandLineError("git fetch",
+                                                                    " (repository dir: <TeamCity data dir>/system/caches/git/" + repository.getDirectory().getName() + ")",
+                                                                    exitCode, exception, stdout, stderr, true, true);
+    if (commandError != null) {
+      commandError.setRecoverable(isRecoverable(commandError));
+      if (isOutOfMemoryError(stderr))
+        LOG.warn("There is not enough memory for git fetch, teamcity.git.fetch.process.max.memory=" + myConfig.getFetchProcessMaxMemory() + ", try to increase it.");
+      if (isTimeout(exception))
+        logTimeout(debugInfo, threadDump);
+      clean(repository);
+      throw commandError;
+    }
+    if (stderr.length() > 0) {
+      LOG.warn("Error output produced by git fetch:\n" + stderr);
+    }
+
+    LOG.debug("Fetch process output:\n" + stdout);
+  }
+
+
+  /**
+   * Fetch processes are reused only for the default fetcher, a custom
+   * fetcher class is run in a new process for every fetch
+   */
+  private boolean useFetchWorkers() {
+    return myConfig.useFetchWorkers() && Fetcher.class.getName().equals(myConfig.getFetcherClassName());
+  }
+
+
   private boolean isRecoverable(@NotNull VcsException exception) {
     String message = exception.getMessage();
     for (String recoverableErrorMsg : myConfig.getRecoverableFetchErrorMessages()) {
@@ -276,6 +430,19 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
+  @NotNull
+  private List<String> createWorkerCommandLine() {
+    List<String> cl = new ArrayList<String>();
+    cl.add(myConfig.getFetchProcessJavaPath());
+    cl.addAll(myConfig.getOptionsForSeparateProcess());
+    cl.add("-Xmx" + myConfig.getFetchProcessMaxMemory());
+    cl.add("-cp");
+    cl.add(myConfig.getFetchClasspath());
+    cl.add(FetcherWorker.class.getName());
+    return cl;
+  }
+
+
   private void fetchInSameProcess(@NotNull Repository db,
                                   @NotNull URIish uri,
                                   @NotNull Collection<RefSpec> refSpecs,
@@ -285,10 +452,35 @@ public class FetchCommandImpl implements FetchCommand {
       LOG.debug("Fetch in server process: " + debugInfo);
     }
     final long fetchStart = System.currentTimeMillis();
-    final Transport tn = myTransportFactory.createTransport(db, uri, settings.getAuthSettings());
+    final FetchPhaseTimes phaseTimes = new FetchPhaseTimes();
+    final RemoteConnection connection = settings.getRemoteConnection();
+    final Transport keptConnectionTransport = connection != null ? connection.takeTransport(db) : null;
+    Transport tn = keptConnectionTransport != null ? keptConnectionTransport : myTransportFactory.createTransport(db, uri, settings.getAuthSettings());
     try {
-      pruneRemovedBranches(db, tn, uri, settings.getAuthSettings());
-      FetchResult result = GitServerUtil.fetch(db, uri, settings.getAuthSettings(), myTransportFactory, tn, settings.createProgressMonitor(), refSpecs, myConfig.ignoreMissingRemoteRef());
+      if (connection != null) {
+        GitServerUtil.pruneRemovedBranches(db, connection.getAdvertisedRefs().keySet());
+      } else {
+        pruneRemovedBranches(db, tn, uri, settings.getAuthSettings());
+      }
+      phaseTimes.add(FetchPhase.CONNECT, System.currentTimeMillis() - fetchStart);
+      FetchPhaseMonitor phaseMonitor = new FetchPhaseMonitor(settings.createProgressMonitor(), phaseTimes);
+      FetchResult result;
+      try {
+        try {
+          result = GitServerUtil.fetch(db, uri, settings.getAuthSettings(), myTransportFactory, tn, phaseMonitor, refSpecs, myConfig.ignoreMissingRemoteRef());
+        } catch (TransportException e) {
+          if (tn != keptConnectionTransport)
+            throw e;
+          //the remote could close the connection while it was idle
+          LOG.debug("Fetch over the connection opened by the operation failed, retry with a new connection: " + debugInfo, e);
+          tn.close();
+          tn = myTransportFactory.createTransport(db, uri, settings.getAuthSettings());
+          result = GitServerUtil.fetch(db, uri, settings.getAuthSettings(), myTransportFactory, tn, phaseMonitor, refSpecs, myConfig.ignoreMissingRemoteRef());
+        }
+      } finally {
+        phaseMonitor.finish();
+        myFetchMetrics.record(db.getDirectory(), phaseTimes);
+      }
       GitServerUtil.checkFetchSuccessful(db, result);
     } catch (OutOfMemoryError oom) {
       LOG.warn("There is not enough memory for git fetch, try to run fetch in a separate process.");
@@ -319,13 +511,11 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
-  private boolean isOutOfMemoryError(@NotNull ExecResult result) {
-    return result.getStderr().contains("java.lang.OutOfMemoryError");
+  private boolean isOutOfMemoryError(@NotNull String stderr) {
+    return stderr.contains("java.lang.OutOfMemoryError");
   }
 
-  private boolean isTimeout(@NotNull ExecResult result) {
-    //noinspection ThrowableResultOfMethodCallIgnored
-    final Throwable exception = result.getException();
+  private boolean isTimeout(@Nullable Throwable exception) {
     return exception instanceof InterruptedException &&
            "Timeout exception".equals(exception.getMessage());
   }
@@ -382,7 +572,9 @@ public class FetchCommandImpl implements FetchCommand {
                                            @NotNull URIish uri,
                                            @NotNull Collection<RefSpec> specs,
                                            @NotNull File threadDump,
-                                           @NotNull File gitProperties) throws VcsException {
+                                           @NotNull File gitProperties,
+                                           @Nullable RemoteConnection connection,
+                                           @Nullable String filter) throws VcsException {
     try {
       Map<String, String> properties = new HashMap<String, String>(authSettings.toMap());
       properties.put(Constants.REPOSITORY_DIR_PROPERTY_NAME, repositoryDir.getCanonicalPath());
@@ -392,6 +584,10 @@ public class FetchCommandImpl implements FetchCommand {
       properties.put(Constants.THREAD_DUMP_FILE, threadDump.getAbsolutePath());
       properties.put(Constants.FETCHER_INTERNAL_PROPERTIES_FILE, gitProperties.getAbsolutePath());
       properties.put(Constants.GIT_TRUST_STORE_PROVIDER, myGitTrustStoreProvider.serialize());
+      if (connection != null)
+        properties.put(Constants.ADVERTISED_REFS, StringUtil.join(Constants.RECORD_SEPARATOR, connection.getAdvertisedRefs().keySet()));
+      if (filter != null)
+        properties.put(Constants.FETCH_FILTER, filter);
       return VcsUtil.propertiesToStringSecure(properties).getBytes("UTF-8");
     } catch (IOException e) {
       throw new VcsException("Error while generating fetch process input", e);
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Coalesces concurrent fetches into the same repository.
+ *
+ * The first caller runs its fetch. Callers arriving while a fetch is running
+ * are queued: a running fetch could list remote refs before they arrived,
+ * so its result cannot satisfy them. When the fetch finishes, one of the
+ * queued callers runs a single fetch with the union of refspecs of all
+ * queued callers with the same url and credentials and all of them are
+ * released when it finishes. If a combined fetch fails, refspecs of every
+ * caller are fetched separately, so an error in one refspec doesn't fail
+ * other callers.
+ *
+ * ThreadSafe.
+ */
+final class FetchCoordinator {
+
+  private static final Logger LOG = Logger.getInstance(FetchCoordinator.class.getName());
+
+  //repository dir -> requests waiting for the running fetch, a repository is present while its fetch is running
+  private final Map<File, Deque<Request>> myQueues = new HashMap<File, Deque<Request>>();
+
+  void fetch(@NotNull Repository db,
+             @NotNull URIish fetchURI,
+             @NotNull Collection<RefSpec> refspecs,
+             @NotNull FetchSettings settings,
+             @NotNull FetchCommand fetchCommand) throws IOException, VcsException {
+    File repositoryDir = db.getDirectory();
+    Request request = new Request(fetchURI, refspecs, settings);
+    List<Request> batch = null;
+    synchronized (this) {
+      Deque<Request> queue = myQueues.get(repositoryDir);
+      if (queue == null) {
+        myQueues.put(repositoryDir, new ArrayDeque<Request>());
+        batch = Collections.singletonList(request);
+      } else {
+        queue.addLast(request);
+      }
+    }
+
+    if (batch == null) {
+      settings.getProgress().reportProgress("Waiting for running git fetch");
+      batch = request.myTurn.join();
+      if (batch.isEmpty()) {//fetched by another thread
+        request.throwIfFailed();
+        return;
+      }
+    }
+
+    try {
+      run(db, batch, fetchCommand);
+    } finally {
+      List<Request> next;
+      synchronized (this) {
+        Deque<Request> queue = myQueues.get(repositoryDir);
+        next = takeBatch(queue);
+        if (next.isEmpty())
+          myQueues.remove(repositoryDir);
+      }
+      if (!next.isEmpty())
+        next.get(0).myTurn.complete(next);
+    }
+    request.throwIfFailed();
+  }
+
+
+  private void run(@NotNull Repository db, @NotNull List<Request> batch, @NotNull FetchCommand fetchCommand) {
+    Request first = batch.get(0);
+    if (batch.size() == 1) {
+      run(db, first, first.myRefSpecs, fetchCommand);
+      return;
+    }
+    Collection<RefSpec> refSpecs = combine(batch);
+    if (LOG.isDebugEnabled())
+      LOG.debug("Combine " + batch.size() + " fetches into the repository " + db.getDirectory() + ", refspecs: " + refSpecs);
+    try {
+      fetchCommand.fetch(db, first.myFetchUri, refSpecs, getCombinedSettings(batch));
+      for (Request r : batch) {
+        r.finish(null);
+      }
+    } catch (Throwable e) {
+      LOG.debug("Combined fetch into the repository " + db.getDirectory() + " failed, fetch refspecs of every request separately", e);
+      for (Request r : batch) {
+        run(db, r, r.myRefSpecs, fetchCommand);
+      }
+    }
+  }
+
+
+  /**
+   * Combined fetch runs with the highest priority among the combined requests
+   */
+  @NotNull
+  private static FetchSettings getCombinedSettings(@NotNull List<Request> batch) {
+    FetchSettings first = batch.get(0).mySettings;
+    FetchPriority priority = first.getPriority();
+    for (Request r : batch) {
+      if (r.mySettings.getPriority().compareTo(priority) < 0)
+        priority = r.mySettings.getPriority();
+    }
+    if (priority == first.getPriority())
+      return first;
+    return new FetchSettings(first.getAuthSettings(), first.getProgress(), priority);
+  }
+
+
+  private static void run(@NotNull Repository db, @NotNull Request r, @NotNull Collection<RefSpec> refSpecs, @NotNull FetchCommand fetchCommand) {
+    try {
+      fetchCommand.fetch(db, r.myFetchUri, refSpecs, r.mySettings);
+      r.finish(null);
+    } catch (Throwable e) {
+      r.finish(e);
+    }
+  }
+
+
+  /**
+   * Removes from the queue the first request and all requests which can be fetched with it
+   */
+  @NotNull
+  private static List<Request> takeBatch(@NotNull Deque<Request> queue) {
+    if (queue.isEmpty())
+      return Collections.emptyList();
+    Request first = queue.pollFirst();
+    List<Request> result = new ArrayList<Request>();
+    result.add(first);
+    for (Iterator<Request> iter = queue.iterator(); iter.hasNext(); ) {
+      Request r = iter.next();
+      if (r.canBeFetchedWith(first)) {
+        result.add(r);
+        iter.remove();
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * @return union of refspecs of the given requests without refspecs covered by wildcard refspecs
+   */
+  @NotNull
+  static Collection<RefSpec> combine(@NotNull List<Request> requests) {
+    Set<RefSpec> all = new LinkedHashSet<RefSpec>();
+    for (Request r : requests) {
+      all.addAll(r.myRefSpecs);
+    }
+    List<RefSpec> result = new ArrayList<RefSpec>();
+    for (RefSpec spec : all) {
+      if (!isCovered(spec, all))
+        result.add(spec);
+    }
+    return result;
+  }
+
+
+  private static boolean isCovered(@NotNull RefSpec spec, @NotNull Collection<RefSpec> specs) {
+    if (spec.isWildcard() || spec.getSource() == null || spec.getDestination() == null)
+      return false;
+    for (RefSpec other : specs) {
+      if (other == spec || !other.isWildcard() || other.getDestination() == null)
+        continue;
+      if (spec.isForceUpdate() && !other.isForceUpdate())
+        continue;
+      if (other.matchSource(spec.getSource()) && spec.getDestination().equals(other.expandFromSource(spec.getSource()).getDestination()))
+        return true;
+    }
+    return false;
+  }
+
+
+  static final class Request {
+    private final URIish myFetchUri;
+    private final Collection<RefSpec> myRefSpecs;
+    private final FetchSettings mySettings;
+    private final Map<String, String> myAuth;
+    //completed with a batch of requests to fetch or with an empty list when the request is fetched
+    private final CompletableFuture<List<Request>> myTurn = new CompletableFuture<List<Request>>();
+    private volatile Throwable myError;
+
+    Request(@NotNull URIish fetchUri, @NotNull Collection<RefSpec> refSpecs, @NotNull FetchSettings settings) {
+      myFetchUri = fetchUri;
+      myRefSpecs = refSpecs;
+      mySettings = settings;
+      myAuth = settings.getAuthSettings().toMap();
+    }
+
+    boolean canBeFetchedWith(@NotNull Request other) {
+      return myFetchUri.equals(other.myFetchUri) && myAuth.equals(other.myAuth);
+    }
+
+    void finish(Throwable error) {
+      myError = error;
+      myTurn.complete(Collections.<Request>emptyList());
+    }
+
+    void throwIfFailed() throws IOException, VcsException {
+      Throwable e = myError;
+      if (e == null)
+        return;
+      if (e instanceof IOException)
+        throw (IOException) e;
+      if (e instanceof VcsException)
+        throw (VcsException) e;
+      if (e instanceof RuntimeException)
+        throw (RuntimeException) e;
+      if (e instanceof Error)
+        throw (Error) e;
+      throw new VcsException(e);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Registry of fetch metrics: per-repository histograms of fetch phase durations
+ * and the amount of downloaded data. Shown on the server diagnostics page.
+ *
+ * ThreadSafe.
+ */
+public class FetchMetrics {
+
+  //repository dir -> its metrics
+  private final Map<File, RepositoryMetrics> myRepositories = new HashMap<File, RepositoryMetrics>();//guarded by this
+
+  public synchronized void record(@NotNull File repositoryDir, @NotNull FetchPhase phase, long millis) {
+    getOrCreate(repositoryDir).myPhases.get(phase).record(millis);
+  }
+
+
+  public synchronized void record(@NotNull File repositoryDir, @NotNull FetchPhaseTimes times) {
+    RepositoryMetrics metrics = getOrCreate(repositoryDir);
+    for (Map.Entry<FetchPhase, Long> e : times.getTimes().entrySet()) {
+      metrics.myPhases.get(e.getKey()).record(e.getValue());
+    }
+  }
+
+
+  public synchronized void recordDownload(@NotNull File repositoryDir, long bytes) {
+    getOrCreate(repositoryDir).myDownloadedBytes += bytes;
+  }
+
+
+  /**
+   * Removes metrics of repositories which are not in the given collection, repositories are compared by dir names
+   */
+  public synchronized void retainRepositories(@NotNull Collection<File> repositoryDirs) {
+    Set<String> names = new HashSet<String>();
+    for (File dir : repositoryDirs) {
+      names.add(dir.getName());
+    }
+    myRepositories.keySet().removeIf(dir -> !names.contains(dir.getName()));
+  }
+
+
+  /**
+   * @return snapshot of metrics: repository dir -> its metrics
+   */
+  @NotNull
+  public synchronized Map<File, RepositoryMetrics> getRepositoryMetrics() {
+    Map<File, RepositoryMetrics> result = new TreeMap<File, RepositoryMetrics>();
+    for (Map.Entry<File, RepositoryMetrics> e : myRepositories.entrySet()) {
+      result.put(e.getKey(), e.getValue().copy());
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private RepositoryMetrics getOrCreate(@NotNull File repositoryDir) {
+    RepositoryMetrics result = myRepositories.get(repositoryDir);
+    if (result == null) {
+      result = new RepositoryMetrics();
+      myRepositories.put(repositoryDir, result);
+    }
+    return result;
+  }
+
+
+  public static final class RepositoryMetrics {
+    private final Map<FetchPhase, Histogram> myPhases = new EnumMap<FetchPhase, Histogram>(FetchPhase.class);
+    private long myDownloadedBytes;
+
+    RepositoryMetrics() {
+      for (FetchPhase phase : FetchPhase.values()) {
+        myPhases.put(phase, new Histogram());
+      }
+    }
+
+    @NotNull
+    public Histogram getHistogram(@NotNull FetchPhase phase) {
+      return myPhases.get(phase);
+    }
+
+    @NotNull
+    public Map<FetchPhase, Histogram> getHistograms() {
+      return Collections.unmodifiableMap(myPhases);
+    }
+
+    public long getFetchCount() {
+      return myPhases.get(FetchPhase.TOTAL).getCount();
+    }
+
+    public long getDownloadedBytes() {
+      return myDownloadedBytes;
+    }
+
+    /**
+     * @return average download throughput in bytes per second, 0 if nothing was downloaded
+     */
+    public long getDownloadThroughput() {
+      long downloadMillis = myPhases.get(FetchPhase.DOWNLOAD).getTotal();
+      return downloadMillis > 0 ? myDownloadedBytes * 1000 / downloadMillis : 0;
+    }
+
+    @NotNull
+    private RepositoryMetrics copy() {
+      RepositoryMetrics result = new RepositoryMetrics();
+      for (Map.Entry<FetchPhase, Histogram> e : myPhases.entrySet()) {
+        result.myPhases.put(e.getKey(), e.getValue().copy());
+      }
+      result.myDownloadedBytes = myDownloadedBytes;
+      return result;
+    }
+  }
+
+
+  /**
+   * Histogram of durations in milliseconds with exponential buckets
+   */
+  public static final class Histogram {
+    private static final long[] BUCKET_BOUNDS = {10, 30, 100, 300, 1000, 3000, 10000, 30000, 100000, 300000, Long.MAX_VALUE};
+
+    private final long[] myCounts = new long[BUCKET_BOUNDS.length];
+    private long myCount;
+    private long myTotal;
+    private long myMax;
+
+    void record(long millis) {
+      long value = Math.max(0, millis);
+      for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+        if (value <= BUCKET_BOUNDS[i]) {
+          myCounts[i]++;
+          break;
+        }
+      }
+      myCount++;
+      myTotal += value;
+      myMax = Math.max(myMax, value);
+    }
+
+    public long getCount() {
+      return myCount;
+    }
+
+    public long getTotal() {
+      return myTotal;
+    }
+
+    public long getMax() {
+      return myMax;
+    }
+
+    public long getAverage() {
+      return myCount > 0 ? myTotal / myCount : 0;
+    }
+
+    /**
+     * @return upper bound of the bucket containing the given percentile, the maximum for the last bucket
+     */
+    public long getPercentile(int percentile) {
+      if (myCount == 0)
+        return 0;
+      long rank = (long) Math.ceil(myCount * percentile / 100.0);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+        seen += myCounts[i];
+        if (seen >= rank)
+          return Math.min(BUCKET_BOUNDS[i], myMax);
+      }
+      return myMax;
+    }
+
+    /**
+     * @return bucket upper bound in milliseconds -> number of recorded durations in the bucket,
+     * the last bucket is unbounded
+     */
+    @NotNull
+    public Map<Long, Long> getBuckets() {
+      Map<Long, Long> result = new LinkedHashMap<Long, Long>();
+      for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+        result.put(BUCKET_BOUNDS[i], myCounts[i]);
+      }
+      return result;
+    }
+
+    @NotNull
+    private Histogram copy() {
+      Histogram result = new Histogram();
+      System.arraycopy(myCounts, 0, result.myCounts, 0, myCounts.length);
+      result.myCount = myCount;
+      result.myTotal = myTotal;
+      result.myMax = myMax;
+      return result;
+    }
+  }
+}
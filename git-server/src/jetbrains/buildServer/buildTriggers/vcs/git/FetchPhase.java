@@ -0,0 +1,58 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Phases of a fetch recorded in {@link FetchMetrics}
+ */
+public enum FetchPhase {
+  WAIT_FOR_WRITE_LOCK("waitForWriteLock", "Wait for the repository write lock"),
+  WAIT_FOR_SLOT("waitForSlot", "Wait for a free fetch slot"),
+  /**
+   * Connection, authentication and the ref advertisement
+   */
+  CONNECT("connect", "Connect and list remote refs"),
+  /**
+   * Negotiation of objects to send and the pack preparation on the remote side
+   */
+  NEGOTIATION("negotiation", "Negotiation"),
+  DOWNLOAD("download", "Pack download"),
+  INDEX("index", "Pack indexing"),
+  REF_UPDATE("refUpdate", "Refs update"),
+  CACHE_INVALIDATION("cacheInvalidation", "Revisions cache invalidation"),
+  TOTAL("total", "Total");
+
+  private final String myId;
+  private final String myDescription;
+
+  FetchPhase(@NotNull String id, @NotNull String description) {
+    myId = id;
+    myDescription = description;
+  }
+
+  @NotNull
+  public String getId() {
+    return myId;
+  }
+
+  @NotNull
+  public String getDescription() {
+    return myDescription;
+  }
+}
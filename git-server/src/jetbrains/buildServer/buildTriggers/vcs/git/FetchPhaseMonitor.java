@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Progress monitor of a JGit fetch which records durations of fetch phases by the tasks JGit reports.
+ *
+ * The time before the pack download including the remote 'Counting objects' and 'Compressing objects'
+ * tasks is attributed to the negotiation. Create the monitor right before the fetch starts and call
+ * {@link #finish()} when it is finished.
+ */
+public class FetchPhaseMonitor implements ProgressMonitor {
+
+  private final ProgressMonitor myDelegate;
+  private final FetchPhaseTimes myTimes;
+  private FetchPhase myPhase = FetchPhase.NEGOTIATION;
+  private long myPhaseStart = System.currentTimeMillis();
+
+  public FetchPhaseMonitor(@NotNull ProgressMonitor delegate, @NotNull FetchPhaseTimes times) {
+    myDelegate = delegate;
+    myTimes = times;
+  }
+
+  public void start(int totalTasks) {
+    myDelegate.start(totalTasks);
+  }
+
+  public void beginTask(String title, int totalWork) {
+    FetchPhase phase = getPhase(title);
+    if (phase != null && phase != myPhase)
+      startPhase(phase);
+    myDelegate.beginTask(title, totalWork);
+  }
+
+  public void update(int completed) {
+    myDelegate.update(completed);
+  }
+
+  public void endTask() {
+    myDelegate.endTask();
+  }
+
+  public boolean isCancelled() {
+    return myDelegate.isCancelled();
+  }
+
+  /**
+   * Records the duration of the current phase, must be called when the fetch is finished
+   */
+  public void finish() {
+    startPhase(null);
+  }
+
+  private void startPhase(@Nullable FetchPhase phase) {
+    long now = System.currentTimeMillis();
+    if (myPhase != null)
+      myTimes.add(myPhase, now - myPhaseStart);
+    myPhase = phase;
+    myPhaseStart = now;
+  }
+
+  @Nullable
+  private static FetchPhase getPhase(@Nullable String taskTitle) {
+    if (taskTitle == null)
+      return null;
+    if (taskTitle.startsWith("Receiving objects"))
+      return FetchPhase.DOWNLOAD;
+    if (taskTitle.startsWith("Resolving deltas"))
+      return FetchPhase.INDEX;
+    if (taskTitle.startsWith("Updating references"))
+      return FetchPhase.REF_UPDATE;
+    return null;
+  }
+}
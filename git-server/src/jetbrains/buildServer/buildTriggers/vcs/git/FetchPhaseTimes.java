@@ -0,0 +1,100 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Durations of phases of a single fetch.
+ *
+ * A fetch process reports its phases as a line in its output, see {@link #format()} and {@link #parse(String)}.
+ */
+public final class FetchPhaseTimes {
+
+  static final String OUTPUT_PREFIX = "fetch phases: ";
+
+  private final Map<FetchPhase, Long> myTimes = new EnumMap<FetchPhase, Long>(FetchPhase.class);
+
+  public void add(@NotNull FetchPhase phase, long millis) {
+    Long time = myTimes.get(phase);
+    myTimes.put(phase, time == null ? millis : time + millis);
+  }
+
+  public void addAll(@NotNull FetchPhaseTimes times) {
+    for (Map.Entry<FetchPhase, Long> e : times.myTimes.entrySet()) {
+      add(e.getKey(), e.getValue());
+    }
+  }
+
+  @NotNull
+  public Map<FetchPhase, Long> getTimes() {
+    return Collections.unmodifiableMap(myTimes);
+  }
+
+  /**
+   * @return a line reported by a fetch process, e.g. 'fetch phases: connect=120 negotiation=30 download=400'
+   */
+  @NotNull
+  String format() {
+    StringBuilder result = new StringBuilder(OUTPUT_PREFIX);
+    for (Map.Entry<FetchPhase, Long> e : myTimes.entrySet()) {
+      result.append(e.getKey().getId()).append('=').append(e.getValue()).append(' ');
+    }
+    return result.toString().trim();
+  }
+
+  /**
+   * @return phase times reported in the output of a fetch process or null if the output doesn't contain them
+   */
+  @Nullable
+  static FetchPhaseTimes parse(@NotNull String output) {
+    int idx = output.lastIndexOf(OUTPUT_PREFIX);
+    if (idx == -1)
+      return null;
+    int end = output.indexOf('\n', idx);
+    String line = output.substring(idx + OUTPUT_PREFIX.length(), end == -1 ? output.length() : end).trim();
+    FetchPhaseTimes result = new FetchPhaseTimes();
+    for (String entry : line.split(" ")) {
+      int eq = entry.indexOf('=');
+      if (eq == -1)
+        continue;
+      FetchPhase phase = findPhase(entry.substring(0, eq));
+      if (phase == null)
+        continue;
+      try {
+        result.add(phase, Long.parseLong(entry.substring(eq + 1)));
+      } catch (NumberFormatException e) {
+        //ignore unknown format
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private static FetchPhase findPhase(@NotNull String id) {
+    for (FetchPhase phase : FetchPhase.values()) {
+      if (phase.getId().equals(id))
+        return phase;
+    }
+    return null;
+  }
+}
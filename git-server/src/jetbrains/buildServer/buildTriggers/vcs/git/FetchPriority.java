@@ -0,0 +1,37 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+/**
+ * Priority of a fetch. When the number of concurrent fetches is limited,
+ * fetches with higher priority are started first.
+ */
+public enum FetchPriority {
+  /**
+   * Fetch somebody waits for: patch building for a starting build,
+   * file content, merge, commit
+   */
+  INTERACTIVE,
+  /**
+   * Fetch done while checking for changes
+   */
+  POLLING,
+  /**
+   * Fetch nobody waits for, e.g. while collecting commits info
+   */
+  BACKGROUND
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrently running fetches, both in total and per host.
+ *
+ * When there is no free slot, a fetch waits in the queue. Fetches with higher
+ * priority are started first; a waiting fetch gets promoted to the next priority
+ * class every {@link ServerPluginConfig#getFetchPriorityAgingSeconds()}, so
+ * background fetches are not starved. Fetches with equal priority are started
+ * in the order they were queued. A fetch is queued while holding the repository
+ * write lock, so a repository has at most one queued fetch and frequently fetched
+ * repositories cannot crowd out others. A fetch into a host without free slots
+ * doesn't prevent fetches into other hosts from starting.
+ *
+ * ThreadSafe.
+ */
+public final class FetchScheduler {
+
+  private static final Logger PERFORMANCE_LOG = Logger.getInstance(FetchScheduler.class.getName() + ".Performance");
+
+  private final ServerPluginConfig myConfig;
+  private final List<Ticket> myQueue = new ArrayList<Ticket>();//guarded by this
+  private final Map<String, Integer> myRunningPerHost = new HashMap<String, Integer>();//guarded by this
+  private final Map<FetchPriority, PriorityStatistics> myStatistics = new EnumMap<FetchPriority, PriorityStatistics>(FetchPriority.class);//guarded by this
+  private int myRunning;//guarded by this
+  private long myQueuedCount;//guarded by this
+
+  public FetchScheduler(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+    for (FetchPriority priority : FetchPriority.values()) {
+      myStatistics.put(priority, new PriorityStatistics());
+    }
+  }
+
+
+  /**
+   * Waits until the fetch can be started. Returned permit must be released once the fetch is finished.
+   */
+  @NotNull
+  public Permit acquire(@NotNull File repositoryDir, @NotNull URIish fetchUri, @NotNull FetchSettings settings) throws VcsException {
+    Ticket ticket = new Ticket(repositoryDir, getHost(fetchUri), settings.getPriority());
+    boolean started;
+    synchronized (this) {
+      ticket.myNumber = myQueuedCount++;
+      myQueue.add(ticket);
+      dispatch();
+      started = ticket.myStartTime != null;
+    }
+    if (!started)
+      settings.getProgress().reportProgress("Waiting for a free fetch slot");
+    synchronized (this) {
+      try {
+        while (ticket.myStartTime == null) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (ticket.myStartTime == null) {
+          myQueue.remove(ticket);
+          throw new VcsException("Interrupted while waiting for a free slot to fetch into the repository " + repositoryDir);
+        }
+      }
+    }
+    return new Permit(ticket);
+  }
+
+
+  public synchronized int getQueueLength() {
+    return myQueue.size();
+  }
+
+
+  public synchronized int getRunningCount() {
+    return myRunning;
+  }
+
+
+  /**
+   * @return snapshot of statistics of finished fetches
+   */
+  @NotNull
+  public synchronized Map<FetchPriority, PriorityStatistics> getStatistics() {
+    Map<FetchPriority, PriorityStatistics> result = new EnumMap<FetchPriority, PriorityStatistics>(FetchPriority.class);
+    for (Map.Entry<FetchPriority, PriorityStatistics> e : myStatistics.entrySet()) {
+      result.put(e.getKey(), e.getValue().copy());
+    }
+    return result;
+  }
+
+
+  private synchronized void release(@NotNull Ticket ticket) {
+    long finishTime = System.currentTimeMillis();
+    myRunning--;
+    Integer hostRunning = myRunningPerHost.get(ticket.myHost);
+    if (hostRunning == null || hostRunning <= 1) {
+      myRunningPerHost.remove(ticket.myHost);
+    } else {
+      myRunningPerHost.put(ticket.myHost, hostRunning - 1);
+    }
+    long waitTime = ticket.myStartTime - ticket.myQueueTime;
+    long runTime = finishTime - ticket.myStartTime;
+    myStatistics.get(ticket.myPriority).add(waitTime, runTime);
+    if (PERFORMANCE_LOG.isDebugEnabled()) {
+      PERFORMANCE_LOG.debug("[fetch] repository: " + ticket.myRepositoryDir.getAbsolutePath() + ", priority: " + ticket.myPriority +
+                            ", waited in queue " + waitTime + "ms, took " + runTime + "ms");
+    }
+    dispatch();
+  }
+
+
+  /**
+   * Starts queued fetches while there are free slots
+   */
+  private void dispatch() {
+    int maxRunning = myConfig.getFetchMaxConcurrency();
+    int maxRunningPerHost = myConfig.getFetchMaxConcurrencyPerHost();
+    long agingMillis = TimeUnit.SECONDS.toMillis(myConfig.getFetchPriorityAgingSeconds());
+    long now = System.currentTimeMillis();
+    boolean started = false;
+    while (!myQueue.isEmpty() && (maxRunning <= 0 || myRunning < maxRunning)) {
+      Ticket next = null;
+      int nextPriority = 0;
+      for (Ticket t : myQueue) {
+        if (maxRunningPerHost > 0 && getRunning(t.myHost) >= maxRunningPerHost)
+          continue;
+        int priority = t.getEffectivePriority(now, agingMillis);
+        if (next == null || priority < nextPriority || priority == nextPriority && t.myNumber < next.myNumber) {
+          next = t;
+          nextPriority = priority;
+        }
+      }
+      if (next == null)
+        break;//hosts of all queued fetches have no free slots
+      myQueue.remove(next);
+      next.myStartTime = now;
+      myRunning++;
+      myRunningPerHost.put(next.myHost, getRunning(next.myHost) + 1);
+      started = true;
+    }
+    if (started)
+      notifyAll();
+  }
+
+
+  private int getRunning(@NotNull String host) {
+    Integer running = myRunningPerHost.get(host);
+    return running != null ? running : 0;
+  }
+
+
+  @NotNull
+  private static String getHost(@NotNull URIish uri) {
+    String host = uri.getHost();
+    return host != null ? host : "";
+  }
+
+
+  public final class Permit {
+    private final Ticket myTicket;
+    private boolean myReleased;
+
+    private Permit(@NotNull Ticket ticket) {
+      myTicket = ticket;
+    }
+
+    public void release() {
+      if (myReleased)
+        return;
+      myReleased = true;
+      FetchScheduler.this.release(myTicket);
+    }
+  }
+
+
+  public static final class PriorityStatistics {
+    private long myFetchCount;
+    private long myTotalWaitMillis;
+    private long myMaxWaitMillis;
+    private long myTotalRunMillis;
+
+    private void add(long waitMillis, long runMillis) {
+      myFetchCount++;
+      myTotalWaitMillis += waitMillis;
+      myMaxWaitMillis = Math.max(myMaxWaitMillis, waitMillis);
+      myTotalRunMillis += runMillis;
+    }
+
+    @NotNull
+    private PriorityStatistics copy() {
+      PriorityStatistics result = new PriorityStatistics();
+      result.myFetchCount = myFetchCount;
+      result.myTotalWaitMillis = myTotalWaitMillis;
+      result.myMaxWaitMillis = myMaxWaitMillis;
+      result.myTotalRunMillis = myTotalRunMillis;
+      return result;
+    }
+
+    public long getFetchCount() {
+      return myFetchCount;
+    }
+
+    public long getTotalWaitMillis() {
+      return myTotalWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+      return myMaxWaitMillis;
+    }
+
+    public long getTotalRunMillis() {
+      return myTotalRunMillis;
+    }
+
+    public long getAverageWaitMillis() {
+      return myFetchCount == 0 ? 0 : myTotalWaitMillis / myFetchCount;
+    }
+
+    public long getAverageRunMillis() {
+      return myFetchCount == 0 ? 0 : myTotalRunMillis / myFetchCount;
+    }
+
+    @Override
+    public String toString() {
+      return "fetches: " + myFetchCount + ", total wait: " + myTotalWaitMillis + "ms, max wait: " + myMaxWaitMillis +
+             "ms, total run: " + myTotalRunMillis + "ms";
+    }
+  }
+
+
+  private static final class Ticket {
+    private final File myRepositoryDir;
+    private final String myHost;
+    private final FetchPriority myPriority;
+    private final long myQueueTime = System.currentTimeMillis();
+    private long myNumber;
+    private Long myStartTime;
+
+    private Ticket(@NotNull File repositoryDir, @NotNull String host, @NotNull FetchPriority priority) {
+      myRepositoryDir = repositoryDir;
+      myHost = host;
+      myPriority = priority;
+    }
+
+    private int getEffectivePriority(long now, long agingMillis) {
+      if (agingMillis <= 0)
+        return myPriority.ordinal();
+      return (int) Math.max(0, myPriority.ordinal() - (now - myQueueTime) / agingMillis);
+    }
+  }
+}
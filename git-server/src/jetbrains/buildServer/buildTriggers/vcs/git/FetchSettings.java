@@ -21,6 +21,7 @@ import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.TextProgressMonitor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -30,14 +31,32 @@ import java.nio.charset.Charset;
 public class FetchSettings {
   private final AuthSettings myAuthSettings;
   private final GitProgress myProgress;
+  private final FetchPriority myPriority;
+  private final RemoteConnection myRemoteConnection;
 
   public FetchSettings(@NotNull AuthSettings authSettings) {
     this(authSettings, GitProgress.NO_OP);
   }
 
   public FetchSettings(@NotNull AuthSettings authSettings, @NotNull GitProgress progress) {
+    this(authSettings, progress, FetchPriority.INTERACTIVE);
+  }
+
+  public FetchSettings(@NotNull AuthSettings authSettings, @NotNull GitProgress progress, @NotNull FetchPriority priority) {
+    this(authSettings, progress, priority, null);
+  }
+
+  /**
+   * @param remoteConnection connection opened by the operation making the fetch, null if there is no such connection
+   */
+  public FetchSettings(@NotNull AuthSettings authSettings,
+                       @NotNull GitProgress progress,
+                       @NotNull FetchPriority priority,
+                       @Nullable RemoteConnection remoteConnection) {
     myAuthSettings = authSettings;
     myProgress = progress;
+    myPriority = priority;
+    myRemoteConnection = remoteConnection;
   }
 
   @NotNull
@@ -77,4 +96,17 @@ public class FetchSettings {
   public GitProgress getProgress() {
     return myProgress;
   }
+
+  @NotNull
+  public FetchPriority getPriority() {
+    return myPriority;
+  }
+
+  /**
+   * @return connection to the remote repository opened by the operation making the fetch
+   */
+  @Nullable
+  public RemoteConnection getRemoteConnection() {
+    return myRemoteConnection;
+  }
 }
@@ -29,7 +29,9 @@ import org.jetbrains.annotations.NotNull;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
@@ -45,15 +47,29 @@ public class Fetcher {
 
   public static void main(String[] args) throws IOException, VcsException, URISyntaxException {
     boolean debug = false;
+    try {
+      Map<String, String> properties = VcsUtil.stringToProperties(GitServerUtil.readInput());
+      debug = "true".equals(properties.get(Constants.VCS_DEBUG_ENABLED));
+      GitServerUtil.configureExternalProcessLogger(debug);
+      fetch(properties);
+    } catch (Throwable t) {
+      printError(t, debug);
+      System.exit(1);
+    }
+  }
+
+
+  /**
+   * Runs fetch described by the given fetch process input properties,
+   * used by both the fetch process and the {@link FetcherWorker}
+   */
+  static void fetch(@NotNull Map<String, String> properties) throws IOException, VcsException, URISyntaxException {
     ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
     final long start = System.currentTimeMillis();
     try {
-      Map<String, String> properties = VcsUtil.stringToProperties(GitServerUtil.readInput());
       String threadDumpFilePath = properties.remove(Constants.THREAD_DUMP_FILE);
       String repositoryPath = properties.remove(Constants.REPOSITORY_DIR_PROPERTY_NAME);
-      debug = "true".equals(properties.remove(Constants.VCS_DEBUG_ENABLED));
-
-      GitServerUtil.configureExternalProcessLogger(debug);
+      properties.remove(Constants.VCS_DEBUG_ENABLED);
 
       String internalPropsFile = properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE);
       GitServerUtil.configureInternalProperties(new File(internalPropsFile));
@@ -66,18 +82,20 @@ public class Fetcher {
       if (System.currentTimeMillis() - start <= new PluginConfigImpl().getMonitoringFileThresholdMillis()) {
         FileUtil.delete(new File(threadDumpFilePath));
       }
-    } catch (Throwable t) {
-      if (debug || isImportant(t)) {
-        t.printStackTrace(System.err);
-      } else {
-        System.err.println(t.getMessage());
-      }
-      System.exit(1);
     } finally {
       exec.shutdown();
     }
   }
 
+
+  static void printError(@NotNull Throwable t, boolean debug) {
+    if (debug || isImportant(t)) {
+      t.printStackTrace(System.err);
+    } else {
+      System.err.println(t.getMessage());
+    }
+  }
+
   /**
    * Do fetch in directory <code>repositoryDir</code> with vcsRootProperties from <code>vcsRootProperties</code>
    *
@@ -93,6 +111,8 @@ public class Fetcher {
     final String fetchUrl = vcsRootProperties.get(Constants.FETCH_URL);
     final String refspecs = vcsRootProperties.get(Constants.REFSPEC);
     final String trustedCertificatesDir = vcsRootProperties.get(Constants.GIT_TRUST_STORE_PROVIDER);
+    final String advertisedRefs = vcsRootProperties.remove(Constants.ADVERTISED_REFS);
+    final String filter = vcsRootProperties.remove(Constants.FETCH_FILTER);
     AuthSettings auth = new AuthSettings(vcsRootProperties);
     PluginConfigImpl config = new PluginConfigImpl();
 
@@ -101,26 +121,67 @@ public class Fetcher {
     TransportFactory transportFactory = new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager(),
                                                                  new GitTrustStoreProviderStatic(trustedCertificatesDir));
     Transport tn = null;
+    Repository repository = null;
     try {
-      Repository repository = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
+      repository = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
       workaroundRacyGit();
+      if (filter != null && fetchFiltered(config, transportFactory, repository, new URIish(fetchUrl), parseRefspecs(refspecs), auth))
+        return;
+      FetchPhaseTimes times = new FetchPhaseTimes();
+      final long connectStart = System.currentTimeMillis();
       tn = transportFactory.createTransport(repository, new URIish(fetchUrl), auth);
       try {
-        pruneRemovedBranches(config, repository, transportFactory, tn, new URIish(fetchUrl), auth);
+        if (advertisedRefs != null) {
+          //refs were listed by the server before the fetch, don't list them again
+          GitServerUtil.pruneRemovedBranches(repository, new HashSet<String>(Arrays.asList(advertisedRefs.split(Constants.RECORD_SEPARATOR))));
+        } else {
+          pruneRemovedBranches(config, repository, transportFactory, tn, new URIish(fetchUrl), auth);
+        }
       } catch (Exception e) {
         System.err.println("Error while pruning removed branches: " + e.getMessage());
         e.printStackTrace(System.err);
       }
-      FetchResult result = GitServerUtil.fetch(repository, new URIish(fetchUrl), auth, transportFactory, tn, progressMonitor,
-                                               parseRefspecs(refspecs), config.ignoreMissingRemoteRef());
+      times.add(FetchPhase.CONNECT, System.currentTimeMillis() - connectStart);
+      FetchPhaseMonitor phaseMonitor = new FetchPhaseMonitor(progressMonitor, times);
+      FetchResult result;
+      try {
+        result = GitServerUtil.fetch(repository, new URIish(fetchUrl), auth, transportFactory, tn, phaseMonitor,
+                                     parseRefspecs(refspecs), config.ignoreMissingRemoteRef());
+      } finally {
+        phaseMonitor.finish();
+      }
       GitServerUtil.checkFetchSuccessful(repository, result);
       logFetchResults(result);
+      //the server records phase durations reported in the output
+      System.out.println(times.format());
     } finally {
       if (tn != null)
         tn.close();
+      if (repository != null)
+        repository.close();
     }
   }
 
+  /**
+   * @return true if the fetch is done, false if the remote repository doesn't support filtered fetches
+   * and the repository should be fetched fully
+   */
+  private static boolean fetchFiltered(@NotNull ServerPluginConfig config,
+                                       @NotNull TransportFactory transportFactory,
+                                       @NotNull Repository repository,
+                                       @NotNull URIish uri,
+                                       @NotNull Collection<RefSpec> refSpecs,
+                                       @NotNull AuthSettings auth) throws IOException, VcsException {
+    FetchPhaseTimes times = new FetchPhaseTimes();
+    long start = System.currentTimeMillis();
+    if (!new BloblessClones(config, transportFactory).fetchFiltered(repository, uri, refSpecs, new FetchSettings(auth)))
+      return false;
+    times.add(FetchPhase.DOWNLOAD, System.currentTimeMillis() - start);
+    System.out.println("Fetched into the blobless clone with the filter " + BloblessClones.FILTER);
+    System.out.println(times.format());
+    return true;
+  }
+
   private static void pruneRemovedBranches(@NotNull ServerPluginConfig config,
                                            @NotNull Repository db,
                                            @NotNull TransportFactory transportFactory,
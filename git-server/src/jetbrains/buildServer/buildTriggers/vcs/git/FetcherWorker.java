@@ -0,0 +1,159 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.VcsUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Long-lived fetch process started by the {@link FetcherWorkerPool}.
+ *
+ * Reads fetch requests from stdin, every request is a length-prefixed
+ * input of the {@link Fetcher} process. Stdout of the process is used
+ * as a channel to the server: output of a fetch is sent in chunks marked
+ * as stdout or stderr and the fetch is completed by a result record with
+ * an exit code and memory usage of the process.
+ *
+ * The process exits when its stdin is closed, i.e. when the server stops
+ * or the pool decides to recycle it, and after an Error thrown by fetch.
+ */
+public class FetcherWorker {
+
+  static final byte STDOUT = 'O';
+  static final byte STDERR = 'E';
+  static final byte RESULT = 'R';
+
+  public static void main(String[] args) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    Channel channel = new Channel(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out))));
+    //System.out/err are redirected to the channel, so fetch output and logs are sent to the server with the current request
+    System.setOut(new PrintStream(new BufferedOutputStream(new ChannelOutputStream(channel, STDOUT)), true));
+    System.setErr(new PrintStream(new BufferedOutputStream(new ChannelOutputStream(channel, STDERR)), true));
+    GitServerUtil.configureExternalProcessLogger(false);
+
+    while (true) {
+      byte[] input;
+      try {
+        int length = in.readInt();
+        if (length < 0)
+          return;
+        input = new byte[length];
+        in.readFully(input);
+      } catch (EOFException e) {
+        return;//server closed the stdin
+      }
+
+      channel.startRequest();
+      boolean debug = false;
+      int exitCode = 0;
+      boolean exit = false;
+      try {
+        Map<String, String> properties = VcsUtil.stringToProperties(new String(input, StandardCharsets.UTF_8));
+        debug = "true".equals(properties.get(Constants.VCS_DEBUG_ENABLED));
+        GitServerUtil.configureExternalProcessLogLevels(debug);
+        Fetcher.fetch(properties);
+      } catch (Throwable t) {
+        Fetcher.printError(t, debug);
+        exitCode = 1;
+        exit = t instanceof Error;//the process state is unreliable after e.g. OutOfMemoryError
+      }
+      System.out.flush();
+      System.err.flush();
+      channel.finishRequest(exitCode, exit);
+      if (exit)
+        System.exit(exitCode);
+    }
+  }
+
+
+  /**
+   * @return heap retained after the last garbage collection in bytes
+   */
+  private static long getRetainedHeap() {
+    long result = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported())
+        continue;
+      MemoryUsage usage = pool.getCollectionUsage();
+      if (usage != null)
+        result += usage.getUsed();
+    }
+    return result;
+  }
+
+
+  private static final class Channel {
+    private final DataOutputStream myOut;
+    private boolean myRequestInProgress;
+
+    Channel(@NotNull DataOutputStream out) {
+      myOut = out;
+    }
+
+    synchronized void startRequest() {
+      myRequestInProgress = true;
+    }
+
+    synchronized void write(byte type, @NotNull byte[] b, int off, int len) throws IOException {
+      if (!myRequestInProgress)
+        return;//output produced between requests cannot be attributed to any fetch
+      myOut.writeByte(type);
+      myOut.writeInt(len);
+      myOut.write(b, off, len);
+      myOut.flush();
+    }
+
+    synchronized void finishRequest(int exitCode, boolean exit) throws IOException {
+      myRequestInProgress = false;
+      myOut.writeByte(RESULT);
+      myOut.writeInt(exitCode);
+      myOut.writeLong(getRetainedHeap());
+      myOut.writeLong(Runtime.getRuntime().maxMemory());
+      myOut.writeBoolean(exit);
+      myOut.flush();
+    }
+  }
+
+
+  private static final class ChannelOutputStream extends OutputStream {
+    private final Channel myChannel;
+    private final byte myType;
+
+    ChannelOutputStream(@NotNull Channel channel, byte type) {
+      myChannel = channel;
+      myType = type;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+      myChannel.write(myType, b, off, len);
+    }
+  }
+}
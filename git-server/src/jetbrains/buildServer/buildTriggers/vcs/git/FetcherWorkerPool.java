@@ -0,0 +1,407 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of long-lived {@link FetcherWorker} processes.
+ *
+ * A worker runs one fetch at a time, so a crash or an OutOfMemoryError
+ * affects only the fetch it was running. If all workers are busy a new one
+ * is started, so fetches never wait for each other. A worker is stopped
+ * after the configured number of fetches, when its retained heap grows
+ * above the configured limit, when it stays unused for too long or when
+ * the pool already has enough idle workers.
+ *
+ * ThreadSafe.
+ */
+public final class FetcherWorkerPool {
+
+  private static final Logger LOG = Logger.getInstance(FetcherWorkerPool.class.getName());
+  private static final int STDERR_TAIL_SIZE = 64 * 1024;
+
+  private final ServerPluginConfig myConfig;
+  private final Deque<Worker> myIdleWorkers = new ArrayDeque<Worker>();
+  private final Set<Worker> myBusyWorkers = new HashSet<Worker>();
+  private ScheduledExecutorService myWatchdog;
+  private boolean myDisposed;
+  private final AtomicLong myStartedCount = new AtomicLong();
+  private final AtomicLong myReusedCount = new AtomicLong();
+  private final AtomicLong myRecycledCount = new AtomicLong();
+
+  FetcherWorkerPool(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  /**
+   * Runs fetch in a worker
+   *
+   * @param commandLine command line of the worker process, idle workers started with another command line are not reused
+   * @param passParentEnvs whether the worker process should inherit the server environment
+   * @param input fetch process input
+   * @param stdout receives fetch output as it is produced
+   * @param idleTimeoutSeconds fetch is interrupted if it produces no output for the specified time
+   * @return fetch result
+   * @throws IOException if worker cannot be started
+   */
+  @NotNull
+  Result fetch(@NotNull List<String> commandLine,
+               boolean passParentEnvs,
+               @NotNull byte[] input,
+               @NotNull OutputStream stdout,
+               int idleTimeoutSeconds) throws IOException {
+    Worker worker = acquire(commandLine, passParentEnvs);
+    boolean reusable = false;
+    ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    try {
+      worker.startFetch(idleTimeoutSeconds);
+      DataOutputStream out = worker.myStdin;
+      out.writeInt(input.length);
+      out.write(input);
+      out.flush();
+      DataInputStream in = worker.myStdout;
+      while (true) {
+        byte type = in.readByte();
+        worker.touch();
+        if (type == FetcherWorker.STDOUT) {
+          stdout.write(readChunk(in));
+        } else if (type == FetcherWorker.STDERR) {
+          stderr.write(readChunk(in));
+        } else if (type == FetcherWorker.RESULT) {
+          int exitCode = in.readInt();
+          long retainedHeap = in.readLong();
+          long maxHeap = in.readLong();
+          boolean exit = in.readBoolean();
+          worker.myFetchesCount++;
+          reusable = !exit && isReusable(worker, retainedHeap, maxHeap);
+          if (!reusable)
+            myRecycledCount.incrementAndGet();
+          return new Result(exitCode, toString(stderr), null);
+        } else {
+          throw new IOException("Unexpected output of the fetch process: " + type);
+        }
+      }
+    } catch (IOException e) {
+      if (worker.isTimedOut())
+        return new Result(-1, toString(stderr), new InterruptedException("Timeout exception"));
+      Integer exitCode = worker.waitForExit();
+      String processStderr = worker.getStderrTail();
+      LOG.warn("Fetch process terminated unexpectedly" + (exitCode != null ? ", exit code " + exitCode : "") + ": " + e.getMessage());
+      return new Result(exitCode != null ? exitCode : -1, toString(stderr) + processStderr,
+                        new IOException("Fetch process terminated unexpectedly", e));
+    } finally {
+      worker.finishFetch();
+      release(worker, reusable);
+    }
+  }
+
+
+  /**
+   * Stops all workers, workers running fetch are stopped when fetch is finished
+   */
+  void dispose() {
+    List<Worker> idle;
+    synchronized (this) {
+      myDisposed = true;
+      idle = new ArrayList<Worker>(myIdleWorkers);
+      myIdleWorkers.clear();
+      if (myWatchdog != null)
+        myWatchdog.shutdownNow();
+    }
+    for (Worker worker : idle) {
+      worker.stop();
+    }
+  }
+
+
+  /**
+   * @return number of worker processes started since the pool creation
+   */
+  public long getStartedCount() {
+    return myStartedCount.get();
+  }
+
+
+  /**
+   * @return number of fetches which ran in an idle worker started earlier
+   */
+  public long getReusedCount() {
+    return myReusedCount.get();
+  }
+
+
+  /**
+   * @return number of workers stopped after a fetch because they reached the fetches limit,
+   * the retained heap limit or failed with an Error
+   */
+  public long getRecycledCount() {
+    return myRecycledCount.get();
+  }
+
+
+  private boolean isReusable(@NotNull Worker worker, long retainedHeap, long maxHeap) {
+    if (worker.myFetchesCount >= myConfig.getFetchWorkerMaxFetches()) {
+      LOG.debug("Stop fetch process after " + worker.myFetchesCount + " fetches");
+      return false;
+    }
+    if (maxHeap > 0 && retainedHeap * 100 > maxHeap * myConfig.getFetchWorkerMaxUsedMemoryPercent()) {
+      LOG.debug("Stop fetch process, retained heap " + retainedHeap + " bytes, max heap " + maxHeap + " bytes");
+      return false;
+    }
+    return true;
+  }
+
+
+  @NotNull
+  private Worker acquire(@NotNull List<String> commandLine, boolean passParentEnvs) throws IOException {
+    List<Worker> obsolete = new ArrayList<Worker>();
+    Worker result = null;
+    synchronized (this) {
+      while (!myIdleWorkers.isEmpty()) {
+        Worker worker = myIdleWorkers.pollFirst();
+        if (worker.isAlive() && worker.myCommandLine.equals(commandLine) && worker.myPassParentEnvs == passParentEnvs) {
+          result = worker;
+          break;
+        }
+        obsolete.add(worker);
+      }
+      if (result != null)
+        myBusyWorkers.add(result);
+    }
+    for (Worker worker : obsolete) {
+      worker.stop();
+    }
+    if (result != null) {
+      myReusedCount.incrementAndGet();
+      return result;
+    }
+
+    Worker worker = start(commandLine, passParentEnvs);
+    myStartedCount.incrementAndGet();
+    synchronized (this) {
+      myBusyWorkers.add(worker);
+      if (myWatchdog == null && !myDisposed) {
+        myWatchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "Git fetch processes watchdog");
+          t.setDaemon(true);
+          return t;
+        });
+        myWatchdog.scheduleWithFixedDelay(this::checkWorkers, 1, 1, TimeUnit.SECONDS);
+      }
+    }
+    return worker;
+  }
+
+
+  private void release(@NotNull Worker worker, boolean reusable) {
+    boolean stop;
+    synchronized (this) {
+      myBusyWorkers.remove(worker);
+      stop = !reusable || myDisposed || !worker.isAlive() || myIdleWorkers.size() >= myConfig.getFetchWorkersPoolSize();
+      if (!stop)
+        myIdleWorkers.addFirst(worker);//the most recently used worker is reused first, so extra workers become idle and are stopped
+    }
+    if (stop)
+      worker.stop();
+  }
+
+
+  @NotNull
+  private static Worker start(@NotNull List<String> commandLine, boolean passParentEnvs) throws IOException {
+    ProcessBuilder pb = new ProcessBuilder(commandLine);
+    if (!passParentEnvs)
+      pb.environment().clear();
+    Process process = pb.start();
+    LOG.debug("Started fetch process " + commandLine);
+    return new Worker(commandLine, passParentEnvs, process);
+  }
+
+
+  private void checkWorkers() {
+    long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(myConfig.getFetchWorkerIdleTimeoutSeconds());
+    List<Worker> toStop = new ArrayList<Worker>();
+    synchronized (this) {
+      for (Worker worker : myBusyWorkers) {
+        if (worker.isFetchTimedOut())
+          toStop.add(worker);
+      }
+      for (Iterator<Worker> iter = myIdleWorkers.iterator(); iter.hasNext(); ) {
+        Worker worker = iter.next();
+        if (!worker.isAlive() || worker.getIdleMillis() > idleTimeoutMillis) {
+          iter.remove();
+          toStop.add(worker);
+        }
+      }
+    }
+    for (Worker worker : toStop) {
+      worker.stop();
+    }
+  }
+
+
+  @NotNull
+  private static byte[] readChunk(@NotNull DataInputStream in) throws IOException {
+    byte[] chunk = new byte[in.readInt()];
+    in.readFully(chunk);
+    return chunk;
+  }
+
+
+  @NotNull
+  private static String toString(@NotNull ByteArrayOutputStream out) {
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+
+  static final class Result {
+    private final int myExitCode;
+    private final String myStderr;
+    private final Throwable myException;
+
+    Result(int exitCode, @NotNull String stderr, @Nullable Throwable exception) {
+      myExitCode = exitCode;
+      myStderr = stderr;
+      myException = exception;
+    }
+
+    int getExitCode() {
+      return myExitCode;
+    }
+
+    @NotNull
+    String getStderr() {
+      return myStderr;
+    }
+
+    @Nullable
+    Throwable getException() {
+      return myException;
+    }
+  }
+
+
+  private static final class Worker {
+    private final List<String> myCommandLine;
+    private final boolean myPassParentEnvs;
+    private final Process myProcess;
+    private final DataOutputStream myStdin;
+    private final DataInputStream myStdout;
+    private final StringBuffer myStderrTail = new StringBuffer();
+    private int myFetchesCount;
+    private volatile long myLastActivity = System.currentTimeMillis();
+    private volatile long myFetchIdleTimeoutMillis;//0 if fetch is not running
+    private volatile boolean myTimedOut;
+
+    Worker(@NotNull List<String> commandLine, boolean passParentEnvs, @NotNull Process process) {
+      myCommandLine = commandLine;
+      myPassParentEnvs = passParentEnvs;
+      myProcess = process;
+      myStdin = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      myStdout = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+      //the worker redirects System.err to stdout, the process stderr can contain only JVM errors
+      Thread stderrReader = new Thread(this::readStderr, "Git fetch process stderr reader");
+      stderrReader.setDaemon(true);
+      stderrReader.start();
+    }
+
+    void startFetch(int idleTimeoutSeconds) {
+      myTimedOut = false;
+      touch();
+      myFetchIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+    }
+
+    void finishFetch() {
+      myFetchIdleTimeoutMillis = 0;
+      touch();
+    }
+
+    void touch() {
+      myLastActivity = System.currentTimeMillis();
+    }
+
+    long getIdleMillis() {
+      return System.currentTimeMillis() - myLastActivity;
+    }
+
+    boolean isFetchTimedOut() {
+      long timeout = myFetchIdleTimeoutMillis;
+      if (timeout > 0 && getIdleMillis() > timeout) {
+        myTimedOut = true;
+        return true;
+      }
+      return false;
+    }
+
+    boolean isTimedOut() {
+      return myTimedOut;
+    }
+
+    boolean isAlive() {
+      return myProcess.isAlive();
+    }
+
+    @Nullable
+    Integer waitForExit() {
+      try {
+        if (myProcess.waitFor(5, TimeUnit.SECONDS))
+          return myProcess.exitValue();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return null;
+    }
+
+    @NotNull
+    String getStderrTail() {
+      return myStderrTail.toString();
+    }
+
+    void stop() {
+      try {
+        myStdin.close();//the worker exits when its stdin is closed
+      } catch (IOException ignored) {
+      }
+      myProcess.destroy();
+    }
+
+    private void readStderr() {
+      try {
+        Reader reader = new InputStreamReader(myProcess.getErrorStream(), StandardCharsets.UTF_8);
+        char[] buffer = new char[1024];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+          myStderrTail.append(buffer, 0, read);
+          if (myStderrTail.length() > STDERR_TAIL_SIZE)
+            myStderrTail.delete(0, myStderrTail.length() - STDERR_TAIL_SIZE);
+        }
+      } catch (IOException ignored) {
+      }
+    }
+  }
+}
@@ -26,6 +26,9 @@ import java.util.concurrent.ConcurrentMap;
 public class GcErrors {
 
   private final ConcurrentMap<File, String> myErrors = new ConcurrentHashMap<>();
+  private volatile int myLastRunDone;
+  private volatile int myLastRunSkipped;
+  private volatile List<File> myStarvedClones = Collections.emptyList();
 
   void registerError(@NotNull File cloneDir, @NotNull String error) {
     myErrors.put(cloneDir, error);
@@ -51,4 +54,26 @@ public class GcErrors {
   public Map<File, String> getErrors() {
     return new HashMap<>(myErrors);
   }
+
+  void setLastRunStatistics(int done, int skipped, @NotNull List<File> starved) {
+    myLastRunDone = done;
+    myLastRunSkipped = skipped;
+    myStarvedClones = new ArrayList<>(starved);
+  }
+
+  public int getLastRunDone() {
+    return myLastRunDone;
+  }
+
+  public int getLastRunSkipped() {
+    return myLastRunSkipped;
+  }
+
+  /**
+   * @return clones skipped by several consecutive garbage collection runs because of the time quota
+   */
+  @NotNull
+  public List<File> getStarvedClones() {
+    return new ArrayList<>(myStarvedClones);
+  }
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Decides in which order and how many repositories at once garbage collection runs in.
+ *
+ * Repositories are ranked by fragmentation (number of packs and estimated number of loose objects),
+ * by how recently they were used, and by how long ago garbage collection successfully ran in them.
+ * Times of the last garbage collection and numbers of consecutive skipped cleanups are stored in
+ * the mirrors dir, so repositories skipped because of the time quota get a higher rank during the
+ * next cleanup also after a server restart. Repositories skipped during several consecutive cleanups
+ * are reported as starved.
+ *
+ * ThreadSafe.
+ */
+public final class GcScheduler {
+
+  private static final Logger LOG = Loggers.CLEANUP;
+  private static final String PROGRESS_FILE = "gc-progress.properties";
+  //suffix of progress file keys holding the number of consecutive runs which skipped a repository
+  private static final String SKIPPED_RUNS_SUFFIX = ".skippedRuns";
+  private static final Pattern PATTERN_LOOSE_OBJECT = Pattern.compile("[0-9a-fA-F]{38}");
+  //number of loose objects which slow object lookups down as much as an extra pack
+  private static final int LOOSE_OBJECTS_PER_PACK = 1000;
+  //repositories not collected for longer are ranked as if they were waiting for this number of days
+  private static final int MAX_WAIT_DAYS = 30;
+  private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+  private static final long MB = 1024 * 1024;
+  //repositories skipped during this number of consecutive runs are starved
+  public static final int STARVED_SKIPPED_RUNS = 3;
+
+  private final ServerPluginConfig myConfig;
+  private final RepositoryManager myRepositoryManager;
+  //clone dir name -> time of the last garbage collection
+  private final ConcurrentMap<String, Long> myLastGcTimes = new ConcurrentHashMap<>();
+  //clone dir name -> number of consecutive runs which skipped the repository
+  private final Map<String, Integer> mySkippedRuns = new HashMap<>();//guarded by this
+  private volatile boolean myProgressLoaded;
+
+  public GcScheduler(@NotNull ServerPluginConfig config, @NotNull RepositoryManager repositoryManager) {
+    myConfig = config;
+    myRepositoryManager = repositoryManager;
+  }
+
+
+  /**
+   * Runs garbage collection in the given repositories in the order of their rank until the time
+   * quota is exceeded. The first repository is always processed.
+   *
+   * @param gc runs garbage collection in the given repository, returns true if it ran and succeeded;
+   *           only then the repository is ranked as recently collected
+   */
+  @NotNull
+  Result run(@NotNull List<File> repositoryDirs, @NotNull Predicate<File> gc) {
+    final long startNanos = System.nanoTime();
+    final long quotaNanos = TimeUnit.MINUTES.toNanos(myConfig.getNativeGCQuotaMinutes());
+    loadProgress();
+    Queue<File> pending = new ConcurrentLinkedQueue<>(rank(repositoryDirs));
+    int ioBudgetMb = Math.max(1, myConfig.getGcIoBudgetMb());
+    Semaphore ioBudget = new Semaphore(ioBudgetMb);
+    Set<File> started = ConcurrentHashMap.newKeySet();
+    AtomicInteger done = new AtomicInteger();
+    Callable<Void> worker = () -> {
+      File dir;
+      while ((dir = pending.poll()) != null) {
+        if (System.nanoTime() - startNanos > quotaNanos && !started.isEmpty())
+          break;
+        started.add(dir);
+        //repositories bigger than the budget are collected alone
+        int sizeMb = (int) Math.min(ioBudgetMb, Math.max(1, getPacksSize(dir) / MB));
+        ioBudget.acquireUninterruptibly(sizeMb);
+        try {
+          if (gc.test(dir))
+            myLastGcTimes.put(dir.getName(), System.currentTimeMillis());
+          done.incrementAndGet();
+        } catch (Exception e) {
+          LOG.warnAndDebugDetails("Error while running garbage collection in " + dir.getAbsolutePath(), e);
+        } finally {
+          ioBudget.release(sizeMb);
+        }
+      }
+      return null;
+    };
+
+    int threads = getThreads();
+    ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "Git garbage collection");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      executor.invokeAll(Collections.nCopies(threads, worker));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Result result = new Result(done.get(), repositoryDirs.size() - started.size(), updateSkippedRuns(repositoryDirs, started));
+    saveProgress(repositoryDirs);
+    if (result.getSkipped() > 0)
+      LOG.info("Git garbage collection quota exceeded, skip " + result.getSkipped() + " repositories");
+    if (!result.getStarved().isEmpty())
+      LOG.warn("Garbage collection didn't run in " + result.getStarved().size() + " git repositories during the last " +
+               STARVED_SKIPPED_RUNS + " cleanups: " + result.getStarved());
+    return result;
+  }
+
+
+  /**
+   * @return repositories skipped during the last {@link #STARVED_SKIPPED_RUNS} or more consecutive runs
+   */
+  @NotNull
+  private synchronized List<File> updateSkippedRuns(@NotNull List<File> repositoryDirs, @NotNull Set<File> started) {
+    Map<String, Integer> skippedRuns = new HashMap<>();
+    List<File> starved = new ArrayList<>();
+    for (File dir : repositoryDirs) {
+      if (started.contains(dir))
+        continue;
+      Integer previous = mySkippedRuns.get(dir.getName());
+      int runs = previous != null ? previous + 1 : 1;
+      skippedRuns.put(dir.getName(), runs);
+      if (runs >= STARVED_SKIPPED_RUNS)
+        starved.add(dir);
+    }
+    mySkippedRuns.clear();
+    mySkippedRuns.putAll(skippedRuns);
+    return starved;
+  }
+
+
+  /**
+   * @return number of threads each git process running garbage collection should use
+   */
+  int getPackThreads() {
+    return Math.max(1, Runtime.getRuntime().availableProcessors() / getThreads());
+  }
+
+
+  /**
+   * @return time of the last garbage collection in the repository or null if it is unknown
+   */
+  @Nullable
+  public Long getLastGcTime(@NotNull File repositoryDir) {
+    loadProgress();
+    return myLastGcTimes.get(repositoryDir.getName());
+  }
+
+
+  private int getThreads() {
+    return Math.max(1, myConfig.getGcThreads());
+  }
+
+
+  @NotNull
+  private List<File> rank(@NotNull List<File> repositoryDirs) {
+    long now = System.currentTimeMillis();
+    Map<File, Double> scores = new HashMap<>();
+    for (File dir : repositoryDirs) {
+      scores.put(dir, getScore(dir, now));
+    }
+    List<File> result = new ArrayList<>(repositoryDirs);
+    result.sort((d1, d2) -> Double.compare(scores.get(d2), scores.get(d1)));
+    return result;
+  }
+
+
+  private double getScore(@NotNull File dir, long now) {
+    double fragmentation = getPackCount(dir) + estimateLooseObjectCount(dir) / (double) LOOSE_OBJECTS_PER_PACK;
+    double daysSinceUse = Math.max(0, now - myRepositoryManager.getLastUsedTime(dir)) / (double) DAY_MILLIS;
+    //fragmentation of a repository used today matters twice as much as of a long unused one
+    double recency = 1 + 1 / (1 + daysSinceUse);
+    Long lastGc = myLastGcTimes.get(dir.getName());
+    double daysWaiting = lastGc == null ? MAX_WAIT_DAYS : Math.min(MAX_WAIT_DAYS, Math.max(0, now - lastGc) / (double) DAY_MILLIS);
+    return fragmentation * recency + daysWaiting;
+  }
+
+
+  private static int getPackCount(@NotNull File dir) {
+    String[] packs = new File(dir, "objects/pack").list((d, name) -> name.endsWith(".pack"));
+    return packs != null ? packs.length : 0;
+  }
+
+
+  private static long estimateLooseObjectCount(@NotNull File dir) {
+    //SHA is evenly distributed, estimate the number of loose objects by counting them in a single bucket
+    String[] files = new File(dir, "objects/17").list((d, name) -> PATTERN_LOOSE_OBJECT.matcher(name).matches());
+    return files != null ? files.length * 256L : 0;
+  }
+
+
+  private static long getPacksSize(@NotNull File dir) {
+    return FileUtil.getTotalDirectorySize(new File(dir, "objects/pack"));
+  }
+
+
+  private void loadProgress() {
+    if (myProgressLoaded)
+      return;
+    synchronized (this) {
+      if (myProgressLoaded)
+        return;
+      File f = getProgressFile();
+      if (f.isFile()) {
+        Properties props = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+          props.load(reader);
+          for (String name : props.stringPropertyNames()) {
+            try {
+              if (name.endsWith(SKIPPED_RUNS_SUFFIX)) {
+                mySkippedRuns.put(name.substring(0, name.length() - SKIPPED_RUNS_SUFFIX.length()), Integer.parseInt(props.getProperty(name)));
+              } else {
+                myLastGcTimes.put(name, Long.parseLong(props.getProperty(name)));
+              }
+            } catch (NumberFormatException e) {
+              //ignore
+            }
+          }
+        } catch (IOException e) {
+          LOG.warnAndDebugDetails("Error while reading garbage collection progress from " + f.getAbsolutePath(), e);
+        }
+      }
+      myProgressLoaded = true;
+    }
+  }
+
+
+  private synchronized void saveProgress(@NotNull List<File> repositoryDirs) {
+    Set<String> names = new HashSet<>();
+    for (File dir : repositoryDirs) {
+      names.add(dir.getName());
+    }
+    myLastGcTimes.keySet().retainAll(names);
+    Map<String, String> props = new TreeMap<>();
+    for (Map.Entry<String, Long> e : myLastGcTimes.entrySet()) {
+      props.put(e.getKey(), String.valueOf(e.getValue()));
+    }
+    for (Map.Entry<String, Integer> e : mySkippedRuns.entrySet()) {
+      props.put(e.getKey() + SKIPPED_RUNS_SUFFIX, String.valueOf(e.getValue()));
+    }
+    try {
+      GitServerUtil.writeAsProperties(getProgressFile(), props);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while saving garbage collection progress", e);
+    }
+  }
+
+
+  @NotNull
+  private File getProgressFile() {
+    return new File(myRepositoryManager.getBaseMirrorsDir(), PROGRESS_FILE);
+  }
+
+
+  static final class Result {
+    private final int myDone;
+    private final int mySkipped;
+    private final List<File> myStarved;
+
+    Result(int done, int skipped, @NotNull List<File> starved) {
+      myDone = done;
+      mySkipped = skipped;
+      myStarved = starved;
+    }
+
+    int getDone() {
+      return myDone;
+    }
+
+    int getSkipped() {
+      return mySkipped;
+    }
+
+    @NotNull
+    List<File> getStarved() {
+      return myStarved;
+    }
+  }
+}
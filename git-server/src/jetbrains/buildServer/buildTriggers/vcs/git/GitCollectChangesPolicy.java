@@ -18,6 +18,7 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleException;
+import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmodulesPrefetcher;
 import jetbrains.buildServer.vcs.*;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.lib.Constants;
@@ -30,6 +31,7 @@ import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.RefSpec;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.*;
@@ -39,6 +41,8 @@ import static com.intellij.openapi.util.text.StringUtil.isEmpty;
 public class GitCollectChangesPolicy implements CollectChangesBetweenRepositories {
 
   private static final Logger LOG = Logger.getInstance(GitCollectChangesPolicy.class.getName());
+  private static final int PARALLEL_DIFF_BATCH_PER_THREAD = 16;
+  private static final int PREFETCH_SUBMODULES_MAX_COMMITS = 1000;
 
   private final GitVcsSupport myVcs;
   private final VcsOperationProgressProvider myProgressProvider;
@@ -73,19 +77,75 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
                                                @NotNull RepositoryStateData fromState,
                                                @NotNull RepositoryStateData toState,
                                                @NotNull CheckoutRules checkoutRules) throws VcsException {
+    List<ModificationData> changes = new ArrayList<ModificationData>();
+    collectChanges(root, fromState, toState, checkoutRules, CollectChangesBudget.UNLIMITED, null, changes::add);
+    return changes;
+  }
+
+
+  /**
+   * Reports changes between the states to the consumer as commits are visited,
+   * so changes of all commits are not kept in memory at once.
+   *
+   * @param budget limits amount of changes reported by this call
+   * @param continuation point returned by the previous call with the same states, null to start from the beginning
+   * @return point to continue from if the budget was exhausted before all changes were reported, null otherwise
+   */
+  @Nullable
+  public CollectChangesContinuation collectChanges(@NotNull VcsRoot root,
+                                                   @NotNull RepositoryStateData fromState,
+                                                   @NotNull RepositoryStateData toState,
+                                                   @NotNull CheckoutRules checkoutRules,
+                                                   @NotNull CollectChangesBudget budget,
+                                                   @Nullable CollectChangesContinuation continuation,
+                                                   @NotNull ModificationDataConsumer consumer) throws VcsException {
     OperationContext context = myVcs.createContext(root, "collecting changes", createProgress());
+    context.setFetchPriority(FetchPriority.POLLING);
     GitVcsRoot gitRoot = context.getGitRoot();
     return myRepositoryManager.runWithDisabledRemove(gitRoot.getRepositoryDir(), () -> {
-      List<ModificationData> changes = new ArrayList<ModificationData>();
       try {
         Repository r = context.getRepository();
-        ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
+        ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, myVcs.getCommitChangesCache(), context);
         revWalk.sort(RevSort.TOPO);
+        boolean skipCommitsWithoutChanges = false;
+        if (myConfig.collectChangesApplyCheckoutRules()) {
+          revWalk.limitByCheckoutRules(checkoutRules);
+          skipCommitsWithoutChanges = myConfig.collectChangesSkipCommitsWithoutIncludedChanges() && !CheckoutRulesTreeFilter.includesAll(checkoutRules);
+        }
         ensureRepositoryStateLoadedFor(context, r, true, toState, fromState);
-        markStart(r, revWalk, toState);
-        markUninteresting(r, revWalk, fromState, toState);
-        while (revWalk.next() != null) {
-          changes.add(revWalk.createModificationData());
+        if (gitRoot.isCheckoutSubmodules())
+          prefetchSubmodules(context, r, fromState, toState);
+        initWalk(r, revWalk, fromState, toState);
+        int skippedCommits = 0;
+        if (continuation != null) {
+          RevCommit lastReported = revWalk.skip(continuation.getReportedCommits());
+          if (lastReported == null || !lastReported.name().equals(continuation.getLastReportedCommit()))
+            throw new VcsException("Cannot continue collecting changes (" + continuation + "), commits between the states are different");
+          skippedCommits = continuation.getReportedCommits();
+        }
+        ChangesReporter reporter = new ChangesReporter(budget, consumer, skippedCommits, skipCommitsWithoutChanges);
+        int diffThreads = myConfig.getCollectChangesDiffThreads();
+        if (diffThreads > 1 && !gitRoot.isCheckoutSubmodules()) {
+          int batchSize = diffThreads * PARALLEL_DIFF_BATCH_PER_THREAD;
+          while (!reporter.isExhausted()) {
+            List<ModificationData> batch = revWalk.createModificationData(myVcs.getCollectChangesDiffPool(diffThreads), diffThreads,
+                                                                          Math.min(batchSize, reporter.getRemainingCommits()));
+            if (batch.isEmpty())
+              return null;
+            for (ModificationData data : batch) {
+              if (reporter.isExhausted())
+                return reporter.getContinuation();
+              reporter.report(data);
+            }
+          }
+          return revWalk.next() != null ? reporter.getContinuation() : null;
+        } else {
+          while (revWalk.next() != null) {
+            if (reporter.isExhausted())
+              return reporter.getContinuation();
+            reporter.report(revWalk.createModificationData());
+          }
+          return null;
         }
       } catch (Exception e) {
         if (e instanceof SubmoduleException) {
@@ -97,11 +157,41 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
       } finally {
         context.close();
       }
-      return changes;
     });
   }
 
 
+  /**
+   * Fetches submodules used by commits between the states concurrently,
+   * so the changes walk doesn't fetch them one by one
+   */
+  private void prefetchSubmodules(@NotNull OperationContext context,
+                                  @NotNull Repository r,
+                                  @NotNull RepositoryStateData fromState,
+                                  @NotNull RepositoryStateData toState) throws IOException, VcsException {
+    int threads = myConfig.getSubmoduleFetchThreads();
+    if (threads <= 1)
+      return;
+    List<RevCommit> commits = new ArrayList<RevCommit>();
+    RevWalk walk = new RevWalk(r);
+    try {
+      walk.setRetainBody(false);
+      walk.sort(RevSort.BOUNDARY, true);//boundary commits are diffed with the reported ones
+      markStart(r, walk, toState);
+      for (RevCommit commit : getCommits(fromState, r, walk)) {
+        walk.markUninteresting(commit);
+      }
+      RevCommit commit;
+      while (commits.size() < PREFETCH_SUBMODULES_MAX_COMMITS && (commit = walk.next()) != null) {
+        commits.add(commit);
+      }
+    } finally {
+      walk.release();
+    }
+    new SubmodulesPrefetcher(context, myCommitLoader).prefetch(r, commits, myVcs.getSubmoduleFetchPool(threads));
+  }
+
+
   @NotNull
   private Set<String> getBranchesWithCommit(@NotNull Repository r, @NotNull RepositoryStateData state, @NotNull String commit) {
     return Collections.emptySet();
@@ -124,7 +214,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
         isFirst = false;
       }
     } else {
-      FetchAllRefs fetch = new FetchAllRefs(context.getProgress(), repo, context.getGitRoot(), states);
+      FetchAllRefs fetch = new FetchAllRefs(context, repo, context.getGitRoot(), states);
       for (RepositoryStateData state : states) {
         ensureRepositoryStateLoaded(context, repo, state, fetch, isFirst);
         isFirst = false;
@@ -137,7 +227,13 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
                                           @NotNull final GitVcsRoot root) throws VcsException {
     try {
       final RepositoryStateData currentState = myVcs.getCurrentState(root);
-      new FetchAllRefs(context.getProgress(), context.getRepository(), context.getGitRoot(), currentState).fetchTrackedRefs();
+      Repository db = context.getRepository();
+      //all revisions must be in the clone, and local refs must point to them: a branch can move to an already fetched commit
+      if (myCommitLoader.findCommits(db, getRevisions(currentState)).isEmpty() && isFetched(db, currentState)) {
+        LOG.debug("All branches of " + root.debugInfo() + " are already fetched");
+        return currentState;
+      }
+      new FetchAllRefs(context, db, context.getGitRoot(), currentState).fetchTrackedRefs();
       return currentState;
     } catch (Exception e) {
       throw new VcsException(e.getMessage(), e);
@@ -150,20 +246,20 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
                                            @NotNull FetchAllRefs fetch,
                                            boolean throwErrors) throws Exception {
     GitVcsRoot root = context.getGitRoot();
+    Set<ObjectId> missing = myCommitLoader.findCommits(db, getRevisions(state));
+    if (!missing.isEmpty() && !fetch.isInvoked()) {
+      fetch.fetchTrackedRefs();
+      missing = myCommitLoader.findCommits(db, missing);
+    }
+
+    if (!missing.isEmpty() && !fetch.allRefsFetched())
+      fetch.fetchAllRefs();
+
     for (Map.Entry<String, String> entry : state.getBranchRevisions().entrySet()) {
       String ref = entry.getKey();
       String revision = GitUtils.versionRevision(entry.getValue());
-      if (myCommitLoader.findCommit(db, revision) != null)
-        continue;
-
-      if (!fetch.isInvoked())
-        fetch.fetchTrackedRefs();
-
-      if (myCommitLoader.findCommit(db, revision) != null)
-        continue;
-
-      if (!fetch.allRefsFetched())
-        fetch.fetchAllRefs();
+      if (ObjectId.isId(revision) && !missing.contains(ObjectId.fromString(revision)))
+        continue;//malformed revisions are reported below
 
       try {
         myCommitLoader.getCommit(db, ObjectId.fromString(revision));
@@ -201,6 +297,84 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
     }
   }
 
+  private void initWalk(@NotNull Repository r,
+                        @NotNull ModificationDataRevWalk walk,
+                        @NotNull RepositoryStateData fromState,
+                        @NotNull RepositoryStateData toState) throws IOException {
+    CommitGraph graph = myVcs.getCommitGraph(r);
+    if (graph != null && initWalk(walk, graph, fromState, toState))
+      return;
+    markStart(r, walk, toState);
+    markUninteresting(r, walk, fromState, toState);
+  }
+
+
+  /**
+   * Marks only interesting toState commits as starts and only boundary commits as uninteresting,
+   * so the walk doesn't parse commits of all fromState branches.
+   * @return false if graph cannot be used for the states
+   */
+  private boolean initWalk(@NotNull ModificationDataRevWalk walk,
+                           @NotNull CommitGraph graph,
+                           @NotNull RepositoryStateData fromState,
+                           @NotNull RepositoryStateData toState) throws IOException {
+    List<ObjectId> starts = graph.findCommits(walk, getRevisions(toState));
+    if (starts == null)
+      return false;
+    List<ObjectId> uninteresting = graph.findCommits(walk, getRevisions(fromState));
+    if (uninteresting == null)
+      return false;
+    if (uninteresting.isEmpty()) {
+      LOG.info("Cannot find commits referenced by fromState, will not report any changes");
+      return true;
+    }
+    CommitGraph.Boundary boundary = graph.findBoundary(starts, uninteresting);
+    if (boundary == null || !boundary.exists(walk.getObjectReader()))
+      return false;
+    for (ObjectId start : boundary.getInterestingStarts()) {
+      walk.markStart(walk.parseCommit(start));
+    }
+    for (ObjectId commit : boundary.getBoundary()) {
+      walk.markUninteresting(walk.parseCommit(commit));
+    }
+    return true;
+  }
+
+
+  @NotNull
+  private static List<ObjectId> getRevisions(@NotNull RepositoryStateData state) {
+    List<ObjectId> result = new ArrayList<ObjectId>();
+    for (String revision : state.getBranchRevisions().values()) {
+      String commit = GitUtils.versionRevision(revision);
+      if (ObjectId.isId(commit))
+        result.add(ObjectId.fromString(commit));
+    }
+    return result;
+  }
+
+
+  /**
+   * @return true if every branch of the state has a local ref pointing to the branch revision,
+   * i.e. the fetch of tracked refs won't update anything; doesn't check that revisions exist in the repository
+   */
+  private static boolean isFetched(@NotNull Repository db, @NotNull RepositoryStateData state) throws IOException {
+    for (Map.Entry<String, String> entry : state.getBranchRevisions().entrySet()) {
+      if (isEmpty(entry.getKey()))
+        return false;
+      Ref ref = db.getRef(GitUtils.expandRef(entry.getKey()));
+      if (ref == null || ref.getObjectId() == null)
+        return false;
+      String revision = GitUtils.versionRevision(entry.getValue());
+      if (revision.equals(ref.getObjectId().name()))
+        continue;
+      ObjectId peeled = db.peel(ref).getPeeledObjectId();//state contains commits annotated tags point to
+      if (peeled == null || !revision.equals(peeled.name()))
+        return false;
+    }
+    return true;
+  }
+
+
   private void markUninteresting(@NotNull Repository r,
                                  @NotNull ModificationDataRevWalk walk,
                                  @NotNull final RepositoryStateData fromState,
@@ -244,19 +418,80 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
     }
   }
 
+  private static final class ChangesReporter {
+    private final CollectChangesBudget myBudget;
+    private final ModificationDataConsumer myConsumer;
+    private final int mySkippedCommits;
+    private final boolean mySkipCommitsWithoutChanges;
+    private int myReportedCommits;
+    private long myReportedBytes;
+    private String myLastReportedCommit;
+
+    private ChangesReporter(@NotNull CollectChangesBudget budget,
+                            @NotNull ModificationDataConsumer consumer,
+                            int skippedCommits,
+                            boolean skipCommitsWithoutChanges) {
+      myBudget = budget;
+      myConsumer = consumer;
+      mySkippedCommits = skippedCommits;
+      mySkipCommitsWithoutChanges = skipCommitsWithoutChanges;
+    }
+
+    /**
+     * Commits dropped because of no changes are counted as reported, since
+     * the continuation is a position in the commits walk
+     */
+    void report(@NotNull ModificationData data) throws VcsException {
+      if (!mySkipCommitsWithoutChanges || !data.getChanges().isEmpty())
+        myConsumer.consume(data);
+      myReportedCommits++;
+      myReportedBytes += estimateSize(data);
+      myLastReportedCommit = data.getVersion();
+    }
+
+    boolean isExhausted() {
+      return myReportedCommits >= myBudget.getMaxCommits() || myReportedBytes >= myBudget.getMaxBytes();
+    }
+
+    int getRemainingCommits() {
+      return myBudget.getMaxCommits() - myReportedCommits;
+    }
+
+    @NotNull
+    CollectChangesContinuation getContinuation() {
+      LOG.debug("Collect changes budget is exhausted after " + myReportedCommits + " commits, " + myReportedBytes + " bytes");
+      return new CollectChangesContinuation(mySkippedCommits + myReportedCommits, myLastReportedCommit);
+    }
+
+    /**
+     * @return approximate heap size of the data, strings dominate it
+     */
+    private static long estimateSize(@NotNull ModificationData data) {
+      long size = 256 + 2L * length(data.getDescription());
+      for (VcsChange change : data.getChanges()) {
+        size += 128 + 2L * (length(change.getFileName()) + length(change.getRelativeFileName()));
+      }
+      return size;
+    }
+
+    private static int length(@Nullable String s) {
+      return s != null ? s.length() : 0;
+    }
+  }
+
   private class FetchAllRefs {
-    private final GitProgress myProgress;
+    private final OperationContext myContext;
     private final Repository myDb;
     private final GitVcsRoot myRoot;
     private final Set<String> myAllRefNames;
     private boolean myInvoked = false;
     private boolean myAllRefsFetched = false;
 
-    private FetchAllRefs(@NotNull GitProgress progress,
+    private FetchAllRefs(@NotNull OperationContext context,
                          @NotNull Repository db,
                          @NotNull GitVcsRoot root,
                          @NotNull RepositoryStateData... states) {
-      myProgress = progress;
+      myContext = context;
       myDb = db;
       myRoot = root;
       myAllRefNames = getAllRefNames(states);
@@ -264,15 +499,21 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
 
     void fetchTrackedRefs() throws IOException, VcsException {
       myInvoked = true;
-      FetchSettings settings = new FetchSettings(myRoot.getAuthSettings(), myProgress);
-      myCommitLoader.fetch(myDb, myRoot.getRepositoryFetchURL(), calculateRefSpecsForFetch(), settings);
+      //refs are listed before fetch settings are created, so the fetch can reuse the connection
+      Collection<RefSpec> specs = calculateRefSpecsForFetch();
+      myCommitLoader.fetch(myDb, myRoot.getRepositoryFetchURL(), specs, createFetchSettings());
     }
 
     void fetchAllRefs() throws IOException, VcsException {
       myInvoked = true;
       myAllRefsFetched = true;
-      FetchSettings settings = new FetchSettings(myRoot.getAuthSettings(), myProgress);
-      myCommitLoader.fetch(myDb, myRoot.getRepositoryFetchURL(), Collections.singleton(new RefSpec("refs/*:refs/*").setForceUpdate(true)), settings);
+      myCommitLoader.fetch(myDb, myRoot.getRepositoryFetchURL(), Collections.singleton(new RefSpec("refs/*:refs/*").setForceUpdate(true)), createFetchSettings());
+    }
+
+    @NotNull
+    private FetchSettings createFetchSettings() {
+      RemoteConnection connection = myContext.getRemoteConnection(myRoot.getRepositoryFetchURL());
+      return new FetchSettings(myRoot.getAuthSettings(), myContext.getProgress(), myContext.getFetchPriority(), connection);
     }
 
     boolean isInvoked() {
@@ -287,7 +528,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
       List<RefSpec> specs = new ArrayList<RefSpec>();
       Map<String, Ref> remoteRepositoryRefs;
       try {
-        remoteRepositoryRefs = myVcs.getRemoteRefs(myRoot.getOriginalRoot());
+        remoteRepositoryRefs = myVcs.getRemoteRefs(myContext);
       } catch (Exception e) {
         //when failed to get state of the remote repository try to collect changes in all refs we have
         remoteRepositoryRefs = null;
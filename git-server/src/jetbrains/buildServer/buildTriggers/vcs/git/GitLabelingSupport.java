@@ -66,6 +66,7 @@ public class GitLabelingSupport implements LabelingSupport {
                       @NotNull VcsRoot root,
                       @NotNull CheckoutRules checkoutRules) throws VcsException {
     OperationContext context = myVcs.createContext(root, "labeling");
+    context.setFetchPriority(FetchPriority.BACKGROUND);
     GitVcsRoot gitRoot = context.getGitRoot();
     return myRepositoryManager.runWithDisabledRemove(gitRoot.getRepositoryDir(), () -> {
       RevisionsInfo revisionsInfo = new RevisionsInfo();
@@ -213,7 +214,7 @@ public class GitLabelingSupport implements LabelingSupport {
         RevObject taggedObject = walk.parseAny(myTagObject.getObject());
         if (taggedObject.getType() == org.eclipse.jgit.lib.Constants.OBJ_COMMIT) {
           RevCommit taggedCommit = walk.parseCommit(taggedObject);
-          if (!remoteRepositoryContainsCommit(walk, taggedCommit, have)) {
+          if (!remoteRepositoryContainsCommit(repository, walk, taggedCommit, have)) {
             LOG.debug("Remote repository doesn't contain the tagged object " + myTagObject.getObject() +
                       ", use default prepare pack logic");
             if (myConfig.failLabelingWhenPackHeuristicsFails())
@@ -240,7 +241,25 @@ public class GitLabelingSupport implements LabelingSupport {
     }
 
 
-    private boolean remoteRepositoryContainsCommit(@NotNull RevWalk walk, @NotNull RevCommit commit, @NotNull Set<ObjectId> have) {
+    private boolean remoteRepositoryContainsCommit(@NotNull Repository repository,
+                                                   @NotNull RevWalk walk,
+                                                   @NotNull RevCommit commit,
+                                                   @NotNull Set<ObjectId> have) {
+      Collection<ObjectId> tips = myRevisionsInfo.getBranchRevisions(have);
+      Set<ObjectId> missingTips = myCommitLoader.findCommits(repository, tips);
+      List<ObjectId> existingTips = new ArrayList<ObjectId>(tips);
+      existingTips.removeAll(missingTips);
+
+      if (myConfig.usePackBitmaps()) {
+        try {
+          Boolean reachable = ReachabilityBitmaps.isReachable(walk, commit, existingTips);
+          if (reachable != null)
+            return reachable;
+        } catch (Exception e) {
+          LOG.debug("Failed to check reachability of the commit " + commit.name() + " using bitmaps, walk commits instead", e);
+        }
+      }
+
       try {
         for (RevCommit p : commit.getParents()) {
           walk.markUninteresting(p);
@@ -250,7 +269,7 @@ public class GitLabelingSupport implements LabelingSupport {
       }
 
       RevCommit c;
-      for (ObjectId tip : myRevisionsInfo.getBranchRevisions(have)) {
+      for (ObjectId tip : existingTips) {
         RevCommit tipCommit;
         try {
           tipCommit = walk.parseCommit(tip);
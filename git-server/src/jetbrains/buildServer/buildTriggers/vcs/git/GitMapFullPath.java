@@ -23,6 +23,7 @@ import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRootEntry;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -36,6 +37,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmpty;
 import static java.util.Collections.singleton;
@@ -48,11 +50,15 @@ public class GitMapFullPath {
   private static final Logger LOG = Logger.getInstance(GitMapFullPath.class.getName());
   private final ServerPluginConfig myConfig;
   private final RevisionsCache myCache;
+  private final CommitBloomFilters myCommitFilters;
+  private final CommitGraphs myCommitGraphs = new CommitGraphs();
+  private final AtomicLong myNewCommitsFoundWithGraph = new AtomicLong();
   private CommitLoader myCommitLoader;
 
   public GitMapFullPath(@NotNull ServerPluginConfig config, @NotNull RevisionsCache cache) {
     myConfig = config;
     myCache = cache;
+    myCommitFilters = new CommitBloomFilters(config);
   }
 
 
@@ -117,7 +123,14 @@ public class GitMapFullPath {
     } else {
       if (LOG.isDebugEnabled())
         LOG.debug("RevisionCache miss: root " + LogUtil.describe(root) + ", revision " + revision + ", lookup commit in repository");
-      hasRevision = myCommitLoader.findCommit(context.getRepository(root), revision) != null;
+      Repository db = context.getRepository(root);
+      if (isDefinitelyMissing(db, revision)) {
+        if (LOG.isDebugEnabled())
+          LOG.debug("Root " + LogUtil.describe(root) + " doesn't contain revision " + revision + " according to commits bloom filter");
+        hasRevision = false;
+      } else {
+        hasRevision = myCommitLoader.findCommit(db, revision) != null;
+      }
       if (LOG.isDebugEnabled())
         LOG.debug("Root " + LogUtil.describe(root) + ", revision " + revision + (hasRevision ? " was found" : " wasn't found") + ", cache the result");
       repositoryCache.saveRevision(revision, hasRevision, resetCounter);
@@ -126,6 +139,11 @@ public class GitMapFullPath {
   }
 
 
+  private boolean isDefinitelyMissing(@NotNull Repository db, @NotNull String revision) throws IOException {
+    return myConfig.useCommitBloomFilter() && ObjectId.isId(revision) && myCommitFilters.isDefinitelyMissing(db, ObjectId.fromString(revision));
+  }
+
+
   private boolean urlsMatch(@NotNull GitVcsRoot root, @NotNull FullPath fullPath) {
     String url = removeBranch(fullPath.getRepositoryUrl());
 
@@ -164,19 +182,65 @@ public class GitMapFullPath {
     return (branchSeparatorIndex > 0) ? url.substring(0, branchSeparatorIndex) : url;
   }
 
+  /**
+   * Invalidates caches after a fetch of commits which didn't update refs, e.g. a fetch of a commit by id
+   */
+  public void invalidateRevisionsCache(@NotNull Repository db, @NotNull Set<String> fetchedCommits) {
+    try {
+      myCache.resetNegativeEntries(db.getDirectory(), fetchedCommits);
+    } catch (IOException e) {
+      LOG.warn("Error while resetting commits cache for repository " + db.getDirectory(), e);
+    }
+    if (myConfig.useCommitBloomFilter()) {
+      try {
+        //fetched commits can bring their parents, add all commits not reachable from refs
+        Map<String, Ref> refs = db.getAllRefs();
+        Map<String, Ref> newRefs = new HashMap<String, Ref>(refs);
+        for (String commit : fetchedCommits) {
+          newRefs.put("refs/fetched/" + commit, new ObjectIdRef.Unpeeled(Ref.Storage.NEW, "refs/fetched/" + commit, ObjectId.fromString(commit)));
+        }
+        myCommitFilters.addCommits(db, getNewCommits(db, refs, newRefs));
+      } catch (IOException e) {
+        myCommitFilters.invalidate(db.getDirectory());
+        LOG.warnAndDebugDetails("Error while updating commits bloom filter for repository " + db.getDirectory(), e);
+      }
+    }
+  }
+
+
   public void invalidateRevisionsCache(@NotNull Repository db, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) throws IOException {
     try {
       if (myConfig.ignoreFetchedCommits()) {
+        myCommitFilters.invalidate(db.getDirectory());
         myCache.resetNegativeEntries(db.getDirectory());
       } else {
         Set<String> newCommits = getNewCommits(db, oldRefs, newRefs);
+        myCommitFilters.addCommits(db, newCommits);
         myCache.resetNegativeEntries(db.getDirectory(), newCommits);
       }
     } catch (IOException e) {
+      myCommitFilters.invalidate(db.getDirectory());
       LOG.warn("Error while resetting commits cache for repository " + db.getDirectory(), e);
     }
   }
 
+  /**
+   * Adds commits fetched into the repository to its commit graph, should be called
+   * without the repository write lock since commits are collected without it
+   */
+  public void updateCommitGraph(@NotNull Repository db,
+                                @NotNull Map<String, Ref> oldRefs,
+                                @NotNull Map<String, Ref> newRefs,
+                                @NotNull Object writeLock) {
+    if (!myConfig.useCommitGraph())
+      return;
+    try {
+      myCommitGraphs.update(db, oldRefs, newRefs, writeLock);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Error while updating commit graph for repository " + db.getDirectory(), e);
+    }
+  }
+
   private Set<String> getNewCommits(@NotNull Repository db, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) throws IOException {
     Set<ObjectId> updatedHeads = new HashSet<ObjectId>();
     Set<ObjectId> uninteresting = new HashSet<ObjectId>();
@@ -199,16 +263,35 @@ public class GitMapFullPath {
 
     RevWalk revWalk = new RevWalk(db);
     try {
-      revWalk.sort(RevSort.TOPO);
+      CommitGraph graph = myConfig.useCommitGraph() ? myCommitGraphs.get(db.getDirectory()) : null;
+      if (graph != null) {
+        Set<String> newCommits = getNewCommits(revWalk, graph, updatedHeads, uninteresting);
+        if (newCommits != null)
+          return newCommits;
+      }
+      List<RevCommit> starts = new ArrayList<RevCommit>();
       for (ObjectId id : updatedHeads) {
         RevObject obj = revWalk.parseAny(id);
         if (obj.getType() == Constants.OBJ_COMMIT)
-          revWalk.markStart((RevCommit) obj);
+          starts.add((RevCommit) obj);
       }
+      List<RevCommit> uninterestingCommits = new ArrayList<RevCommit>();
       for (ObjectId id : uninteresting) {
         RevObject obj = revWalk.parseAny(id);
         if (obj.getType() == Constants.OBJ_COMMIT)
-          revWalk.markUninteresting((RevCommit) obj);
+          uninterestingCommits.add((RevCommit) obj);
+      }
+      if (myConfig.usePackBitmaps()) {
+        Set<String> newCommits = ReachabilityBitmaps.findNewCommits(revWalk, starts, uninterestingCommits);
+        if (newCommits != null)
+          return newCommits;
+      }
+      revWalk.sort(RevSort.TOPO);
+      for (RevCommit c : starts) {
+        revWalk.markStart(c);
+      }
+      for (RevCommit c : uninterestingCommits) {
+        revWalk.markUninteresting(c);
       }
       Set<String> newCommits = new HashSet<String>();
       RevCommit newCommit;
@@ -221,6 +304,72 @@ public class GitMapFullPath {
     }
   }
 
+  /**
+   * Fetched commits are added to the graph only after caches are invalidated, so commits
+   * missing in the graph are walked and the graph is used from the first commits it contains.
+   * Ancestors of commits in the graph are in the graph too, so a commit missing in it cannot
+   * be reachable from the uninteresting commits.
+   *
+   * @return new commits or null if the graph cannot be used to find them
+   */
+  @Nullable
+  private Set<String> getNewCommits(@NotNull RevWalk walk,
+                                    @NotNull CommitGraph graph,
+                                    @NotNull Set<ObjectId> updatedHeads,
+                                    @NotNull Set<ObjectId> uninteresting) throws IOException {
+    List<ObjectId> uninterestingCommits = graph.findCommits(walk, uninteresting);
+    if (uninterestingCommits == null)
+      return null;
+    Set<String> result = new HashSet<String>();
+    Set<ObjectId> graphStarts = new HashSet<ObjectId>();
+    Set<ObjectId> seen = new HashSet<ObjectId>();
+    Deque<RevCommit> queue = new ArrayDeque<RevCommit>();
+    for (ObjectId id : updatedHeads) {
+      if (graph.contains(id)) {
+        graphStarts.add(id);
+        continue;
+      }
+      RevObject obj = walk.parseAny(id);
+      if (obj.getType() == Constants.OBJ_COMMIT && seen.add(obj))
+        queue.add((RevCommit) obj);
+    }
+    RevCommit commit;
+    while ((commit = queue.poll()) != null) {
+      walk.parseHeaders(commit);
+      result.add(commit.name());
+      for (RevCommit parent : commit.getParents()) {
+        if (graph.contains(parent)) {
+          graphStarts.add(parent.copy());
+        } else if (seen.add(parent)) {
+          queue.add(parent);
+        }
+      }
+    }
+    if (!graphStarts.isEmpty()) {
+      CommitGraph.Boundary boundary = graph.findBoundary(graphStarts, uninterestingCommits);
+      if (boundary == null)
+        return null;
+      for (ObjectId c : boundary.getInterestingCommits()) {
+        result.add(c.name());
+      }
+    }
+    myNewCommitsFoundWithGraph.incrementAndGet();
+    return result;
+  }
+
+
+  /**
+   * @return number of times new commits were found using the commit graph
+   */
+  public long getNewCommitsFoundWithGraph() {
+    return myNewCommitsFoundWithGraph.get();
+  }
+
+  @NotNull
+  CommitGraphs getCommitGraphs() {
+    return myCommitGraphs;
+  }
+
 
   //Format: <hint revision>-<git revision hash>|<repository url>|<file relative path>
   public static class FullPath {
@@ -21,6 +21,7 @@ import jetbrains.buildServer.vcs.*;
 import org.eclipse.jgit.dircache.DirCache;
 import org.eclipse.jgit.dircache.DirCacheBuilder;
 import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.merge.MergeStrategy;
 import org.eclipse.jgit.merge.ResolveMerger;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -30,7 +31,10 @@ import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteRefUpdate;
 import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.*;
@@ -116,6 +120,7 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
           ObjectId dst = ObjectId.fromString(t.getDestinationRevision());
           ResolveMerger merger = (ResolveMerger) MergeStrategy.RECURSIVE.newMerger(db, true);
           try {
+            loadBlobsForMerge(context, db, null, dst, src);
             boolean success = merger.merge(dst, src);
             if (success) {
               mergeResults.put(t, MergeResult.createMergeSuccessResult());
@@ -153,7 +158,7 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
     RevCommit dstBranchLastCommit = myCommitLoader.loadCommit(context, gitRoot, dstRef.getObjectId().name());
     ObjectId commitId;
     try {
-      commitId = mergeCommits(gitRoot, db, srcCommit, dstBranchLastCommit, message, options);
+      commitId = mergeCommits(context, gitRoot, db, srcCommit, dstBranchLastCommit, message, options);
     } catch (MergeFailedException e) {
       LOG.debug("Merge error, root " + gitRoot + ", revision " + srcRevision + ", destination " + dstBranch, e);
       return MergeResult.createMergeError(e.getConflicts());
@@ -182,29 +187,39 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
   }
 
 
+  private boolean isMergedInto(@NotNull Repository db, @NotNull RevCommit base, @NotNull RevCommit tip) throws IOException {
+    CommitGraph graph = myVcs.getCommitGraph(db);
+    if (graph != null) {
+      Boolean merged = graph.isAncestor(base, tip);
+      if (merged != null)
+        return merged;
+    }
+    RevWalk walk = new RevWalk(db);
+    try {
+      return walk.isMergedInto(walk.parseCommit(base), walk.parseCommit(tip));
+    } finally {
+      walk.release();
+    }
+  }
+
+
   @NotNull
-  private ObjectId mergeCommits(@NotNull GitVcsRoot gitRoot,
+  private ObjectId mergeCommits(@NotNull OperationContext context,
+                                @NotNull GitVcsRoot gitRoot,
                                 @NotNull Repository db,
                                 @NotNull RevCommit srcCommit,
                                 @NotNull RevCommit dstCommit,
                                 @NotNull String message,
-                                @NotNull MergeOptions options) throws IOException, MergeFailedException {
-    if (!alwaysCreateMergeCommit(options)) {
-      RevWalk walk = new RevWalk(db);
-      try {
-        if (walk.isMergedInto(walk.parseCommit(dstCommit), walk.parseCommit(srcCommit))) {
-          LOG.debug("Commit " + srcCommit.name() + " already merged into " + dstCommit + ", skip the merge");
-          return srcCommit;
-        }
-      } finally {
-        walk.release();
-      }
+                                @NotNull MergeOptions options) throws IOException, VcsException, MergeFailedException {
+    if (!alwaysCreateMergeCommit(options) && isMergedInto(db, dstCommit, srcCommit)) {
+      LOG.debug("Commit " + srcCommit.name() + " already merged into " + dstCommit + ", skip the merge");
+      return srcCommit;
     }
 
     if (tryRebase(options)) {
       LOG.debug("Run rebase, root " + gitRoot + ", revision " + srcCommit.name() + ", destination " + dstCommit.name());
       try {
-        return rebase(gitRoot, db, srcCommit, dstCommit);
+        return rebase(context, gitRoot, db, srcCommit, dstCommit);
       } catch (MergeFailedException e) {
         if (enforceLinearHistory(options)) {
           LOG.debug("Rebase failed, root " + gitRoot + ", revision " + srcCommit.name() + ", destination " + dstCommit.name(), e);
@@ -218,6 +233,7 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
       }
     }
 
+    loadBlobsForMerge(context, db, null, dstCommit, srcCommit);
     ResolveMerger merger = (ResolveMerger) MergeStrategy.RECURSIVE.newMerger(db, true);
     boolean mergeSuccessful = merger.merge(dstCommit, srcCommit);
     if (!mergeSuccessful) {
@@ -253,10 +269,11 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
 
 
   @NotNull
-  private ObjectId rebase(@NotNull GitVcsRoot gitRoot,
+  private ObjectId rebase(@NotNull OperationContext context,
+                          @NotNull GitVcsRoot gitRoot,
                           @NotNull Repository db,
                           @NotNull RevCommit srcCommit,
-                          @NotNull RevCommit dstCommit) throws IOException, MergeFailedException {
+                          @NotNull RevCommit dstCommit) throws IOException, VcsException, MergeFailedException {
     RevWalk walk = new RevWalk(db);
     try {
       RevCommit src = walk.parseCommit(srcCommit);
@@ -306,7 +323,7 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
       for (RevCommit commit : toRebase) {
         RevCommit p = commit.getParent(0);
         RevCommit b = orig2rebased.get(p);
-        ObjectId rebased = rebaseCommit(gitRoot, db, inserter, commit, b);
+        ObjectId rebased = rebaseCommit(context, gitRoot, db, inserter, commit, b);
         orig2rebased.put(commit, walk.parseCommit(rebased));
       }
 
@@ -318,16 +335,18 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
 
 
   @NotNull
-  private ObjectId rebaseCommit(@NotNull GitVcsRoot gitRoot,
+  private ObjectId rebaseCommit(@NotNull OperationContext context,
+                                @NotNull GitVcsRoot gitRoot,
                                 @NotNull Repository db,
                                 @NotNull ObjectInserter inserter,
                                 @NotNull RevCommit original,
-                                @NotNull RevCommit base) throws IOException, MergeFailedException {
+                                @NotNull RevCommit base) throws IOException, VcsException, MergeFailedException {
     final RevCommit parentCommit = original.getParent(0);
 
     if (base.equals(parentCommit))
       return original;
 
+    loadBlobsForMerge(context, db, parentCommit, original, base);
     ResolveMerger merger = (ResolveMerger) MergeStrategy.RECURSIVE.newMerger(db, true);
     merger.setBase(parentCommit);
     merger.merge(original, base);
@@ -351,6 +370,71 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
   }
 
 
+  /**
+   * Fetches blobs a content merge of the specified commits reads when the repository is a blobless clone.
+   * If base is null, merge bases of the commits are used.
+   */
+  private void loadBlobsForMerge(@NotNull OperationContext context,
+                                 @NotNull Repository db,
+                                 @Nullable ObjectId base,
+                                 @NotNull ObjectId ours,
+                                 @NotNull ObjectId theirs) throws IOException, VcsException {
+    if (!context.isBloblessClone(db))
+      return;
+    RevWalk walk = new RevWalk(db);
+    TreeWalk tw = new TreeWalk(db);
+    try {
+      List<RevCommit> bases = new ArrayList<RevCommit>();
+      if (base != null) {
+        bases.add(walk.parseCommit(base));
+      } else {
+        walk.markStart(walk.parseCommit(ours));
+        walk.markStart(walk.parseCommit(theirs));
+        walk.setRevFilter(RevFilter.MERGE_BASE);
+        RevCommit c;
+        while ((c = walk.next()) != null) {
+          bases.add(c);
+        }
+      }
+      tw.setRecursive(true);
+      tw.setFilter(TreeFilter.ANY_DIFF);
+      tw.addTree(walk.parseCommit(ours).getTree());
+      tw.addTree(walk.parseCommit(theirs).getTree());
+      for (RevCommit b : bases) {
+        tw.addTree(walk.parseCommit(b).getTree());
+      }
+      Set<ObjectId> blobs = new HashSet<ObjectId>();
+      while (tw.next()) {
+        if (!isContentMerge(tw))
+          continue;
+        for (int i = 0; i < tw.getTreeCount(); i++) {
+          if (tw.getFileMode(i).getObjectType() == Constants.OBJ_BLOB && !tw.getObjectId(i).equals(ObjectId.zeroId()))
+            blobs.add(tw.getObjectId(i));
+        }
+      }
+      context.loadMissingBlobs(db, blobs);
+    } finally {
+      tw.release();
+      walk.release();
+    }
+  }
+
+
+  /**
+   * @return true if the merge cannot take the entry from one side and reads file contents:
+   * the sides differ from each other and from the base or the merge bases differ
+   */
+  private static boolean isContentMerge(@NotNull TreeWalk tw) {
+    if (tw.idEqual(0, 1))
+      return false;
+    for (int i = 3; i < tw.getTreeCount(); i++) {
+      if (!tw.idEqual(2, i))
+        return true;
+    }
+    return tw.getTreeCount() == 2 || !tw.idEqual(0, 2) && !tw.idEqual(1, 2);
+  }
+
+
   private boolean tryRebase(@NotNull MergeOptions options) {
     String value = options.getOption("git.merge.rebase");
     if (value == null)
@@ -285,40 +285,43 @@ public class GitServerUtil {
     for (TrackingRefUpdate update : result.getTrackingRefUpdates()) {
       String localRefName = update.getLocalName();
       RefUpdate.Result status = update.getResult();
-      if (status == RefUpdate.Result.REJECTED || status == RefUpdate.Result.LOCK_FAILURE || status == RefUpdate.Result.IO_FAILURE) {
-        if (status == RefUpdate.Result.LOCK_FAILURE) {
-          TreeSet<String> caseSensitiveConflicts = new TreeSet<>();
-          TreeSet<String> conflicts = new TreeSet<>();
-          try {
-            OSInfo.OSType os = OSInfo.getOSType();
-            if (os == OSInfo.OSType.WINDOWS || os == OSInfo.OSType.MACOSX) {
-              Set<String> refNames = db.getRefDatabase().getRefs(RefDatabase.ALL).keySet();
-              for (String ref : refNames) {
-                if (!localRefName.equals(ref) && localRefName.equalsIgnoreCase(ref))
-                  caseSensitiveConflicts.add(ref);
-              }
-            }
-            conflicts.addAll(db.getRefDatabase().getConflictingNames(localRefName));
-          } catch (Exception e) {
-            //ignore
-          }
-          String msg;
-          if (!conflicts.isEmpty()) {
-            msg = "Failed to fetch ref " + localRefName + ": it clashes with " + StringUtil.join(", ", conflicts) +
-                  ". Please remove conflicting refs from repository.";
-          } else if (!caseSensitiveConflicts.isEmpty()) {
-            msg = "Failed to fetch ref " + localRefName + ": on case-insensitive file system it clashes with " +
-                  StringUtil.join(", ", caseSensitiveConflicts) +
-                  ". Please remove conflicting refs from repository.";
-          } else {
-            msg = "Fail to update '" + localRefName + "' (" + status.name() + ")";
+      if (status == RefUpdate.Result.REJECTED || status == RefUpdate.Result.LOCK_FAILURE || status == RefUpdate.Result.IO_FAILURE)
+        throw new VcsException(getRefUpdateErrorMessage(db, localRefName, status));
+    }
+  }
+
+
+  /**
+   * @return a message describing why the ref was not updated by fetch
+   */
+  @NotNull
+  static String getRefUpdateErrorMessage(@NotNull Repository db, @NotNull String localRefName, @NotNull RefUpdate.Result status) {
+    if (status == RefUpdate.Result.LOCK_FAILURE) {
+      TreeSet<String> caseSensitiveConflicts = new TreeSet<>();
+      TreeSet<String> conflicts = new TreeSet<>();
+      try {
+        OSInfo.OSType os = OSInfo.getOSType();
+        if (os == OSInfo.OSType.WINDOWS || os == OSInfo.OSType.MACOSX) {
+          Set<String> refNames = db.getRefDatabase().getRefs(RefDatabase.ALL).keySet();
+          for (String ref : refNames) {
+            if (!localRefName.equals(ref) && localRefName.equalsIgnoreCase(ref))
+              caseSensitiveConflicts.add(ref);
           }
-          throw new VcsException(msg);
-        } else {
-          throw new VcsException("Fail to update '" + localRefName + "' (" + status.name() + ")");
         }
+        conflicts.addAll(db.getRefDatabase().getConflictingNames(localRefName));
+      } catch (Exception e) {
+        //ignore
+      }
+      if (!conflicts.isEmpty()) {
+        return "Failed to fetch ref " + localRefName + ": it clashes with " + StringUtil.join(", ", conflicts) +
+               ". Please remove conflicting refs from repository.";
+      } else if (!caseSensitiveConflicts.isEmpty()) {
+        return "Failed to fetch ref " + localRefName + ": on case-insensitive file system it clashes with " +
+               StringUtil.join(", ", caseSensitiveConflicts) +
+               ". Please remove conflicting refs from repository.";
       }
     }
+    return "Fail to update '" + localRefName + "' (" + status.name() + ")";
   }
 
 
@@ -349,19 +352,7 @@ public class GitServerUtil {
     FetchConnection conn = null;
     try {
       conn = tn.openFetch();
-      Map<String, Ref> remoteRefMap = conn.getRefsMap();
-      for (Map.Entry<String, Ref> e : db.getAllRefs().entrySet()) {
-        if (!remoteRefMap.containsKey(e.getKey())) {
-          try {
-            RefUpdate refUpdate = db.getRefDatabase().newUpdate(e.getKey(), false);
-            refUpdate.setForceUpdate(true);
-            refUpdate.delete();
-          } catch (Exception ex) {
-            LOG.info("Failed to prune removed ref " + e.getKey(), ex);
-            break;
-          }
-        }
-      }
+      pruneRemovedBranches(db, conn.getRefsMap().keySet());
     } catch (IOException e) {
       LOG.info("Failed to list remote refs, continue without pruning removed refs", e);
     } finally {
@@ -371,6 +362,25 @@ public class GitServerUtil {
   }
 
 
+  /**
+   * Removes branches of a bare repository which are not among the given remote refs
+   */
+  static void pruneRemovedBranches(@NotNull Repository db, @NotNull Set<String> remoteRefNames) {
+    for (Map.Entry<String, Ref> e : db.getAllRefs().entrySet()) {
+      if (!remoteRefNames.contains(e.getKey())) {
+        try {
+          RefUpdate refUpdate = db.getRefDatabase().newUpdate(e.getKey(), false);
+          refUpdate.setForceUpdate(true);
+          refUpdate.delete();
+        } catch (Exception ex) {
+          LOG.info("Failed to prune removed ref " + e.getKey(), ex);
+          break;
+        }
+      }
+    }
+  }
+
+
   public static boolean isCloned(@NotNull Repository db) throws VcsException, IOException {
     if (!db.getObjectDatabase().exists())
       return false;
@@ -422,6 +432,11 @@ public class GitServerUtil {
 
   public static void configureExternalProcessLogger(boolean debugEnabled) {
     org.apache.log4j.Logger.getRootLogger().addAppender(new ConsoleAppender(new PatternLayout("[%d] %6p - %30.30c - %m %n")));
+    configureExternalProcessLogLevels(debugEnabled);
+  }
+
+
+  public static void configureExternalProcessLogLevels(boolean debugEnabled) {
     org.apache.log4j.Logger.getRootLogger().setLevel(Level.INFO);
     org.apache.log4j.Logger.getLogger("org.eclipse.jgit").setLevel(debugEnabled ? Level.DEBUG : Level.OFF);
     org.apache.log4j.Logger.getLogger("jetbrains.buildServer.buildTriggers.vcs.git").setLevel(debugEnabled ? Level.DEBUG : Level.INFO);
@@ -71,7 +71,7 @@ public class GitVcsFileContentProvider extends GitAbstractVcsFileContentProvider
         if (!tw.next()) {
           throw new VcsFileNotFoundException("The file " + filePath + " could not be found in " + rev + gitRoot.debugInfo());
         }
-        final byte[] data = loadObject(gitRoot, r, tw, 0);
+        final byte[] data = loadObject(context, gitRoot, r, tw, 0);
         logFileContentLoaded(gitRoot, version, filePath, tw);
         return data;
       } finally {
@@ -107,30 +107,34 @@ public class GitVcsFileContentProvider extends GitAbstractVcsFileContentProvider
   /**
    * Load bytes that correspond to the position in the tree walker
    *
+   * @param context the operation context
    * @param r   the initial repository
    * @param tw  the tree walker
    * @param nth the tree in the tree wailer
    * @return loaded bytes
    * @throws IOException if there is an IO error
+   * @throws VcsException if a blob missing in a blobless clone cannot be fetched
    */
-  private byte[] loadObject(@NotNull GitVcsRoot root, Repository r, TreeWalk tw, final int nth) throws IOException {
+  private byte[] loadObject(@NotNull OperationContext context, @NotNull GitVcsRoot root, Repository r, TreeWalk tw, final int nth) throws IOException, VcsException {
     ObjectId id = tw.getObjectId(nth);
     Repository objRep = getRepository(r, tw, nth);
     final String path = tw.getPathString();
-    return loadObject(root, objRep, path, id);
+    return loadObject(context, root, objRep, path, id);
   }
 
   /**
-   * Load object by blob ID
+   * Load object by blob ID, a blob missing in a blobless clone is fetched
    *
+   * @param context the operation context
    * @param r    the repository
    * @param path the path (might be null)
    * @param id   the object id
    * @return the object's bytes
    * @throws IOException in case of IO problem
+   * @throws VcsException if a blob missing in a blobless clone cannot be fetched
    */
-  private byte[] loadObject(@NotNull GitVcsRoot root, Repository r, String path, ObjectId id) throws IOException {
-    final ObjectLoader loader = r.open(id);
+  private byte[] loadObject(@NotNull OperationContext context, @NotNull GitVcsRoot root, Repository r, String path, ObjectId id) throws IOException, VcsException {
+    final ObjectLoader loader = context.openObject(r, id);
     if (loader == null) {
       throw new IOException("Unable to find blob " + id + (path == null ? "" : "(" + path + ")") + " in repository " + r);
     }
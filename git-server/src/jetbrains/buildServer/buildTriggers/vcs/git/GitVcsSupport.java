@@ -39,6 +39,12 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.friendlyNotSupportedException;
@@ -58,6 +64,7 @@ public class GitVcsSupport extends ServerVcsSupport
   private static final Logger LOG = Logger.getInstance(GitVcsSupport.class.getName());
   private static final Logger PERFORMANCE_LOG = Logger.getInstance(GitVcsSupport.class.getName() + ".Performance");
   static final String GIT_REPOSITORY_HAS_NO_BRANCHES = "Git repository has no branches";
+  private static final Pattern EOL_SPLIT_PATTERN = Pattern.compile("(\\r|\\n|\\r\\n)");
 
   private ExtensionHolder myExtensionHolder;
   private volatile String myDisplayName = null;
@@ -71,6 +78,10 @@ public class GitVcsSupport extends ServerVcsSupport
   private final GitTrustStoreProvider myGitTrustStoreProvider;
   private final TestConnectionSupport myTestConnection;
   private Collection<GitServerExtension> myExtensions = new ArrayList<GitServerExtension>();
+  private final CommitChangesCache myCommitChangesCache;
+  private final RemoteRefsCache myRemoteRefsCache;
+  private ForkJoinPool myCollectChangesDiffPool;
+  private ThreadPoolExecutor mySubmoduleFetchPool;
 
   public GitVcsSupport(@NotNull ServerPluginConfig config,
                        @NotNull ResetCacheRegister resetCacheManager,
@@ -111,6 +122,8 @@ public class GitVcsSupport extends ServerVcsSupport
     resetCacheManager.registerHandler(resetRevisionsCacheHandler);
     myGitTrustStoreProvider = gitTrustStoreProvider;
     myTestConnection = customTestConnection == null ? this : customTestConnection;
+    myCommitChangesCache = new CommitChangesCache(config);
+    myRemoteRefsCache = new RemoteRefsCache(config);
   }
 
   public void setExtensionHolder(@Nullable ExtensionHolder extensionHolder) {
@@ -176,7 +189,7 @@ public class GitVcsSupport extends ServerVcsSupport
       String refInRoot = gitRoot.getRef();
       String fullRef = GitUtils.expandRef(refInRoot);
       Map<String, String> branchRevisions = new HashMap<String, String>();
-      for (Ref ref : getRemoteRefs(gitRoot.getOriginalRoot()).values()) {
+      for (Ref ref : getRemoteRefs(gitRoot.getOriginalRoot(), getRefPrefixes(gitRoot, fullRef)).values()) {
         if (!ref.getName().startsWith("ref"))
           continue;
         if (!gitRoot.isReportTags() && isTag(ref) && !fullRef.equals(ref.getName()))
@@ -355,6 +368,74 @@ public class GitVcsSupport extends ServerVcsSupport
     return new GitCollectChangesPolicy(this, myProgressProvider, myCommitLoader, myConfig, myRepositoryManager);
   }
 
+  @NotNull
+  public CommitChangesCache getCommitChangesCache() {
+    return myCommitChangesCache;
+  }
+
+
+  @NotNull
+  public RemoteRefsCache getRemoteRefsCache() {
+    return myRemoteRefsCache;
+  }
+
+  /**
+   * @return commit graph of the repository or null if it is not available
+   */
+  @Nullable
+  CommitGraph getCommitGraph(@NotNull Repository db) {
+    return myConfig.useCommitGraph() ? myMapFullPath.getCommitGraphs().get(db.getDirectory()) : null;
+  }
+
+  /**
+   * @return pool computing commit diffs during collecting changes, shared by all collect changes operations
+   */
+  @NotNull
+  synchronized ForkJoinPool getCollectChangesDiffPool(int threads) {
+    if (myCollectChangesDiffPool == null || myCollectChangesDiffPool.getParallelism() != threads) {
+      if (myCollectChangesDiffPool != null)
+        myCollectChangesDiffPool.shutdown();
+      myCollectChangesDiffPool = new ForkJoinPool(threads, pool -> {
+        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        t.setName("Git collect changes diff " + t.getPoolIndex());
+        return t;
+      }, null, false);
+    }
+    return myCollectChangesDiffPool;
+  }
+
+  /**
+   * @return pool fetching submodule repositories, shared by all operations
+   */
+  @NotNull
+  synchronized ThreadPoolExecutor getSubmoduleFetchPool(int threads) {
+    if (mySubmoduleFetchPool == null || mySubmoduleFetchPool.getMaximumPoolSize() != threads) {
+      if (mySubmoduleFetchPool != null)
+        mySubmoduleFetchPool.shutdown();
+      mySubmoduleFetchPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "Git submodule fetch");
+        t.setDaemon(true);
+        return t;
+      });
+      mySubmoduleFetchPool.allowCoreThreadTimeOut(true);
+    }
+    return mySubmoduleFetchPool;
+  }
+
+  /**
+   * Stops pools shared by operations, called when the plugin is unloaded
+   */
+  public synchronized void dispose() {
+    if (myCollectChangesDiffPool != null) {
+      myCollectChangesDiffPool.shutdown();
+      myCollectChangesDiffPool = null;
+    }
+    if (mySubmoduleFetchPool != null) {
+      mySubmoduleFetchPool.shutdown();
+      mySubmoduleFetchPool = null;
+    }
+  }
+
   @NotNull
   public BuildPatchPolicy getBuildPatchPolicy() {
     return this;
@@ -459,13 +540,53 @@ public class GitVcsSupport extends ServerVcsSupport
   }
 
 
+  /**
+   * @return prefixes of refs which can be reported in the current state of the root,
+   * null if all refs should be listed
+   */
+  @Nullable
+  private Collection<String> getRefPrefixes(@NotNull GitVcsRoot gitRoot, @NotNull String fullRef) {
+    String branchSpec = gitRoot.getBranchSpec();
+    if (!myConfig.listRefsByBranchSpec() || branchSpec == null || branchSpec.trim().isEmpty())
+      return null;
+    Set<String> result = new TreeSet<String>();
+    result.add(fullRef);
+    if (gitRoot.isReportTags())
+      result.add("refs/tags/");
+    for (String line : EOL_SPLIT_PATTERN.split(branchSpec)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("-:"))
+        continue;
+      String pattern = (line.startsWith("+:") ? line.substring(2) : line).replace("(", "").replace(")", "").trim();
+      if ("<default>".equals(pattern))
+        continue;
+      int wildcard = pattern.indexOf('*');
+      String prefix = wildcard >= 0 ? pattern.substring(0, wildcard) : pattern;
+      if (!prefix.startsWith("refs/"))
+        return null;//pattern can match any ref
+      result.add(prefix);
+    }
+    return result;
+  }
+
+
   @NotNull
   public Map<String, Ref> getRemoteRefs(@NotNull final VcsRoot root) throws VcsException {
+    return getRemoteRefs(root, null);
+  }
+
+
+  /**
+   * @param refPrefixes prefixes of refs to list, null to list all refs
+   */
+  @NotNull
+  private Map<String, Ref> getRemoteRefs(@NotNull final VcsRoot root, @Nullable Collection<String> refPrefixes) throws VcsException {
     OperationContext context = createContext(root, "list remote refs");
     GitVcsRoot gitRoot = context.getGitRoot();
     try {
       Repository db = context.getRepository();
-      Map<String, Ref> remoteRefs = getRemoteRefs(db, gitRoot);
+      Map<String, Ref> remoteRefs = myRemoteRefsCache.getRefs(gitRoot.getRepositoryFetchURL(), gitRoot.getAuthSettings(), refPrefixes,
+                                                              () -> getRemoteRefs(db, gitRoot, refPrefixes, null));
       if (LOG.isDebugEnabled() && myConfig.logRemoteRefs())
         LOG.debug("Remote refs for VCS root " + LogUtil.describe(root) + ": " + remoteRefs);
       return remoteRefs;
@@ -477,11 +598,47 @@ public class GitVcsSupport extends ServerVcsSupport
   }
 
 
+  /**
+   * Lists all refs of the remote repository of the operation root. If refs are listed over
+   * a new connection, the connection is kept in the context, so a fetch made later by the
+   * operation can reuse it.
+   */
   @NotNull
-  private Map<String, Ref> getRemoteRefs(@NotNull Repository db, @NotNull GitVcsRoot gitRoot) throws Exception {
+  Map<String, Ref> getRemoteRefs(@NotNull OperationContext context) throws VcsException {
+    GitVcsRoot gitRoot = context.getGitRoot();
+    try {
+      Repository db = context.getRepository();
+      OperationContext connectionOwner = myConfig.reuseRemoteConnections() ? context : null;
+      Map<String, Ref> remoteRefs = myRemoteRefsCache.getRefs(gitRoot.getRepositoryFetchURL(), gitRoot.getAuthSettings(), null,
+                                                              () -> getRemoteRefs(db, gitRoot, null, connectionOwner));
+      if (LOG.isDebugEnabled() && myConfig.logRemoteRefs())
+        LOG.debug("Remote refs for VCS root " + LogUtil.describe(context.getRoot()) + ": " + remoteRefs);
+      return remoteRefs;
+    } catch (Exception e) {
+      throw context.wrapException(e);
+    }
+  }
+
+
+  /**
+   * @param connectionOwner context keeping the connection opened to list all refs, null if the connection should be closed
+   */
+  @NotNull
+  private Map<String, Ref> getRemoteRefs(@NotNull Repository db,
+                                         @NotNull GitVcsRoot gitRoot,
+                                         @Nullable Collection<String> refPrefixes,
+                                         @Nullable OperationContext connectionOwner) throws Exception {
     long retryInterval = myConfig.getConnectionRetryIntervalMillis();
     int attemptsLeft = myConfig.getConnectionRetryAttempts();
     int timeout = myConfig.getRepositoryStateTimeoutSeconds();
+    if (refPrefixes != null) {
+      final long start = System.currentTimeMillis();
+      Map<String, Ref> refs = myTransportFactory.listRefs(gitRoot.getRepositoryFetchURL(), gitRoot.getAuthSettings(), refPrefixes, timeout);
+      if (refs != null) {
+        PERFORMANCE_LOG.debug("[getRemoteRefs] repository: " + LogUtil.describe(gitRoot) + ", ls-refs took " + (System.currentTimeMillis() - start) + "ms");
+        return refs;
+      }
+    }
     while (true) {
       final long start = System.currentTimeMillis();
       Transport transport = null;
@@ -489,7 +646,16 @@ public class GitVcsSupport extends ServerVcsSupport
       try {
         transport = myTransportFactory.createTransport(db, gitRoot.getRepositoryFetchURL(), gitRoot.getAuthSettings(), timeout);
         connection = transport.openFetch();
-        return connection.getRefsMap();
+        if (refPrefixes != null)
+          return filterByPrefixes(connection.getRefsMap(), refPrefixes);
+        Map<String, Ref> result = connection.getRefsMap();
+        if (connectionOwner != null) {
+          connectionOwner.addRemoteConnection(new RemoteConnection(db, gitRoot.getRepositoryFetchURL(), transport, connection));
+          //the context closes them
+          connection = null;
+          transport = null;
+        }
+        return result;
       } catch (NotSupportedException nse) {
         throw friendlyNotSupportedException(gitRoot, nse);
       } catch (TransportException te) {
@@ -514,6 +680,20 @@ public class GitVcsSupport extends ServerVcsSupport
     }
   }
 
+  @NotNull
+  private static Map<String, Ref> filterByPrefixes(@NotNull Map<String, Ref> refs, @NotNull Collection<String> refPrefixes) {
+    Map<String, Ref> result = new HashMap<String, Ref>();
+    for (Map.Entry<String, Ref> e : refs.entrySet()) {
+      for (String prefix : refPrefixes) {
+        if (e.getKey().startsWith(prefix)) {
+          result.put(e.getKey(), e.getValue());
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
   private boolean isRecoverable(@NotNull TransportException e) {
     String message = e.getMessage();
     if (message == null)
@@ -19,25 +19,31 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.IgnoreSubmoduleErrorsTreeFilter;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleAwareTreeIterator;
+import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.ModificationData;
 import jetbrains.buildServer.vcs.VcsChange;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author dmitry.neverov
@@ -47,6 +53,7 @@ class ModificationDataRevWalk extends RevWalk {
   private static final Logger LOG = Logger.getInstance(ModificationDataRevWalk.class.getName());
 
   private final ServerPluginConfig myConfig;
+  private final CommitChangesCache myChangesCache;
   private final OperationContext myContext;
   private final GitVcsRoot myGitRoot;
   private final Repository myRepository;
@@ -54,11 +61,19 @@ class ModificationDataRevWalk extends RevWalk {
   private int myNextCallCount = 0;
   private RevCommit myCurrentCommit;
   private int myNumberOfCommitsToVisit = -1;
+  private CheckoutRules myCheckoutRules;
+  private TreeFilter myCheckoutRulesFilter;
+  private ObjectId myChangesCacheKey;//computed on first use, settings don't change during the walk
+  //commit:submodule path -> whether the submodule is resolved in the commit, lives during a single operation
+  private final Map<String, Boolean> myFixedSubmodules = new HashMap<String, Boolean>();
 
 
-  ModificationDataRevWalk(@NotNull ServerPluginConfig config, @NotNull OperationContext context) throws VcsException {
+  ModificationDataRevWalk(@NotNull ServerPluginConfig config,
+                          @NotNull CommitChangesCache changesCache,
+                          @NotNull OperationContext context) throws VcsException {
     super(context.getRepository());
     myConfig = config;
+    myChangesCache = changesCache;
     myContext = context;
     myGitRoot = context.getGitRoot();
     myRepository = context.getRepository();
@@ -82,22 +97,147 @@ class ModificationDataRevWalk extends RevWalk {
   }
 
 
+  /**
+   * Limits changes of visited commits to paths included by the rules,
+   * excluded subtrees are not walked
+   */
+  public void limitByCheckoutRules(@NotNull CheckoutRules rules) {
+    myChangesCacheKey = null;
+    if (CheckoutRulesTreeFilter.includesAll(rules)) {
+      myCheckoutRules = null;
+      myCheckoutRulesFilter = null;
+    } else {
+      myCheckoutRules = rules;
+      myCheckoutRulesFilter = new CheckoutRulesTreeFilter(rules);
+    }
+  }
+
+
   @NotNull
   public ModificationData createModificationData() throws IOException, VcsException {
     if (myCurrentCommit == null)
       throw new IllegalStateException("Current commit is null");
+    parseParents(myCurrentCommit);
+    return createModificationData(myCurrentCommit, shouldIgnoreSubmodulesErrors(), null);
+  }
+
+
+  /**
+   * Visits at most maxCommits next commits and computes their changes on the given executor.
+   * Changes are computed by at most maxWorkers tasks, each task uses its own ObjectReader.
+   * Should not be used for roots with submodules checkout, since submodules resolution is not thread-safe.
+   * @return modification data of visited commits in the walk order, empty list if there are no more commits
+   */
+  @NotNull
+  public List<ModificationData> createModificationData(@NotNull ExecutorService executor, int maxWorkers, int maxCommits) throws IOException, VcsException {
+    final List<RevCommit> commits = new ArrayList<RevCommit>();
+    final BitSet ignoreSubmodulesErrors = new BitSet();
+    while (commits.size() < maxCommits && next() != null) {
+      parseParents(myCurrentCommit);//RevWalk is not thread-safe, parse everything needed upfront
+      if (shouldIgnoreSubmodulesErrors())
+        ignoreSubmodulesErrors.set(commits.size());
+      commits.add(myCurrentCommit);
+    }
+
+    final ModificationData[] result = new ModificationData[commits.size()];
+    final AtomicInteger nextCommit = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    int workers = Math.min(maxWorkers, commits.size());
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+    for (int i = 0; i < workers; i++) {
+      futures.add(executor.submit(() -> {
+        ObjectReader reader = myRepository.newObjectReader();
+        try {
+          int idx;
+          while (!failed.get() && (idx = nextCommit.getAndIncrement()) < result.length) {
+            result[idx] = createModificationData(commits.get(idx), ignoreSubmodulesErrors.get(idx), reader);
+          }
+        } catch (Exception e) {
+          failed.set(true);
+          throw e;
+        } finally {
+          reader.release();
+        }
+        return null;
+      }));
+    }
+
+    try {
+      for (Future<Void> f : futures) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      failed.set(true);
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while collecting changes", e);
+    } catch (ExecutionException e) {
+      failed.set(true);
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof VcsException)
+        throw (VcsException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new VcsException(cause);
+    }
+    return Arrays.asList(result);
+  }
+
+
+  /**
+   * Visits the specified number of commits without computing their changes
+   * @return the last visited commit or null if the walk has less commits
+   */
+  @Nullable
+  public RevCommit skip(int count) throws IOException {
+    RevCommit last = null;
+    for (int i = 0; i < count; i++) {
+      last = next();
+      if (last == null)
+        return null;
+    }
+    return last;
+  }
+
 
-    final String commitId = myCurrentCommit.getId().name();
-    String message = GitServerUtil.getFullMessage(myCurrentCommit);
-    final PersonIdent authorIdent = GitServerUtil.getAuthorIdent(myCurrentCommit);
+  private void parseParents(@NotNull RevCommit commit) throws IOException {
+    for (RevCommit parent : commit.getParents()) {
+      parseBody(parent);
+    }
+  }
+
+
+  /**
+   * Doesn't use the RevWalk, parents of the commit should be already parsed
+   */
+  @NotNull
+  private ModificationData createModificationData(@NotNull RevCommit commit,
+                                                  boolean ignoreSubmodulesErrors,
+                                                  @Nullable ObjectReader reader) throws IOException, VcsException {
+    final String commitId = commit.getId().name();
+    String message = GitServerUtil.getFullMessage(commit);
+    final PersonIdent authorIdent = GitServerUtil.getAuthorIdent(commit);
     if (LOG.isDebugEnabled()) {
       LOG.debug("Collecting changes in commit " + commitId + ":" + message + " (" + authorIdent.getWhen() + ") for " + myGitRoot.debugInfo());
     }
 
-    final String parentVersion = getFirstParentVersion(myCurrentCommit);
-    final CommitChangesBuilder builder = new CommitChangesBuilder(myCurrentCommit, commitId, parentVersion);
-    builder.collectCommitChanges();
-    final List<VcsChange> changes = builder.getChanges();
+    final String parentVersion = getFirstParentVersion(commit);
+    final ObjectId cacheKey = myChangesCache.isEnabled() ? getChangesCacheKey() : null;
+    CommitChangesCache.CommitChanges commitChanges = null;
+    if (cacheKey != null)
+      commitChanges = myChangesCache.get(myRepository.getDirectory(), commit, cacheKey, commitId, parentVersion);
+    if (commitChanges == null) {
+      final CommitChangesBuilder builder = new CommitChangesBuilder(commit, commitId, parentVersion, ignoreSubmodulesErrors, reader);
+      builder.collectCommitChanges();
+      commitChanges = new CommitChangesCache.CommitChanges(builder.getChanges(), builder.getAttributes());
+      //changes computed with ignored submodule errors can be different once submodules are fixed
+      if (cacheKey != null && !builder.hasBrokenSubmodules())
+        myChangesCache.put(myRepository.getDirectory(), commit, cacheKey, commitId, parentVersion, commitChanges);
+    }
+    final List<VcsChange> changes = commitChanges.getChanges();
 
     final ModificationData result = new ModificationData(
       authorIdent.getWhen(),
@@ -108,13 +248,12 @@ class ModificationDataRevWalk extends RevWalk {
       commitId,
       commitId);
 
-    Map<String, String> attributes = builder.getAttributes();
+    Map<String, String> attributes = commitChanges.getAttributes();
     if (!attributes.isEmpty())
       result.setAttributes(attributes);
 
-    if (myCurrentCommit.getParentCount() > 0) {
-      for (RevCommit parent : myCurrentCommit.getParents()) {
-        parseBody(parent);
+    if (commit.getParentCount() > 0) {
+      for (RevCommit parent : commit.getParents()) {
         result.addParentRevision(parent.getId().name());
       }
     } else {
@@ -124,6 +263,24 @@ class ModificationDataRevWalk extends RevWalk {
   }
 
 
+  /**
+   * @return key of settings affecting changes computed for a commit. Changes with broken
+   * submodules are not cached, so errors ignorance doesn't affect the changes and the
+   * policy with ignored errors is used in the key.
+   */
+  @NotNull
+  private ObjectId getChangesCacheKey() {
+    if (myChangesCacheKey != null)
+      return myChangesCacheKey;
+    SubmodulesCheckoutPolicy policy = SubmodulesCheckoutPolicy.getPolicyWithErrorsIgnored(myGitRoot.getSubmodulesCheckoutPolicy(), true);
+    String settings = policy.name() + (myConfig.reportPerParentChangedFiles() ? ":perParentChangedFiles" : "");
+    if (myCheckoutRules != null)
+      settings += ":rules=" + myCheckoutRules.getAsString();
+    myChangesCacheKey = CommitChangesCache.getKey(settings);
+    return myChangesCacheKey;
+  }
+
+
   private boolean shouldLimitByNumberOfCommits() {
     return myNumberOfCommitsToVisit != -1;
   }
@@ -135,14 +292,12 @@ class ModificationDataRevWalk extends RevWalk {
 
 
   @NotNull
-  private String getFirstParentVersion(@NotNull final RevCommit commit) throws IOException {
+  private String getFirstParentVersion(@NotNull final RevCommit commit) {
     final RevCommit[] parents = commit.getParents();
     if (parents.length == 0) {
       return ObjectId.zeroId().name();
     } else {
-      RevCommit parent = parents[0];
-      parseBody(parent);
-      return parent.getId().name();
+      return parents[0].getId().name();
     }
   }
 
@@ -150,6 +305,8 @@ class ModificationDataRevWalk extends RevWalk {
     private final RevCommit commit;
     private final String currentVersion;
     private final String parentVersion;
+    private final boolean ignoreSubmodulesErrors;
+    private final ObjectReader reader;
     private final List<VcsChange> changes = new ArrayList<VcsChange>();
     private final Map<String, String> myAttributes = new HashMap<>();
     private final String repositoryDebugInfo = myGitRoot.debugInfo();
@@ -160,13 +317,19 @@ class ModificationDataRevWalk extends RevWalk {
      * @param commit current commit
      * @param currentVersion teamcity version of current commit (sha@time)
      * @param parentVersion parent version to use in VcsChange objects
+     * @param ignoreSubmodulesErrors whether submodule errors in the current commit should be ignored
+     * @param reader reader to use, if null the tree walk creates a new one
      */
     public CommitChangesBuilder(@NotNull final RevCommit commit,
                                 @NotNull final String currentVersion,
-                                @NotNull final String parentVersion) {
+                                @NotNull final String parentVersion,
+                                final boolean ignoreSubmodulesErrors,
+                                @Nullable final ObjectReader reader) {
       this.commit = commit;
       this.currentVersion = currentVersion;
       this.parentVersion = parentVersion;
+      this.ignoreSubmodulesErrors = ignoreSubmodulesErrors;
+      this.reader = reader;
     }
 
     @NotNull
@@ -179,15 +342,21 @@ class ModificationDataRevWalk extends RevWalk {
       return myAttributes;
     }
 
+    public boolean hasBrokenSubmodules() {
+      return filter.hasBrokenSubmodules();
+    }
+
     /**
      * collect changes for the commit
      */
     public void collectCommitChanges() throws IOException, VcsException {
-      final VcsChangeTreeWalk tw = new VcsChangeTreeWalk(myRepository, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
+      final VcsChangeTreeWalk tw = reader != null ? new VcsChangeTreeWalk(reader, repositoryDebugInfo, myConfig.verboseTreeWalkLog())
+                                                  : new VcsChangeTreeWalk(myRepository, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
       try {
-        tw.setFilter(filter);
+        //rules filter goes first, so broken submodules are detected only in included paths
+        tw.setFilter(myCheckoutRulesFilter != null ? AndTreeFilter.create(myCheckoutRulesFilter, filter) : filter);
         tw.setRecursive(true);
-        myContext.addTree(myGitRoot, tw, myRepository, commit, shouldIgnoreSubmodulesErrors());
+        myContext.addTree(myGitRoot, tw, myRepository, commit, ignoreSubmodulesErrors);
         RevCommit[] parents = commit.getParents();
         boolean reportPerParentChangedFiles = myConfig.reportPerParentChangedFiles() && parents.length > 1; // report only for merge commits
         for (RevCommit parentCommit : parents) {
@@ -299,30 +468,46 @@ class ModificationDataRevWalk extends RevWalk {
         int depth = 0;
         while (result == null && depth < mySearchDepth && (prevRev = revWalk.next()) != null) {
           depth++;
-          final TreeWalk prevTreeWalk = new TreeWalk(myRepository);
-          try {
-            prevTreeWalk.setFilter(TreeFilter.ALL);
-            prevTreeWalk.setRecursive(true);
-            myContext.addTree(myGitRoot, prevTreeWalk, myRepository, prevRev, true, false, null);
-            while(prevTreeWalk.next()) {
-              String path = prevTreeWalk.getPathString();
-              if (path.startsWith(submodulePath + "/")) {
-                final SubmoduleAwareTreeIterator iter = prevTreeWalk.getTree(0, SubmoduleAwareTreeIterator.class);
-                final SubmoduleAwareTreeIterator parentIter = iter.getParent();
-                if (iter != null && !iter.isSubmoduleError() && parentIter != null && parentIter.isOnSubmodule()) {
-                  result = prevRev;
-                  break;
-                }
-              }
-            }
-          } finally {
-            prevTreeWalk.release();
-          }
+          if (isSubmoduleFixed(prevRev, submodulePath))
+            result = prevRev;
         }
         return result;
       } finally {
         revWalk.release();
       }
     }
+
+    /**
+     * @return true if the submodule at the specified path is resolved without errors in the commit
+     */
+    private boolean isSubmoduleFixed(@NotNull RevCommit commit, @NotNull String submodulePath) throws IOException, VcsException {
+      String key = commit.name() + ":" + submodulePath;
+      Boolean fixed = myFixedSubmodules.get(key);
+      if (fixed != null)
+        return fixed;
+      fixed = false;
+      final TreeWalk treeWalk = new TreeWalk(myRepository);
+      try {
+        //only the submodule and its parent dirs are read
+        treeWalk.setFilter(PathFilter.create(submodulePath));
+        treeWalk.setRecursive(true);
+        myContext.addTree(myGitRoot, treeWalk, myRepository, commit, true, false, null);
+        while (treeWalk.next()) {
+          String path = treeWalk.getPathString();
+          if (path.startsWith(submodulePath + "/")) {
+            final SubmoduleAwareTreeIterator iter = treeWalk.getTree(0, SubmoduleAwareTreeIterator.class);
+            final SubmoduleAwareTreeIterator parentIter = iter.getParent();
+            if (iter != null && !iter.isSubmoduleError() && parentIter != null && parentIter.isOnSubmodule()) {
+              fixed = true;
+              break;
+            }
+          }
+        }
+      } finally {
+        treeWalk.release();
+      }
+      myFixedSubmodules.put(key, fixed);
+      return fixed;
+    }
   }
 }
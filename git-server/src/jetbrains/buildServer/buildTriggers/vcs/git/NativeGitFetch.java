@@ -0,0 +1,532 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.SimpleCommandLineProcessRunner;
+import jetbrains.buildServer.ssh.TeamCitySshKey;
+import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.intellij.openapi.util.text.StringUtil.isEmpty;
+
+/**
+ * Fetch engine running 'git fetch' of the git installed on the server in a bare clone.
+ *
+ * The engine is used when it is selected in the plugin config or in the config of
+ * a repository. Fetch falls back to JGit when the git is not found, when auth settings
+ * cannot be passed to the git (e.g. password authentication over ssh) or when git fails
+ * for reasons other than a failed ref update. Removed branches are pruned like
+ * in JGit fetch using the output of 'git ls-remote'.
+ */
+final class NativeGitFetch {
+
+  private static final Logger LOG = Logger.getInstance(NativeGitFetch.class.getName());
+  private static final Logger PERFORMANCE_LOG = Logger.getInstance(NativeGitFetch.class.getName() + ".Performance");
+  static final String ENGINE_JGIT = "jgit";
+  static final String ENGINE_NATIVE = "native";
+  private static final String ENGINE_CONFIG_SECTION = "teamcity";
+  private static final String ENGINE_CONFIG_NAME = "fetchEngine";
+  private static final String PASSWORD_ENV = "TEAMCITY_GIT_PASSWORD";
+  private static final long GIT_CHECK_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  //GIT_SSH_COMMAND is supported since git 2.3.0
+  private static final int[] MIN_GIT_VERSION = {2, 3};
+  private static final Pattern GIT_VERSION = Pattern.compile("git version (\\d+)\\.(\\d+).*");
+  private static final Pattern MISSING_REMOTE_REF = Pattern.compile("couldn't find remote ref (\\S+)");
+  private static final Pattern LOCK_FAILURE = Pattern.compile("cannot lock ref '([^']+)'");
+  private static final Pattern REJECTED = Pattern.compile("! \\[rejected\\]\\s+\\S+\\s+->\\s+(\\S+)");
+  //reported when a remote speaking the protocol version 0 has no allow-reachable-sha1-in-want capability
+  private static final String UNADVERTISED_OBJECT_NOT_ALLOWED = "not allow request for unadvertised object";
+  private static final Pattern PROGRESS = Pattern.compile(".*:\\s+\\d+% \\(.*");
+
+  private final ServerPluginConfig myConfig;
+  private final VcsRootSshKeyManager mySshKeyManager;
+  //result of the last check of the git, it is repeated periodically to notice git installation or update
+  private volatile GitCheck myGitCheck;
+
+  NativeGitFetch(@NotNull ServerPluginConfig config, @NotNull VcsRootSshKeyManager sshKeyManager) {
+    myConfig = config;
+    mySshKeyManager = sshKeyManager;
+  }
+
+
+  boolean isEnabled(@NotNull Repository db) {
+    String engine = db.getConfig().getString(ENGINE_CONFIG_SECTION, null, ENGINE_CONFIG_NAME);
+    if (engine == null)
+      engine = myConfig.getFetchEngine();
+    return ENGINE_NATIVE.equalsIgnoreCase(engine.trim());
+  }
+
+
+  /**
+   * @return true if the fetch is done, false if it should be done by JGit
+   * @throws VcsException if fetch failed and there is no point in retrying it with JGit
+   */
+  boolean fetch(@NotNull Repository db,
+                @NotNull URIish uri,
+                @NotNull Collection<RefSpec> refSpecs,
+                @NotNull FetchSettings settings) throws VcsException {
+    if (!isEnabled(db) || !isGitAvailable())
+      return false;
+    GitAuth auth;
+    try {
+      auth = GitAuth.create(settings.getAuthSettings(), uri, mySshKeyManager);
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Cannot prepare auth settings for native git fetch, fetch using JGit", e);
+      return false;
+    }
+    if (auth == null) {
+      LOG.debug("Auth settings of " + uri + " are not supported by native git fetch, fetch using JGit");
+      return false;
+    }
+    try {
+      RemoteConnection connection = settings.getRemoteConnection();
+      if (connection != null) {
+        GitServerUtil.pruneRemovedBranches(db, connection.getAdvertisedRefs().keySet());
+      } else {
+        pruneRemovedBranches(db, auth);
+      }
+      List<RefSpec> specs = new ArrayList<RefSpec>(refSpecs);
+      while (true) {
+        ExecResult result = runFetch(db, auth, specs, settings);
+        if (result.getExitCode() == 0 && result.getException() == null)
+          return true;
+        String stderr = filterProgress(result.getStderr());
+        checkRefsUpdated(db, stderr);
+        if (result.getException() != null) {
+          //a timeout, JGit will hit it too
+          throw CommandLineUtil.getCommandLineError("git fetch", " (repository dir: <TeamCity data dir>/system/caches/git/" + db.getDirectory().getName() + ")",
+                                                    result.getExitCode(), result.getException(), result.getStdout(), stderr, true, true);
+        }
+        String missingRef = getMissingRemoteRef(stderr);
+        if (missingRef != null && myConfig.ignoreMissingRemoteRef() && removeSpec(specs, missingRef)) {
+          if (specs.isEmpty())
+            return true;
+          continue;
+        }
+        LOG.warn("Native git fetch in " + db.getDirectory().getAbsolutePath() + " failed, fetch using JGit. Error output: " + stderr.trim());
+        return false;
+      }
+    } finally {
+      auth.dispose();
+    }
+  }
+
+
+  /**
+   * Fetches the commit by id without updating refs, the remote repository should allow requests for unadvertised objects
+   *
+   * @return UNAVAILABLE if native git cannot be used for the repository, NOT_ALLOWED if the remote doesn't allow fetching the commit
+   */
+  @NotNull
+  FetchCommand.FetchCommitResult fetchCommit(@NotNull Repository db,
+                                             @NotNull URIish uri,
+                                             @NotNull ObjectId commitId,
+                                             @NotNull FetchSettings settings) throws VcsException {
+    if (!isEnabled(db) || !isGitAvailable())
+      return FetchCommand.FetchCommitResult.UNAVAILABLE;
+    GitAuth auth;
+    try {
+      auth = GitAuth.create(settings.getAuthSettings(), uri, mySshKeyManager);
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Cannot prepare auth settings for native git fetch", e);
+      return FetchCommand.FetchCommitResult.UNAVAILABLE;
+    }
+    if (auth == null)
+      return FetchCommand.FetchCommitResult.UNAVAILABLE;
+    try {
+      ExecResult result = runFetch(db, auth, Collections.singletonList(new RefSpec(commitId.name())), settings);
+      if (result.getExitCode() == 0 && result.getException() == null)
+        return FetchCommand.FetchCommitResult.FETCHED;
+      String stderr = filterProgress(result.getStderr());
+      if (stderr.contains(UNADVERTISED_OBJECT_NOT_ALLOWED))
+        return FetchCommand.FetchCommitResult.NOT_ALLOWED;
+      throw CommandLineUtil.getCommandLineError("git fetch", " (repository dir: <TeamCity data dir>/system/caches/git/" + db.getDirectory().getName() + ")",
+                                                result.getExitCode(), result.getException(), result.getStdout(), stderr, true, true);
+    } finally {
+      auth.dispose();
+    }
+  }
+
+
+  private boolean isGitAvailable() {
+    String pathToGit = myConfig.getPathToGit();
+    GitCheck check = myGitCheck;
+    if (check != null && check.myPathToGit.equals(pathToGit) && check.myCheckTime + GIT_CHECK_TTL_MILLIS > System.currentTimeMillis())
+      return check.myAvailable;
+    boolean available = checkGit(pathToGit);
+    myGitCheck = new GitCheck(pathToGit, System.currentTimeMillis(), available);
+    return available;
+  }
+
+
+  private boolean checkGit(@NotNull String pathToGit) {
+    GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setExePath(pathToGit);
+    cmd.addParameter("version");
+    ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null);
+    VcsException commandError = CommandLineUtil.getCommandLineError("git version", result);
+    if (commandError != null) {
+      LOG.warnAndDebugDetails("Failed to run git at path '" + pathToGit + "', fetch using JGit", commandError);
+      return false;
+    }
+    Matcher m = GIT_VERSION.matcher(result.getStdout().trim());
+    if (!m.matches()) {
+      LOG.warn("Cannot parse the version of git at path '" + pathToGit + "': " + result.getStdout().trim() + ", fetch using JGit");
+      return false;
+    }
+    int major = Integer.parseInt(m.group(1));
+    int minor = Integer.parseInt(m.group(2));
+    if (major < MIN_GIT_VERSION[0] || major == MIN_GIT_VERSION[0] && minor < MIN_GIT_VERSION[1]) {
+      LOG.warn("Git at path '" + pathToGit + "' is too old for fetch, required version is " + MIN_GIT_VERSION[0] + "." + MIN_GIT_VERSION[1] + ", fetch using JGit");
+      return false;
+    }
+    return true;
+  }
+
+
+  private void pruneRemovedBranches(@NotNull Repository db, @NotNull GitAuth auth) {
+    GeneralCommandLine cmd = createCommandLine(db, auth);
+    cmd.addParameters("ls-remote", auth.getUrl());
+    ExecResult result = run(cmd, myConfig.getRepositoryStateTimeoutSeconds());
+    VcsException commandError = CommandLineUtil.getCommandLineError("git ls-remote", result);
+    if (commandError != null) {
+      LOG.info("Failed to list remote refs, continue without pruning removed refs", commandError);
+      return;
+    }
+    Set<String> remoteRefs = new HashSet<String>();
+    for (String line : result.getStdout().split("\n")) {
+      int idx = line.indexOf('\t');
+      if (idx != -1)
+        remoteRefs.add(line.substring(idx + 1).trim());
+    }
+    GitServerUtil.pruneRemovedBranches(db, remoteRefs);
+  }
+
+
+  @NotNull
+  private ExecResult runFetch(@NotNull Repository db,
+                              @NotNull GitAuth auth,
+                              @NotNull List<RefSpec> specs,
+                              @NotNull FetchSettings settings) {
+    GeneralCommandLine cmd = createCommandLine(db, auth);
+    cmd.addParameters("fetch", "--progress", auth.getUrl());
+    for (RefSpec spec : specs) {
+      cmd.addParameter(spec.toString());
+    }
+    String debugInfo = db.getDirectory().getAbsolutePath() + ", " + auth.getUrl();
+    settings.getProgress().reportProgress("git fetch " + auth.getUrl());
+    long start = System.currentTimeMillis();
+    try {
+      return run(cmd, myConfig.getFetchTimeout());
+    } finally {
+      settings.getProgress().reportProgress("git fetch " + auth.getUrl() + " finished");
+      if (PERFORMANCE_LOG.isDebugEnabled())
+        PERFORMANCE_LOG.debug("[native git fetch] root=" + debugInfo + ", took " + (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+
+  @NotNull
+  private GeneralCommandLine createCommandLine(@NotNull Repository db, @NotNull GitAuth auth) {
+    GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setWorkingDirectory(db.getDirectory());
+    cmd.setExePath(myConfig.getPathToGit());
+    cmd.setPassParentEnvs(myConfig.passEnvToChildProcess());
+    Map<String, String> env = new HashMap<String, String>(auth.getEnv());
+    env.put("GIT_TERMINAL_PROMPT", "0");
+    cmd.setEnvParams(env);
+    cmd.addParameter("--git-dir=" + db.getDirectory().getAbsolutePath());
+    //credentials are provided by the askpass script only, gc is run by the cleanup
+    cmd.addParameters("-c", "credential.helper=");
+    cmd.addParameters("-c", "gc.auto=0");
+    return cmd;
+  }
+
+
+  @NotNull
+  private static ExecResult run(@NotNull GeneralCommandLine cmd, final int idleTimeoutSeconds) {
+    return SimpleCommandLineProcessRunner.runCommand(cmd, null, new SimpleCommandLineProcessRunner.RunCommandEventsAdapter() {
+      @Override
+      public Integer getOutputIdleSecondsTimeout() {
+        return idleTimeoutSeconds;
+      }
+    });
+  }
+
+
+  private static void checkRefsUpdated(@NotNull Repository db, @NotNull String stderr) throws VcsException {
+    Matcher m = LOCK_FAILURE.matcher(stderr);
+    if (m.find())
+      throw new VcsException(GitServerUtil.getRefUpdateErrorMessage(db, m.group(1), RefUpdate.Result.LOCK_FAILURE));
+    m = REJECTED.matcher(stderr);
+    if (m.find())
+      throw new VcsException(GitServerUtil.getRefUpdateErrorMessage(db, m.group(1), RefUpdate.Result.REJECTED));
+  }
+
+
+  @Nullable
+  private static String getMissingRemoteRef(@NotNull String stderr) {
+    Matcher m = MISSING_REMOTE_REF.matcher(stderr);
+    return m.find() ? m.group(1) : null;
+  }
+
+
+  private static boolean removeSpec(@NotNull List<RefSpec> specs, @NotNull String source) {
+    boolean removed = false;
+    for (Iterator<RefSpec> it = specs.iterator(); it.hasNext();) {
+      RefSpec spec = it.next();
+      if (source.equals(spec.getSource()) || GitUtils.expandRef(source).equals(spec.getSource())) {
+        it.remove();
+        removed = true;
+      }
+    }
+    return removed;
+  }
+
+
+  /**
+   * Removes progress lines from the git error output
+   */
+  @NotNull
+  private static String filterProgress(@NotNull String stderr) {
+    StringBuilder result = new StringBuilder();
+    for (String line : stderr.split("\n")) {
+      int idx = line.lastIndexOf('\r');
+      String l = idx != -1 ? line.substring(idx + 1) : line;
+      if (!l.isEmpty() && !PROGRESS.matcher(l).matches())
+        result.append(l).append('\n');
+    }
+    return result.toString();
+  }
+
+
+  private static final class GitCheck {
+    private final String myPathToGit;
+    private final long myCheckTime;
+    private final boolean myAvailable;
+
+    private GitCheck(@NotNull String pathToGit, long checkTime, boolean available) {
+      myPathToGit = pathToGit;
+      myCheckTime = checkTime;
+      myAvailable = available;
+    }
+  }
+
+
+  /**
+   * Url and environment passing auth settings to git, temporary files are removed by {@link #dispose()}
+   */
+  private static final class GitAuth {
+    private final String myUrl;
+    private final Map<String, String> myEnv = new HashMap<String, String>();
+    private final List<File> myTempFiles = new ArrayList<File>();
+
+    private GitAuth(@NotNull String url) {
+      myUrl = url;
+    }
+
+    /**
+     * @return auth for the given settings or null if git cannot use them
+     */
+    @Nullable
+    static GitAuth create(@NotNull AuthSettings authSettings,
+                          @NotNull URIish uri,
+                          @NotNull VcsRootSshKeyManager sshKeyManager) throws IOException, VcsException {
+      boolean http = "http".equals(uri.getScheme()) || "https".equals(uri.getScheme());
+      boolean ssh = !http && uri.getHost() != null && !"git".equals(uri.getScheme());
+      switch (authSettings.getAuthMethod()) {
+        case ANONYMOUS:
+          return new GitAuth(uri.toString());
+        case PASSWORD: {
+          if (!http)
+            return null;
+          URIish url = uri;
+          if (!isEmpty(authSettings.getUserName()))
+            url = url.setUser(authSettings.getUserName());
+          GitAuth result = new GitAuth(url.setPass(null).toString());
+          String password = authSettings.getPassword();
+          if (!isEmpty(password))
+            result.setPassword(password);
+          return result;
+        }
+        case PRIVATE_KEY_DEFAULT: {
+          if (!ssh)
+            return null;
+          GitAuth result = new GitAuth(authSettings.createAuthURI(uri).toString());
+          result.setSshCommand(authSettings, null);
+          return result;
+        }
+        case PRIVATE_KEY_FILE:
+        case TEAMCITY_SSH_KEY: {
+          if (!ssh)
+            return null;
+          GitAuth result = new GitAuth(authSettings.createAuthURI(uri).toString());
+          try {
+            File key = result.preparePrivateKey(authSettings, sshKeyManager);
+            if (key == null) {
+              result.dispose();
+              return null;
+            }
+            result.setSshCommand(authSettings, key);
+          } catch (IOException | VcsException | RuntimeException e) {
+            result.dispose();
+            throw e;
+          }
+          return result;
+        }
+        default:
+          return null;
+      }
+    }
+
+    @NotNull
+    String getUrl() {
+      return myUrl;
+    }
+
+    @NotNull
+    Map<String, String> getEnv() {
+      return myEnv;
+    }
+
+    void dispose() {
+      for (File f : myTempFiles) {
+        FileUtil.delete(f);
+      }
+    }
+
+    private void setPassword(@NotNull String password) throws IOException {
+      //the password is passed in the environment, the script doesn't contain it
+      File script = FileUtil.createTempFile("askpass", SystemInfo.isWindows ? ".bat" : "");
+      myTempFiles.add(script);
+      PrintWriter out = new PrintWriter(new FileWriter(script));
+      try {
+        if (SystemInfo.isWindows) {
+          out.println("@setlocal EnableDelayedExpansion");
+          out.println("@echo !" + PASSWORD_ENV + "!");
+        } else {
+          out.println("#!/bin/sh");
+          out.println("printf '%s' \"$" + PASSWORD_ENV + "\"");
+        }
+      } finally {
+        out.close();
+      }
+      if (!script.setExecutable(true))
+        throw new IOException("Cannot make askpass script executable");
+      myEnv.put("GIT_ASKPASS", script.getAbsolutePath());
+      myEnv.put(PASSWORD_ENV, password);
+    }
+
+    /**
+     * @return a file with the unencrypted private key or null if the key is not found
+     */
+    @Nullable
+    private File preparePrivateKey(@NotNull AuthSettings authSettings, @NotNull VcsRootSshKeyManager sshKeyManager) throws IOException, VcsException {
+      byte[] keyBytes;
+      if (authSettings.getAuthMethod() == AuthenticationMethod.TEAMCITY_SSH_KEY) {
+        VcsRoot root = authSettings.getRoot();
+        TeamCitySshKey key = root != null ? sshKeyManager.getKey(root) : null;
+        if (key == null)
+          return null;
+        keyBytes = key.getPrivateKey();
+      } else {
+        String path = authSettings.getPrivateKeyFilePath();
+        if (isEmpty(path) || !new File(path).isFile())
+          return null;
+        if (isEmpty(authSettings.getPassphrase()))
+          return new File(path);
+        keyBytes = Files.readAllBytes(new File(path).toPath());
+      }
+      //ssh cannot ask for a passphrase, so an encrypted key is decrypted to a temporary file
+      ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+      try {
+        KeyPair keyPair = KeyPair.load(new JSch(), keyBytes, null);
+        if (keyPair.isEncrypted() && !keyPair.decrypt(authSettings.getPassphrase()))
+          throw new VcsException("Wrong SSH key passphrase");
+        keyPair.writePrivateKey(decrypted, null);
+      } catch (com.jcraft.jsch.JSchException e) {
+        throw new VcsException("Cannot load SSH key", e);
+      }
+      //the file is readable by the owner only before the key is written, ssh also rejects keys readable by others
+      File keyFile = createOwnerOnlyTempFile("private", "key");
+      myTempFiles.add(keyFile);
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(keyFile));
+      try {
+        decrypted.writeTo(out);
+      } finally {
+        out.close();
+      }
+      return keyFile;
+    }
+
+    @NotNull
+    private File createOwnerOnlyTempFile(@NotNull String prefix, @NotNull String suffix) throws IOException {
+      if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+        return Files.createTempFile(prefix, suffix, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))).toFile();
+      Path file = Files.createTempFile(prefix, suffix);
+      try {
+        AclFileAttributeView view = Files.getFileAttributeView(file, AclFileAttributeView.class);
+        if (view == null)
+          throw new IOException("Cannot restrict access to " + file);
+        UserPrincipal owner = Files.getOwner(file);
+        view.setAcl(Collections.singletonList(AclEntry.newBuilder()
+                                                .setType(AclEntryType.ALLOW)
+                                                .setPrincipal(owner)
+                                                .setPermissions(AclEntryPermission.values())
+                                                .build()));
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(file);
+        throw e;
+      }
+      return file.toFile();
+    }
+
+    private void setSshCommand(@NotNull AuthSettings authSettings, @Nullable File privateKey) {
+      StringBuilder sshCommand = new StringBuilder("ssh -o BatchMode=yes");
+      if (privateKey != null)
+        sshCommand.append(" -o IdentitiesOnly=yes -i \"").append(privateKey.getAbsolutePath().replace('\\', '/')).append("\"");
+      if (authSettings.isIgnoreKnownHosts())
+        sshCommand.append(" -o StrictHostKeyChecking=no");
+      myEnv.put("GIT_SSH_COMMAND", sshCommand.toString());
+    }
+  }
+}
@@ -22,11 +22,16 @@ import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.errors.NoRemoteRepositoryException;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.treewalk.TreeWalk;
@@ -38,6 +43,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.SubmodulesCheckoutPolicy.getPolicyWithErrorsIgnored;
 import static jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleAwareTreeIteratorFactory.create;
@@ -58,6 +66,8 @@ public class OperationContext {
   private final GitProgress myProgress;
   private final ServerPluginConfig myPluginConfig;
   private final Map<String, StoredConfig> myConfigsCache = new HashMap<String, StoredConfig>(); //repository path -> its config
+  private final Map<String, RemoteConnection> myRemoteConnections = new HashMap<String, RemoteConnection>(); //fetch url -> connection
+  private FetchPriority myFetchPriority = FetchPriority.INTERACTIVE;
 
   public OperationContext(@NotNull final CommitLoader commitLoader,
                           @NotNull final RepositoryManager repositoryManager,
@@ -109,6 +119,35 @@ public class OperationContext {
     return getRepository(dir, uri);
   }
 
+  /**
+   * @return priority of fetches made by the operation
+   */
+  @NotNull
+  public FetchPriority getFetchPriority() {
+    return myFetchPriority;
+  }
+
+  public void setFetchPriority(@NotNull FetchPriority fetchPriority) {
+    myFetchPriority = fetchPriority;
+  }
+
+  /**
+   * Keeps the connection opened by the operation until the operation ends
+   */
+  public void addRemoteConnection(@NotNull RemoteConnection connection) {
+    RemoteConnection old = myRemoteConnections.put(connection.getUri().toString(), connection);
+    if (old != null)
+      old.close();
+  }
+
+  /**
+   * @return connection to the given url opened by the operation or null if there is no such connection
+   */
+  @Nullable
+  public RemoteConnection getRemoteConnection(@NotNull URIish fetchUrl) {
+    return myRemoteConnections.get(fetchUrl.toString());
+  }
+
   public GitVcsRoot getGitRoot() throws VcsException {
     return getGitRoot(myRoot);
   }
@@ -135,12 +174,131 @@ public class OperationContext {
     if (alreadyFetched(fetchURI, refSpecs))
       return;
     try {
-      myCommitLoader.fetch(db, fetchURI, refSpecs, new FetchSettings(auth));
+      myCommitLoader.fetch(db, fetchURI, refSpecs, new FetchSettings(auth, GitProgress.NO_OP, myFetchPriority));
     } finally {
       markAsFetched(fetchURI, refSpecs);
     }
   }
 
+  /**
+   * Fetches submodule repositories concurrently, repositories already fetched by the operation are skipped.
+   * Fetch errors are only logged: a repository is not marked as fetched on error, so the error is
+   * reported when a commit from the repository is resolved.
+   */
+  public void fetchSubmodules(@NotNull Map<URIish, Repository> submodules,
+                              @NotNull Collection<RefSpec> refSpecs,
+                              @NotNull AuthSettings auth,
+                              @NotNull ExecutorService executor) throws VcsException {
+    Map<URIish, Future<?>> fetches = new LinkedHashMap<URIish, Future<?>>();
+    for (Map.Entry<URIish, Repository> e : submodules.entrySet()) {
+      URIish fetchURI = e.getKey();
+      Repository db = e.getValue();
+      if (alreadyFetched(fetchURI, refSpecs))
+        continue;
+      FetchSettings settings = new FetchSettings(auth, GitProgress.NO_OP, myFetchPriority);
+      fetches.put(fetchURI, executor.submit(() -> {
+        myRepositoryManager.runWithDisabledRemove(db.getDirectory(), () -> {
+          try {
+            myCommitLoader.fetch(db, fetchURI, refSpecs, settings);
+          } catch (IOException ex) {
+            throw new VcsException(ex);
+          }
+        });
+        return null;
+      }));
+    }
+    try {
+      for (Map.Entry<URIish, Future<?>> e : fetches.entrySet()) {
+        try {
+          e.getValue().get();
+          markAsFetched(e.getKey(), refSpecs);
+        } catch (ExecutionException ex) {
+          LOG.debug("Error while fetching submodule " + e.getKey(), ex.getCause());
+        }
+      }
+    } catch (InterruptedException ex) {
+      for (Future<?> f : fetches.values()) {
+        f.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while fetching submodules", ex);
+    }
+  }
+
+  /**
+   * @return true if the repository is a blobless clone and file contents should be loaded
+   * using {@link #loadMissingBlobs}, {@link #openObject} or {@link #readFile}
+   */
+  public boolean isBloblessClone(@NotNull Repository db) {
+    return BloblessClones.isBlobless(getConfig(db));
+  }
+
+  /**
+   * Fetches blobs missing in a blobless clone in a single request. Callers needing contents of
+   * several files should load them by one call before reading the contents.
+   */
+  public void loadMissingBlobs(@NotNull Repository db, @NotNull Collection<ObjectId> blobs) throws VcsException {
+    if (blobs.isEmpty() || !isBloblessClone(db))
+      return;
+    Set<ObjectId> missing = new LinkedHashSet<ObjectId>();
+    for (ObjectId id : blobs) {
+      if (!db.hasObject(id))
+        missing.add(id.copy());
+    }
+    if (missing.isEmpty())
+      return;
+    String remote = getConfig(db).getString("teamcity", null, "remote");
+    if (remote == null)
+      throw new VcsException("Cannot fetch missing blobs into " + db.getDirectory() + ": remote url is unknown");
+    try {
+      URIish fetchURI = new URIish(remote);
+      FetchSettings settings = new FetchSettings(getGitRoot().getAuthSettings(), GitProgress.NO_OP, myFetchPriority);
+      myCommitLoader.fetchBlobs(db, fetchURI, missing, settings);
+    } catch (Exception e) {
+      throw wrapException(e);
+    }
+  }
+
+  /**
+   * Opens the object, a blob missing in a blobless clone is fetched first
+   */
+  @NotNull
+  public ObjectLoader openObject(@NotNull Repository db, @NotNull ObjectId id) throws IOException, VcsException {
+    try {
+      return db.open(id);
+    } catch (MissingObjectException e) {
+      if (!isBloblessClone(db))
+        throw e;
+      loadMissingBlobs(db, Collections.singleton(id));
+      return db.open(id);
+    }
+  }
+
+  /**
+   * Reads the file at the specified path in the commit, a blob missing in a blobless clone is fetched first
+   * @return file content or null if the commit has no such file
+   */
+  @Nullable
+  public byte[] readFile(@NotNull Repository db, @NotNull RevCommit commit, @NotNull String path) throws IOException, VcsException {
+    RevTree tree = commit.getTree();
+    if (tree == null) {
+      RevWalk walk = new RevWalk(db);
+      try {
+        tree = walk.parseCommit(commit).getTree();
+      } finally {
+        walk.dispose();
+      }
+    }
+    TreeWalk tw = TreeWalk.forPath(db, path, tree);
+    if (tw == null)
+      return null;
+    try {
+      return openObject(db, tw.getObjectId(0)).getCachedBytes();
+    } finally {
+      tw.release();
+    }
+  }
+
   private boolean alreadyFetched(@NotNull URIish uri, @NotNull Collection<RefSpec> refSpecs) {
     return myAlreadyFetched.contains(makeKey(uri, refSpecs));
   }
@@ -190,6 +348,15 @@ public class OperationContext {
    */
   public void close() {
     RuntimeException e = null;
+    //connections use the repositories, close them first
+    for (RemoteConnection c : myRemoteConnections.values()) {
+      try {
+        c.close();
+      } catch (RuntimeException ex) {
+        LOG.warn("Exception during closing connection to " + c.getUri(), ex);
+      }
+    }
+    myRemoteConnections.clear();
     for (Repository r : myRepositories.values()) {
       try {
         myRepositoryManager.closeRepository(r);
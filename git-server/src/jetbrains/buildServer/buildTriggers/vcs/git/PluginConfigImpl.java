@@ -201,6 +201,14 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.server.git.gc.quota.minutes", 60);
   }
 
+  public int getGcThreads() {
+    return TeamCityProperties.getInteger("teamcity.server.git.gc.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+  }
+
+  public int getGcIoBudgetMb() {
+    return TeamCityProperties.getInteger("teamcity.server.git.gc.ioBudgetMb", 8192);
+  }
+
   public String getFetchClasspath() {
     Set<Class> classes = fetchProcessClasses();
     return ClasspathUtil.composeClasspath(classes.toArray(new Class[classes.size()]), null, null);
@@ -425,6 +433,14 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.git.map.full.path.revision.cache.size", 100);
   }
 
+  public int getRevisionCacheJournalSizeFactor() {
+    return TeamCityProperties.getInteger("teamcity.git.revisionCacheJournalSizeFactor", 4);
+  }
+
+  public int getRevisionsCacheWarmUpThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.revisionsCacheWarmUpThreads", 2);
+  }
+
   public long getConnectionRetryIntervalMillis() {
     return TeamCityProperties.getInteger("teamcity.git.connectionRetryIntervalSeconds", 4) * 1000L;
   }
@@ -437,6 +453,111 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getBoolean("teamcity.git.mapFullPathIgnoresFetchedCommits");
   }
 
+  public int getCollectChangesDiffThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChangesDiffThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  }
+
+  public int getCommitChangesCacheSizeMb() {
+    return TeamCityProperties.getInteger("teamcity.git.commitChangesCacheSizeMb", 16);
+  }
+
+  public boolean listRefsByBranchSpec() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.listRefsByBranchSpec");
+  }
+
+  public boolean useProtocolV2LsRefs() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.useProtocolV2LsRefs");
+  }
+
+  public boolean shareRemoteRefs() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.shareRemoteRefs");
+  }
+
+  public long getRemoteRefsTtlMillis() {
+    return TeamCityProperties.getLong("teamcity.git.remoteRefsTtlMillis", 0);
+  }
+
+  public boolean collectChangesApplyCheckoutRules() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.collectChangesApplyCheckoutRules");
+  }
+
+  public boolean collectChangesSkipCommitsWithoutIncludedChanges() {
+    return TeamCityProperties.getBoolean("teamcity.git.collectChangesSkipCommitsWithoutIncludedChanges");
+  }
+
+  public boolean useCommitBloomFilter() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.mapFullPathUseCommitBloomFilter");
+  }
+
+  public int getCommitBloomFiltersMaxCount() {
+    return TeamCityProperties.getInteger("teamcity.git.mapFullPathCommitBloomFiltersMaxCount", 200);
+  }
+
+  public boolean useCommitGraph() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.useCommitGraph");
+  }
+
+  public boolean coalesceFetches() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.coalesceFetches");
+  }
+
+  public int getFetchMaxConcurrency() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.maxConcurrency", 16);
+  }
+
+  public int getFetchMaxConcurrencyPerHost() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.maxConcurrencyPerHost", 8);
+  }
+
+  public int getFetchPriorityAgingSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.priorityAgingSeconds", 60);
+  }
+
+  public int getSubmoduleFetchThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.submoduleFetchThreads", 4);
+  }
+
+  public boolean useBloblessClones() {
+    return TeamCityProperties.getBoolean("teamcity.git.server.bloblessClones");
+  }
+
+  @NotNull
+  public String getFetchEngine() {
+    return TeamCityProperties.getProperty("teamcity.git.server.fetchEngine", NativeGitFetch.ENGINE_JGIT);
+  }
+
+  public boolean fetchCommitsById() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.fetchCommitsById");
+  }
+
+  public boolean reuseRemoteConnections() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.reuseRemoteConnections");
+  }
+
+  public boolean usePackBitmaps() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.usePackBitmaps");
+  }
+
+  public boolean useFetchWorkers() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.fetch.workers.enabled");
+  }
+
+  public int getFetchWorkersPoolSize() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers.poolSize", 2);
+  }
+
+  public int getFetchWorkerMaxFetches() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers.maxFetches", 100);
+  }
+
+  public int getFetchWorkerMaxUsedMemoryPercent() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers.maxUsedMemoryPercent", 70);
+  }
+
+  public int getFetchWorkerIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers.idleTimeoutSeconds", (int) TimeUnit.MINUTES.toSeconds(10));
+  }
+
   @Nullable
   public CronExpression getCleanupCronExpression() {
     String cron = TeamCityProperties.getProperty("teamcity.git.cleanupCron", "0 0 2 * * ? *");
@@ -555,6 +676,16 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.git.packRefsIdleTimeoutSeconds", (int) TimeUnit.MINUTES.toSeconds(5));
   }
 
+  @Override
+  public boolean incrementalRepack() {
+    return TeamCityProperties.getBoolean("teamcity.git.incrementalRepack");
+  }
+
+  @Override
+  public int getFullRepackFragmentationPercent() {
+    return TeamCityProperties.getInteger("teamcity.git.fullRepackFragmentationPercent", 25);
+  }
+
   @Override
   public boolean treatMissingBranchTipAsRecoverableError() {
     return TeamCityProperties.getBooleanOrTrue("teamcity.git.treatMissingCommitAsRecoverableError");
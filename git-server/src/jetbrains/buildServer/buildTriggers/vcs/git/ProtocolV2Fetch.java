@@ -0,0 +1,252 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.eclipse.jgit.internal.storage.file.PackLock;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.transport.PacketLineIn;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.http.HttpConnection;
+import org.eclipse.jgit.transport.http.HttpConnectionFactory;
+import org.eclipse.jgit.util.IO;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.ProtocolV2LsRefs.*;
+
+/**
+ * The fetch command of the git protocol version 2 over smart http.
+ *
+ * Used for fetches JGit cannot do: fetches with an object filter
+ * (e.g. 'blob:none' for partial clones) and fetches of objects by id
+ * which are not reachable from local refs, like blobs missing in a partial clone.
+ * Only objects are fetched, updating refs is up to the caller.
+ *
+ * ThreadSafe.
+ */
+final class ProtocolV2Fetch {
+
+  private static final Logger LOG = Logger.getInstance(ProtocolV2Fetch.class.getName());
+  private static final long UNSUPPORTED_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final int BAND_DATA = 1;
+  private static final int BAND_PROGRESS = 2;
+  private static final int BAND_ERROR = 3;
+
+  //fetch url -> time until which the url is treated as not supporting filtered fetches
+  private final ConcurrentMap<String, Long> myUnsupportedUrls = new ConcurrentHashMap<String, Long>();
+  private final HttpConnectionFactory myConnectionFactory;
+
+  ProtocolV2Fetch(@NotNull HttpConnectionFactory connectionFactory) {
+    myConnectionFactory = connectionFactory;
+  }
+
+  /**
+   * Fetches the specified objects and all objects reachable from them except
+   * objects reachable from the haves and objects excluded by the filter.
+   *
+   * @return true if objects were fetched, false if the protocol cannot be used for the url
+   * @throws IOException if the fetch failed, e.g. the server responded with an error status
+   */
+  boolean fetch(@NotNull Repository db,
+                @NotNull URIish url,
+                @NotNull AuthSettings authSettings,
+                @NotNull Collection<ObjectId> wants,
+                @NotNull Collection<ObjectId> haves,
+                @Nullable String filter,
+                int timeoutSeconds) throws IOException {
+    String scheme = url.getScheme();
+    if (!"http".equals(scheme) && !"https".equals(scheme))
+      return false;
+    if (wants.isEmpty())
+      return true;
+    String baseUrl = getBaseUrl(url);
+    Long unsupportedUntil = myUnsupportedUrls.get(baseUrl);
+    if (unsupportedUntil != null) {
+      if (unsupportedUntil > System.currentTimeMillis())
+        return false;
+      myUnsupportedUrls.remove(baseUrl, unsupportedUntil);
+    }
+    HttpSession session = new HttpSession(myConnectionFactory, authSettings, timeoutSeconds);
+    if (!supportsFetch(baseUrl, session, filter)) {
+      LOG.debug("Fetch " + (filter != null ? "with the filter " : "") + "using the git protocol version 2 is not supported by " + baseUrl);
+      myUnsupportedUrls.put(baseUrl, System.currentTimeMillis() + UNSUPPORTED_TTL_MILLIS);
+      return false;
+    }
+    fetch(db, baseUrl, session, wants, haves, filter);
+    return true;
+  }
+
+
+  private boolean supportsFetch(@NotNull String baseUrl, @NotNull HttpSession session, @Nullable String filter) throws IOException {
+    Map<String, String> capabilities = getCapabilities(baseUrl, session);
+    if (capabilities == null)
+      return false;
+    String fetch = capabilities.get("fetch");
+    if (fetch == null)
+      return false;
+    return filter == null || Arrays.asList(fetch.split(" ")).contains("filter");
+  }
+
+
+  private void fetch(@NotNull Repository db,
+                     @NotNull String baseUrl,
+                     @NotNull HttpSession session,
+                     @NotNull Collection<ObjectId> wants,
+                     @NotNull Collection<ObjectId> haves,
+                     @Nullable String filter) throws IOException {
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    PacketLineOut pckOut = new PacketLineOut(request);
+    pckOut.writeString("command=fetch\n");
+    request.write(DELIMITER);
+    pckOut.writeString("ofs-delta\n");
+    pckOut.writeString("no-progress\n");
+    if (filter != null)
+      pckOut.writeString("filter " + filter + "\n");
+    for (ObjectId id : wants) {
+      pckOut.writeString("want " + id.name() + "\n");
+    }
+    for (ObjectId id : haves) {
+      pckOut.writeString("have " + id.name() + "\n");
+    }
+    pckOut.writeString("done\n");
+    pckOut.end();
+    HttpConnection c = session.post(baseUrl + "git-upload-pack", request.toByteArray());
+
+    InputStream in = c.getInputStream();
+    try {
+      PacketLineIn pckIn = new PacketLineIn(in);
+      String line;
+      //after 'done' the server skips acknowledgments and sends the packfile section
+      while (!"packfile".equals(line = pckIn.readString())) {
+        if (line.startsWith("ERR "))
+          throw new IOException("Fetch from " + baseUrl + " failed: " + line.substring("ERR ".length()));
+        if (line == PacketLineIn.END)
+          throw new IOException("Fetch from " + baseUrl + " failed: no packfile in response");
+      }
+      ObjectInserter inserter = db.newObjectInserter();
+      try {
+        PackParser parser = inserter.newPackParser(new SideBandInputStream(in, baseUrl));
+        parser.setAllowThin(false);
+        parser.setLockMessage("fetch from " + baseUrl);
+        PackLock lock = parser.parse(NullProgressMonitor.INSTANCE);
+        inserter.flush();
+        if (lock != null)
+          lock.unlock();
+      } finally {
+        inserter.release();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+
+  /**
+   * Demultiplexes the sideband stream of the packfile section: returns the pack data,
+   * throws an exception on error messages and ends at the flush packet.
+   */
+  private static final class SideBandInputStream extends InputStream {
+    private final InputStream myIn;
+    private final String myUrl;
+    private final byte[] myLength = new byte[4];
+    private byte[] myBuffer = new byte[0];
+    private int myPos;
+    private int myEnd;
+    private boolean myEof;
+
+    SideBandInputStream(@NotNull InputStream in, @NotNull String url) {
+      myIn = in;
+      myUrl = url;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!fill())
+        return -1;
+      return myBuffer[myPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      if (!fill())
+        return -1;
+      int n = Math.min(len, myEnd - myPos);
+      System.arraycopy(myBuffer, myPos, b, off, n);
+      myPos += n;
+      return n;
+    }
+
+    private boolean fill() throws IOException {
+      while (myPos == myEnd) {
+        if (myEof)
+          return false;
+        IO.readFully(myIn, myLength, 0, 4);
+        int length;
+        try {
+          length = Integer.parseInt(new String(myLength, StandardCharsets.US_ASCII), 16);
+        } catch (NumberFormatException e) {
+          throw new IOException("Fetch from " + myUrl + " failed: invalid packet length");
+        }
+        if (length == 0) {
+          myEof = true;
+          return false;
+        }
+        if (length < 5)
+          throw new IOException("Fetch from " + myUrl + " failed: invalid packet length " + length);
+        int band = myIn.read();
+        if (band == -1)
+          throw new IOException("Fetch from " + myUrl + " failed: unexpected end of stream");
+        int dataLength = length - 5;
+        if (myBuffer.length < dataLength)
+          myBuffer = new byte[dataLength];
+        IO.readFully(myIn, myBuffer, 0, dataLength);
+        switch (band) {
+          case BAND_DATA:
+            myPos = 0;
+            myEnd = dataLength;
+            break;
+          case BAND_PROGRESS:
+            break;
+          case BAND_ERROR:
+            throw new IOException("Fetch from " + myUrl + " failed: " + new String(myBuffer, 0, dataLength, StandardCharsets.UTF_8).trim());
+          default:
+            throw new IOException("Fetch from " + myUrl + " failed: unexpected sideband " + band);
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.PacketLineIn;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.http.HttpConnection;
+import org.eclipse.jgit.transport.http.HttpConnectionFactory;
+import org.eclipse.jgit.util.HttpSupport;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProxySelector;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.intellij.openapi.util.text.StringUtil.isEmpty;
+
+/**
+ * The ls-refs command of the git protocol version 2 over smart http.
+ *
+ * JGit used by the server speaks only the protocol version 0, where a server
+ * always advertises all its refs. With ls-refs a client sends ref prefixes
+ * it is interested in and refs not matching them are not transferred.
+ *
+ * Connections are created by the http connection factory of JGit transports,
+ * so the TeamCity trust store, SSL settings and proxy are applied.
+ *
+ * If a server doesn't support the protocol version 2 it is remembered for
+ * some time and callers should list refs using JGit transport. Other
+ * errors, e.g. 5xx responses, are not remembered.
+ *
+ * ThreadSafe.
+ */
+final class ProtocolV2LsRefs {
+
+  private static final Logger LOG = Logger.getInstance(ProtocolV2LsRefs.class.getName());
+  private static final long UNSUPPORTED_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final String GIT_PROTOCOL_HEADER = "Git-Protocol";
+  private static final String ADVERTISEMENT_TYPE = "application/x-git-upload-pack-advertisement";
+  static final String REQUEST_TYPE = "application/x-git-upload-pack-request";
+  static final String RESULT_TYPE = "application/x-git-upload-pack-result";
+  static final byte[] DELIMITER = "0001".getBytes(StandardCharsets.US_ASCII);
+
+  //fetch url -> time until which the url is treated as not supporting the protocol
+  private final ConcurrentMap<String, Long> myUnsupportedUrls = new ConcurrentHashMap<String, Long>();
+  private final HttpConnectionFactory myConnectionFactory;
+
+  ProtocolV2LsRefs(@NotNull HttpConnectionFactory connectionFactory) {
+    myConnectionFactory = connectionFactory;
+  }
+
+  /**
+   * @return refs with the specified prefixes or null if the protocol cannot be used for the url
+   */
+  @Nullable
+  Map<String, Ref> listRefs(@NotNull URIish url,
+                            @NotNull AuthSettings authSettings,
+                            @NotNull Collection<String> refPrefixes,
+                            int timeoutSeconds) {
+    String scheme = url.getScheme();
+    if (!"http".equals(scheme) && !"https".equals(scheme))
+      return null;
+    String baseUrl = getBaseUrl(url);
+    Long unsupportedUntil = myUnsupportedUrls.get(baseUrl);
+    if (unsupportedUntil != null) {
+      if (unsupportedUntil > System.currentTimeMillis())
+        return null;
+      myUnsupportedUrls.remove(baseUrl, unsupportedUntil);
+    }
+    HttpSession session = new HttpSession(myConnectionFactory, authSettings, timeoutSeconds);
+    try {
+      if (!supportsLsRefs(baseUrl, session)) {
+        LOG.debug("Git protocol version 2 is not supported by " + baseUrl + ", list refs using the protocol version 0");
+        myUnsupportedUrls.put(baseUrl, System.currentTimeMillis() + UNSUPPORTED_TTL_MILLIS);
+        return null;
+      }
+      return lsRefs(baseUrl, session, refPrefixes);
+    } catch (IOException e) {
+      LOG.debug("Failed to list refs of " + baseUrl + " using the protocol version 2, list refs using the protocol version 0", e);
+      return null;
+    }
+  }
+
+
+  private boolean supportsLsRefs(@NotNull String baseUrl, @NotNull HttpSession session) throws IOException {
+    Map<String, String> capabilities = getCapabilities(baseUrl, session);
+    return capabilities != null && capabilities.containsKey("ls-refs");
+  }
+
+
+  /**
+   * @return capabilities advertised by a server speaking the protocol version 2 with sha1 object ids:
+   * capability name -> its value (empty string if there is no value), or null if the protocol is not supported
+   */
+  @Nullable
+  static Map<String, String> getCapabilities(@NotNull String baseUrl, @NotNull HttpSession session) throws IOException {
+    HttpConnection c = session.get(baseUrl + "info/refs?service=git-upload-pack");
+    String contentType = c.getContentType();
+    if (contentType == null || !contentType.startsWith(ADVERTISEMENT_TYPE)) {
+      //e.g. a dumb http server, it doesn't speak any version of the smart protocol
+      c.getInputStream().close();
+      return null;
+    }
+    InputStream in = c.getInputStream();
+    try {
+      PacketLineIn pckIn = new PacketLineIn(in);
+      String line = pckIn.readString();
+      if (line.startsWith("# service=")) {
+        //servers which don't recognize the protocol version send a service line
+        if (pckIn.readString() != PacketLineIn.END)
+          return null;
+        line = pckIn.readString();
+      }
+      if (!"version 2".equals(line))
+        return null;
+      Map<String, String> capabilities = new HashMap<String, String>();
+      while ((line = pckIn.readString()) != PacketLineIn.END) {
+        int idx = line.indexOf('=');
+        if (idx == -1) {
+          capabilities.put(line, "");
+        } else {
+          capabilities.put(line.substring(0, idx), line.substring(idx + 1));
+        }
+      }
+      String objectFormat = capabilities.get("object-format");
+      return objectFormat == null || "sha1".equals(objectFormat) ? capabilities : null;
+    } finally {
+      in.close();
+    }
+  }
+
+
+  @NotNull
+  private Map<String, Ref> lsRefs(@NotNull String baseUrl,
+                                  @NotNull HttpSession session,
+                                  @NotNull Collection<String> refPrefixes) throws IOException {
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    PacketLineOut pckOut = new PacketLineOut(request);
+    pckOut.writeString("command=ls-refs\n");
+    request.write(DELIMITER);
+    pckOut.writeString("peel\n");
+    for (String prefix : refPrefixes) {
+      pckOut.writeString("ref-prefix " + prefix + "\n");
+    }
+    pckOut.end();
+    HttpConnection c = session.post(baseUrl + "git-upload-pack", request.toByteArray());
+
+    Map<String, Ref> result = new TreeMap<String, Ref>();
+    InputStream in = c.getInputStream();
+    try {
+      PacketLineIn pckIn = new PacketLineIn(in);
+      String line;
+      while ((line = pckIn.readString()) != PacketLineIn.END) {
+        Ref ref = parseRef(line);
+        result.put(ref.getName(), ref);
+      }
+    } finally {
+      in.close();
+    }
+    return result;
+  }
+
+
+  /**
+   * Parses the ls-refs output line: obj-id SP refname *(SP ref-attribute)
+   */
+  @NotNull
+  private static Ref parseRef(@NotNull String line) throws IOException {
+    String[] parts = line.split(" ");
+    if (parts.length < 2 || !ObjectId.isId(parts[0]))
+      throw new IOException("Unexpected ls-refs line '" + line + "'");
+    ObjectId id = ObjectId.fromString(parts[0]);
+    String name = parts[1];
+    for (int i = 2; i < parts.length; i++) {
+      String attribute = parts[i];
+      if (attribute.startsWith("peeled:")) {
+        String peeled = attribute.substring("peeled:".length());
+        if (!ObjectId.isId(peeled))
+          throw new IOException("Unexpected ls-refs line '" + line + "'");
+        return new ObjectIdRef.PeeledTag(Ref.Storage.NETWORK, name, id, ObjectId.fromString(peeled));
+      }
+    }
+    return new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, name, id);
+  }
+
+
+  /**
+   * Unsuccessful responses are ordinary failures: a server not supporting the protocol
+   * version 2 answers requests of the version 0, so only its capability advertisement
+   * tells whether the protocol is supported
+   */
+  private static void checkResponse(@NotNull String url, @NotNull HttpConnection c, int status, @Nullable String expectedContentType) throws IOException {
+    if (status != HttpConnection.HTTP_OK)
+      throw new IOException(url + ": " + status + " " + c.getResponseMessage());
+    if (expectedContentType == null)
+      return;
+    String contentType = c.getContentType();
+    if (contentType == null || !contentType.startsWith(expectedContentType))
+      throw new IOException(url + ": unexpected content type " + contentType);
+  }
+
+
+  @NotNull
+  static String getBaseUrl(@NotNull URIish url) {
+    //credentials are sent in the header
+    String result = url.setUser(null).setPass(null).toString();
+    return result.endsWith("/") ? result : result + "/";
+  }
+
+
+  /**
+   * Requests of a single operation. As in JGit, credentials are sent only after
+   * the server responds with 401 and then are reused by the following requests
+   * of the operation. Credentials are never sent over plain http.
+   */
+  static final class HttpSession {
+    private final HttpConnectionFactory myConnectionFactory;
+    private final AuthSettings myAuthSettings;
+    private final int myTimeoutSeconds;
+    private boolean myAuthenticate;
+
+    HttpSession(@NotNull HttpConnectionFactory connectionFactory, @NotNull AuthSettings authSettings, int timeoutSeconds) {
+      myConnectionFactory = connectionFactory;
+      myAuthSettings = authSettings;
+      myTimeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * @return connection with the successful response, a caller checks the content type
+     */
+    @NotNull
+    HttpConnection get(@NotNull String url) throws IOException {
+      return execute(url, null, null);
+    }
+
+    @NotNull
+    HttpConnection post(@NotNull String url, @NotNull byte[] body) throws IOException {
+      return execute(url, body, RESULT_TYPE);
+    }
+
+    @NotNull
+    private HttpConnection execute(@NotNull String url, @Nullable byte[] body, @Nullable String expectedContentType) throws IOException {
+      URL u = new URL(url);
+      HttpConnection c = send(u, body);
+      int status = HttpSupport.response(c);
+      if (status == HttpConnection.HTTP_UNAUTHORIZED && !myAuthenticate && canAuthenticate(u)) {
+        myAuthenticate = true;
+        c = send(u, body);
+        status = HttpSupport.response(c);
+      }
+      checkResponse(url, c, status, expectedContentType);
+      return c;
+    }
+
+    private boolean canAuthenticate(@NotNull URL url) {
+      return "https".equalsIgnoreCase(url.getProtocol()) &&
+             myAuthSettings.getAuthMethod() == AuthenticationMethod.PASSWORD &&
+             !isEmpty(myAuthSettings.getUserName());
+    }
+
+    @NotNull
+    private HttpConnection send(@NotNull URL url, @Nullable byte[] body) throws IOException {
+      //the same proxy selection as in JGit http transport
+      HttpConnection c = myConnectionFactory.create(url, HttpSupport.proxyFor(ProxySelector.getDefault(), url));
+      c.setUseCaches(false);
+      c.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(myTimeoutSeconds));
+      c.setReadTimeout((int) TimeUnit.SECONDS.toMillis(myTimeoutSeconds));
+      c.setRequestProperty(HttpSupport.HDR_PRAGMA, "no-cache");
+      c.setRequestProperty(GIT_PROTOCOL_HEADER, "version=2");
+      if (myAuthenticate) {
+        String password = myAuthSettings.getPassword();
+        String credentials = myAuthSettings.getUserName() + ":" + (password != null ? password : "");
+        c.setRequestProperty(HttpSupport.HDR_AUTHORIZATION, "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+      }
+      if (body == null) {
+        c.setRequestMethod(HttpSupport.METHOD_GET);
+        return c;
+      }
+      c.setRequestMethod(HttpSupport.METHOD_POST);
+      c.setDoOutput(true);
+      c.setRequestProperty(HttpSupport.HDR_CONTENT_TYPE, REQUEST_TYPE);
+      c.setRequestProperty(HttpSupport.HDR_ACCEPT, RESULT_TYPE);
+      c.setFixedLengthStreamingMode(body.length);
+      OutputStream out = c.getOutputStream();
+      try {
+        out.write(body);
+      } finally {
+        out.close();
+      }
+      return c;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BitmapIndex;
+import org.eclipse.jgit.lib.BitmapIndex.Bitmap;
+import org.eclipse.jgit.lib.BitmapIndex.BitmapBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Reachability queries answered using pack bitmap indexes written by the garbage collection.
+ *
+ * A commit covered by a bitmap brings all objects reachable from it without walking its history,
+ * only commits created after the last garbage collection are parsed one by one. When there are
+ * too many such commits bitmaps are considered stale and queries return null, callers should
+ * fall back to a commit walk then.
+ */
+public final class ReachabilityBitmaps {
+
+  //max number of commits without bitmaps parsed during a single query
+  static final int MAX_COMMITS_WITHOUT_BITMAPS = 10000;
+
+  private ReachabilityBitmaps() {
+  }
+
+
+  /**
+   * @return true if the commit is reachable from one of the tips, false if it is not,
+   * or null if bitmaps are missing or stale
+   */
+  @Nullable
+  public static Boolean isReachable(@NotNull RevWalk walk, @NotNull AnyObjectId commit, @NotNull Collection<? extends AnyObjectId> tips) throws IOException {
+    return isReachable(walk, commit, tips, MAX_COMMITS_WITHOUT_BITMAPS);
+  }
+
+
+  /**
+   * @param maxCommitsWithoutBitmaps bitmaps are stale if more commits are not covered by them
+   */
+  @Nullable
+  public static Boolean isReachable(@NotNull RevWalk walk,
+                                    @NotNull AnyObjectId commit,
+                                    @NotNull Collection<? extends AnyObjectId> tips,
+                                    int maxCommitsWithoutBitmaps) throws IOException {
+    BitmapIndex index = walk.getObjectReader().getBitmapIndex();
+    if (index == null)
+      return null;
+    BitmapBuilder reachable = reachableFrom(walk, index, tips, commit, maxCommitsWithoutBitmaps);
+    if (reachable == null)
+      return null;
+    return reachable.contains(commit);
+  }
+
+
+  /**
+   * @return names of commits reachable from the updated heads but not from the uninteresting
+   * commits, or null if bitmaps are missing or stale
+   */
+  @Nullable
+  public static Set<String> findNewCommits(@NotNull RevWalk walk,
+                                           @NotNull Collection<? extends AnyObjectId> updatedHeads,
+                                           @NotNull Collection<? extends AnyObjectId> uninteresting) throws IOException {
+    return findNewCommits(walk, updatedHeads, uninteresting, MAX_COMMITS_WITHOUT_BITMAPS);
+  }
+
+
+  /**
+   * @param maxCommitsWithoutBitmaps bitmaps are stale if more commits are not covered by them
+   */
+  @Nullable
+  public static Set<String> findNewCommits(@NotNull RevWalk walk,
+                                           @NotNull Collection<? extends AnyObjectId> updatedHeads,
+                                           @NotNull Collection<? extends AnyObjectId> uninteresting,
+                                           int maxCommitsWithoutBitmaps) throws IOException {
+    BitmapIndex index = walk.getObjectReader().getBitmapIndex();
+    if (index == null)
+      return null;
+    BitmapBuilder old = reachableFrom(walk, index, uninteresting, null, maxCommitsWithoutBitmaps);
+    if (old == null)
+      return null;
+    Set<String> result = new HashSet<String>();
+    Deque<RevCommit> queue = new ArrayDeque<RevCommit>();
+    for (AnyObjectId head : updatedHeads) {
+      queue.add(walk.parseCommit(head));
+    }
+    while (!queue.isEmpty()) {
+      RevCommit c = queue.poll();
+      if (old.contains(c) || !result.add(c.name()))
+        continue;
+      walk.parseHeaders(c);
+      for (RevCommit p : c.getParents()) {
+        queue.add(p);
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * @param target stop the walk once the target is found
+   * @return objects reachable from the tips or null if too many commits were not covered by bitmaps
+   */
+  @Nullable
+  private static BitmapBuilder reachableFrom(@NotNull RevWalk walk,
+                                             @NotNull BitmapIndex index,
+                                             @NotNull Collection<? extends AnyObjectId> tips,
+                                             @Nullable AnyObjectId target,
+                                             int maxCommitsWithoutBitmaps) throws IOException {
+    BitmapBuilder result = index.newBitmapBuilder();
+    Deque<ObjectId> queue = new ArrayDeque<ObjectId>();
+    for (AnyObjectId tip : tips) {
+      queue.add(tip.copy());
+    }
+    int commitsWithoutBitmaps = 0;
+    while (!queue.isEmpty()) {
+      if (target != null && result.contains(target))
+        return result;
+      ObjectId id = queue.poll();
+      if (result.contains(id))
+        continue;
+      Bitmap bitmap = index.getBitmap(id);
+      if (bitmap != null) {
+        result.or(bitmap);
+        continue;
+      }
+      if (++commitsWithoutBitmaps > maxCommitsWithoutBitmaps)
+        return null;
+      RevCommit c = walk.parseCommit(id);
+      result.add(c, Constants.OBJ_COMMIT);
+      for (RevCommit p : c.getParents()) {
+        if (!result.contains(p))
+          queue.add(p);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PushConnection;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connection to a remote repository opened by an operation to list remote refs.
+ *
+ * The connection is kept until the end of the operation: a fetch made by the
+ * operation negotiates over it instead of connecting to the remote again and
+ * prunes removed branches using the refs already advertised by the remote.
+ * The connection can be used by a single fetch, the advertised refs remain
+ * available until the operation ends.
+ *
+ * ThreadSafe.
+ */
+public final class RemoteConnection {
+
+  private final Repository myDb;
+  private final URIish myUri;
+  private final Map<String, Ref> myAdvertisedRefs;
+  private Transport myTransport;
+  private FetchConnection myConnection;
+
+  RemoteConnection(@NotNull Repository db,
+                   @NotNull URIish uri,
+                   @NotNull Transport transport,
+                   @NotNull FetchConnection connection) {
+    myDb = db;
+    myUri = uri;
+    myAdvertisedRefs = Collections.unmodifiableMap(new HashMap<String, Ref>(connection.getRefsMap()));
+    myTransport = transport;
+    myConnection = connection;
+  }
+
+
+  @NotNull
+  public URIish getUri() {
+    return myUri;
+  }
+
+
+  /**
+   * @return all refs advertised by the remote repository when the connection was opened
+   */
+  @NotNull
+  public Map<String, Ref> getAdvertisedRefs() {
+    return myAdvertisedRefs;
+  }
+
+
+  /**
+   * @return transport whose first fetch goes over the kept connection, or null if the connection
+   * was already used or closed, or if it was opened for another repository. The caller should
+   * close the returned transport.
+   */
+  @Nullable
+  synchronized Transport takeTransport(@NotNull Repository db) {
+    if (myConnection == null || !myDb.getDirectory().equals(db.getDirectory()))
+      return null;
+    Transport result = new KeptConnectionTransport(myDb, myUri, myTransport, myConnection);
+    myTransport = null;
+    myConnection = null;
+    return result;
+  }
+
+
+  /**
+   * Closes the connection if it wasn't used by a fetch, the advertised refs remain available
+   */
+  public synchronized void close() {
+    if (myConnection != null) {
+      myConnection.close();
+      myConnection = null;
+    }
+    if (myTransport != null) {
+      myTransport.close();
+      myTransport = null;
+    }
+  }
+
+
+  /**
+   * Returns the kept connection on the first openFetch() and opens new connections using
+   * the transport which opened the kept one on subsequent calls, e.g. when JGit fetches
+   * tags in a separate connection.
+   */
+  private static final class KeptConnectionTransport extends Transport {
+    private final Transport myDelegate;
+    private FetchConnection myConnection;
+
+    private KeptConnectionTransport(@NotNull Repository db,
+                                    @NotNull URIish uri,
+                                    @NotNull Transport delegate,
+                                    @NotNull FetchConnection connection) {
+      super(db, uri);
+      myDelegate = delegate;
+      myConnection = connection;
+      setCredentialsProvider(delegate.getCredentialsProvider());
+      setTimeout(delegate.getTimeout());
+      setTagOpt(delegate.getTagOpt());
+      setFetchThin(delegate.isFetchThin());
+      setCheckFetchedObjects(delegate.isCheckFetchedObjects());
+      setRemoveDeletedRefs(delegate.isRemoveDeletedRefs());
+    }
+
+    @Override
+    public FetchConnection openFetch() throws NotSupportedException, TransportException {
+      FetchConnection connection = myConnection;
+      if (connection != null) {
+        myConnection = null;
+        return connection;
+      }
+      return myDelegate.openFetch();
+    }
+
+    @Override
+    public PushConnection openPush() throws NotSupportedException, TransportException {
+      throw new NotSupportedException("Push over a connection opened for fetch is not supported");
+    }
+
+    @Override
+    public void close() {
+      if (myConnection != null) {
+        myConnection.close();
+        myConnection = null;
+      }
+      myDelegate.close();
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares results of listing remote refs between VCS roots with the same fetch url
+ * and authentication settings. Concurrent requests share a single in-flight
+ * connection, a completed result is reused during the configured time-to-live.
+ * Failed requests are not cached.
+ *
+ * ThreadSafe.
+ */
+public final class RemoteRefsCache {
+
+  private static final Logger LOG = Logger.getInstance(RemoteRefsCache.class.getName());
+
+  private final ServerPluginConfig myConfig;
+  //fetch url + auth identity -> refs request
+  private final ConcurrentMap<String, Request> myRequests = new ConcurrentHashMap<>();
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myCoalesced = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+
+  public RemoteRefsCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  /**
+   * @param refPrefixes prefixes of listed refs, null if all refs are listed
+   */
+  @NotNull
+  Map<String, Ref> getRefs(@NotNull URIish fetchUrl,
+                           @NotNull AuthSettings auth,
+                           @Nullable Collection<String> refPrefixes,
+                           @NotNull RefsLoader loader) throws Exception {
+    if (!myConfig.shareRemoteRefs())
+      return loader.load();
+    String key = getKey(fetchUrl, auth, refPrefixes);
+    while (true) {
+      Request request = myRequests.get(key);
+      if (request != null) {
+        if (!request.isDone()) {
+          myCoalesced.incrementAndGet();
+          return request.await();
+        }
+        if (request.isFresh(myConfig.getRemoteRefsTtlMillis())) {
+          myHits.incrementAndGet();
+          return request.await();
+        }
+        Request newRequest = new Request();
+        if (myRequests.replace(key, request, newRequest))
+          return load(key, newRequest, loader);
+      } else {
+        Request newRequest = new Request();
+        if (myRequests.putIfAbsent(key, newRequest) == null)
+          return load(key, newRequest, loader);
+      }
+    }
+  }
+
+
+  /**
+   * @return number of requests served from a completed result
+   */
+  public long getHits() {
+    return myHits.get();
+  }
+
+
+  /**
+   * @return number of requests which waited for a request made by another caller
+   */
+  public long getCoalesced() {
+    return myCoalesced.get();
+  }
+
+
+  /**
+   * @return number of requests which listed refs in the remote repository
+   */
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+
+  @NotNull
+  private Map<String, Ref> load(@NotNull String key, @NotNull Request request, @NotNull RefsLoader loader) throws Exception {
+    myMisses.incrementAndGet();
+    Map<String, Ref> refs;
+    try {
+      refs = Collections.unmodifiableMap(loader.load());
+    } catch (Throwable e) {
+      myRequests.remove(key, request);
+      request.fail(e);
+      throw e;
+    }
+    if (myConfig.getRemoteRefsTtlMillis() <= 0)
+      myRequests.remove(key, request);
+    request.complete(refs);
+    return refs;
+  }
+
+
+  /**
+   * Credentials are hashed, so they are not kept in keys
+   */
+  @NotNull
+  private static String getKey(@NotNull URIish fetchUrl, @NotNull AuthSettings auth, @Nullable Collection<String> refPrefixes) {
+    StringBuilder identity = new StringBuilder();
+    identity.append(new TreeMap<>(auth.toMap()));
+    String sshKeyId = auth.getTeamCitySshKeyId();
+    if (sshKeyId != null)
+      identity.append(":sshKey=").append(sshKeyId);
+    String key = fetchUrl.toString() + "#" + sha256(identity.toString());
+    return refPrefixes != null ? key + "#" + new TreeSet<>(refPrefixes) : key;
+  }
+
+
+  @NotNull
+  private static String sha256(@NotNull String s) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+      StringBuilder result = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException e) {
+      LOG.warnAndDebugDetails("Cannot compute auth settings hash", e);
+      return String.valueOf(s.hashCode());
+    }
+  }
+
+
+  interface RefsLoader {
+    @NotNull
+    Map<String, Ref> load() throws Exception;
+  }
+
+
+  private static final class Request {
+    private final CompletableFuture<Map<String, Ref>> myResult = new CompletableFuture<>();
+    private volatile long myCompletionTime;
+
+    boolean isDone() {
+      return myResult.isDone();
+    }
+
+    boolean isFresh(long ttlMillis) {
+      return !myResult.isCompletedExceptionally() && System.currentTimeMillis() - myCompletionTime < ttlMillis;
+    }
+
+    void complete(@NotNull Map<String, Ref> refs) {
+      myCompletionTime = System.currentTimeMillis();
+      myResult.complete(refs);
+    }
+
+    void fail(@NotNull Throwable e) {
+      myResult.completeExceptionally(e);
+    }
+
+    @NotNull
+    Map<String, Ref> await() throws Exception {
+      try {
+        return myResult.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception)
+          throw (Exception) cause;
+        if (cause instanceof Error)
+          throw (Error) cause;
+        throw e;
+      }
+    }
+  }
+}
@@ -16,37 +16,78 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
+import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.RecentEntriesCache;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.util.HashSet;
-import java.util.Objects;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Revisions cache for single repository.
+ *
+ * Revisions are kept in an off-heap table keyed by raw 20-byte object ids.
+ * Other revisions, e.g. abbreviated ids, are rare and are cached on heap without
+ * persisting them, since journal records have a fixed size.
+ *
+ * Cache is persisted as an append-only journal of fixed-size binary records:
+ * a record type ('+', '-' or {@link #RESET_NEGATIVE_ENTRIES_MARKER}) followed
+ * by a raw object id. Once the journal grows past a threshold it is compacted
+ * in background into a snapshot of the current cache content.
+ *
  * ThreadSafe.
  */
 public final class RepositoryRevisionCache {
+  private static final Logger LOG = Logger.getInstance(RepositoryRevisionCache.class.getName());
+  static final byte RESET_NEGATIVE_ENTRIES_MARKER = '*';
+  private static final byte CONTAINS = '+';
+  private static final byte DOES_NOT_CONTAIN = '-';
+  private static final byte[] HEADER = {'T', 'C', 'R', 'C', 0, 0, 0, 1};//magic + format version
+  private static final int RECORD_SIZE = 1 + org.eclipse.jgit.lib.Constants.OBJECT_ID_LENGTH;
+
   private final ServerPluginConfig myConfig;
   private final File myRepositoryDir;
   private final RevisionCacheType myType;
-  private final RecentEntriesCache<String, Boolean> myCache;//revision (SHA) -> does this repository have such revision
+  private final int myCacheSize;
+  private final Executor myCompactionExecutor;
+  private final RevisionIdTable myCache;//revision -> does this repository have such revision
+  private final RecentEntriesCache<String, Boolean> myOtherRevisions;//revision which is not an object id -> does this repository have it
   private final AtomicLong myResetCounter = new AtomicLong(0);
+  private final Object myWriteLock = new Object();
+  //all fields below are guarded by myWriteLock
+  private int myJournalSize = 0;//number of records in the journal file
+  private boolean myCompactionInProgress = false;
+  private List<byte[]> myRecordsDuringCompaction = null;//records appended while compaction is running, null if compaction should be discarded
 
   public RepositoryRevisionCache(@NotNull ServerPluginConfig config,
                                  @NotNull File repositoryDir,
                                  @NotNull RevisionCacheType type,
                                  int cacheSize) {
+    this(config, repositoryDir, type, cacheSize, Runnable::run);
+  }
+
+  public RepositoryRevisionCache(@NotNull ServerPluginConfig config,
+                                 @NotNull File repositoryDir,
+                                 @NotNull RevisionCacheType type,
+                                 int cacheSize,
+                                 @NotNull Executor compactionExecutor) {
     myConfig = config;
     myRepositoryDir = repositoryDir;
     myType = type;
-    myCache = new RecentEntriesCache<>(cacheSize);
+    myCacheSize = cacheSize;
+    myCompactionExecutor = compactionExecutor;
+    myCache = new RevisionIdTable(cacheSize);
+    myOtherRevisions = new RecentEntriesCache<>(cacheSize);
   }
 
   /**
@@ -54,103 +95,184 @@ public final class RepositoryRevisionCache {
    */
   @Nullable
   public Boolean hasRevision(@NotNull String revision) {
-    return myCache.get(revision);
+    if (!ObjectId.isId(revision))
+      return myOtherRevisions.get(revision);
+    return myCache.get(ObjectId.fromString(revision));
   }
 
 
   public void saveRevision(@NotNull String revision, boolean has, long expectedResetCounter) throws IOException {
-    synchronized (myCache) {
+    synchronized (myWriteLock) {
       if (myResetCounter.get() != expectedResetCounter)
         return;
-      Boolean existing = hasRevision(revision);
-      if (existing == null || has != existing) {
-        saveRevision(revision, has);
-        write();
+      if (!ObjectId.isId(revision)) {
+        myOtherRevisions.put(revision, has);
+        return;
       }
+      ObjectId id = ObjectId.fromString(revision);
+      if (myCache.put(id, has))
+        append(Collections.singletonList(record(has ? CONTAINS : DOES_NOT_CONTAIN, id)));
     }
   }
 
 
-  private void saveRevision(@NotNull String revision, boolean has) throws IOException {
-    myCache.put(revision, has);
-  }
-
-
   void resetNegativeEntries() throws IOException {
-    synchronized (myCache) {
+    synchronized (myWriteLock) {
       myResetCounter.incrementAndGet();
-      AtomicBoolean updated = new AtomicBoolean(false);
-      myCache.removeValues(hasValue -> {
-        if (!hasValue) {
-          updated.set(true);
-          return true;
-        } else {
-          return false;
-        }
-      });
-      if (updated.get())
-        write();
+      removeOtherNegativeEntries();
+      if (myCache.removeNegativeEntries())
+        append(Collections.singletonList(record(RESET_NEGATIVE_ENTRIES_MARKER, ObjectId.zeroId())));
     }
   }
 
 
   void resetNegativeEntries(@NotNull Set<String> newCommits) throws IOException {
-    synchronized (myCache) {
+    synchronized (myWriteLock) {
       //we should increment reset counter even if newCommits were not cached,
       //because concurrent map-full-path might be about to cache the commit
       myResetCounter.incrementAndGet();
+      removeOtherNegativeEntries();
 
       //instead of removing negative entries - turn them into positive, this saves 1 commit lookup
-      Set<String> forUpdate = new HashSet<>();
-      myCache.forEachEntry((commit, contains) -> {
-        if (newCommits.contains(commit) && Boolean.FALSE.equals(contains))
-          forUpdate.add(commit);
-        return true;
-      });
-      for (String commit : forUpdate) {
-        myCache.put(commit, true);
+      List<byte[]> records = new ArrayList<>();
+      for (ObjectId commit : myCache.getNegativeEntries()) {
+        if (newCommits.contains(commit.name()) && myCache.put(commit, true))
+          records.add(record(CONTAINS, commit));
       }
-      if (!forUpdate.isEmpty())
-        write();
+      if (!records.isEmpty())
+        append(records);
     }
   }
 
 
   public void reset() {
-    synchronized (myCache) {
+    synchronized (myWriteLock) {
       myResetCounter.incrementAndGet();
       myCache.clear();
-      FileUtil.delete(getCacheFile(myRepositoryDir, myType));
+      myOtherRevisions.removeValues(has -> true);
+      discardJournal();
     }
   }
 
 
+  private void removeOtherNegativeEntries() {
+    myOtherRevisions.removeValues(has -> !has);
+  }
+
+
   public long getResetCounter() {
     return myResetCounter.get();
   }
 
 
-  private void write() throws IOException {
+  private void append(@NotNull List<byte[]> records) throws IOException {
     if (!myConfig.persistentCacheEnabled()) {
-      FileUtil.delete(getCacheFile(myRepositoryDir, myType));
+      discardJournal();
       return;
     }
 
     File cache = getCacheFile(myRepositoryDir, myType);
     cache.getParentFile().mkdirs();
-    try (PrintStream printer = new PrintStream(new BufferedOutputStream(new FileOutputStream(cache)))) {
-      myCache.forEachEntry((revision, contains) -> {
-        if (contains != null) {
-          printer.print(contains ? '+' : '-');
-          printer.print(revision);
-          printer.println();
+    //start a new journal if we didn't write or load the existing one: it is either empty or was not read by us
+    write(cache, records, myJournalSize > 0);
+    myJournalSize += records.size();
+    if (myRecordsDuringCompaction != null)
+      myRecordsDuringCompaction.addAll(records);
+    compactIfNeeded();
+  }
+
+
+  private void discardJournal() {
+    myJournalSize = 0;
+    myRecordsDuringCompaction = null;
+    FileUtil.delete(getCacheFile(myRepositoryDir, myType));
+  }
+
+
+  private void compactIfNeeded() {
+    if (myCompactionInProgress || myJournalSize <= getMaxJournalSize())
+      return;
+    List<byte[]> snapshot = snapshot();
+    myCompactionInProgress = true;
+    myRecordsDuringCompaction = new ArrayList<>();
+    try {
+      myCompactionExecutor.execute(() -> compact(snapshot));
+    } catch (RuntimeException e) {
+      myCompactionInProgress = false;
+      myRecordsDuringCompaction = null;
+      LOG.warnAndDebugDetails("Cannot schedule compaction of revisions cache " + getCacheFile(myRepositoryDir, myType), e);
+    }
+  }
+
+
+  @NotNull
+  private List<byte[]> snapshot() {
+    List<byte[]> snapshot = new ArrayList<>();
+    for (RevisionIdTable.Entry e : myCache.entries()) {
+      snapshot.add(record(e.contains ? CONTAINS : DOES_NOT_CONTAIN, e.id));
+    }
+    return snapshot;
+  }
+
+
+  private int getMaxJournalSize() {
+    return Math.max(myCacheSize, 1) * Math.max(myConfig.getRevisionCacheJournalSizeFactor(), 1);
+  }
+
+
+  /**
+   * Writes the snapshot into a temporary file without holding the write lock,
+   * then appends records added in the meantime and replaces the journal.
+   */
+  private void compact(@NotNull List<byte[]> snapshot) {
+    File cache = getCacheFile(myRepositoryDir, myType);
+    File compacted = new File(cache.getParentFile(), cache.getName() + ".compact");
+    try {
+      FileUtil.delete(compacted);
+      write(compacted, snapshot, false);
+      synchronized (myWriteLock) {
+        if (myRecordsDuringCompaction == null || !myConfig.persistentCacheEnabled()) {
+          //cache was reset or persistence was disabled during compaction, snapshot is stale
+          FileUtil.delete(compacted);
+          return;
         }
-        return true;
-      });
+        write(compacted, myRecordsDuringCompaction, true);
+        Files.move(compacted.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        myJournalSize = snapshot.size() + myRecordsDuringCompaction.size();
+      }
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Error while compacting revisions cache " + cache, e);
+      FileUtil.delete(compacted);
+    } finally {
+      synchronized (myWriteLock) {
+        myCompactionInProgress = false;
+        myRecordsDuringCompaction = null;
+      }
     }
   }
 
 
+  private static void write(@NotNull File file, @NotNull List<byte[]> records, boolean append) throws IOException {
+    boolean writeHeader = !append || file.length() == 0;
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file, append))) {
+      if (writeHeader)
+        out.write(HEADER);
+      for (byte[] record : records) {
+        out.write(record);
+      }
+    }
+  }
+
+
+  @NotNull
+  private static byte[] record(byte type, @NotNull AnyObjectId id) {
+    byte[] record = new byte[RECORD_SIZE];
+    record[0] = type;
+    id.copyRawTo(record, 1);
+    return record;
+  }
+
+
   public boolean equals(Object o) {
     if (!(o instanceof RepositoryRevisionCache))
       return false;
@@ -162,25 +284,25 @@ public final class RepositoryRevisionCache {
     if (!myRepositoryDir.equals(other.myRepositoryDir))
       return false;
 
-    Set<String> processed = new HashSet<>();
-    for (String revision : myCache.keySet()) {
-      Boolean contains1 = hasRevision(revision);
-      Boolean contains2 = other.hasRevision(revision);
-      if (!Objects.equals(contains1, contains2))
-        return false;
-      processed.add(revision);
+    Map<ObjectId, Boolean> entries = new HashMap<>();
+    for (RevisionIdTable.Entry e : myCache.entries()) {
+      entries.put(e.id, e.contains);
     }
-    for (String revision : other.myCache.keySet()) {
-      if (processed.add(revision) && other.hasRevision(revision) != null)
-        return false;
+    Map<ObjectId, Boolean> otherEntries = new HashMap<>();
+    for (RevisionIdTable.Entry e : other.myCache.entries()) {
+      otherEntries.put(e.id, e.contains);
     }
-    return true;
+    return entries.equals(otherEntries);
   }
 
 
   @Override
   public String toString() {
-    return myRepositoryDir.getAbsolutePath() + " " + myCache.toString();
+    StringBuilder result = new StringBuilder(myRepositoryDir.getAbsolutePath()).append(" {");
+    for (RevisionIdTable.Entry e : myCache.entries()) {
+      result.append((char) (e.contains ? CONTAINS : DOES_NOT_CONTAIN)).append(e.id.name()).append(' ');
+    }
+    return result.append('}').toString();
   }
 
 
@@ -189,27 +311,128 @@ public final class RepositoryRevisionCache {
                                              @NotNull File repositoryDir,
                                              @NotNull RevisionCacheType type,
                                              int size) throws IOException {
+    return read(config, repositoryDir, type, size, Runnable::run);
+  }
+
+
+  /**
+   * Creates a cache and replays its journal if it exists
+   */
+  @NotNull
+  public static RepositoryRevisionCache read(@NotNull ServerPluginConfig config,
+                                             @NotNull File repositoryDir,
+                                             @NotNull RevisionCacheType type,
+                                             int size,
+                                             @NotNull Executor compactionExecutor) throws IOException {
+    RepositoryRevisionCache result = new RepositoryRevisionCache(config, repositoryDir, type, size, compactionExecutor);
     File cache = getCacheFile(repositoryDir, type);
-    if (cache.isFile()) {
-      RepositoryRevisionCache result = new RepositoryRevisionCache(config, repositoryDir, type, size);
-      for (String line : FileUtil.readFile(cache)) {
-        if (!line.isEmpty()) {
-          char c = line.charAt(0);
-          switch (c) {
-            case '+':
-              result.saveRevision(line.substring(1), true);
-              break;
-            case '-':
-              result.saveRevision(line.substring(1), false);
-              break;
-            default:
-              throw new IOException("Bad cache line '" + line + "'");
+    if (!cache.isFile())
+      return result;
+    synchronized (result.myWriteLock) {
+      if (hasHeader(cache)) {
+        result.myJournalSize = result.replayJournal(cache);
+        if (config.persistentCacheEnabled())
+          result.compactIfNeeded();
+      } else {
+        result.replayTextJournal(cache);
+        //rewrite cache created by the previous plugin version in the binary format
+        if (config.persistentCacheEnabled()) {
+          List<byte[]> snapshot = result.snapshot();
+          write(cache, snapshot, false);
+          result.myJournalSize = snapshot.size();
+        } else {
+          FileUtil.delete(cache);
+        }
+      }
+    }
+    return result;
+  }
+
+
+  private static boolean hasHeader(@NotNull File cache) throws IOException {
+    if (cache.length() < HEADER.length)
+      return false;
+    byte[] header = new byte[HEADER.length];
+    try (DataInputStream in = new DataInputStream(new FileInputStream(cache))) {
+      in.readFully(header);
+    }
+    return Arrays.equals(header, HEADER);
+  }
+
+
+  /**
+   * @return number of records in the journal
+   */
+  private int replayJournal(@NotNull File cache) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(cache, "rw");
+         FileChannel channel = file.getChannel()) {
+      long length = channel.size();
+      long recordsLength = length - HEADER.length;
+      long tail = recordsLength % RECORD_SIZE;
+      if (tail != 0) {
+        //the last record was written partially, e.g. server was killed in the middle of append
+        LOG.warn("Truncate partially written record in revisions cache " + cache.getAbsolutePath());
+        recordsLength -= tail;
+        channel.truncate(HEADER.length + recordsLength);
+      }
+      //the journal is read, not mapped: a mapped file cannot be replaced by compaction on Windows until it is unmapped by gc
+      ByteBuffer journal = ByteBuffer.allocate(RECORD_SIZE * 4096);
+      journal.limit(0);
+      channel.position(HEADER.length);
+      byte[] raw = new byte[org.eclipse.jgit.lib.Constants.OBJECT_ID_LENGTH];
+      int records = (int) (recordsLength / RECORD_SIZE);
+      for (int i = 0; i < records; i++) {
+        if (!journal.hasRemaining()) {
+          journal.clear();
+          journal.limit((int) Math.min(journal.capacity(), (long) (records - i) * RECORD_SIZE));
+          while (journal.hasRemaining()) {
+            if (channel.read(journal) < 0)
+              throw new EOFException("Unexpected end of revisions cache " + cache.getAbsolutePath());
           }
+          journal.flip();
+        }
+        byte recordType = journal.get();
+        journal.get(raw);
+        switch (recordType) {
+          case CONTAINS:
+            myCache.put(ObjectId.fromRaw(raw), true);
+            break;
+          case DOES_NOT_CONTAIN:
+            myCache.put(ObjectId.fromRaw(raw), false);
+            break;
+          case RESET_NEGATIVE_ENTRIES_MARKER:
+            myCache.removeNegativeEntries();
+            break;
+          default:
+            throw new IOException("Bad cache record type '" + recordType + "' at offset " + (HEADER.length + (long) i * RECORD_SIZE));
+        }
+      }
+      return records;
+    }
+  }
+
+
+  /**
+   * Replays a cache written by the previous plugin versions, one '+revision' or '-revision' per line
+   */
+  private void replayTextJournal(@NotNull File cache) throws IOException {
+    for (String line : FileUtil.readFile(cache)) {
+      if (!line.isEmpty()) {
+        char c = line.charAt(0);
+        switch (c) {
+          case '+':
+          case '-':
+            String revision = line.substring(1);
+            if (ObjectId.isId(revision))
+              myCache.put(ObjectId.fromString(revision), c == '+');
+            break;
+          case '*':
+            myCache.removeNegativeEntries();
+            break;
+          default:
+            throw new IOException("Bad cache line '" + line + "'");
         }
       }
-      return result;
-    } else {
-      return new RepositoryRevisionCache(config, repositoryDir, type, size);
     }
   }
 
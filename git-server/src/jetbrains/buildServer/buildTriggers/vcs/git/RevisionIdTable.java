@@ -0,0 +1,388 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Off-heap open-addressing table: raw 20-byte object id -> presence bit.
+ * Keeps at most maxSize entries, when the table is full the oldest entry is evicted.
+ *
+ * Slot layout: state (1 byte) | object id (20 bytes) | insertion sequence (8 bytes).
+ * Insertion order is kept in a ring of (object id, sequence) entries, a ring entry
+ * is stale if its sequence doesn't match the sequence in the slot.
+ *
+ * ThreadSafe.
+ */
+final class RevisionIdTable {
+
+  private static final int ID_LENGTH = org.eclipse.jgit.lib.Constants.OBJECT_ID_LENGTH;
+  private static final int ID_INTS = ID_LENGTH / 4;
+  private static final int SLOT_SIZE = 1 + ID_LENGTH + 8;
+  private static final int RING_ENTRY_SIZE = ID_LENGTH + 8;
+  private static final int MIN_CAPACITY = 16;
+
+  private static final byte EMPTY = 0;
+  private static final byte CONTAINS = 1;
+  private static final byte DOES_NOT_CONTAIN = 2;
+
+  private final int myMaxSize;
+  private final int[] myKey = new int[ID_INTS];//scratch buffer for the key of the current operation
+  private ByteBuffer mySlots;
+  private int myCapacity;//power of 2
+  private int mySize;
+  private ByteBuffer myRing;
+  private int myRingCapacity;
+  private int myRingHead;
+  private int myRingLength;
+  private long myNextSequence = 1;
+
+  RevisionIdTable(int maxSize) {
+    myMaxSize = Math.max(maxSize, 1);
+    init();
+  }
+
+
+  @Nullable
+  synchronized Boolean get(@NotNull AnyObjectId id) {
+    id.copyRawTo(myKey, 0);
+    int slot = findSlot();
+    byte state = mySlots.get(slot * SLOT_SIZE);
+    if (state == EMPTY)
+      return null;
+    return state == CONTAINS;
+  }
+
+
+  /**
+   * @return true if table was changed
+   */
+  synchronized boolean put(@NotNull AnyObjectId id, boolean contains) {
+    id.copyRawTo(myKey, 0);
+    byte newState = contains ? CONTAINS : DOES_NOT_CONTAIN;
+    int slot = findSlot();
+    int offset = slot * SLOT_SIZE;
+    byte state = mySlots.get(offset);
+    if (state == newState)
+      return false;
+
+    if (state != EMPTY) {
+      //the entry was just updated, move it to the end of the eviction order,
+      //its previous ring entry becomes stale and is dropped when the ring is full
+      long sequence = myNextSequence++;
+      mySlots.put(offset, newState);
+      mySlots.putLong(offset + 1 + ID_LENGTH, sequence);
+      if (myRingLength == myMaxSize)
+        compactRing();
+      appendToRing(sequence);
+      return true;
+    }
+
+    makeRoomInRing();
+    if ((mySize + 1) * 2 > myCapacity) {
+      resize(myCapacity * 2);
+    }
+    long sequence = myNextSequence++;
+    insert(newState, sequence);
+    appendToRing(sequence);
+    return true;
+  }
+
+
+  /**
+   * Removes all negative entries
+   * @return true if table was changed
+   */
+  synchronized boolean removeNegativeEntries() {
+    List<Entry> positive = new ArrayList<>(mySize);
+    boolean hasNegative = false;
+    for (Entry e : entries()) {
+      if (e.contains) {
+        positive.add(e);
+      } else {
+        hasNegative = true;
+      }
+    }
+    if (!hasNegative)
+      return false;
+    reset();
+    for (Entry e : positive) {
+      put(e.id, true);
+    }
+    return true;
+  }
+
+
+  @NotNull
+  synchronized List<ObjectId> getNegativeEntries() {
+    List<ObjectId> result = new ArrayList<>();
+    for (Entry e : entries()) {
+      if (!e.contains)
+        result.add(e.id);
+    }
+    return result;
+  }
+
+
+  synchronized void clear() {
+    reset();
+  }
+
+
+  synchronized int size() {
+    return mySize;
+  }
+
+
+  /**
+   * @return entries in insertion order
+   */
+  @NotNull
+  synchronized List<Entry> entries() {
+    List<Entry> result = new ArrayList<>(mySize);
+    byte[] raw = new byte[ID_LENGTH];
+    for (int i = 0; i < myRingLength; i++) {
+      int ringOffset = ((myRingHead + i) % myRingCapacity) * RING_ENTRY_SIZE;
+      readRingKey(ringOffset);
+      int slot = findSlot();
+      int offset = slot * SLOT_SIZE;
+      byte state = mySlots.get(offset);
+      if (state == EMPTY || mySlots.getLong(offset + 1 + ID_LENGTH) != myRing.getLong(ringOffset + ID_LENGTH))
+        continue;//stale ring entry
+      for (int j = 0; j < ID_LENGTH; j++) {
+        raw[j] = mySlots.get(offset + 1 + j);
+      }
+      result.add(new Entry(ObjectId.fromRaw(raw), state == CONTAINS));
+    }
+    return result;
+  }
+
+
+  private void init() {
+    int initialSize = Math.min(myMaxSize, MIN_CAPACITY * 4);
+    myCapacity = Integer.highestOneBit(Math.max(initialSize * 2, MIN_CAPACITY) - 1) << 1;
+    mySlots = ByteBuffer.allocateDirect(myCapacity * SLOT_SIZE);
+    mySize = 0;
+    myRingCapacity = Math.min(myMaxSize, myCapacity);
+    myRing = ByteBuffer.allocateDirect(myRingCapacity * RING_ENTRY_SIZE);
+    myRingHead = 0;
+    myRingLength = 0;
+  }
+
+
+  /**
+   * Removes all entries keeping allocated buffers, direct memory is freed only when
+   * buffers are garbage collected, so they are not reallocated on every reset
+   */
+  private void reset() {
+    for (int slot = 0; slot < myCapacity; slot++) {
+      mySlots.put(slot * SLOT_SIZE, EMPTY);
+    }
+    mySize = 0;
+    myRingHead = 0;
+    myRingLength = 0;
+  }
+
+
+  /**
+   * @return slot containing myKey or an empty slot where it should be inserted
+   */
+  private int findSlot() {
+    int mask = myCapacity - 1;
+    int slot = myKey[1] & mask;
+    while (true) {
+      int offset = slot * SLOT_SIZE;
+      if (mySlots.get(offset) == EMPTY || keyEquals(offset))
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+
+  private boolean keyEquals(int slotOffset) {
+    for (int i = 0; i < ID_INTS; i++) {
+      if (mySlots.getInt(slotOffset + 1 + i * 4) != myKey[i])
+        return false;
+    }
+    return true;
+  }
+
+
+  private void insert(byte state, long sequence) {
+    int offset = findSlot() * SLOT_SIZE;
+    mySlots.put(offset, state);
+    for (int i = 0; i < ID_INTS; i++) {
+      mySlots.putInt(offset + 1 + i * 4, myKey[i]);
+    }
+    mySlots.putLong(offset + 1 + ID_LENGTH, sequence);
+    mySize++;
+  }
+
+
+  private void appendToRing(long sequence) {
+    if (myRingLength == myRingCapacity)
+      resizeRing(Math.min(myMaxSize, myRingCapacity * 2));
+    int ringOffset = ((myRingHead + myRingLength) % myRingCapacity) * RING_ENTRY_SIZE;
+    for (int i = 0; i < ID_INTS; i++) {
+      myRing.putInt(ringOffset + i * 4, myKey[i]);
+    }
+    myRing.putLong(ringOffset + ID_LENGTH, sequence);
+    myRingLength++;
+  }
+
+
+  /**
+   * Drops stale ring entries if there are any, otherwise evicts the oldest entry
+   */
+  private void makeRoomInRing() {
+    if (myRingLength < myMaxSize)
+      return;
+    if (mySize < myRingLength) {
+      compactRing();
+    } else {
+      evictOldest();
+    }
+  }
+
+
+  private void compactRing() {
+    int[] key = myKey.clone();
+    int length = 0;
+    for (int i = 0; i < myRingLength; i++) {
+      int from = ((myRingHead + i) % myRingCapacity) * RING_ENTRY_SIZE;
+      readRingKey(from);
+      int offset = findSlot() * SLOT_SIZE;
+      if (mySlots.get(offset) == EMPTY || mySlots.getLong(offset + 1 + ID_LENGTH) != myRing.getLong(from + ID_LENGTH))
+        continue;//stale ring entry
+      int to = ((myRingHead + length) % myRingCapacity) * RING_ENTRY_SIZE;
+      if (to != from) {
+        for (int j = 0; j < RING_ENTRY_SIZE; j++) {
+          myRing.put(to + j, myRing.get(from + j));
+        }
+      }
+      length++;
+    }
+    myRingLength = length;
+    System.arraycopy(key, 0, myKey, 0, ID_INTS);
+  }
+
+
+  private void evictOldest() {
+    int[] key = myKey.clone();
+    int ringOffset = myRingHead * RING_ENTRY_SIZE;
+    readRingKey(ringOffset);
+    int slot = findSlot();
+    int offset = slot * SLOT_SIZE;
+    if (mySlots.get(offset) != EMPTY && mySlots.getLong(offset + 1 + ID_LENGTH) == myRing.getLong(ringOffset + ID_LENGTH))
+      removeSlot(slot);
+    myRingHead = (myRingHead + 1) % myRingCapacity;
+    myRingLength--;
+    System.arraycopy(key, 0, myKey, 0, ID_INTS);
+  }
+
+
+  private void readRingKey(int ringOffset) {
+    for (int i = 0; i < ID_INTS; i++) {
+      myKey[i] = myRing.getInt(ringOffset + i * 4);
+    }
+  }
+
+
+  /**
+   * Removes the slot using backward shift deletion, so no tombstones are needed
+   */
+  private void removeSlot(int slot) {
+    int mask = myCapacity - 1;
+    int hole = slot;
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      int nextOffset = next * SLOT_SIZE;
+      if (mySlots.get(nextOffset) == EMPTY)
+        break;
+      int home = mySlots.getInt(nextOffset + 1 + 4) & mask;
+      boolean canMove = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+      if (canMove) {
+        copySlot(nextOffset, hole * SLOT_SIZE);
+        hole = next;
+      }
+    }
+    mySlots.put(hole * SLOT_SIZE, EMPTY);
+    mySize--;
+  }
+
+
+  private void copySlot(int fromOffset, int toOffset) {
+    for (int i = 0; i < SLOT_SIZE; i++) {
+      mySlots.put(toOffset + i, mySlots.get(fromOffset + i));
+    }
+  }
+
+
+  private void resize(int newCapacity) {
+    ByteBuffer oldSlots = mySlots;
+    int oldCapacity = myCapacity;
+    int[] key = myKey.clone();
+    mySlots = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+    myCapacity = newCapacity;
+    mySize = 0;
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      int offset = slot * SLOT_SIZE;
+      byte state = oldSlots.get(offset);
+      if (state == EMPTY)
+        continue;
+      for (int i = 0; i < ID_INTS; i++) {
+        myKey[i] = oldSlots.getInt(offset + 1 + i * 4);
+      }
+      insert(state, oldSlots.getLong(offset + 1 + ID_LENGTH));
+    }
+    System.arraycopy(key, 0, myKey, 0, ID_INTS);
+  }
+
+
+  private void resizeRing(int newCapacity) {
+    ByteBuffer newRing = ByteBuffer.allocateDirect(newCapacity * RING_ENTRY_SIZE);
+    for (int i = 0; i < myRingLength; i++) {
+      int from = ((myRingHead + i) % myRingCapacity) * RING_ENTRY_SIZE;
+      int to = i * RING_ENTRY_SIZE;
+      for (int j = 0; j < RING_ENTRY_SIZE; j++) {
+        newRing.put(to + j, myRing.get(from + j));
+      }
+    }
+    myRing = newRing;
+    myRingCapacity = newCapacity;
+    myRingHead = 0;
+  }
+
+
+  static final class Entry {
+    final ObjectId id;
+    final boolean contains;
+
+    Entry(@NotNull ObjectId id, boolean contains) {
+      this.id = id;
+      this.contains = contains;
+    }
+  }
+}
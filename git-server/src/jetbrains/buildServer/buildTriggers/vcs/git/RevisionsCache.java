@@ -17,16 +17,22 @@
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Revisions cache for whole server.
+ *
+ * Repository caches are read from disk on first access, {@link #warmUp()}
+ * reads them in background starting from the most recently used repositories.
+ *
  * ThreadSafe.
  */
 public final class RevisionsCache {
@@ -34,35 +40,102 @@ public final class RevisionsCache {
 
   private ServerPluginConfig myConfig;
   //repositoryId -> per repository cache
-  private final ConcurrentMap<String, RepositoryRevisionCache> myCache = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, CacheHolder> myCache = new ConcurrentHashMap<>();
   private volatile int myRepositoriesCount;
+  private final ExecutorService myCompactionExecutor = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "Git revisions cache compaction");
+    t.setDaemon(true);
+    return t;
+  });
 
   public RevisionsCache(@NotNull ServerPluginConfig config) {
     myConfig = config;
-    if (config.persistentCacheEnabled())
-      init(config.getCachesDir());
+    if (config.persistentCacheEnabled()) {
+      String[] repoDirs = config.getCachesDir().list();
+      myRepositoriesCount = repoDirs != null ? repoDirs.length : 0;
+    }
   }
 
 
-  private void init(@NotNull File cachesDir) {
-    File[] repoDirs = cachesDir.listFiles();
-    if (repoDirs == null)
+  /**
+   * Reads persisted caches of all repositories in background, most recently used repositories go first.
+   * Does nothing if persistent cache or warm-up is disabled.
+   */
+  public void warmUp() {
+    int threads = myConfig.getRevisionsCacheWarmUpThreads();
+    if (!myConfig.persistentCacheEnabled() || threads <= 0)
       return;
-    myRepositoriesCount = repoDirs.length;
-    for (File repoDir : repoDirs) {
-      if (repoDir.isDirectory()) {
-        for (RevisionCacheType type : RevisionCacheType.values()) {
-          int cacheSize = getCacheSize(type);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, "Git revisions cache warm-up");
+      t.setDaemon(true);
+      return t;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    executor.execute(() -> {
+      long start = System.currentTimeMillis();
+      List<File> repoDirs = getRepositoryDirs();
+      Map<File, Long> lastUsedTimes = new HashMap<>();
+      for (File repoDir : repoDirs) {
+        lastUsedTimes.put(repoDir, getLastUsedTime(repoDir));
+      }
+      repoDirs.sort((d1, d2) -> Long.compare(lastUsedTimes.get(d2), lastUsedTimes.get(d1)));
+      AtomicInteger remaining = new AtomicInteger(repoDirs.size());
+      for (File repoDir : repoDirs) {
+        executor.execute(() -> {
           try {
-            myCache.put(getRepositoryId(repoDir, type), RepositoryRevisionCache.read(myConfig, repoDir, type, cacheSize));
+            for (RevisionCacheType type : RevisionCacheType.values()) {
+              getRepositoryCache(repoDir, type);
+            }
           } catch (Exception e) {
             LOG.warnAndDebugDetails("Error while initializing revisions cache for repository " + repoDir, e);
+          } finally {
+            if (remaining.decrementAndGet() == 0)
+              LOG.info("Revisions caches of " + repoDirs.size() + " repositories are loaded in " + (System.currentTimeMillis() - start) + "ms");
           }
-        }
+        });
+      }
+      executor.shutdown();
+    });
+  }
+
+
+  /**
+   * Stops the compaction thread after a running compaction finishes, called when the plugin is unloaded
+   */
+  public void dispose() {
+    myCompactionExecutor.shutdown();
+  }
+
+
+  @NotNull
+  private List<File> getRepositoryDirs() {
+    File[] files = myConfig.getCachesDir().listFiles();
+    if (files == null)
+      return new ArrayList<>();
+    List<File> result = new ArrayList<>(files.length);
+    for (File f : files) {
+      if (f.isDirectory())
+        result.add(f);
+    }
+    return result;
+  }
+
+
+  private static long getLastUsedTime(@NotNull File repoDir) {
+    File timestamp = new File(repoDir, "timestamp");
+    try {
+      if (timestamp.isFile()) {
+        List<String> lines = FileUtil.readFile(timestamp);
+        if (!lines.isEmpty())
+          return Long.parseLong(lines.get(0).trim());
       }
+    } catch (Exception e) {
+      //use the directory modification time
     }
+    return repoDir.lastModified();
   }
 
+
   private int getCacheSize(@NotNull RevisionCacheType type) {
     if (type == RevisionCacheType.HINT_CACHE) {
       //if remote-run is used in all repositories, then hint cache should be able to store
@@ -76,8 +149,7 @@ public final class RevisionsCache {
 
   public void resetNegativeEntries(@NotNull File repositoryDir) throws IOException {
     for (RevisionCacheType type : RevisionCacheType.values()) {
-      String repositoryId = getRepositoryId(repositoryDir, type);
-      RepositoryRevisionCache repositoryCache = myCache.get(repositoryId);
+      RepositoryRevisionCache repositoryCache = getExistingCache(repositoryDir, type);
       if (repositoryCache != null)
         repositoryCache.resetNegativeEntries();
     }
@@ -86,8 +158,7 @@ public final class RevisionsCache {
 
   public void resetNegativeEntries(@NotNull File repositoryDir, @NotNull Set<String> newCommits) throws IOException {
     for (RevisionCacheType type : RevisionCacheType.values()) {
-      String repositoryId = getRepositoryId(repositoryDir, type);
-      RepositoryRevisionCache repositoryCache = myCache.get(repositoryId);
+      RepositoryRevisionCache repositoryCache = getExistingCache(repositoryDir, type);
       if (repositoryCache != null) {
         if (LOG.isDebugEnabled())
           LOG.debug("Invalidate cache for repository " + repositoryDir + ", new commits " + newCommits);
@@ -98,27 +169,87 @@ public final class RevisionsCache {
 
 
   public void reset() {
-    for (RepositoryRevisionCache repoCache : myCache.values()) {
-      repoCache.reset();
+    for (CacheHolder holder : myCache.values()) {
+      RepositoryRevisionCache repoCache = holder.myCache;
+      if (repoCache != null)
+        repoCache.reset();
+    }
+    if (!myConfig.persistentCacheEnabled())
+      return;
+    //drop persisted caches which are not loaded yet, so they are not loaded after reset
+    for (File repoDir : getRepositoryDirs()) {
+      for (RevisionCacheType type : RevisionCacheType.values()) {
+        CacheHolder holder = getHolder(getRepositoryId(repoDir, type));
+        synchronized (holder) {
+          if (holder.myCache == null)
+            FileUtil.delete(RepositoryRevisionCache.getCacheFile(repoDir, type));
+        }
+      }
     }
   }
 
 
   @NotNull
   public RepositoryRevisionCache getRepositoryCache(@NotNull File repositoryDir, @NotNull RevisionCacheType type) throws IOException {
-    String repositoryId = getRepositoryId(repositoryDir, type);
-    RepositoryRevisionCache result = myCache.get(repositoryId);
-    if (result == null) {
-      result = new RepositoryRevisionCache(myConfig, repositoryDir, type, getCacheSize(type));
-      RepositoryRevisionCache old = myCache.putIfAbsent(repositoryId, result);
-      result = (old == null) ? result : old;
+    CacheHolder holder = getHolder(getRepositoryId(repositoryDir, type));
+    RepositoryRevisionCache result = holder.myCache;
+    if (result != null)
+      return result;
+    //load the cache under the holder lock rather than inside the map compute: reading a journal
+    //can take a while and should block neither other keys nor map operations
+    synchronized (holder) {
+      if (holder.myCache == null)
+        holder.myCache = createCache(repositoryDir, type);
+      return holder.myCache;
     }
+  }
+
+
+  @NotNull
+  private CacheHolder getHolder(@NotNull String repositoryId) {
+    CacheHolder holder = myCache.get(repositoryId);
+    if (holder != null)
+      return holder;
+    holder = new CacheHolder();
+    CacheHolder existing = myCache.putIfAbsent(repositoryId, holder);
+    return existing != null ? existing : holder;
+  }
+
+
+  @NotNull
+  private RepositoryRevisionCache createCache(@NotNull File repositoryDir, @NotNull RevisionCacheType type) {
+    int cacheSize = getCacheSize(type);
+    if (myConfig.persistentCacheEnabled()) {
+      try {
+        return RepositoryRevisionCache.read(myConfig, repositoryDir, type, cacheSize, myCompactionExecutor);
+      } catch (Exception e) {
+        LOG.warnAndDebugDetails("Error while initializing revisions cache for repository " + repositoryDir, e);
+      }
+    }
+    return new RepositoryRevisionCache(myConfig, repositoryDir, type, cacheSize, myCompactionExecutor);
+  }
+
+
+  /**
+   * @return loaded cache or a cache persisted on disk, null if there is no cache for the repository
+   */
+  @Nullable
+  private RepositoryRevisionCache getExistingCache(@NotNull File repositoryDir, @NotNull RevisionCacheType type) throws IOException {
+    CacheHolder holder = myCache.get(getRepositoryId(repositoryDir, type));
+    RepositoryRevisionCache result = holder != null ? holder.myCache : null;
+    if (result == null && myConfig.persistentCacheEnabled() && RepositoryRevisionCache.getCacheFile(repositoryDir, type).isFile())
+      result = getRepositoryCache(repositoryDir, type);
     return result;
   }
 
 
   @NotNull
-  private String getRepositoryId(@NotNull File repositoryDir, @NotNull RevisionCacheType type) throws IOException {
+  private String getRepositoryId(@NotNull File repositoryDir, @NotNull RevisionCacheType type) {
     return repositoryDir.getAbsolutePath() + "_" + type.name();
   }
+
+
+  private static final class CacheHolder {
+    private volatile RepositoryRevisionCache myCache;//set under the holder lock
+  }
 }
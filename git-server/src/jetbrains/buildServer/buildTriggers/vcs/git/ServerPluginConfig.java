@@ -64,6 +64,18 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getNativeGCQuotaMinutes();
 
+  /**
+   * @return max number of repositories garbage collection runs in simultaneously,
+   * cpu cores are split evenly between them
+   */
+  int getGcThreads();
+
+  /**
+   * @return max total size of packs in megabytes of repositories garbage collection
+   * runs in simultaneously; a bigger repository is collected alone
+   */
+  int getGcIoBudgetMb();
+
 
   String getFetchClasspath();
 
@@ -105,12 +117,172 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getMapFullPathRevisionCacheSize();
 
+  /**
+   * @return revisions cache journal is compacted once it contains more than factor * cache size records
+   */
+  int getRevisionCacheJournalSizeFactor();
+
+  /**
+   * @return number of threads reading persisted revisions caches in background on server start,
+   * 0 means caches are read on first access only
+   */
+  int getRevisionsCacheWarmUpThreads();
+
   long getConnectionRetryIntervalMillis();
 
   int getConnectionRetryAttempts();
 
   boolean ignoreFetchedCommits();
 
+  /**
+   * @return number of threads computing commit diffs during collecting changes,
+   * 1 means diffs are computed in the collecting changes thread
+   */
+  int getCollectChangesDiffThreads();
+
+  /**
+   * @return max size of commit changes cache per repository in megabytes, 0 disables the cache.
+   * Every clone has its own cache file which is removed together with the clone, so the total
+   * size is bounded by the number of clones times this limit.
+   */
+  int getCommitChangesCacheSizeMb();
+
+  /**
+   * @return true if the current state of a VCS root with a branch specification should
+   * include only refs which can match the specification, the default branch and tags (if reported)
+   */
+  boolean listRefsByBranchSpec();
+
+  /**
+   * @return true if refs of http(s) repositories should be listed using the ls-refs command of
+   * the git protocol version 2, so refs not matching the branch specification are not transferred
+   */
+  boolean useProtocolV2LsRefs();
+
+  /**
+   * @return true if concurrent requests listing refs of the same remote repository
+   * with the same credentials should share a single connection
+   */
+  boolean shareRemoteRefs();
+
+  /**
+   * @return time in milliseconds during which listed remote refs are reused by
+   * other requests with the same fetch url and credentials, 0 disables reuse of completed requests
+   */
+  long getRemoteRefsTtlMillis();
+
+  /**
+   * @return true if collecting changes should walk only paths included by checkout rules
+   */
+  boolean collectChangesApplyCheckoutRules();
+
+  /**
+   * @return true if collecting changes should not report commits which don't change
+   * any path included by checkout rules, has no effect for rules including everything
+   */
+  boolean collectChangesSkipCommitsWithoutIncludedChanges();
+
+  /**
+   * @return true if mapFullPath should consult a per-repository bloom filter of commits
+   * before looking a commit up in the repository
+   */
+  boolean useCommitBloomFilter();
+
+  /**
+   * @return max number of repositories whose commit bloom filters are kept in memory
+   */
+  int getCommitBloomFiltersMaxCount();
+
+  /**
+   * @return true if commit graphs should be maintained in clones and used by commit walks
+   */
+  boolean useCommitGraph();
+
+  /**
+   * @return true if fetches into a repository requested while another fetch into it
+   * is running should be combined into a single fetch
+   */
+  boolean coalesceFetches();
+
+  /**
+   * @return max number of concurrently running fetches, non-positive value means no limit
+   */
+  int getFetchMaxConcurrency();
+
+  /**
+   * @return max number of concurrently running fetches from the same host, non-positive value means no limit
+   */
+  int getFetchMaxConcurrencyPerHost();
+
+  /**
+   * @return time in seconds after which a fetch waiting for a free slot gets the next higher priority
+   */
+  int getFetchPriorityAgingSeconds();
+
+  /**
+   * @return number of threads fetching submodule repositories before collecting changes,
+   * 1 means submodules are fetched one by one while collecting changes
+   */
+  int getSubmoduleFetchThreads();
+
+  /**
+   * @return true if new clones should be fetched without blobs, missing blobs are
+   * fetched when their content is needed
+   */
+  boolean useBloblessClones();
+
+  /**
+   * @return engine running fetches: 'jgit' or 'native' for the git installed on the server,
+   * can be overridden for a repository by the 'teamcity.fetchEngine' option in its config
+   */
+  @NotNull
+  String getFetchEngine();
+
+  /**
+   * @return true if a commit missing after the fetch of its branch should be requested from
+   * the remote repository by id before fetching all refs
+   */
+  boolean fetchCommitsById();
+
+  /**
+   * @return true if a connection opened to list remote refs should be kept until the end
+   * of the operation, so the following fetch can reuse it and its advertised refs
+   */
+  boolean reuseRemoteConnections();
+
+  /**
+   * @return true if the garbage collection should write pack bitmap indexes and
+   * reachability checks should use them when they are up to date
+   */
+  boolean usePackBitmaps();
+
+  /**
+   * @return true if fetch in a separate process should reuse long-lived fetcher
+   * processes instead of starting a new process for every fetch
+   */
+  boolean useFetchWorkers();
+
+  /**
+   * @return max number of idle fetcher processes kept for reuse
+   */
+  int getFetchWorkersPoolSize();
+
+  /**
+   * @return number of fetches after which a fetcher process is stopped
+   */
+  int getFetchWorkerMaxFetches();
+
+  /**
+   * @return percent of the max heap of a fetcher process; when the heap retained
+   * after the last garbage collection exceeds it, the process is stopped
+   */
+  int getFetchWorkerMaxUsedMemoryPercent();
+
+  /**
+   * @return time in seconds after which an unused fetcher process is stopped
+   */
+  int getFetchWorkerIdleTimeoutSeconds();
+
   @Nullable
   CronExpression getCleanupCronExpression();
 
@@ -159,6 +331,20 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getPackRefsIdleTimeoutSeconds();
 
+  /**
+   * @return true if garbage collection should merge small packs in a geometric progression
+   * and write a multi-pack index instead of repacking everything, while the fragmentation
+   * is below {@link #getFullRepackFragmentationPercent()}. Disabled by default: the incremental
+   * repack runs in the repository itself under its write lock, not in a copy like the full repack.
+   */
+  boolean incrementalRepack();
+
+  /**
+   * @return percent of packed data outside the biggest pack after which garbage collection
+   * runs a full repack
+   */
+  int getFullRepackFragmentationPercent();
+
   boolean treatMissingBranchTipAsRecoverableError();
 
   boolean reportPerParentChangedFiles();
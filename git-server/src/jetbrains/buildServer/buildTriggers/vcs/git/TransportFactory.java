@@ -19,10 +19,17 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * @author dmitry.neverov
@@ -44,4 +51,43 @@ public interface TransportFactory {
 
   Transport createTransport(@NotNull Repository r, @NotNull URIish url, @NotNull AuthSettings authSettings, int timeoutSeconds)
     throws NotSupportedException, VcsException, TransportException;
+
+  /**
+   * Lists remote refs with the specified prefixes so that other refs are not transferred
+   *
+   * @param url URL to list refs from
+   * @param authSettings authentication settings
+   * @param refPrefixes prefixes of refs of interest
+   * @param timeoutSeconds connection timeout
+   * @return refs with the specified prefixes or null if refs cannot be filtered by the remote repository,
+   * in this case all refs should be listed using a transport
+   */
+  @Nullable
+  default Map<String, Ref> listRefs(@NotNull URIish url, @NotNull AuthSettings authSettings, @NotNull Collection<String> refPrefixes, int timeoutSeconds) {
+    return null;
+  }
+
+  /**
+   * Fetches objects which JGit transports cannot fetch: objects excluded by a filter
+   * or objects not reachable from remote refs which are still present in the remote repository
+   *
+   * @param db repository to insert fetched objects into
+   * @param url URL to fetch from
+   * @param authSettings authentication settings
+   * @param wants ids of objects to fetch with all objects reachable from them
+   * @param haves ids of local commits, objects reachable from them are not fetched
+   * @param filter object filter, e.g. 'blob:none', null means no filter
+   * @param timeoutSeconds connection timeout
+   * @return true if objects are fetched, false if the remote repository doesn't support such a fetch
+   * @throws IOException if the remote repository supports the fetch, but it failed
+   */
+  default boolean fetchObjects(@NotNull Repository db,
+                               @NotNull URIish url,
+                               @NotNull AuthSettings authSettings,
+                               @NotNull Collection<ObjectId> wants,
+                               @NotNull Collection<ObjectId> haves,
+                               @Nullable String filter,
+                               int timeoutSeconds) throws IOException {
+    return false;
+  }
 }
@@ -30,6 +30,8 @@ import jetbrains.buildServer.version.ServerVersionHolder;
 import jetbrains.buildServer.version.ServerVersionInfo;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.*;
 import org.eclipse.jgit.transport.http.HttpConnectionFactory;
@@ -38,6 +40,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmpty;
@@ -54,6 +57,8 @@ public class TransportFactoryImpl implements TransportFactory {
   private final Map<String,String> myJSchOptions;
   private final VcsRootSshKeyManager mySshKeyManager;
   private final GitTrustStoreProvider myGitTrustStoreProvider;
+  private final ProtocolV2LsRefs myLsRefs;
+  private final ProtocolV2Fetch myFetch;
 
   public TransportFactoryImpl(@NotNull ServerPluginConfig config,
                               @NotNull VcsRootSshKeyManager sshKeyManager) {
@@ -77,6 +82,9 @@ public class TransportFactoryImpl implements TransportFactory {
       f = new TeamCityJDKHttpConnectionFactory(myConfig, () -> myGitTrustStoreProvider.getTrustStore());
     }
     HttpTransport.setConnectionFactory(f);
+    //requests of the protocol version 2 are sent with the same factory as requests of JGit transports
+    myLsRefs = new ProtocolV2LsRefs(f);
+    myFetch = new ProtocolV2Fetch(f);
   }
 
   public Transport createTransport(@NotNull Repository r, @NotNull URIish url, @NotNull AuthSettings authSettings) throws NotSupportedException, VcsException {
@@ -104,6 +112,24 @@ public class TransportFactoryImpl implements TransportFactory {
     }
   }
 
+  @Nullable
+  public Map<String, Ref> listRefs(@NotNull URIish url, @NotNull AuthSettings authSettings, @NotNull Collection<String> refPrefixes, int timeoutSeconds) {
+    if (!myConfig.useProtocolV2LsRefs())
+      return null;
+    return myLsRefs.listRefs(url, authSettings, refPrefixes, timeoutSeconds);
+  }
+
+  @Override
+  public boolean fetchObjects(@NotNull Repository db,
+                              @NotNull URIish url,
+                              @NotNull AuthSettings authSettings,
+                              @NotNull Collection<ObjectId> wants,
+                              @NotNull Collection<ObjectId> haves,
+                              @Nullable String filter,
+                              int timeoutSeconds) throws IOException {
+    return myFetch.fetch(db, url, authSettings, wants, haves, filter, timeoutSeconds);
+  }
+
   @NotNull
   private URIish prepareURI(@NotNull URIish uri) {
     final String scheme = uri.getScheme();
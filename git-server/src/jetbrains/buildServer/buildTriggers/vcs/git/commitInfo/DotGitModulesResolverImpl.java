@@ -17,7 +17,9 @@
 package jetbrains.buildServer.buildTriggers.vcs.git.commitInfo;
 
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.buildTriggers.vcs.git.OperationContext;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmodulesConfig;
+import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.BlobBasedConfig;
@@ -35,19 +37,23 @@ import java.io.IOException;
 public class DotGitModulesResolverImpl implements DotGitModulesResolver {
   private static final Logger LOG = Logger.getInstance(DotGitModulesResolverImpl.class.getName());
 
+  private final OperationContext myContext;
   private final Repository myDb;
 
-  public DotGitModulesResolverImpl(@NotNull final Repository db) {
+  public DotGitModulesResolverImpl(@NotNull final OperationContext context, @NotNull final Repository db) {
+    myContext = context;
     myDb = db;
   }
 
   @Nullable
   public SubmodulesConfig forBlob(@NotNull final AnyObjectId blob) throws IOException {
     try {
-      return new SubmodulesConfig(myDb.getConfig(), new BlobBasedConfig(null, myDb, blob));
+      return new SubmodulesConfig(myDb.getConfig(), new BlobBasedConfig(null, myContext.openObject(myDb, blob.toObjectId()).getCachedBytes()));
     } catch (ConfigInvalidException e) {
       LOG.info("Invalid submodule config: " + e.getMessage(), e);
       return null;
+    } catch (VcsException e) {
+      throw new IOException(e.getMessage(), e);
     }
   }
 }
@@ -55,6 +55,7 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
                              @NotNull final CheckoutRules rules,
                              @NotNull final CommitsConsumer consumer) throws VcsException {
     final OperationContext ctx = myVcs.createContext(root, "collecting commits");
+    ctx.setFetchPriority(FetchPriority.BACKGROUND);
     GitVcsRoot gitRoot = ctx.getGitRoot();
     myVcs.getRepositoryManager().runWithDisabledRemove(gitRoot.getRepositoryDir(), () -> {
       try {
@@ -79,7 +80,7 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
     final ObjectDatabase cached = db.getObjectDatabase().newCachedDatabase();
     final Map<String, Set<String>> index = getCommitToRefIndex(currentStateWithTags);
 
-    final DotGitModulesResolver resolver = new CachedDotGitModulesResolver(new DotGitModulesResolverImpl(db));
+    final DotGitModulesResolver resolver = new CachedDotGitModulesResolver(new DotGitModulesResolverImpl(context, db));
     final CommitTreeProcessor proc = new CommitTreeProcessor(resolver, db);
 
     final RevWalk walk = new RevWalk(cached.newReader());
@@ -22,6 +22,7 @@ import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleAwareTree
 import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.patches.PatchBuilder;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
@@ -31,8 +32,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.Callable;
 
 public class GitPatchBuilder {
@@ -42,7 +42,7 @@ public class GitPatchBuilder {
   private final OperationContext myContext;
   private final GitVcsRoot myGitRoot;
   private final PatchBuilder myBuilder;
-  private final List<Callable<Void>> myActions = new ArrayList<Callable<Void>>();
+  private final List<LoadContentAction> myActions = new ArrayList<LoadContentAction>();
   private final String myFromRevision;
   private final String myToRevision;
   private final CheckoutRules myRules;
@@ -166,8 +166,10 @@ public class GitPatchBuilder {
       myLogger.logFileModeChanged(mode, myTreeWalk.treeWalkInfo(path));
     ObjectId id = myTreeWalk.getObjectId(0);
     LoadContentAction loadContent = getLoadContentAction(path, mappedPath, mode, id);
-    if (myFullCheckout) {
+    if (myFullCheckout && !myContext.isBloblessClone(loadContent.getRepository())) {
       loadContent.call();// full checkout, we aren't going to see any deletes
+    } else if (myFullCheckout) {
+      myActions.add(loadContent);// blobless clone, load missing blobs in one fetch before reading contents
     } else {
       myFileAction.call("-", mappedPath);
       myActions.add(loadContent);
@@ -189,7 +191,7 @@ public class GitPatchBuilder {
                                                    @NotNull final ObjectId id) {
     final Repository repository = getRepositoryOfTree();
     return new LoadContentAction(
-      contentLoaderFactory(),
+      withMissingBlobsFetch(contentLoaderFactory()),
       myGitRoot,
       myBuilder,
       myLogger,
@@ -206,16 +208,57 @@ public class GitPatchBuilder {
     return CONTENT_LOADER_FACTORY;
   }
 
+  /**
+   * Fetches a blob missing in a blobless clone if it was not loaded before the content is read
+   */
+  @NotNull
+  private ContentLoaderFactory withMissingBlobsFetch(@NotNull final ContentLoaderFactory factory) {
+    return new ContentLoaderFactory() {
+      @Nullable
+      public ObjectLoader open(@NotNull final Repository repo, @NotNull final ObjectId id) throws IOException {
+        try {
+          return factory.open(repo, id);
+        } catch (MissingObjectException e) {
+          if (!myContext.isBloblessClone(repo))
+            throw e;
+          try {
+            myContext.loadMissingBlobs(repo, Collections.singleton(id));
+          } catch (VcsException ve) {
+            throw new IOException(ve.getMessage(), ve);
+          }
+          return factory.open(repo, id);
+        }
+      }
+    };
+  }
+
   private void deleteFile(@NotNull String mappedFile) throws IOException {
     myFileAction.call("DELETE", mappedFile);
     myBuilder.deleteFile(GitUtils.toFile(mappedFile), true);
   }
 
   private void finish() throws Exception {
+    loadMissingBlobs();
     for (Callable<Void> action : myActions)
       action.call();
   }
 
+  private void loadMissingBlobs() throws VcsException {
+    Map<Repository, List<ObjectId>> blobs = new LinkedHashMap<Repository, List<ObjectId>>();
+    for (LoadContentAction action : myActions) {
+      Repository repository = action.getRepository();
+      List<ObjectId> ids = blobs.get(repository);
+      if (ids == null) {
+        ids = new ArrayList<ObjectId>();
+        blobs.put(repository, ids);
+      }
+      ids.add(action.getObjectId());
+    }
+    for (Map.Entry<Repository, List<ObjectId>> e : blobs.entrySet()) {
+      myContext.loadMissingBlobs(e.getKey(), e.getValue());
+    }
+  }
+
   private Repository getRepositoryOfTree() {
     Repository result;
     AbstractTreeIterator ti = myTreeWalk.getTree(0, AbstractTreeIterator.class);
@@ -49,7 +49,7 @@ public class GitPatchProcess {
     FetcherProperties fetcherProperties = new FetcherProperties(config);
     FetchCommand fetchCommand = new FetchCommandImpl(config, transportFactory, fetcherProperties, sshKeyManager,
                                                      settings.getGitTrustStoreProvider());
-    CommitLoader commitLoader = new CommitLoaderImpl(repositoryManager, fetchCommand, mapFullPath);
+    CommitLoader commitLoader = new CommitLoaderImpl(repositoryManager, fetchCommand, mapFullPath, config);
 
     OperationContext context = new OperationContext(commitLoader, repositoryManager, settings.getRoot(), "build patch", GitProgress.NO_OP, config);
     OutputStream fos = new BufferedOutputStream(new FileOutputStream(settings.getPatchFile()));
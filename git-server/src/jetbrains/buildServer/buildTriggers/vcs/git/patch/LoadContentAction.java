@@ -109,6 +109,16 @@ public class LoadContentAction implements Callable<Void> {
     return null;
   }
 
+  @NotNull
+  Repository getRepository() {
+    return myRepository;
+  }
+
+  @NotNull
+  ObjectId getObjectId() {
+    return myObjectId;
+  }
+
   @NotNull
   protected ObjectLoader getObjectLoader() throws IOException {
     ObjectLoader loader = myContentFactory.open(myRepository, myObjectId);
@@ -22,6 +22,7 @@ import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.errors.CorruptObjectException;
 import org.eclipse.jgit.lib.BlobBasedConfig;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
@@ -32,10 +33,11 @@ import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 
 /**
  * The resolver for submodules
@@ -195,6 +197,15 @@ public class SubmoduleResolverImpl implements SubmoduleResolver {
     return myDb;
   }
 
+  /**
+   * @return submodules registered in the .gitmodules of the current commit
+   */
+  @NotNull
+  public Collection<Submodule> getSubmodules() {
+    ensureConfigLoaded();
+    return myConfig != null ? myConfig.getSubmodules() : Collections.<Submodule>emptyList();
+  }
+
   /**
    * Get submodule url by it's path in current repository
    *
@@ -217,9 +228,9 @@ public class SubmoduleResolverImpl implements SubmoduleResolver {
   private void ensureConfigLoaded() {
     if (myConfig == null) {
       try {
-        myConfig = new SubmodulesConfig(myContext.getConfig(myDb), new BlobBasedConfig(null, myDb, myCommit, ".gitmodules"));
-      } catch (FileNotFoundException e) {
-        // do nothing
+        byte[] gitmodules = myContext.readFile(myDb, myCommit, Constants.DOT_GIT_MODULES);
+        if (gitmodules != null)
+          myConfig = new SubmodulesConfig(myContext.getConfig(myDb), new BlobBasedConfig(null, gitmodules));
       } catch (Exception e) {
         LOG.error("Unable to load or parse submodule configuration at: " + myCommit.getId().name(), e);
       }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.submodules;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.buildTriggers.vcs.git.CommitLoader;
+import jetbrains.buildServer.buildTriggers.vcs.git.OperationContext;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.BlobBasedConfig;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Fetches submodule repositories missing commits referenced by the given commits.
+ * Repositories are fetched concurrently before the commits trees are walked,
+ * otherwise the walk fetches them lazily one by one. Only direct submodules of
+ * the repository are fetched, nested submodules are still fetched by the walk.
+ */
+public class SubmodulesPrefetcher {
+
+  private static final Logger LOG = Logger.getInstance(SubmodulesPrefetcher.class.getName());
+
+  private final OperationContext myContext;
+  private final CommitLoader myCommitLoader;
+
+  public SubmodulesPrefetcher(@NotNull OperationContext context, @NotNull CommitLoader commitLoader) {
+    myContext = context;
+    myCommitLoader = commitLoader;
+  }
+
+
+  public void prefetch(@NotNull Repository db,
+                       @NotNull Collection<RevCommit> commits,
+                       @NotNull ExecutorService executor) throws VcsException {
+    Map<String, Set<ObjectId>> submoduleCommits = new LinkedHashMap<String, Set<ObjectId>>();//submodule url -> commits referenced from the repository
+    //.gitmodules blob -> submodules registered in it, commits usually share the same .gitmodules
+    Map<ObjectId, Collection<Submodule>> submodulesByConfig = new HashMap<ObjectId, Collection<Submodule>>();
+    //urls are resolved relative to the repository url, the same resolver works for all commits
+    SubmoduleResolverImpl resolver = null;
+    for (RevCommit commit : commits) {
+      ObjectId gitmodules = getEntryId(db, commit, Constants.DOT_GIT_MODULES, Constants.OBJ_BLOB);
+      if (gitmodules == null)
+        continue;
+      Collection<Submodule> submodules = submodulesByConfig.get(gitmodules);
+      if (submodules == null) {
+        submodules = readSubmodules(db, gitmodules);
+        submodulesByConfig.put(gitmodules, submodules);
+      }
+      if (resolver == null)
+        resolver = new SubmoduleResolverImpl(myContext, myCommitLoader, db, commit, "");
+      for (Submodule submodule : submodules) {
+        ObjectId submoduleCommit = getEntryId(db, commit, submodule.getPath(), Constants.OBJ_COMMIT);
+        if (submoduleCommit == null)
+          continue;
+        Set<ObjectId> ids = submoduleCommits.get(submodule.getUrl());
+        if (ids == null) {
+          ids = new HashSet<ObjectId>();
+          submoduleCommits.put(submodule.getUrl(), ids);
+        }
+        ids.add(submoduleCommit);
+      }
+    }
+    if (resolver == null || submoduleCommits.isEmpty())
+      return;
+
+    Map<URIish, Repository> toFetch = new LinkedHashMap<URIish, Repository>();
+    for (Map.Entry<String, Set<ObjectId>> e : submoduleCommits.entrySet()) {
+      String url = e.getKey();
+      try {
+        Repository r = resolver.resolveRepository(url);
+        if (!myCommitLoader.findCommits(r, e.getValue()).isEmpty())
+          toFetch.put(resolver.resolveSubmoduleUrl(url), r);
+      } catch (Exception ex) {
+        //the error is reported when the walk resolves the submodule commit
+        LOG.debug("Cannot resolve repository of the submodule " + url + " in " + db.getDirectory(), ex);
+      }
+    }
+    if (toFetch.isEmpty())
+      return;
+    if (LOG.isDebugEnabled())
+      LOG.debug("Fetch " + toFetch.size() + " submodule repositories used in " + db.getDirectory() + ": " + toFetch.keySet());
+    myContext.fetchSubmodules(toFetch, Arrays.asList(new RefSpec("+refs/*:refs/*")), myContext.getGitRoot().getAuthSettings(), executor);
+  }
+
+
+  @NotNull
+  private Collection<Submodule> readSubmodules(@NotNull Repository db, @NotNull ObjectId gitmodules) {
+    try {
+      byte[] config = myContext.openObject(db, gitmodules).getCachedBytes();
+      return new SubmodulesConfig(myContext.getConfig(db), new BlobBasedConfig(null, config)).getSubmodules();
+    } catch (Exception e) {
+      //the error is reported when the walk loads submodules of the commit
+      LOG.debug("Cannot load submodules configuration " + gitmodules.name() + " in " + db.getDirectory(), e);
+      return Collections.emptyList();
+    }
+  }
+
+
+  /**
+   * @param objectType expected type of the entry: blob for files, commit for submodules
+   * @return id of the entry at the given path or null if there is no entry of the expected type
+   */
+  @Nullable
+  private static ObjectId getEntryId(@NotNull Repository db, @NotNull RevCommit commit, @NotNull String path, int objectType) {
+    TreeWalk tw = null;
+    try {
+      tw = TreeWalk.forPath(db, path, commit.getTree());
+      if (tw == null || tw.getFileMode(0).getObjectType() != objectType)
+        return null;
+      return tw.getObjectId(0);
+    } catch (IOException e) {
+      return null;
+    } finally {
+      if (tw != null)
+        tw.release();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.patches.PatchBuilderImpl;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.copyRepository;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class BloblessClonesTest extends BaseRemoteRepositoryTest {
+
+  private static final String README_BLOB = "085887ccf494c3a8a82176a4048f9801e0a8c228";
+  private static final String A_BLOB = "78981922613b2afb6025042ff6bd878ac1994e85";
+
+  private PluginConfigBuilder myConfig;
+  private GitHttpServer myServer;
+  private File myRepo;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath())).setUseBloblessClones(true);
+    myRepo = copyRepository(myTempFiles, dataFile("repo_for_fetch.1"), "repo.git");
+    Repository r = new RepositoryBuilder().setGitDir(myRepo).build();
+    StoredConfig config = r.getConfig();
+    config.setBoolean("uploadpack", null, "allowFilter", true);
+    config.save();
+    r.close();
+    myServer = new GitHttpServer(GitVersionProvider.getGitPath(), myRepo);
+    myServer.start();
+  }
+
+
+  @Override
+  @AfterMethod
+  public void tearDown() {
+    super.tearDown();
+    if (myServer != null)
+      myServer.stop();
+  }
+
+
+  public void content_should_be_fetched_when_needed() throws Exception {
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfig);
+    GitVcsSupport git = builder.build();
+    VcsRoot root = vcsRoot().withFetchUrl(myServer.getRepoUrl()).withBranch("master").build();
+
+    byte[] content = git.getContentProvider().getContent("readme", root, "add81050184d3c818560bdd8839f50024c188586");
+
+    then(content).isEqualTo(loadBlob(myRepo, README_BLOB));
+    Repository clone = new RepositoryBuilder().setGitDir(new GitVcsRoot(builder.getRepositoryManager(), root).getRepositoryDir()).build();
+    try {
+      then(clone.getConfig().getBoolean("teamcity", "blobless", false)).isTrue();
+      then(clone.hasObject(ObjectId.fromString(README_BLOB))).isTrue();
+      then(clone.hasObject(ObjectId.fromString(A_BLOB))).isFalse();
+    } finally {
+      clone.close();
+    }
+  }
+
+
+  public void missing_blobs_of_patch_should_be_fetched_at_once() throws Exception {
+    ServerPluginConfig config = myConfig.build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchCommand fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager);
+    FetchCommandCountDecorator fetchCounter = new FetchCommandCountDecorator(fetchCommand);
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfig).withFetchCommand(fetchCounter);
+    GitVcsSupport git = builder.build();
+    VcsRoot root = vcsRoot().withFetchUrl(myServer.getRepoUrl()).withBranch("master").build();
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PatchBuilderImpl patchBuilder = new PatchBuilderImpl(output);
+    git.buildPatch(root, null, "add81050184d3c818560bdd8839f50024c188586", patchBuilder, CheckoutRules.DEFAULT);
+    patchBuilder.close();
+
+    then(fetchCounter.getBlobFetchCount()).isEqualTo(1);
+    Repository clone = new RepositoryBuilder().setGitDir(new GitVcsRoot(builder.getRepositoryManager(), root).getRepositoryDir()).build();
+    try {
+      then(clone.hasObject(ObjectId.fromString(README_BLOB))).isTrue();
+      then(clone.hasObject(ObjectId.fromString(A_BLOB))).isTrue();
+    } finally {
+      clone.close();
+    }
+  }
+
+
+  public void gc_should_keep_promisor_packs() throws Exception {
+    myConfig.setRunNativeGC(true).setRunInPlaceGc(false).setPathToGit(GitVersionProvider.getGitPath());
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfig);
+    GitVcsSupport git = builder.build();
+    VcsRoot root = vcsRoot().withFetchUrl(myServer.getRepoUrl()).withBranch("master").build();
+    git.getContentProvider().getContent("readme", root, "add81050184d3c818560bdd8839f50024c188586");
+    File repositoryDir = new GitVcsRoot(builder.getRepositoryManager(), root).getRepositoryDir();
+    Repository clone = new RepositoryBuilder().setGitDir(repositoryDir).build();
+    StoredConfig config = clone.getConfig();
+    config.setInt("gc", null, "autopacklimit", 1);
+    config.save();
+    clone.close();
+
+    new Cleanup(myConfig.build(), builder.getRepositoryManager(), new GcErrors()).run();
+
+    File packDir = new File(repositoryDir, "objects/pack");
+    then(packDir.list((dir, name) -> name.endsWith(".pack"))).hasSize(1);
+    then(packDir.list((dir, name) -> name.endsWith(".promisor"))).hasSize(1);
+    clone = new RepositoryBuilder().setGitDir(repositoryDir).build();
+    try {
+      then(clone.hasObject(ObjectId.fromString(README_BLOB))).isTrue();
+      then(clone.hasObject(ObjectId.fromString(A_BLOB))).isFalse();
+    } finally {
+      clone.close();
+    }
+    then(git.getContentProvider().getContent("readme", root, "add81050184d3c818560bdd8839f50024c188586")).isEqualTo(loadBlob(myRepo, README_BLOB));
+  }
+
+
+  @NotNull
+  private byte[] loadBlob(@NotNull File repo, @NotNull String blob) throws IOException {
+    Repository r = new RepositoryBuilder().setGitDir(repo).build();
+    try {
+      return r.open(ObjectId.fromString(blob)).getBytes();
+    } finally {
+      r.close();
+    }
+  }
+}
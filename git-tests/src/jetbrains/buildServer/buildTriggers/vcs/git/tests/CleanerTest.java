@@ -33,7 +33,12 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
@@ -49,6 +54,7 @@ public class CleanerTest extends BaseTestCase {
   private RepositoryManager myRepositoryManager;
   private ServerPluginConfig myConfig;
   private PluginConfigBuilder myConfigBuilder;
+  private GcErrors myGcErrors;
 
   @BeforeMethod
   public void setUp() throws IOException {
@@ -128,6 +134,141 @@ public class CleanerTest extends BaseTestCase {
 
     db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
     then(db.getObjectDatabase().getPacks().size()).isEqualTo(1);
+    then(packDir.list((dir, name) -> name.endsWith(".bitmap"))).hasSize(1);
+    then(myCleanup.getGcScheduler().getLastGcTime(repositoryDir)).isNotNull();
+  }
+
+
+  public void repository_should_not_be_marked_as_collected_when_gc_did_not_run() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(false);
+    initCleanup();
+
+    VcsRoot root = GitTestUtil.getVcsRoot();
+    mySupport.getCurrentState(root);
+    File repositoryDir = getRepositoryDir(root);
+
+    //a fresh clone is compact, no gc is needed
+    myCleanup.run();
+
+    then(myGcErrors.getLastRunDone()).isEqualTo(1);
+    then(myCleanup.getGcScheduler().getLastGcTime(repositoryDir)).isNull();
+  }
+
+
+  public void gc_should_run_in_cleanup_call_wrapper() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(true);
+    initCleanup();
+    Set<String> wrappedThreads = ConcurrentHashMap.newKeySet();
+    myCleanup.setCleanupCallWrapper(cleanup -> {
+      wrappedThreads.add(Thread.currentThread().getName());
+      cleanup.run();
+    });
+
+    VcsRoot root = GitTestUtil.getVcsRoot();
+    mySupport.getCurrentState(root);
+    File repositoryDir = getRepositoryDir(root);
+
+    myCleanup.run();
+
+    then(myCleanup.getGcScheduler().getLastGcTime(repositoryDir)).isNotNull();
+    then(wrappedThreads).contains(Thread.currentThread().getName(), "Git garbage collection");
+  }
+
+
+  public void incrementalGc() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(false);
+    myConfigBuilder.setFullRepackFragmentationPercent(100);
+    myConfigBuilder.setIncrementalRepack(true);
+    initCleanup();
+
+    VcsRoot root = GitTestUtil.getVcsRoot();
+    mySupport.collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    File repositoryDir = getRepositoryDir(root);
+
+    File packDir = new File(repositoryDir, "objects/pack");
+    File pack = new File(packDir, "pack-3763fffad1c368b0a79f9a196ee098e303fc0c29.pack");
+    File idx = new File(packDir, "pack-3763fffad1c368b0a79f9a196ee098e303fc0c29.idx");
+    for (int i = 10; i <= 60; i++) {
+      FileUtil.copy(pack, new File(packDir, "pack-" + i + "63fffad1c368b0a79f9a196ee098e303fc0c29.pack"));
+      FileUtil.copy(idx, new File(packDir, "pack-" + i + "63fffad1c368b0a79f9a196ee098e303fc0c29.idx"));
+    }
+
+    myCleanup.run();
+
+    FileRepository db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
+    then(db.getObjectDatabase().getPacks().size()).isEqualTo(1);
+    then(new File(packDir, "multi-pack-index")).isFile();
+    mySupport.getCurrentState(root);
+  }
+
+
+  public void gc_should_continue_with_repositories_skipped_because_of_quota() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(true);
+    myConfigBuilder.setNativeGCQuotaMinutes(0);
+    myConfigBuilder.setGcThreads(1);
+    initCleanup();
+
+    VcsRoot root1 = GitTestUtil.getVcsRoot();
+    VcsRoot root2 = GitTestUtil.getVcsRoot("repo_for_fetch.1");
+    mySupport.getCurrentState(root1);
+    mySupport.getCurrentState(root2);
+    File repositoryDir1 = getRepositoryDir(root1);
+    File repositoryDir2 = getRepositoryDir(root2);
+
+    myCleanup.run();
+
+    GcScheduler scheduler = myCleanup.getGcScheduler();
+    then(myGcErrors.getLastRunDone()).isEqualTo(1);
+    then(myGcErrors.getLastRunSkipped()).isEqualTo(1);
+    File processed = scheduler.getLastGcTime(repositoryDir1) != null ? repositoryDir1 : repositoryDir2;
+    File skipped = processed.equals(repositoryDir1) ? repositoryDir2 : repositoryDir1;
+    then(scheduler.getLastGcTime(skipped)).isNull();
+    then(myGcErrors.getStarvedClones()).as("a clone skipped once is not reported").isEmpty();
+
+    //progress is stored on disk, a new scheduler should pick the skipped repository
+    myCleanup = new Cleanup(myConfig, myRepositoryManager, myGcErrors);
+    myCleanup.run();
+
+    then(myCleanup.getGcScheduler().getLastGcTime(skipped)).isNotNull();
+    then(myGcErrors.getLastRunSkipped()).isEqualTo(1);
+  }
+
+
+  public void skipped_runs_should_survive_restart() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(true);
+    myConfigBuilder.setNativeGCQuotaMinutes(0);
+    myConfigBuilder.setGcThreads(1);
+    initCleanup();
+
+    VcsRoot root1 = GitTestUtil.getVcsRoot();
+    VcsRoot root2 = GitTestUtil.getVcsRoot("repo_for_fetch.1");
+    mySupport.getCurrentState(root1);
+    mySupport.getCurrentState(root2);
+    File repositoryDir1 = getRepositoryDir(root1);
+    File repositoryDir2 = getRepositoryDir(root2);
+
+    //both clones were skipped by previous cleanups, the one skipped now becomes starved
+    File progress = new File(myRepositoryManager.getBaseMirrorsDir(), "gc-progress.properties");
+    FileUtil.writeFileAndReportErrors(progress, repositoryDir1.getName() + ".skippedRuns=" + (GcScheduler.STARVED_SKIPPED_RUNS - 1) + "\n" +
+                                                repositoryDir2.getName() + ".skippedRuns=" + (GcScheduler.STARVED_SKIPPED_RUNS - 1) + "\n");
+
+    myCleanup.run();
+
+    then(myGcErrors.getStarvedClones()).hasSize(1);
+    File starved = myGcErrors.getStarvedClones().get(0);
+    then(myCleanup.getGcScheduler().getLastGcTime(starved)).isNull();
+    Properties props = new Properties();
+    try (Reader reader = new FileReader(progress)) {
+      props.load(reader);
+    }
+    then(props.getProperty(starved.getName() + ".skippedRuns")).isEqualTo(String.valueOf(GcScheduler.STARVED_SKIPPED_RUNS));
+    File collected = starved.equals(repositoryDir1) ? repositoryDir2 : repositoryDir1;
+    then(props.getProperty(collected.getName() + ".skippedRuns")).isNull();
   }
 
 
@@ -136,7 +277,8 @@ public class CleanerTest extends BaseTestCase {
     GitSupportBuilder gitBuilder = gitSupport().withPluginConfig(myConfig);
     mySupport = gitBuilder.build();
     myRepositoryManager = gitBuilder.getRepositoryManager();
-    myCleanup = new Cleanup(myConfig, myRepositoryManager, new GcErrors());
+    myGcErrors = new GcErrors();
+    myCleanup = new Cleanup(myConfig, myRepositoryManager, myGcErrors);
     myCleanupCalled = new AtomicBoolean();
     myCleanup.setCleanupCallWrapper(cleanup -> {
       myCleanupCalled.set(true);
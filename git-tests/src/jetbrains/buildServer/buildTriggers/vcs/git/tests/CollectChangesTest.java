@@ -27,14 +27,18 @@ import jetbrains.buildServer.util.cache.ResetCacheHandler;
 import jetbrains.buildServer.vcs.*;
 import org.apache.log4j.Level;
 import org.assertj.core.data.MapEntry;
+import org.assertj.core.groups.Tuple;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.BeforeMethod;
@@ -45,6 +49,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Arrays.asList;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
@@ -244,6 +249,174 @@ public class CollectChangesTest extends BaseRemoteRepositoryTest {
   }
 
 
+  public void parallel_diff_should_report_changes_in_walk_order() throws Exception {
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).build();
+    String fromCommit = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+    String toCommit = "465ad9f630e451b9f2b782ffb09804c6a98c4bb9";
+
+    myConfig.setCollectChangesDiffThreads(1);
+    List<ModificationData> expected = git().collectChanges(root, fromCommit, toCommit, CheckoutRules.DEFAULT);
+
+    myConfig.setCollectChangesDiffThreads(4);
+    List<ModificationData> actual = git().collectChanges(root, fromCommit, toCommit, CheckoutRules.DEFAULT);
+
+    then(actual).extracting("version").containsExactlyElementsOf(extractVersions(expected));
+    for (int i = 0; i < expected.size(); i++) {
+      then(actual.get(i).getParentRevisions()).isEqualTo(expected.get(i).getParentRevisions());
+      then(actual.get(i).getChanges()).extracting("type", "fileName", "beforeChangeRevisionNumber", "afterChangeRevisionNumber")
+        .containsExactlyElementsOf(extractChanges(expected.get(i)));
+    }
+  }
+
+
+  public void roots_on_the_same_clone_should_reuse_commit_changes() throws Exception {
+    String fromCommit = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+    String toCommit = "465ad9f630e451b9f2b782ffb09804c6a98c4bb9";
+
+    VcsRoot root1 = vcsRoot().withFetchUrl(myRepo).withBranch("master").build();
+    List<ModificationData> expected = git().collectChanges(root1, fromCommit, toCommit, CheckoutRules.DEFAULT);
+    then(expected).isNotEmpty();
+
+    //new instance reads changes persisted by the first one
+    GitVcsSupport git = git();
+    VcsRoot root2 = vcsRoot().withFetchUrl(myRepo).withBranch("patch-tests").build();
+    List<ModificationData> actual = git.collectChanges(root2, fromCommit, toCommit, CheckoutRules.DEFAULT);
+
+    then(git.getCommitChangesCache().getHits()).isEqualTo(expected.size());
+    then(git.getCommitChangesCache().getMisses()).isEqualTo(0);
+    then(actual).extracting("version").containsExactlyElementsOf(extractVersions(expected));
+    for (int i = 0; i < expected.size(); i++) {
+      then(actual.get(i).getChanges()).extracting("type", "fileName", "beforeChangeRevisionNumber", "afterChangeRevisionNumber")
+        .containsExactlyElementsOf(extractChanges(expected.get(i)));
+    }
+  }
+
+
+  public void streaming_collect_changes_should_stop_when_budget_is_exhausted() throws Exception {
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).build();
+    RepositoryStateData fromState = createVersionState("refs/heads/master", map("refs/heads/master", "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653"));
+    RepositoryStateData toState = createVersionState("refs/heads/master", map("refs/heads/master", "465ad9f630e451b9f2b782ffb09804c6a98c4bb9"));
+    List<ModificationData> expected = git().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    then(expected.size()).isGreaterThan(2);
+
+    for (int diffThreads : new int[]{1, 4}) {
+      myConfig.setCollectChangesDiffThreads(diffThreads);
+      GitCollectChangesPolicy policy = git().getCollectChangesPolicy();
+      List<ModificationData> actual = new ArrayList<>();
+      CollectChangesContinuation continuation = null;
+      int calls = 0;
+      do {
+        int reportedBefore = actual.size();
+        continuation = policy.collectChanges(root, fromState, toState, CheckoutRules.DEFAULT, new CollectChangesBudget(2, Long.MAX_VALUE), continuation, actual::add);
+        then(actual.size() - reportedBefore).isBetween(1, 2);
+        calls++;
+      } while (continuation != null);
+
+      then(calls).isEqualTo((expected.size() + 1) / 2);
+      then(actual).extracting("version").containsExactlyElementsOf(extractVersions(expected));
+
+      //every call reports at least one commit even if it exceeds the bytes budget
+      actual.clear();
+      continuation = policy.collectChanges(root, fromState, toState, CheckoutRules.DEFAULT, new CollectChangesBudget(100, 1), null, actual::add);
+      then(actual).extracting("version").containsExactly(expected.get(0).getVersion());
+      then(continuation).isNotNull();
+      then(continuation.getReportedCommits()).isEqualTo(1);
+    }
+  }
+
+
+  public void commit_graph_should_not_affect_collected_changes() throws Exception {
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).withBranch("master").build();
+    RepositoryStateData fromState = createVersionState("refs/heads/master", map("refs/heads/master", "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653",
+                                                                                "refs/heads/personal-branch1", "1391281d33a83a7205f2f05d3eb64c349c636e87"));
+    RepositoryStateData toState = createVersionState("refs/heads/master", map("refs/heads/master", "465ad9f630e451b9f2b782ffb09804c6a98c4bb9",
+                                                                              "refs/heads/personal-branch1", "1391281d33a83a7205f2f05d3eb64c349c636e87",
+                                                                              "refs/heads/personal-branch2", "3df61e6f11a5a9b919cb3f786a83fdd09f058617",
+                                                                              "refs/heads/patch-tests", "27de3d118ca320d3a8a08320ff05aa0567996590"));
+
+    //the first fetch into the clone builds its commit graph
+    myConfig.setUseCommitGraph(true);
+    List<ModificationData> actual = git().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    then(actual).isNotEmpty();
+
+    myConfig.setUseCommitGraph(false);
+    List<ModificationData> expected = git().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    then(actual).extracting("version").containsExactlyElementsOf(extractVersions(expected));
+  }
+
+
+  public void commits_fetched_into_clone_with_graph_should_be_found_using_graph() throws Exception {
+    myConfig.setUseCommitGraph(true);
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfig);
+    builder.build();
+    CommitLoader commitLoader = builder.getCommitLoader();
+    GitMapFullPath mapFullPath = builder.getMapFullPath();
+    URIish uri = new URIish(GitUtils.toURL(myRepo));
+    Repository db = builder.getRepositoryManager().openRepository(uri);
+    FetchSettings settings = new FetchSettings(new AuthSettings(Collections.emptyMap()));
+
+    //the first fetch creates the graph
+    commitLoader.fetch(db, uri, asList(new RefSpec("+refs/heads/master:refs/heads/master")), settings);
+    long foundWithGraph = mapFullPath.getNewCommitsFoundWithGraph();
+
+    //fetched commits are added to the graph after new commits are found, the graph answers for commits of master
+    commitLoader.fetch(db, uri, asList(new RefSpec("+refs/heads/personal-branch2:refs/heads/personal-branch2")), settings);
+    then(mapFullPath.getNewCommitsFoundWithGraph()).isEqualTo(foundWithGraph + 1);
+  }
+
+
+  public void checkout_rules_should_limit_collected_changes() throws Exception {
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).withBranch("master").build();
+    String fromCommit = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+    String toCommit = "465ad9f630e451b9f2b782ffb09804c6a98c4bb9";
+    CheckoutRules rules = new CheckoutRules(asList("+:dir", "-:dir/tr.txt"));
+
+    myConfig.setCollectChangesApplyCheckoutRules(false);
+    List<ModificationData> all = git().collectChanges(root, fromCommit, toCommit, CheckoutRules.DEFAULT);
+
+    myConfig.setCollectChangesApplyCheckoutRules(true);
+    List<ModificationData> actual = git().collectChanges(root, fromCommit, toCommit, rules);
+    then(actual).extracting("version").containsExactlyElementsOf(extractVersions(all));
+    List<Object> versionsWithIncludedChanges = new ArrayList<>();
+    for (int i = 0; i < all.size(); i++) {
+      List<Tuple> included = new ArrayList<>();
+      for (VcsChange c : all.get(i).getChanges()) {
+        if (rules.map(c.getFileName()) != null)
+          included.add(tuple(c.getType(), c.getFileName(), c.getBeforeChangeRevisionNumber(), c.getAfterChangeRevisionNumber()));
+      }
+      then(actual.get(i).getChanges()).extracting("type", "fileName", "beforeChangeRevisionNumber", "afterChangeRevisionNumber")
+        .containsExactlyElementsOf(included);
+      if (!included.isEmpty())
+        versionsWithIncludedChanges.add(all.get(i).getVersion());
+    }
+    then(versionsWithIncludedChanges.size()).isBetween(1, all.size() - 1);
+
+    myConfig.setCollectChangesSkipCommitsWithoutIncludedChanges(true);
+    actual = git().collectChanges(root, fromCommit, toCommit, rules);
+    then(actual).extracting("version").containsExactlyElementsOf(versionsWithIncludedChanges);
+  }
+
+
+  @NotNull
+  private static List<Object> extractVersions(@NotNull List<ModificationData> changes) {
+    List<Object> result = new ArrayList<>();
+    for (ModificationData m : changes) {
+      result.add(m.getVersion());
+    }
+    return result;
+  }
+
+
+  @NotNull
+  private static List<Tuple> extractChanges(@NotNull ModificationData modification) {
+    List<Tuple> result = new ArrayList<>();
+    for (VcsChange c : modification.getChanges()) {
+      result.add(tuple(c.getType(), c.getFileName(), c.getBeforeChangeRevisionNumber(), c.getAfterChangeRevisionNumber()));
+    }
+    return result;
+  }
+
+
   public void collect_changes_after_cache_reset() throws Exception {
     GitVcsSupport git = git();
     VcsRoot root = vcsRoot().withFetchUrl(myRepo).build();
@@ -348,6 +521,45 @@ public class CollectChangesTest extends BaseRemoteRepositoryTest {
   }
 
 
+  @Test(dataProvider = "true,false")
+  public void fetch_should_reuse_connection_used_to_list_remote_refs(boolean reuseConnections) throws Exception {
+    myConfig.setReuseRemoteConnections(reuseConnections)
+      .setShareRemoteRefs(false)
+      .setNewConnectionForPrune(false)
+      .setSeparateProcessForFetch(false);
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).withBranch("master").build();
+    ServerPluginConfig config = myConfig.build();
+    TransportFactory transportFactory = new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager());
+    AtomicInteger transportCount = new AtomicInteger();
+    TransportFactory transportCounter = new TransportFactory() {
+      public Transport createTransport(@NotNull Repository r, @NotNull URIish url, @NotNull AuthSettings authSettings)
+        throws NotSupportedException, VcsException, TransportException {
+        transportCount.incrementAndGet();
+        return transportFactory.createTransport(r, url, authSettings);
+      }
+
+      public Transport createTransport(@NotNull Repository r, @NotNull URIish url, @NotNull AuthSettings authSettings, int timeoutSeconds)
+        throws NotSupportedException, VcsException, TransportException {
+        transportCount.incrementAndGet();
+        return transportFactory.createTransport(r, url, authSettings, timeoutSeconds);
+      }
+    };
+    GitVcsSupport git = gitSupport().withPluginConfig(myConfig).withTransportFactory(transportCounter).build();
+
+    RepositoryStateData state = git.getCurrentState(root);
+    RepositoryStateData s1 = createVersionState("refs/heads/master", map("refs/heads/master", "5711cbfe566b6c92e331f95d4b236483f4532eed"));
+    RepositoryStateData s2 = createVersionState("refs/heads/master", map("refs/heads/master", state.getBranchRevisions().get("refs/heads/master")));
+    transportCount.set(0);
+
+    then(git.getCollectChangesPolicy().collectChanges(root, s1, s2, CheckoutRules.DEFAULT)).isNotEmpty();
+    if (reuseConnections) {
+      then(transportCount.get()).as("ls-remote, prune and fetch should use a single connection").isEqualTo(1);
+    } else {
+      then(transportCount.get()).isEqualTo(2);
+    }
+  }
+
+
   @Test
   //this test should be removed if a single fetch works fine
   public void should_be_able_to_do_fetch_per_branch() throws Exception {
@@ -19,6 +19,7 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 import jetbrains.buildServer.buildTriggers.vcs.git.FetchCommand;
 import jetbrains.buildServer.buildTriggers.vcs.git.FetchSettings;
 import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.URIish;
@@ -31,6 +32,8 @@ class FetchCommandCountDecorator implements FetchCommand {
 
   private final FetchCommand myDelegate;
   private int myFetchCount = 0;
+  private int myBlobFetchCount = 0;
+  private int myCommitFetchCount = 0;
 
   FetchCommandCountDecorator(FetchCommand delegate) {
     myDelegate = delegate;
@@ -45,14 +48,50 @@ class FetchCommandCountDecorator implements FetchCommand {
     inc();
   }
 
+  @Override
+  public void fetchBlobs(@NotNull Repository db,
+                         @NotNull URIish fetchURI,
+                         @NotNull Collection<ObjectId> blobs,
+                         @NotNull FetchSettings settings) throws IOException, VcsException {
+    myDelegate.fetchBlobs(db, fetchURI, blobs, settings);
+    incBlobFetches();
+  }
+
+  @Override
+  @NotNull
+  public FetchCommitResult fetchCommit(@NotNull Repository db,
+                                       @NotNull URIish fetchURI,
+                                       @NotNull ObjectId commitId,
+                                       @NotNull FetchSettings settings) throws IOException, VcsException {
+    FetchCommitResult result = myDelegate.fetchCommit(db, fetchURI, commitId, settings);
+    incCommitFetches();
+    return result;
+  }
+
   private synchronized void inc() {
     myFetchCount++;
   }
 
+  private synchronized void incBlobFetches() {
+    myBlobFetchCount++;
+  }
+
+  private synchronized void incCommitFetches() {
+    myCommitFetchCount++;
+  }
+
   public synchronized int getFetchCount() {
     return myFetchCount;
   }
 
+  public synchronized int getBlobFetchCount() {
+    return myBlobFetchCount;
+  }
+
+  public synchronized int getCommitFetchCount() {
+    return myCommitFetchCount;
+  }
+
   public synchronized void resetFetchCounter() {
     myFetchCount = 0;
   }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.copyRepository;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class FetchCommitByIdTest extends BaseRemoteRepositoryTest {
+
+  //reachable from the branch 'topic', but not from 'master' and not a tip of any branch
+  private static final String COMMIT = "252771029d6ac61aaa78d282d5818d210812a4e5";
+
+  private PluginConfigBuilder myConfig;
+  private GitHttpServer myServer;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+    File repo = copyRepository(myTempFiles, dataFile("repo_for_fetch.2"), "repo.git");
+    Repository r = new RepositoryBuilder().setGitDir(repo).build();
+    try {
+      setBranch(r, "refs/heads/master", "add81050184d3c818560bdd8839f50024c188586");
+      setBranch(r, "refs/heads/topic", "d47dda159b27b9a8c4cee4ce98e4435eb5b17168");
+    } finally {
+      r.close();
+    }
+    myServer = new GitHttpServer(GitVersionProvider.getGitPath(), repo);
+    myServer.start();
+  }
+
+
+  @Override
+  @AfterMethod
+  public void tearDown() {
+    super.tearDown();
+    if (myServer != null)
+      myServer.stop();
+  }
+
+
+  public void commit_should_be_fetched_by_id() throws Exception {
+    FetchCommandCountDecorator fetchCounter = createFetchCounter();
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfig).withFetchCommand(fetchCounter);
+    GitVcsSupport git = builder.build();
+    VcsRoot root = vcsRoot().withFetchUrl(myServer.getRepoUrl()).withBranch("master").build();
+
+    then(git.getContentProvider().getContent("c", root, COMMIT)).isNotNull();
+
+    then(fetchCounter.getCommitFetchCount()).isEqualTo(1);
+    then(fetchCounter.getFetchCount()).as("refs/*:refs/* should not be fetched").isEqualTo(1);
+    Repository clone = new RepositoryBuilder().setGitDir(new GitVcsRoot(builder.getRepositoryManager(), root).getRepositoryDir()).build();
+    try {
+      then(clone.hasObject(ObjectId.fromString(COMMIT))).isTrue();
+      then(clone.getRef("refs/heads/topic")).isNull();
+    } finally {
+      clone.close();
+    }
+  }
+
+
+  public void should_fetch_all_refs_when_fetch_by_id_is_disabled() throws Exception {
+    myConfig.setFetchCommitsById(false);
+    FetchCommandCountDecorator fetchCounter = createFetchCounter();
+    GitVcsSupport git = gitSupport().withPluginConfig(myConfig).withFetchCommand(fetchCounter).build();
+    VcsRoot root = vcsRoot().withFetchUrl(myServer.getRepoUrl()).withBranch("master").build();
+
+    then(git.getContentProvider().getContent("c", root, COMMIT)).isNotNull();
+
+    then(fetchCounter.getCommitFetchCount()).isEqualTo(0);
+    then(fetchCounter.getFetchCount()).isEqualTo(2);
+  }
+
+
+  public void host_refusing_commit_by_id_should_not_be_asked_again() throws Exception {
+    FetchCommandCountDecorator fetchCounter = createFetchCounter();
+    GitVcsSupport git = gitSupport().withPluginConfig(myConfig).withFetchCommand(fetchCounter).build();
+    VcsRoot root = vcsRoot().withFetchUrl(myServer.getRepoUrl()).withBranch("master").build();
+
+    //the remote answers 'not our ref' for an unknown commit
+    try {
+      git.getContentProvider().getContent("c", root, "1111111111111111111111111111111111111111");
+      fail("Content of unknown commit returned");
+    } catch (VcsException e) {
+      //expected
+    }
+    then(fetchCounter.getCommitFetchCount()).isEqualTo(1);
+
+    then(git.getContentProvider().getContent("c", root, COMMIT)).isNotNull();
+    then(fetchCounter.getCommitFetchCount()).isEqualTo(1);
+  }
+
+
+  @NotNull
+  private FetchCommandCountDecorator createFetchCounter() {
+    ServerPluginConfig config = myConfig.build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchCommand fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager);
+    return new FetchCommandCountDecorator(fetchCommand);
+  }
+
+
+  private static void setBranch(@NotNull Repository r, @NotNull String branch, @NotNull String commit) throws Exception {
+    RefUpdate update = r.updateRef(branch);
+    update.setNewObjectId(ObjectId.fromString(commit));
+    update.setForceUpdate(true);
+    update.update();
+  }
+}
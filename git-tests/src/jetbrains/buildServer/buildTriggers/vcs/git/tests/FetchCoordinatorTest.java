@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.Arrays.asList;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class FetchCoordinatorTest extends BaseRemoteRepositoryTest {
+
+  private PluginConfigBuilder myConfig;
+  private File myRepo;
+
+  public FetchCoordinatorTest() {
+    super("repo.git");
+  }
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+    myRepo = getRemoteRepositoryDir("repo.git");
+  }
+
+
+  public void concurrent_fetches_should_be_combined() throws Exception {
+    ServerPluginConfig config = myConfig.setCoalesceFetches(true).build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchCommand fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager);
+    CountDownLatch firstFetchStarted = new CountDownLatch(1);
+    CountDownLatch finishFirstFetch = new CountDownLatch(1);
+    FetchCommandCountDecorator fetchCounter = new FetchCommandCountDecorator((db, fetchURI, refspecs, settings) -> {
+      firstFetchStarted.countDown();
+      try {
+        finishFirstFetch.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      fetchCommand.fetch(db, fetchURI, refspecs, settings);
+    });
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfig).withFetchCommand(fetchCounter);
+    builder.build();
+    CommitLoader commitLoader = builder.getCommitLoader();
+    URIish uri = new URIish(GitUtils.toURL(myRepo));
+    Repository db = builder.getRepositoryManager().openRepository(uri);
+
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    for (String branch : asList("master", "patch-tests", "personal-branch1", "personal-branch2")) {
+      RefSpec spec = new RefSpec("+refs/heads/" + branch + ":refs/heads/" + branch);
+      CountDownLatch queued = new CountDownLatch(1);
+      Thread t = new Thread(() -> {
+        try {
+          commitLoader.fetch(db, uri, asList(spec), new FetchSettings(new AuthSettings(Collections.emptyMap()), new QueuedProgress(queued)));
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      threads.add(t);
+      t.start();
+      //wait until the first fetch runs and every other fetch waits for it
+      if (threads.size() == 1) {
+        firstFetchStarted.await();
+      } else {
+        queued.await();
+      }
+    }
+    finishFirstFetch.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    then(errors).isEmpty();
+    then(fetchCounter.getFetchCount()).isEqualTo(2);
+    then(db.getRef("refs/heads/personal-branch2")).isNotNull();
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.RepositoryStateData;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static jetbrains.buildServer.util.Util.map;
+import static jetbrains.buildServer.vcs.RepositoryStateData.createVersionState;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class FetchMetricsTest extends BaseRemoteRepositoryTest {
+
+  private PluginConfigBuilder myConfig;
+  private File myRepo;
+
+  public FetchMetricsTest() {
+    super("repo.git");
+  }
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+    myRepo = getRemoteRepositoryDir("repo.git");
+  }
+
+
+  @Test(dataProvider = "doFetchInSeparateProcess", dataProviderClass = FetchOptionsDataProvider.class)
+  public void fetch_phases_should_be_recorded(boolean fetchInSeparateProcess) throws Exception {
+    ServerPluginConfig config = myConfig.setSeparateProcessForFetch(fetchInSeparateProcess).build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchMetrics metrics = new FetchMetrics();
+    FetchCommand fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager,
+                                                     new GitTrustStoreProviderStatic(null), metrics);
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfig).withFetchCommand(fetchCommand);
+    GitVcsSupport git = builder.build();
+
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).build();
+    RepositoryStateData state = git.getCurrentState(root);
+    git.getCollectChangesPolicy().collectChanges(root, createVersionState("refs/heads/master", map("refs/heads/master", "f3f826ce85d6dad25156b2d7550cedeb1a422f4c")),
+                                                 state, CheckoutRules.DEFAULT);
+
+    FetchMetrics.RepositoryMetrics fetchMetrics = metrics.getRepositoryMetrics().values().iterator().next();
+    then(fetchMetrics.getHistogram(FetchPhase.CONNECT).getCount()).isGreaterThan(0);
+    then(fetchMetrics.getHistogram(FetchPhase.DOWNLOAD).getCount()).isGreaterThan(0);
+    then(fetchMetrics.getDownloadedBytes()).isGreaterThan(0);
+
+    FetchMetrics loaderMetrics = ((CommitLoaderImpl) builder.getCommitLoader()).getFetchMetrics();
+    FetchMetrics.RepositoryMetrics repositoryMetrics = loaderMetrics.getRepositoryMetrics().values().iterator().next();
+    then(repositoryMetrics.getFetchCount()).isGreaterThan(0);
+    then(repositoryMetrics.getHistogram(FetchPhase.WAIT_FOR_WRITE_LOCK).getCount()).isEqualTo(repositoryMetrics.getFetchCount());
+    then(repositoryMetrics.getHistogram(FetchPhase.CACHE_INVALIDATION).getCount()).isEqualTo(repositoryMetrics.getFetchCount());
+  }
+
+
+  public void cleanup_should_remove_metrics_of_deleted_clones() throws Exception {
+    ServerPluginConfig config = myConfig.setRunNativeGC(false).setRunJGitGC(false).build();
+    GitSupportBuilder builder = gitSupport().withPluginConfig(config);
+    builder.build();
+    RepositoryManager repositoryManager = builder.getRepositoryManager();
+    File used = repositoryManager.getMirrorDir("http://some.org/used.git");
+    File unused = repositoryManager.getMirrorDir("http://some.org/unused.git");
+    used.mkdirs();
+    unused.mkdirs();
+    FileUtil.writeFileAndReportErrors(new File(used, "timestamp"), String.valueOf(System.currentTimeMillis()));
+    FileUtil.writeFileAndReportErrors(new File(unused, "timestamp"), "0");
+
+    FetchMetrics metrics = new FetchMetrics();
+    metrics.record(used, FetchPhase.TOTAL, 10);
+    metrics.record(unused, FetchPhase.TOTAL, 10);
+    new Cleanup(config, repositoryManager, new GcErrors(), metrics).run();
+
+    then(unused).doesNotExist();
+    then(metrics.getRepositoryMetrics().keySet()).containsOnly(used);
+  }
+}
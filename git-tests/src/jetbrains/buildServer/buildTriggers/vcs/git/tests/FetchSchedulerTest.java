@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.eclipse.jgit.transport.URIish;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class FetchSchedulerTest extends BaseTestCase {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfig;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+
+  public void fetches_waiting_for_free_slot_should_start_by_priority() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfig.setFetchMaxConcurrency(1).build());
+    URIish uri = new URIish("http://some.org/repo.git");
+    AuthSettings auth = new AuthSettings(Collections.emptyMap());
+    FetchScheduler.Permit running = scheduler.acquire(new File("running"), uri, new FetchSettings(auth));
+
+    List<FetchPriority> started = Collections.synchronizedList(new ArrayList<>());
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> threads = new ArrayList<>();
+    for (FetchPriority priority : asList(FetchPriority.BACKGROUND, FetchPriority.POLLING, FetchPriority.INTERACTIVE)) {
+      CountDownLatch queued = new CountDownLatch(1);
+      Thread t = new Thread(() -> {
+        try {
+          FetchScheduler.Permit permit = scheduler.acquire(new File(priority.name()), uri, new FetchSettings(auth, new QueuedProgress(queued), priority));
+          started.add(priority);
+          permit.release();
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      threads.add(t);
+      t.start();
+      //start the next fetch only when this one is in the queue
+      queued.await();
+    }
+    then(scheduler.getQueueLength()).isEqualTo(threads.size());
+    running.release();
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    then(errors).isEmpty();
+    then(started).containsExactly(FetchPriority.INTERACTIVE, FetchPriority.POLLING, FetchPriority.BACKGROUND);
+    then(scheduler.getRunningCount()).isEqualTo(0);
+    then(scheduler.getStatistics().get(FetchPriority.BACKGROUND).getFetchCount()).isEqualTo(1);
+    then(scheduler.getStatistics().get(FetchPriority.INTERACTIVE).getFetchCount()).isEqualTo(1);
+  }
+
+
+  public void fetch_into_busy_host_should_not_block_fetches_into_other_hosts() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfig.setFetchMaxConcurrency(2).setFetchMaxConcurrencyPerHost(1).build());
+    URIish uri1 = new URIish("http://host1.org/repo.git");
+    URIish uri2 = new URIish("http://host2.org/repo.git");
+    AuthSettings auth = new AuthSettings(Collections.emptyMap());
+    FetchScheduler.Permit running = scheduler.acquire(new File("running"), uri1, new FetchSettings(auth));
+
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch queued = new CountDownLatch(1);
+    CountDownLatch sameHostStarted = new CountDownLatch(1);
+    Thread sameHost = new Thread(() -> {
+      try {
+        scheduler.acquire(new File("sameHost"), uri1, new FetchSettings(auth, new QueuedProgress(queued))).release();
+        sameHostStarted.countDown();
+      } catch (Throwable e) {
+        errors.add(e);
+      }
+    });
+    sameHost.start();
+    queued.await();
+
+    //a free slot is left, the fetch into another host starts while the fetch into the busy host waits
+    FetchScheduler.Permit otherHost = scheduler.acquire(new File("otherHost"), uri2, new FetchSettings(auth));
+    then(scheduler.getRunningCount()).isEqualTo(2);
+    then(scheduler.getQueueLength()).isEqualTo(1);
+    then(sameHostStarted.getCount()).isEqualTo(1);
+
+    running.release();
+    sameHost.join();
+    otherHost.release();
+    then(errors).isEmpty();
+    then(scheduler.getRunningCount()).isEqualTo(0);
+  }
+
+
+  public void aged_fetch_should_start_before_newer_fetch_with_higher_priority() throws Exception {
+    FetchScheduler scheduler = new FetchScheduler(myConfig.setFetchMaxConcurrency(1).setFetchPriorityAgingSeconds(1).build());
+    URIish uri = new URIish("http://some.org/repo.git");
+    AuthSettings auth = new AuthSettings(Collections.emptyMap());
+    FetchScheduler.Permit running = scheduler.acquire(new File("running"), uri, new FetchSettings(auth));
+
+    List<FetchPriority> started = Collections.synchronizedList(new ArrayList<>());
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> threads = new ArrayList<>();
+    for (FetchPriority priority : asList(FetchPriority.BACKGROUND, FetchPriority.POLLING)) {
+      CountDownLatch queued = new CountDownLatch(1);
+      Thread t = new Thread(() -> {
+        try {
+          FetchScheduler.Permit permit = scheduler.acquire(new File(priority.name()), uri, new FetchSettings(auth, new QueuedProgress(queued), priority));
+          started.add(priority);
+          permit.release();
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      threads.add(t);
+      t.start();
+      queued.await();
+      //after 2 aging periods the background fetch gets the interactive priority
+      if (priority == FetchPriority.BACKGROUND)
+        Thread.sleep(2100);
+    }
+    running.release();
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    then(errors).isEmpty();
+    then(started).containsExactly(FetchPriority.BACKGROUND, FetchPriority.POLLING);
+  }
+}
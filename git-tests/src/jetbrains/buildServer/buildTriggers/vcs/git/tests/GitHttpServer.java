@@ -117,6 +117,9 @@ class GitHttpServer {
     String contentType = httpExchange.getRequestHeaders().getFirst("Content-Type");
     if (!StringUtil.isEmpty(contentType))
       env.put("CONTENT_TYPE", contentType);
+    String protocol = httpExchange.getRequestHeaders().getFirst("Git-Protocol");
+    if (!StringUtil.isEmpty(protocol))
+      env.put("GIT_PROTOCOL", protocol);
   }
 
 
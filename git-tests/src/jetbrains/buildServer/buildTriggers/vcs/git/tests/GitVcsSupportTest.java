@@ -44,8 +44,10 @@ import org.eclipse.jgit.internal.storage.file.LockFile;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.transport.FetchConnection;
 import org.eclipse.jgit.transport.PushConnection;
+import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.util.FS;
@@ -60,6 +62,7 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
@@ -243,6 +246,28 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void submodules_should_be_fetched_before_collecting_changes() throws Exception {
+    myConfigBuilder.setSubmoduleFetchThreads(2);
+    ServerPluginConfig config = myConfigBuilder.build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchCommand fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager);
+    List<String> submoduleFetchThreads = Collections.synchronizedList(new ArrayList<>());
+    FetchCommand recordingFetchCommand = (db, fetchURI, refspecs, settings) -> {
+      if (!fetchURI.getPath().endsWith(myMainRepositoryDir.getName()))
+        submoduleFetchThreads.add(Thread.currentThread().getName());
+      fetchCommand.fetch(db, fetchURI, refspecs, settings);
+    };
+    GitVcsSupport support = gitSupport().withPluginConfig(myConfigBuilder).withResetCacheManager(myResetCacheManager).withFetchCommand(recordingFetchCommand).build();
+
+    List<ModificationData> changes = support.collectChanges(getRoot("patch-tests", true), BEFORE_SUBMODULE_ADDED_VERSION, SUBMODULE_MODIFIED_VERSION, CheckoutRules.DEFAULT);
+
+    then(changes).extracting("version").containsExactly(SUBMODULE_MODIFIED_VERSION, SUBMODULE_ADDED_VERSION);
+    then(changes.get(0).getChanges()).extracting("fileName").containsExactly("submodule/new file.txt");
+    then(submoduleFetchThreads).containsExactly("Git submodule fetch");
+  }
+
+
   /*
    * o fix submodule entry again but track newer revision | e6b15b1f4741199857e2fa744eaadfe5a9d9aede
    * |                                                    |
@@ -605,6 +630,35 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void fetch_processes_should_be_reused_and_recycled() throws Exception {
+    ServerPluginConfig config = myConfigBuilder.setSeparateProcessForFetch(true)
+      .setUseFetchWorkers(true)
+      .setFetchWorkerMaxFetches(2)
+      .build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchCommandImpl fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager);
+    try {
+      URIish uri = new URIish(GitUtils.toURL(myMainRepositoryDir));
+      FetchSettings settings = new FetchSettings(new AuthSettings(getRoot("master").getProperties()));
+      //the 3rd fetch runs in a new process since the first process is stopped after 2 fetches
+      for (int i = 0; i < 3; i++) {
+        Repository db = new RepositoryBuilder().setBare().setGitDir(new File(myTmpDir, "clone" + i)).build();
+        db.create(true);
+        fetchCommand.fetch(db, uri, Collections.singleton(new RefSpec("+refs/heads/*:refs/heads/*")), settings);
+        then(db.getRef("refs/heads/master")).isNotNull();
+        db.close();
+      }
+      FetcherWorkerPool pool = fetchCommand.getWorkerPool();
+      then(pool.getStartedCount()).isEqualTo(2);
+      then(pool.getReusedCount()).isEqualTo(1);
+      then(pool.getRecycledCount()).isEqualTo(1);
+    } finally {
+      fetchCommand.dispose();
+    }
+  }
+
+
   /*
    * Test reproduces a bug in Fetcher code: Fetcher worked only if all parameters of VcsRoot
    * sent to process input as string were smaller than 512 bytes (most of the cases) or size mod 512 = 0.
@@ -722,6 +776,39 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void roots_with_the_same_url_should_share_remote_refs() throws Exception {
+    myConfigBuilder.setRemoteRefsTtlMillis(TimeUnit.MINUTES.toMillis(1));
+    GitVcsSupport support = getSupport();
+    RepositoryStateData state1 = support.getCurrentState(getRoot("master"));
+    RepositoryStateData state2 = support.getCurrentState(getRoot("version-test"));
+    then(support.getRemoteRefsCache().getMisses()).isEqualTo(1);
+    then(support.getRemoteRefsCache().getHits()).isEqualTo(1);
+    then(state1.getBranchRevisions()).isEqualTo(state2.getBranchRevisions());
+
+    myConfigBuilder.setRemoteRefsTtlMillis(0);
+    support.getCurrentState(getRoot("master"));
+    then(support.getRemoteRefsCache().getMisses()).isEqualTo(2);
+  }
+
+
+  @Test
+  public void current_state_should_contain_only_refs_matching_branch_spec() throws Exception {
+    VcsRoot root = vcsRoot().withFetchUrl(GitUtils.toURL(myMainRepositoryDir))
+      .withBranch("master")
+      .withBranchSpec("+:refs/heads/(personal*)\n-:refs/heads/personal-branch2")
+      .build();
+    RepositoryStateData state = getSupport().getCurrentState(root);
+    then(state.getBranchRevisions()).containsKeys("refs/heads/master", "refs/heads/personal-branch1", "refs/heads/personal-branch2");
+    for (String ref : state.getBranchRevisions().keySet()) {
+      then(ref.equals("refs/heads/master") || ref.startsWith("refs/heads/personal")).as(ref).isTrue();
+    }
+
+    myConfigBuilder.setListRefsByBranchSpec(false);
+    then(getSupport().getCurrentState(root).getBranchRevisions().size()).isGreaterThan(state.getBranchRevisions().size());
+  }
+
+
   @Test
   @TestFor(issues = "TW-17910")
   public void fetch_process_should_respect_fetch_timeout() throws Exception {
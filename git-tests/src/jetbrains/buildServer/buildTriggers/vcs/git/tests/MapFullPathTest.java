@@ -65,6 +65,7 @@ public class MapFullPathTest {
   private File myRemoteRepositoryDir2;
   private GitVcsSupport myGit;
   private GitMapFullPath myMapFullPath;
+  private PluginConfigBuilder myConfig;
   private VcsRoot myRoot;
   private VcsRootEntry myRootEntry;
   private VcsRoot myRoot2;
@@ -90,7 +91,8 @@ public class MapFullPathTest {
     copyRepository(dataFile("repo.git"), myRemoteRepositoryDir2);
 
     ServerPaths paths = new ServerPaths(myTempFiles.createTempDir().getAbsolutePath());
-    GitSupportBuilder gitBuilder = gitSupport().withServerPaths(paths);
+    myConfig = new PluginConfigBuilder(paths);
+    GitSupportBuilder gitBuilder = gitSupport().withPluginConfig(myConfig);
     myGit = gitBuilder.build();
     myMapFullPath = gitBuilder.getMapFullPath();
     myRoot = vcsRoot().withId(1).withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).build();
@@ -132,6 +134,8 @@ public class MapFullPathTest {
     final String existingCommit = "a7274ca8e024d98c7d59874f19f21d26ee31d41d";
     final String nonExistingCommit = "abababababababababababababababababababab";
 
+    myConfig.setUseCommitBloomFilter(false);//check the revisions cache alone
+
     final CommitLoader commitLoader = myContext.mock(CommitLoader.class);
     final RevCommit commit = myContext.mock(RevCommit.class);
     myMapFullPath.setCommitLoader(commitLoader);
@@ -159,6 +163,67 @@ public class MapFullPathTest {
   }
 
 
+  public void should_not_lookup_commits_missing_in_commit_bloom_filter() throws Exception {
+    final String existingCommit = "a7274ca8e024d98c7d59874f19f21d26ee31d41d";
+    final String nonExistingCommit = "abababababababababababababababababababab";
+    final String fetchedCommit = "d47dda159b27b9a8c4cee4ce98e4435eb5b17168";
+
+    RepositoryStateData state0 = RepositoryStateData.createSingleVersionState(existingCommit);
+    RepositoryStateData state1 = myGit.getCurrentState(myRoot);
+    myGit.getCollectChangesPolicy().collectChanges(myRoot, state0, state1, CheckoutRules.DEFAULT);
+
+    final CommitLoader commitLoader = myContext.mock(CommitLoader.class);
+    final RevCommit commit = myContext.mock(RevCommit.class);
+    myMapFullPath.setCommitLoader(commitLoader);
+    myContext.checking(new Expectations() {{
+      one(commitLoader).findCommit(with(any(Repository.class)), with(existingCommit)); will(returnValue(commit));
+      never(commitLoader).findCommit(with(any(Repository.class)), with(nonExistingCommit));
+      //commit fetched after the filter is built should be added to the filter:
+      one(commitLoader).findCommit(with(any(Repository.class)), with(fetchedCommit)); will(returnValue(commit));
+    }});
+
+    OperationContext context = myGit.createContext(myRoot, "map full path");
+    then(myMapFullPath.mapFullPath(context, myRootEntry, existingCommit + "||.")).isNotEmpty();
+    then(myMapFullPath.mapFullPath(context, myRootEntry, nonExistingCommit + "||.")).isEmpty();
+
+    remoteRepositoryUpdated();
+
+    RepositoryStateData state2 = myGit.getCurrentState(myRoot);
+    myGit.getCollectChangesPolicy().collectChanges(myRoot, state1, state2, CheckoutRules.DEFAULT);
+    then(myGit.mapFullPath(myRootEntry, fetchedCommit + "||.")).isNotEmpty();
+    then(myGit.mapFullPath(myRootEntry, nonExistingCommit + "||.")).isEmpty();
+    myContext.assertIsSatisfied();
+  }
+
+
+  public void should_lookup_commits_missing_in_commit_bloom_filter_when_packs_added_bypassing_fetch() throws Exception {
+    final String existingCommit = "a7274ca8e024d98c7d59874f19f21d26ee31d41d";
+    final String copiedCommit = "d47dda159b27b9a8c4cee4ce98e4435eb5b17168";
+
+    RepositoryStateData state0 = RepositoryStateData.createSingleVersionState(existingCommit);
+    RepositoryStateData state1 = myGit.getCurrentState(myRoot);
+    myGit.getCollectChangesPolicy().collectChanges(myRoot, state0, state1, CheckoutRules.DEFAULT);
+
+    final CommitLoader commitLoader = myContext.mock(CommitLoader.class);
+    final RevCommit commit = myContext.mock(RevCommit.class);
+    myMapFullPath.setCommitLoader(commitLoader);
+    myContext.checking(new Expectations() {{
+      one(commitLoader).findCommit(with(any(Repository.class)), with(existingCommit)); will(returnValue(commit));
+      //commit isn't in the filter, but the filter cannot prove it is missing since packs have changed:
+      one(commitLoader).findCommit(with(any(Repository.class)), with(copiedCommit)); will(returnValue(commit));
+    }});
+
+    OperationContext context = myGit.createContext(myRoot, "map full path");
+    then(myMapFullPath.mapFullPath(context, myRootEntry, existingCommit + "||.")).isNotEmpty();
+
+    File packDir = new File(context.getGitRoot(myRoot).getRepositoryDir(), "objects/pack");
+    FileUtil.copyDir(new File(dataFile("repo_for_fetch.2"), "objects/pack"), packDir);
+
+    then(myMapFullPath.mapFullPath(context, myRootEntry, copiedCommit + "||.")).isNotEmpty();
+    myContext.assertIsSatisfied();
+  }
+
+
   public void should_not_do_unnecessary_commit_lookup_when_repository_does_not_have_hint_revision() throws Exception {
     //root1 contains the commit
     //root2 doesn't
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.AuthenticationMethod;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsSupport;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.copyRepository;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class NativeGitFetchTest extends BaseRemoteRepositoryTest {
+
+  private PluginConfigBuilder myConfig;
+  private GitHttpServer myServer;
+  private File myRepo;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()))
+      .setFetchEngine("native")
+      .setPathToGit(GitVersionProvider.getGitPath());
+    myRepo = copyRepository(myTempFiles, dataFile("repo_for_fetch.1"), "repo.git");
+  }
+
+
+  @Override
+  @AfterMethod
+  public void tearDown() {
+    super.tearDown();
+    if (myServer != null)
+      myServer.stop();
+  }
+
+
+  public void fetch_with_native_git() throws Exception {
+    GitVcsSupport git = gitSupport().withPluginConfig(myConfig).build();
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).withBranch("master").build();
+
+    then(git.getContentProvider().getContent("readme", root, "add81050184d3c818560bdd8839f50024c188586")).isNotEmpty();
+  }
+
+
+  public void fetch_with_native_git_over_http_with_password() throws Exception {
+    myServer = new GitHttpServer(GitVersionProvider.getGitPath(), myRepo);
+    myServer.setCredentials("user", "pa$$word");
+    myServer.start();
+    GitVcsSupport git = gitSupport().withPluginConfig(myConfig).build();
+    VcsRoot root = vcsRoot().withFetchUrl(myServer.getRepoUrl()).withBranch("master")
+      .withAuthMethod(AuthenticationMethod.PASSWORD).withUsername("user").withPassword("pa$$word").build();
+
+    then(git.getContentProvider().getContent("readme", root, "add81050184d3c818560bdd8839f50024c188586")).isNotEmpty();
+  }
+
+
+  public void should_fall_back_to_jgit_when_git_is_not_found() throws Exception {
+    myConfig.setPathToGit(new File(myTempFiles.createTempDir(), "git").getAbsolutePath());
+    GitVcsSupport git = gitSupport().withPluginConfig(myConfig).build();
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).withBranch("master").build();
+
+    then(git.getContentProvider().getContent("readme", root, "add81050184d3c818560bdd8839f50024c188586")).isNotEmpty();
+  }
+}
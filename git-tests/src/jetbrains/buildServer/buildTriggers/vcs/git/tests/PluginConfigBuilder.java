@@ -42,6 +42,8 @@ public class PluginConfigBuilder {
   private Boolean mySeparateProcessForFetch;
   private Boolean mySeparateProcessForPatch;
   private Boolean myRunNativeGC;
+  private Integer myNativeGCQuotaMinutes;
+  private Integer myGcThreads;
   private Boolean myRunJGitGC;
   private String  myPathToGit;
   private String  myFetchClassPath;
@@ -66,11 +68,37 @@ public class PluginConfigBuilder {
   private Integer myPushIdleTimeoutSeconds;
   private Boolean myPersistentCacheEnabled;
   private Integer myMapFullPathRevisionCacheSize;
+  private Integer myRevisionCacheJournalSizeFactor;
+  private Integer myRevisionsCacheWarmUpThreads;
+  private Boolean myUseCommitBloomFilter;
+  private Integer myCollectChangesDiffThreads;
+  private Integer myCommitChangesCacheSizeMb;
+  private Boolean myUseCommitGraph;
+  private Boolean myListRefsByBranchSpec;
+  private Boolean myCoalesceFetches;
+  private Integer myFetchMaxConcurrency;
+  private Integer myFetchMaxConcurrencyPerHost;
+  private Integer myFetchPriorityAgingSeconds;
+  private Integer mySubmoduleFetchThreads;
+  private Boolean myUseBloblessClones;
+  private String myFetchEngine;
+  private Boolean myFetchCommitsById;
+  private Boolean myReuseRemoteConnections;
+  private Boolean myUsePackBitmaps;
+  private Boolean myUseFetchWorkers;
+  private Integer myFetchWorkerMaxFetches;
+  private Boolean myUseProtocolV2LsRefs;
+  private Boolean myShareRemoteRefs;
+  private Long myRemoteRefsTtlMillis;
+  private Boolean myCollectChangesApplyCheckoutRules;
+  private Boolean myCollectChangesSkipCommitsWithoutIncludedChanges;
   private TempFiles myTempFiles;
   private Boolean myNewConnectionForPrune;
   private Boolean myIgnoreMissingRemoteRef;
   private Integer myMergeRetryAttempts;
   private Boolean myRunInPlaceGc;
+  private Boolean myIncrementalRepack;
+  private Integer myFullRepackFragmentationPercent;
   private Boolean myReportPerParentChangedFiles;
 
   public static PluginConfigBuilder pluginConfig() {
@@ -163,7 +191,15 @@ public class PluginConfigBuilder {
       }
 
       public int getNativeGCQuotaMinutes() {
-        return myDelegate.getNativeGCQuotaMinutes();
+        return myNativeGCQuotaMinutes != null ? myNativeGCQuotaMinutes : myDelegate.getNativeGCQuotaMinutes();
+      }
+
+      public int getGcThreads() {
+        return myGcThreads != null ? myGcThreads : myDelegate.getGcThreads();
+      }
+
+      public int getGcIoBudgetMb() {
+        return myDelegate.getGcIoBudgetMb();
       }
 
       public String getFetchClasspath() {
@@ -238,6 +274,14 @@ public class PluginConfigBuilder {
         return myMapFullPathRevisionCacheSize != null ? myMapFullPathRevisionCacheSize : myDelegate.getMapFullPathRevisionCacheSize();
       }
 
+      public int getRevisionCacheJournalSizeFactor() {
+        return myRevisionCacheJournalSizeFactor != null ? myRevisionCacheJournalSizeFactor : myDelegate.getRevisionCacheJournalSizeFactor();
+      }
+
+      public int getRevisionsCacheWarmUpThreads() {
+        return myRevisionsCacheWarmUpThreads != null ? myRevisionsCacheWarmUpThreads : myDelegate.getRevisionsCacheWarmUpThreads();
+      }
+
       public long getConnectionRetryIntervalMillis() {
         return myConnectionRetryIntervalMillis != -1 ? myConnectionRetryIntervalMillis : myDelegate.getConnectionRetryIntervalMillis();
       }
@@ -250,6 +294,112 @@ public class PluginConfigBuilder {
         return false;
       }
 
+      public int getCollectChangesDiffThreads() {
+        return myCollectChangesDiffThreads != null ? myCollectChangesDiffThreads : myDelegate.getCollectChangesDiffThreads();
+      }
+
+      public int getCommitChangesCacheSizeMb() {
+        return myCommitChangesCacheSizeMb != null ? myCommitChangesCacheSizeMb : myDelegate.getCommitChangesCacheSizeMb();
+      }
+
+      public boolean listRefsByBranchSpec() {
+        return myListRefsByBranchSpec != null ? myListRefsByBranchSpec : myDelegate.listRefsByBranchSpec();
+      }
+
+      public boolean useProtocolV2LsRefs() {
+        return myUseProtocolV2LsRefs != null ? myUseProtocolV2LsRefs : myDelegate.useProtocolV2LsRefs();
+      }
+
+      public boolean shareRemoteRefs() {
+        return myShareRemoteRefs != null ? myShareRemoteRefs : myDelegate.shareRemoteRefs();
+      }
+
+      public long getRemoteRefsTtlMillis() {
+        return myRemoteRefsTtlMillis != null ? myRemoteRefsTtlMillis : myDelegate.getRemoteRefsTtlMillis();
+      }
+
+      public boolean collectChangesApplyCheckoutRules() {
+        return myCollectChangesApplyCheckoutRules != null ? myCollectChangesApplyCheckoutRules : myDelegate.collectChangesApplyCheckoutRules();
+      }
+
+      public boolean collectChangesSkipCommitsWithoutIncludedChanges() {
+        return myCollectChangesSkipCommitsWithoutIncludedChanges != null ? myCollectChangesSkipCommitsWithoutIncludedChanges
+                                                                         : myDelegate.collectChangesSkipCommitsWithoutIncludedChanges();
+      }
+
+      public boolean useCommitBloomFilter() {
+        return myUseCommitBloomFilter != null ? myUseCommitBloomFilter : myDelegate.useCommitBloomFilter();
+      }
+
+      public int getCommitBloomFiltersMaxCount() {
+        return myDelegate.getCommitBloomFiltersMaxCount();
+      }
+
+      public boolean useCommitGraph() {
+        return myUseCommitGraph != null ? myUseCommitGraph : myDelegate.useCommitGraph();
+      }
+
+      public boolean coalesceFetches() {
+        return myCoalesceFetches != null ? myCoalesceFetches : myDelegate.coalesceFetches();
+      }
+
+      public int getFetchMaxConcurrency() {
+        return myFetchMaxConcurrency != null ? myFetchMaxConcurrency : myDelegate.getFetchMaxConcurrency();
+      }
+
+      public int getFetchMaxConcurrencyPerHost() {
+        return myFetchMaxConcurrencyPerHost != null ? myFetchMaxConcurrencyPerHost : myDelegate.getFetchMaxConcurrencyPerHost();
+      }
+
+      public int getFetchPriorityAgingSeconds() {
+        return myFetchPriorityAgingSeconds != null ? myFetchPriorityAgingSeconds : myDelegate.getFetchPriorityAgingSeconds();
+      }
+
+      public int getSubmoduleFetchThreads() {
+        return mySubmoduleFetchThreads != null ? mySubmoduleFetchThreads : myDelegate.getSubmoduleFetchThreads();
+      }
+
+      public boolean useBloblessClones() {
+        return myUseBloblessClones != null ? myUseBloblessClones : myDelegate.useBloblessClones();
+      }
+
+      @NotNull
+      public String getFetchEngine() {
+        return myFetchEngine != null ? myFetchEngine : myDelegate.getFetchEngine();
+      }
+
+      public boolean fetchCommitsById() {
+        return myFetchCommitsById != null ? myFetchCommitsById : myDelegate.fetchCommitsById();
+      }
+
+      public boolean reuseRemoteConnections() {
+        return myReuseRemoteConnections != null ? myReuseRemoteConnections : myDelegate.reuseRemoteConnections();
+      }
+
+      public boolean usePackBitmaps() {
+        return myUsePackBitmaps != null ? myUsePackBitmaps : myDelegate.usePackBitmaps();
+      }
+
+      public boolean useFetchWorkers() {
+        return myUseFetchWorkers != null ? myUseFetchWorkers : myDelegate.useFetchWorkers();
+      }
+
+      public int getFetchWorkersPoolSize() {
+        return myDelegate.getFetchWorkersPoolSize();
+      }
+
+      public int getFetchWorkerMaxFetches() {
+        return myFetchWorkerMaxFetches != null ? myFetchWorkerMaxFetches : myDelegate.getFetchWorkerMaxFetches();
+      }
+
+      public int getFetchWorkerMaxUsedMemoryPercent() {
+        return myDelegate.getFetchWorkerMaxUsedMemoryPercent();
+      }
+
+      public int getFetchWorkerIdleTimeoutSeconds() {
+        return myDelegate.getFetchWorkerIdleTimeoutSeconds();
+      }
+
       @Nullable
       public CronExpression getCleanupCronExpression() {
         return null;
@@ -359,6 +509,16 @@ public class PluginConfigBuilder {
         return myDelegate.getPackRefsIdleTimeoutSeconds();
       }
 
+      @Override
+      public boolean incrementalRepack() {
+        return myIncrementalRepack != null ? myIncrementalRepack : myDelegate.incrementalRepack();
+      }
+
+      @Override
+      public int getFullRepackFragmentationPercent() {
+        return myFullRepackFragmentationPercent != null ? myFullRepackFragmentationPercent : myDelegate.getFullRepackFragmentationPercent();
+      }
+
       @Override
       public boolean treatMissingBranchTipAsRecoverableError() {
         return myDelegate.treatMissingBranchTipAsRecoverableError();
@@ -401,6 +561,18 @@ public class PluginConfigBuilder {
   }
 
 
+  PluginConfigBuilder setNativeGCQuotaMinutes(int quotaMinutes) {
+    myNativeGCQuotaMinutes = quotaMinutes;
+    return this;
+  }
+
+
+  PluginConfigBuilder setGcThreads(int threads) {
+    myGcThreads = threads;
+    return this;
+  }
+
+
   PluginConfigBuilder setRunJGitGC(boolean run) {
     myRunJGitGC = run;
     return this;
@@ -536,6 +708,150 @@ public class PluginConfigBuilder {
   }
 
 
+  public PluginConfigBuilder setRevisionCacheJournalSizeFactor(int factor) {
+    myRevisionCacheJournalSizeFactor = factor;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setRevisionsCacheWarmUpThreads(int threads) {
+    myRevisionsCacheWarmUpThreads = threads;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setCollectChangesDiffThreads(int threads) {
+    myCollectChangesDiffThreads = threads;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setCommitChangesCacheSizeMb(int sizeMb) {
+    myCommitChangesCacheSizeMb = sizeMb;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setCoalesceFetches(boolean coalesceFetches) {
+    myCoalesceFetches = coalesceFetches;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setFetchMaxConcurrency(int fetchMaxConcurrency) {
+    myFetchMaxConcurrency = fetchMaxConcurrency;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setFetchMaxConcurrencyPerHost(int fetchMaxConcurrencyPerHost) {
+    myFetchMaxConcurrencyPerHost = fetchMaxConcurrencyPerHost;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setFetchPriorityAgingSeconds(int fetchPriorityAgingSeconds) {
+    myFetchPriorityAgingSeconds = fetchPriorityAgingSeconds;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setSubmoduleFetchThreads(int submoduleFetchThreads) {
+    mySubmoduleFetchThreads = submoduleFetchThreads;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setUseBloblessClones(boolean useBloblessClones) {
+    myUseBloblessClones = useBloblessClones;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setFetchEngine(@NotNull String fetchEngine) {
+    myFetchEngine = fetchEngine;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setFetchCommitsById(boolean fetchCommitsById) {
+    myFetchCommitsById = fetchCommitsById;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setReuseRemoteConnections(boolean reuseRemoteConnections) {
+    myReuseRemoteConnections = reuseRemoteConnections;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setUsePackBitmaps(boolean usePackBitmaps) {
+    myUsePackBitmaps = usePackBitmaps;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setUseFetchWorkers(boolean useFetchWorkers) {
+    myUseFetchWorkers = useFetchWorkers;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setFetchWorkerMaxFetches(int maxFetches) {
+    myFetchWorkerMaxFetches = maxFetches;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setListRefsByBranchSpec(boolean listRefsByBranchSpec) {
+    myListRefsByBranchSpec = listRefsByBranchSpec;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setUseProtocolV2LsRefs(boolean useProtocolV2LsRefs) {
+    myUseProtocolV2LsRefs = useProtocolV2LsRefs;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setShareRemoteRefs(boolean shareRemoteRefs) {
+    myShareRemoteRefs = shareRemoteRefs;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setRemoteRefsTtlMillis(long ttlMillis) {
+    myRemoteRefsTtlMillis = ttlMillis;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setCollectChangesApplyCheckoutRules(boolean applyCheckoutRules) {
+    myCollectChangesApplyCheckoutRules = applyCheckoutRules;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setCollectChangesSkipCommitsWithoutIncludedChanges(boolean skipCommits) {
+    myCollectChangesSkipCommitsWithoutIncludedChanges = skipCommits;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setUseCommitBloomFilter(boolean useCommitBloomFilter) {
+    myUseCommitBloomFilter = useCommitBloomFilter;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setUseCommitGraph(boolean useCommitGraph) {
+    myUseCommitGraph = useCommitGraph;
+    return this;
+  }
+
+
   public PluginConfigBuilder setTempFiles(final TempFiles tempFiles) {
     myTempFiles = tempFiles;
     return this;
@@ -562,6 +878,16 @@ public class PluginConfigBuilder {
     return this;
   }
 
+  PluginConfigBuilder setIncrementalRepack(boolean incrementalRepack) {
+    myIncrementalRepack = incrementalRepack;
+    return this;
+  }
+
+  PluginConfigBuilder setFullRepackFragmentationPercent(int percent) {
+    myFullRepackFragmentationPercent = percent;
+    return this;
+  }
+
   PluginConfigBuilder setReportPerParentChangedFiles(boolean report) {
     myReportPerParentChangedFiles = report;
     return this;
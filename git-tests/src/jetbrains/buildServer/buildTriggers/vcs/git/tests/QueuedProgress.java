@@ -0,0 +1,42 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.GitProgress;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Counts down the latch on the first progress message. The fetch scheduler and the fetch
+ * coordinator report that a fetch waits only after they put it into their queues, so tests
+ * can wait on the latch until a fetch is queued.
+ */
+class QueuedProgress implements GitProgress {
+  private final CountDownLatch myQueued;
+
+  QueuedProgress(@NotNull CountDownLatch queued) {
+    myQueued = queued;
+  }
+
+  public void reportProgress(@NotNull String progress) {
+    myQueued.countDown();
+  }
+
+  public void reportProgress(float progressPercents, @NotNull String stage) {
+  }
+}
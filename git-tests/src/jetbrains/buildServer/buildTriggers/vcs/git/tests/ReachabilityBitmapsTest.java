@@ -0,0 +1,167 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.ReachabilityBitmaps;
+import jetbrains.buildServer.util.FileUtil;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class ReachabilityBitmapsTest extends BaseTestCase {
+
+  private TempFiles myTempFiles;
+  private Git myGit;
+  private RevCommit myC1;
+  private RevCommit myC2;
+  private RevCommit mySide;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+    // 2   side
+    // |  /
+    // 1
+    myGit = Git.init().setDirectory(myTempFiles.createTempDir()).call();
+    myC1 = commit("1");
+    myC2 = commit("2");
+    myGit.branchCreate().setName("side").setStartPoint(myC1).call();
+    myGit.checkout().setName("side").call();
+    mySide = commit("side");
+    myGit.checkout().setName("master").call();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myGit.getRepository().close();
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+
+  public void no_answer_without_bitmaps() throws Exception {
+    Repository db = myGit.getRepository();
+    RevWalk walk = new RevWalk(db);
+    try {
+      then(ReachabilityBitmaps.isReachable(walk, myC1, asList(myC2))).isNull();
+      then(ReachabilityBitmaps.findNewCommits(walk, asList(mySide), asList(myC2))).isNull();
+    } finally {
+      walk.release();
+    }
+  }
+
+
+  public void reachability_with_bitmaps() throws Exception {
+    writeBitmaps();
+    Repository db = myGit.getRepository();
+    RevWalk walk = new RevWalk(db);
+    try {
+      then(ReachabilityBitmaps.isReachable(walk, myC1, asList(myC2))).isTrue();
+      then(ReachabilityBitmaps.isReachable(walk, mySide, asList(myC2))).isFalse();
+      then(ReachabilityBitmaps.isReachable(walk, mySide, asList(myC2, mySide))).isTrue();
+    } finally {
+      walk.release();
+    }
+  }
+
+
+  public void new_commits_with_bitmaps() throws Exception {
+    writeBitmaps();
+    Repository db = myGit.getRepository();
+    RevWalk walk = new RevWalk(db);
+    try {
+      then(ReachabilityBitmaps.findNewCommits(walk, asList(mySide), asList(myC2))).containsOnly(mySide.name());
+      then(ReachabilityBitmaps.findNewCommits(walk, asList(myC2, mySide), asList(myC1))).containsOnly(myC2.name(), mySide.name());
+      then(ReachabilityBitmaps.findNewCommits(walk, asList(myC1), asList(myC2))).isEmpty();
+    } finally {
+      walk.release();
+    }
+  }
+
+
+  public void commits_created_after_gc_should_be_walked() throws Exception {
+    writeBitmaps();
+    RevCommit c3 = commit("3");
+    RevCommit c4 = commit("4");
+    Repository db = myGit.getRepository();
+    RevWalk walk = new RevWalk(db);
+    try {
+      then(ReachabilityBitmaps.isReachable(walk, myC1, asList(c4))).isTrue();
+      then(ReachabilityBitmaps.isReachable(walk, mySide, asList(c4))).isFalse();
+      then(ReachabilityBitmaps.findNewCommits(walk, asList(c4), asList(myC2))).containsOnly(c3.name(), c4.name());
+      then(ReachabilityBitmaps.findNewCommits(walk, asList(c4), asList(c3))).containsOnly(c4.name());
+    } finally {
+      walk.release();
+    }
+  }
+
+
+  public void no_answer_when_bitmaps_are_stale() throws Exception {
+    writeBitmaps();
+    RevCommit c3 = commit("3");
+    RevCommit c4 = commit("4");
+    Repository db = myGit.getRepository();
+    RevWalk walk = new RevWalk(db);
+    try {
+      //c4 and c3 are not covered by bitmaps
+      then(ReachabilityBitmaps.isReachable(walk, myC1, asList(c4), 1)).isNull();
+      then(ReachabilityBitmaps.isReachable(walk, myC1, asList(c4), 2)).isTrue();
+      then(ReachabilityBitmaps.findNewCommits(walk, asList(c4), asList(c3), 0)).isNull();
+      then(ReachabilityBitmaps.findNewCommits(walk, asList(c4), asList(c3), 1)).containsOnly(c4.name());
+    } finally {
+      walk.release();
+    }
+  }
+
+
+  private void writeBitmaps() throws Exception {
+    FileRepository db = (FileRepository) myGit.getRepository();
+    new GC(db).gc();
+    ObjectReader reader = db.newObjectReader();
+    try {
+      then(reader.getBitmapIndex()).as("gc should write bitmaps").isNotNull();
+    } finally {
+      reader.release();
+    }
+  }
+
+
+  @NotNull
+  private RevCommit commit(@NotNull String name) throws Exception {
+    File workTree = myGit.getRepository().getWorkTree();
+    FileUtil.writeFileAndReportErrors(new File(workTree, name), name);
+    myGit.add().addFilepattern(name).call();
+    return myGit.commit().setMessage(name).call();
+  }
+}
@@ -29,6 +29,7 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Semaphore;
@@ -42,6 +43,9 @@ import static org.assertj.core.api.BDDAssertions.then;
 @Test
 public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
 
+  private static final int HEADER_SIZE = 8;
+  private static final int RECORD_SIZE = 21;
+
   private PluginConfigBuilder myConfigBuilder;
   private ServerPluginConfig myConfig;
   private RevisionsCache myCache;
@@ -69,13 +73,13 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void save_revision_entry() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache commitCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    commitCache.saveRevision("v1", false, commitCache.getResetCounter());
-    commitCache.saveRevision("v2", true, commitCache.getResetCounter());
-    commitCache.saveRevision("v3", false, commitCache.getResetCounter());
+    commitCache.saveRevision(rev(1), false, commitCache.getResetCounter());
+    commitCache.saveRevision(rev(2), true, commitCache.getResetCounter());
+    commitCache.saveRevision(rev(3), false, commitCache.getResetCounter());
 
-    then(commitCache.hasRevision("v1")).isFalse();
-    then(commitCache.hasRevision("v2")).isTrue();
-    then(commitCache.hasRevision("v3")).isFalse();
+    then(commitCache.hasRevision(rev(1))).isFalse();
+    then(commitCache.hasRevision(rev(2))).isTrue();
+    then(commitCache.hasRevision(rev(3))).isFalse();
     then(commitCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
   }
 
@@ -84,13 +88,13 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     File repo = repository("1");
     RepositoryRevisionCache commitCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
     RepositoryRevisionCache hintCache = myCache.getRepositoryCache(repo, RevisionCacheType.HINT_CACHE);
-    commitCache.saveRevision("v1", false, commitCache.getResetCounter());
-    hintCache.saveRevision("v2", true, hintCache.getResetCounter());
+    commitCache.saveRevision(rev(1), false, commitCache.getResetCounter());
+    hintCache.saveRevision(rev(2), true, hintCache.getResetCounter());
 
-    then(commitCache.hasRevision("v1")).isFalse();
-    then(commitCache.hasRevision("v2")).isNull();
-    then(hintCache.hasRevision("v1")).isNull();
-    then(hintCache.hasRevision("v2")).isTrue();
+    then(commitCache.hasRevision(rev(1))).isFalse();
+    then(commitCache.hasRevision(rev(2))).isNull();
+    then(hintCache.hasRevision(rev(1))).isNull();
+    then(hintCache.hasRevision(rev(2))).isTrue();
     then(commitCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
     then(hintCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.HINT_CACHE));
   }
@@ -99,14 +103,14 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void reset_negative_entries() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache commitCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    commitCache.saveRevision("v1", false, commitCache.getResetCounter());
-    commitCache.saveRevision("v2", true, commitCache.getResetCounter());
-    commitCache.saveRevision("v3", false, commitCache.getResetCounter());
+    commitCache.saveRevision(rev(1), false, commitCache.getResetCounter());
+    commitCache.saveRevision(rev(2), true, commitCache.getResetCounter());
+    commitCache.saveRevision(rev(3), false, commitCache.getResetCounter());
 
     myCache.resetNegativeEntries(repo);
 
-    then(commitCache.hasRevision("v1")).isNull();
-    then(commitCache.hasRevision("v3")).isNull();
+    then(commitCache.hasRevision(rev(1))).isNull();
+    then(commitCache.hasRevision(rev(3))).isNull();
     then(commitCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
   }
 
@@ -114,18 +118,18 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void reset_negative_entries_different_types() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache commitCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    commitCache.saveRevision("v1", false, commitCache.getResetCounter());
-    commitCache.saveRevision("v2", true, commitCache.getResetCounter());
-    commitCache.saveRevision("v3", false, commitCache.getResetCounter());
+    commitCache.saveRevision(rev(1), false, commitCache.getResetCounter());
+    commitCache.saveRevision(rev(2), true, commitCache.getResetCounter());
+    commitCache.saveRevision(rev(3), false, commitCache.getResetCounter());
     RepositoryRevisionCache hintCache = myCache.getRepositoryCache(repo, RevisionCacheType.HINT_CACHE);
-    hintCache.saveRevision("v4", false, hintCache.getResetCounter());
+    hintCache.saveRevision(rev(4), false, hintCache.getResetCounter());
 
     myCache.resetNegativeEntries(repo);
 
     for (RevisionCacheType type : RevisionCacheType.values()) {
-      then(myCache.getRepositoryCache(repo, type).hasRevision("v1")).isNull();
-      then(myCache.getRepositoryCache(repo, type).hasRevision("v3")).isNull();
-      then(myCache.getRepositoryCache(repo, type).hasRevision("v4")).isNull();
+      then(myCache.getRepositoryCache(repo, type).hasRevision(rev(1))).isNull();
+      then(myCache.getRepositoryCache(repo, type).hasRevision(rev(3))).isNull();
+      then(myCache.getRepositoryCache(repo, type).hasRevision(rev(4))).isNull();
     }
     then(commitCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
     then(hintCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.HINT_CACHE));
@@ -135,15 +139,15 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void reset_negative_entries_with_new_commits() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
-    repoCache.saveRevision("v2", true, repoCache.getResetCounter());
-    repoCache.saveRevision("v3", false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(1), false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(2), true, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(3), false, repoCache.getResetCounter());
 
-    myCache.resetNegativeEntries(repo, setOf("v3", "v4"));
+    myCache.resetNegativeEntries(repo, setOf(rev(3), rev(4)));
 
-    then(repoCache.hasRevision("v1")).isFalse();
-    then(repoCache.hasRevision("v2")).isTrue();
-    then(repoCache.hasRevision("v3")).isTrue();
+    then(repoCache.hasRevision(rev(1))).isFalse();
+    then(repoCache.hasRevision(rev(2))).isTrue();
+    then(repoCache.hasRevision(rev(3))).isTrue();
     then(repoCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
   }
 
@@ -155,19 +159,19 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     then(cache1).isEqualTo(cache2);
     then(cache1).isNotEqualTo(cache3);
 
-    cache1.saveRevision("v1", true, cache1.getResetCounter());
-    cache1.saveRevision("v2", false, cache1.getResetCounter());
-    cache2.saveRevision("v1", true, cache2.getResetCounter());
-    cache2.saveRevision("v2", false, cache2.getResetCounter());
+    cache1.saveRevision(rev(1), true, cache1.getResetCounter());
+    cache1.saveRevision(rev(2), false, cache1.getResetCounter());
+    cache2.saveRevision(rev(1), true, cache2.getResetCounter());
+    cache2.saveRevision(rev(2), false, cache2.getResetCounter());
 
     then(cache1).isEqualTo(cache2);
 
-    cache1.saveRevision("v3", true, cache1.getResetCounter());
+    cache1.saveRevision(rev(3), true, cache1.getResetCounter());
 
     then(cache1).isNotEqualTo(cache2);
 
-    cache2.saveRevision("v3", true, cache2.getResetCounter());
-    cache2.saveRevision("v4", false, cache2.getResetCounter());
+    cache2.saveRevision(rev(3), true, cache2.getResetCounter());
+    cache2.saveRevision(rev(4), false, cache2.getResetCounter());
 
     then(cache1).isNotEqualTo(cache2);
   }
@@ -176,7 +180,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void should_write_empty_cache() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(1), false, repoCache.getResetCounter());
 
     myCache.resetNegativeEntries(repo);
 
@@ -187,9 +191,9 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void should_detect_broken_cache() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
-    repoCache.saveRevision("v2", true, repoCache.getResetCounter());
-    repoCache.saveRevision("v3", false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(1), false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(2), true, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(3), false, repoCache.getResetCounter());
 
     FileUtil.writeFile(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE), "broken\n+data");
 
@@ -207,12 +211,12 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
 
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(1), false, repoCache.getResetCounter());
     then(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE)).doesNotExist();
 
     myConfigBuilder.setPersistentCacheEnabled(true);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
-    repoCache.saveRevision("v2", false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(1), false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(2), false, repoCache.getResetCounter());
     then(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE)).exists();
   }
 
@@ -221,14 +225,14 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     //in order to not load stale data after restart
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(1), false, repoCache.getResetCounter());
 
     myConfigBuilder.setPersistentCacheEnabled(false);
-    repoCache.saveRevision("v1", true, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(1), true, repoCache.getResetCounter());
 
     myConfigBuilder.setPersistentCacheEnabled(true);
     RepositoryRevisionCache repoCache2 = new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    then(repoCache2.hasRevision("v1")).isNull();//should have no information on v1 after restart, especially 'false'
+    then(repoCache2.hasRevision(rev(1))).isNull();//should have no information on v1 after restart, especially 'false'
   }
 
 
@@ -236,18 +240,18 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
     File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", true, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(1), true, repoCache.getResetCounter());
     then(cacheFile).exists();
 
     FileUtil.delete(cacheFile);
 
-    repoCache.saveRevision("v1", true, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(1), true, repoCache.getResetCounter());
     then(cacheFile).doesNotExist();
 
     myCache.resetNegativeEntries(repo);
     then(cacheFile).doesNotExist();
 
-    myCache.resetNegativeEntries(repo, setOf("v2"));
+    myCache.resetNegativeEntries(repo, setOf(rev(2)));
     then(cacheFile).doesNotExist();
   }
 
@@ -262,7 +266,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
     for (int i = 0; i < 100; i++) {
-      repoCache.saveRevision("v" + i, true, repoCache.getResetCounter());
+      repoCache.saveRevision(rev(i), true, repoCache.getResetCounter());
     }
 
     if (afterRestart) {
@@ -271,13 +275,110 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     }
 
     for (int i = 100 - cacheSize; i < 100; i++) {
-      then(repoCache.hasRevision("v" + i))
-        .overridingErrorMessage("Doesn't contain entry for revision v" + i)
+      then(repoCache.hasRevision(rev(i)))
+        .overridingErrorMessage("Doesn't contain entry for revision " + rev(i))
         .isTrue();
     }
   }
 
 
+  public void should_append_updates_to_journal() throws Exception {
+    File repo = repository("1");
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision(rev(1), false, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(2), true, repoCache.getResetCounter());
+    myCache.resetNegativeEntries(repo);
+    repoCache.saveRevision(rev(3), false, repoCache.getResetCounter());
+
+    then(cacheFile.length()).isEqualTo(HEADER_SIZE + 4 * RECORD_SIZE);
+    RepositoryRevisionCache restored = new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    then(restored.hasRevision(rev(1))).isNull();
+    then(restored.hasRevision(rev(2))).isTrue();
+    then(restored.hasRevision(rev(3))).isFalse();
+  }
+
+
+  public void should_compact_journal() throws Exception {
+    File repo = repository("1");
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    myConfigBuilder.setRevisionCacheJournalSizeFactor(2);
+    RepositoryRevisionCache repoCache = new RepositoryRevisionCache(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 5);
+    for (int i = 0; i < 11; i++) {
+      repoCache.saveRevision(rev(i), true, repoCache.getResetCounter());
+    }
+
+    then(cacheFile.length()).isEqualTo(HEADER_SIZE + 5 * RECORD_SIZE);
+    then(RepositoryRevisionCache.read(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 5)).isEqualTo(repoCache);
+  }
+
+
+  public void should_ignore_partially_written_record() throws Exception {
+    File repo = repository("1");
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision(rev(1), true, repoCache.getResetCounter());
+    repoCache.saveRevision(rev(2), false, repoCache.getResetCounter());
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    try (RandomAccessFile f = new RandomAccessFile(cacheFile, "rw")) {
+      f.setLength(f.length() - 3);
+    }
+
+    RepositoryRevisionCache restored = RepositoryRevisionCache.read(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 100);
+    then(restored.hasRevision(rev(1))).isTrue();
+    then(restored.hasRevision(rev(2))).isNull();
+    then(cacheFile.length()).isEqualTo(HEADER_SIZE + RECORD_SIZE);
+  }
+
+
+  public void should_convert_text_cache() throws Exception {
+    File repo = repository("1");
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    cacheFile.getParentFile().mkdirs();
+    FileUtil.writeFile(cacheFile, "+" + rev(1) + "\n-" + rev(2) + "\n-" + rev(3) + "\n*\n-" + rev(4) + "\n+notAnId\n");
+
+    RepositoryRevisionCache repoCache = RepositoryRevisionCache.read(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 100);
+    then(repoCache.hasRevision(rev(1))).isTrue();
+    then(repoCache.hasRevision(rev(2))).isNull();
+    then(repoCache.hasRevision(rev(3))).isNull();
+    then(repoCache.hasRevision(rev(4))).isFalse();
+    then(repoCache.hasRevision("notAnId")).isNull();
+    then(cacheFile.length()).isEqualTo(HEADER_SIZE + 2 * RECORD_SIZE);
+    then(RepositoryRevisionCache.read(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 100)).isEqualTo(repoCache);
+  }
+
+
+  public void should_cache_abbreviated_revisions_in_memory() throws Exception {
+    File repo = repository("1");
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision("1234567", false, repoCache.getResetCounter());
+    repoCache.saveRevision("v1", true, repoCache.getResetCounter());
+    then(repoCache.hasRevision("1234567")).isFalse();
+    then(repoCache.hasRevision("v1")).isTrue();
+    then(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE)).doesNotExist();
+
+    myCache.resetNegativeEntries(repo);
+    then(repoCache.hasRevision("1234567")).isNull();
+    then(repoCache.hasRevision("v1")).isTrue();
+  }
+
+
+  public void should_compact_journal_replayed_on_read() throws Exception {
+    File repo = repository("1");
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    myConfigBuilder.setRevisionCacheJournalSizeFactor(2);
+    RepositoryRevisionCache repoCache = new RepositoryRevisionCache(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 100);
+    for (int i = 0; i < 11; i++) {
+      repoCache.saveRevision(rev(i), true, repoCache.getResetCounter());
+    }
+    then(cacheFile.length()).isEqualTo(HEADER_SIZE + 11 * RECORD_SIZE);
+
+    //the journal is compacted right after it is read, the compacted file replaces the journal
+    RepositoryRevisionCache restored = RepositoryRevisionCache.read(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 5);
+    then(cacheFile.length()).isEqualTo(HEADER_SIZE + 5 * RECORD_SIZE);
+    then(RepositoryRevisionCache.read(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 5)).isEqualTo(restored);
+  }
+
+
   @DataProvider
   public static Object[][] reset() {
     return new Object[][]{
@@ -291,14 +392,14 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       new Object[] {new ResetCacheConsumer("reset v1") {
         @Override
         protected void run(RevisionsCache cache, File repo) throws Exception {
-          cache.resetNegativeEntries(repo, setOf("v1"));
+          cache.resetNegativeEntries(repo, setOf(rev(1)));
         }
       }},
 
       new Object[] {new ResetCacheConsumer("reset v2") {
         @Override
         protected void run(RevisionsCache cache, File repo) throws Exception {
-          cache.resetNegativeEntries(repo, setOf("v2"));
+          cache.resetNegativeEntries(repo, setOf(rev(2)));
         }
       }}
     };
@@ -317,11 +418,11 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       try {
         RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
         long resetCounter = repoCache.getResetCounter();
-        if (repoCache.hasRevision("v1") == null) {
+        if (repoCache.hasRevision(rev(1)) == null) {
           s1.release();
           //long commit lookup (we didn't find it)
           s2.acquire();
-          repoCache.saveRevision("v1", false, resetCounter);
+          repoCache.saveRevision(rev(1), false, resetCounter);
         }
       } catch (Exception e) {
         e.printStackTrace();
@@ -336,7 +437,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     s2.release();
     mapFullPath.join();
 
-    then(myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE).hasRevision("v1")).isNull();
+    then(myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE).hasRevision(rev(1))).isNull();
   }
 
 
@@ -356,7 +457,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       int repoNum = Integer.parseInt(repo.getName());
       for (int i = 0; i < 4; i++) {
         boolean contains = repoNum == i;
-        cache.saveRevision("v" + i, contains, cache.getResetCounter());
+        cache.saveRevision(rev(i), contains, cache.getResetCounter());
       }
     }
 
@@ -366,17 +467,17 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       RepositoryRevisionCache cache = myCache.getRepositoryCache(repo, RevisionCacheType.HINT_CACHE);
       for (int i = 0; i < 4; i++) {
         boolean contains = repoNum == i;
-        then(cache.hasRevision("v" + i)).isEqualTo(contains);
+        then(cache.hasRevision(rev(i))).isEqualTo(contains);
       }
     }
 
     RepositoryRevisionCache cache5 = myCache.getRepositoryCache(repository("5"), RevisionCacheType.HINT_CACHE);
-    cache5.saveRevision("v1", false, cache5.getResetCounter());
-    cache5.saveRevision("v2", false, cache5.getResetCounter());
-    cache5.saveRevision("v3", false, cache5.getResetCounter());
-    then(cache5.hasRevision("v1")).isFalse();
-    then(cache5.hasRevision("v2")).isFalse();
-    then(cache5.hasRevision("v3")).isFalse();
+    cache5.saveRevision(rev(1), false, cache5.getResetCounter());
+    cache5.saveRevision(rev(2), false, cache5.getResetCounter());
+    cache5.saveRevision(rev(3), false, cache5.getResetCounter());
+    then(cache5.hasRevision(rev(1))).isFalse();
+    then(cache5.hasRevision(rev(2))).isFalse();
+    then(cache5.hasRevision(rev(3))).isFalse();
   }
 
 
@@ -384,15 +485,15 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
     long resetCounter = repoCache.getResetCounter();
-    repoCache.saveRevision("v1", true, resetCounter);
+    repoCache.saveRevision(rev(1), true, resetCounter);
 
     repoCache.reset();
 
-    then(repoCache.hasRevision("v1")).isNull();
+    then(repoCache.hasRevision(rev(1))).isNull();
     then(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE)).doesNotExist();
 
-    repoCache.saveRevision("v2", false, resetCounter);
-    then(repoCache.hasRevision("v2")).isNull();
+    repoCache.saveRevision(rev(2), false, resetCounter);
+    then(repoCache.hasRevision(rev(2))).isNull();
   }
 
 
@@ -403,7 +504,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       repos.add(repo);
       for (RevisionCacheType type : RevisionCacheType.values()) {
         RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, type);
-        repoCache.saveRevision("v1", true, repoCache.getResetCounter());
+        repoCache.saveRevision(rev(1), true, repoCache.getResetCounter());
       }
     }
 
@@ -412,15 +513,57 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     for (File repo : repos) {
       for (RevisionCacheType type : RevisionCacheType.values()) {
         RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, type);
-        then(repoCache.hasRevision("v1")).isNull();
+        then(repoCache.hasRevision(rev(1))).isNull();
         then(RepositoryRevisionCache.getCacheFile(repo, type)).doesNotExist();
-        repoCache.saveRevision("v2", false, 0);
-        then(repoCache.hasRevision("v2")).isNull();
+        repoCache.saveRevision(rev(2), false, 0);
+        then(repoCache.hasRevision(rev(2))).isNull();
       }
     }
   }
 
 
+  public void should_read_cache_on_first_access() throws Exception {
+    File repo = repository("1");
+    RevisionsCache cache = new RevisionsCache(myConfig);
+
+    //cache updated after RevisionsCache creation should be visible
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision(rev(1), true, repoCache.getResetCounter());
+
+    then(cache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE).hasRevision(rev(1))).isTrue();
+  }
+
+
+  public void reset_negative_entries_in_not_loaded_cache() throws Exception {
+    File repo = repository("1");
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision(rev(1), false, repoCache.getResetCounter());
+
+    new RevisionsCache(myConfig).resetNegativeEntries(repo);
+
+    then(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE).hasRevision(rev(1))).isNull();
+  }
+
+
+  public void reset_all_caches_should_reset_not_loaded_caches() throws Exception {
+    File repo = repository("1");
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision(rev(1), true, repoCache.getResetCounter());
+
+    RevisionsCache cache = new RevisionsCache(myConfig);
+    cache.reset();
+
+    then(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE)).doesNotExist();
+    then(cache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE).hasRevision(rev(1))).isNull();
+  }
+
+
+  @NotNull
+  private static String rev(int n) {
+    return String.format("%040x", n);
+  }
+
+
   @NotNull
   private File repository(@NotNull String name) {
     File result = new File(myConfig.getCachesDir(), name);